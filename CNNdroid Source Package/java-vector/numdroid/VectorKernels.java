@@ -0,0 +1,117 @@
+package numdroid;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Kernels on the Java Vector API (JDK 16 or later), in lanes of the preferred species of the CPU, e.g. 8 floats
+// with AVX2 or 4 with NEON. Kernels.get() loads this class by name, so it is built separately from the Android
+// sources and added to the class path of desktop JVMs:
+//
+//   javac --add-modules jdk.incubator.vector -cp <CNNdroid classes> -d <out> numdroid/VectorKernels.java
+//   java --add-modules jdk.incubator.vector -cp <CNNdroid classes>:<out> ...
+//
+// Its test, test-vector/numdroid/VectorKernelsTest.java, is built and run the same way.
+//
+// Runs shorter than one vector (the taps of one kernel row, most pooling windows) go to the scalar loops.
+public class VectorKernels extends Kernels
+{
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    static final int LANES = SPECIES.length();
+
+    // Below 4 lanes the vector loops are no faster than the scalar ones; Kernels.get() checks this first. This and
+    // name() read the species rather than LANES: when this class is used before Kernels, Kernels is initialized
+    // first and calls them while the fields here are not set yet.
+    public static boolean usable()
+    {
+        return FloatVector.SPECIES_PREFERRED.length() >= 4;
+    }
+
+    @Override
+    public String name()
+    {
+        return "vector, " + FloatVector.SPECIES_PREFERRED.length() + " x float";
+    }
+
+    // Two accumulators to hide the latency of the fused multiply-add.
+    @Override
+    public float dot(float[] a, int aOff, float[] b, int bOff, int n)
+    {
+        if (n < LANES)
+            return super.dot(a, aOff, b, bOff, n);
+
+        FloatVector s0 = FloatVector.zero(SPECIES);
+        FloatVector s1 = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (; i <= n - 2 * LANES; i += 2 * LANES) {
+            s0 = FloatVector.fromArray(SPECIES, a, aOff + i).fma(FloatVector.fromArray(SPECIES, b, bOff + i), s0);
+            s1 = FloatVector.fromArray(SPECIES, a, aOff + i + LANES)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOff + i + LANES), s1);
+        }
+        if (i <= n - LANES) {
+            s0 = FloatVector.fromArray(SPECIES, a, aOff + i).fma(FloatVector.fromArray(SPECIES, b, bOff + i), s0);
+            i += LANES;
+        }
+        float sum = s0.add(s1).reduceLanes(VectorOperators.ADD);
+        for (; i < n; ++i)
+            sum += a[aOff + i] * b[bOff + i];
+        return sum;
+    }
+
+    // Multiply and add rounded separately, as in the scalar loop.
+    @Override
+    public void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n)
+    {
+        if (n < LANES) {
+            super.axpy(alpha, x, xOff, y, yOff, n);
+            return;
+        }
+
+        FloatVector a = FloatVector.broadcast(SPECIES, alpha);
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += LANES)
+            FloatVector.fromArray(SPECIES, x, xOff + i).mul(a)
+                    .add(FloatVector.fromArray(SPECIES, y, yOff + i)).intoArray(y, yOff + i);
+        for (; i < n; ++i)
+            y[yOff + i] += alpha * x[xOff + i];
+    }
+
+    @Override
+    public float max(float[] a, int off, int n, float init)
+    {
+        if (n < LANES)
+            return super.max(a, off, n, init);
+
+        FloatVector m = FloatVector.broadcast(SPECIES, init);
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += LANES)
+            m = m.max(FloatVector.fromArray(SPECIES, a, off + i));
+        float max = m.reduceLanes(VectorOperators.MAX);
+        for (; i < n; ++i)
+            max = Math.max(max, a[off + i]);
+        return max;
+    }
+
+    // Only the negative lanes are replaced, like the scalar loop.
+    @Override
+    public void relu(float[] x, int xOff, float[] y, int yOff, int n)
+    {
+        if (n < LANES) {
+            super.relu(x, xOff, y, yOff, n);
+            return;
+        }
+
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            FloatVector v = FloatVector.fromArray(SPECIES, x, xOff + i);
+            v.blend(0f, v.compare(VectorOperators.LT, 0f)).intoArray(y, yOff + i);
+        }
+        for (; i < n; ++i) {
+            float v = x[xOff + i];
+            y[yOff + i] = v < 0 ? 0 : v;
+        }
+    }
+}
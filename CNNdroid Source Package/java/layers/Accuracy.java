@@ -3,15 +3,26 @@ package layers;
 
 import android.util.Log;
 
+import java.nio.FloatBuffer;
+
 import messagepack.ParamUnpacker;
 import numdroid.MyNum;
+import numdroid.Tensor;
+import params.MappedParams;
 
 public class Accuracy implements LayerInterface {
+    private static final int MAPPED_LABELS = 1 << 16;  // label sets at least this large stay in the mapped file
+
     private String name;                    // name of the layer
     private int topk;                       // number of top predictions
     private String paramFilePath;           // name of the file which specifies the label of each image
     private MyNum myNum;                    // for mathematical calculations
     private ParamUnpacker paramUnpacker;    // for extracting the labels from the parameters file
+    private int[] labels;                   // label of every image, null if not loaded or mapped
+    private FloatBuffer mappedLabels;       // label of every image read from the mapped file, for large label sets
+    private int labelCount = -1;            // number of labels, -1 until they are loaded
+    private int batchOffset = 0;            // index of the label of the first image of the batch
+    private int[] order;                    // sorted prediction indices of one image, reused between images and calls
 
 
     public Accuracy(int topk, String paramFilePath, String name) {
@@ -23,50 +34,114 @@ public class Accuracy implements LayerInterface {
     }
 
     @Override
-    public Object compute(Object input) {
+    public String getName() {
+        return name;
+    }
+
+    // Labels of the next batches start at offset, so that a dataset can be evaluated in several batches with
+    // one label file.
+    public void setBatchOffset(int offset) {
+        this.batchOffset = offset;
+    }
+
+    public int getBatchOffset() {
+        return batchOffset;
+    }
+
+    // the output is a single value, the top k accuracy of the batch
+    @Override
+    public int[] inferOutputShape(int[] inputShape) {
+        if (Tensor.count(inputShape) / inputShape[0] < topk) {
+            Log.d("CNNdroid", "layers." + name + ": there are less than topk = " + topk + " predictions per image");
+            return null;
+        }
+        return new int[]{1};
+    }
+
+    @Override
+    public void compute(Tensor input, Tensor output) {
         long loadTime = System.currentTimeMillis();
 
-        float[][][][] labels = (float[][][][]) paramUnpacker.unpackerFunction(paramFilePath, float[][][][].class);
+        // the labels are read once, at the first batch
+        if (labelCount == -1)
+            loadLabels();
 
         loadTime = System.currentTimeMillis() - loadTime;
 
         long runTime = System.currentTimeMillis();
 
-        Object output = accuracyLayer((float[][])input, labels, topk);
+        int n = input.shape[0];
+        if (labelCount == -1 || batchOffset < 0 || batchOffset + n > labelCount) {
+            Log.d("CNNdroid", "Error: layers." + name + ": no labels for images " + batchOffset + " to "
+                    + (batchOffset + n - 1) + " in \"" + paramFilePath + "\"");
+            output.data[output.offset] = Float.NaN;
+            return;
+        }
+        output.data[output.offset] = accuracyLayer(input, batchOffset, topk);
 
         runTime = System.currentTimeMillis() - runTime;
-        Log.d("CNNdroid","layers." + name + ": Computation Run Time = " + String.valueOf(runTime) + ", Parameters Load Time = " + String.valueOf(loadTime));
-
-        return output;
+        if (Log.isLoggable("CNNdroid", Log.DEBUG))
+            Log.d("CNNdroid","layers." + name + ": Computation Run Time = " + String.valueOf(runTime) + ", Parameters Load Time = " + String.valueOf(loadTime));
     }
 
-    // Calculate top k prediction accuracy.
-    private float accuracyLayer(float[][] inputMatrix, float[][][][] labelFloat4d, int topk) {
-        // Convert label matrix to appropriate form.
-        int w = labelFloat4d.length;
-        int[] label = new int[w];
-        for (int i = 0 ; i < w ; ++i)
-            label[i] = (int) labelFloat4d[i][0][0][0];
-
-        // Sort top k predictions.
-        int[][] preds = myNum.argsort(inputMatrix);
-        w = preds[0].length;
-
-        // Repeat 'label' vector to 'preds' shape.
-        int[][] tiled_label = myNum.tile_transpose(label, topk);
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Label of every image, from a mapped binary parameters file or from a MessagePack one. Large label sets of
+    // a binary file are read from the mapping when they are used instead of being copied.
+    private void loadLabels()
+    {
+        if (MappedParams.isMappedFile(paramFilePath)) {
+            MappedParams p = MappedParams.open(paramFilePath);
+            if (p == null)
+                return;
+            if (p.dtype(0) == MappedParams.DTYPE_FLOAT32 && Tensor.count(p.shape(0)) >= MAPPED_LABELS)
+                mappedLabels = p.floats(0);
+            else {
+                float[] labelFloat = p.toArray(0);
+                labels = new int[labelFloat.length];
+                for (int i = 0 ; i < labels.length ; ++i)
+                    labels[i] = (int) labelFloat[i];
+            }
+            labelCount = Tensor.count(p.shape(0));
+            return;
+        }
+
+        Tensor[] tensors = paramUnpacker.unpackTensors(paramFilePath, 1);
+        if (tensors == null)
+            return;
+        float[] labelFloat = tensors[0].data;
+        labels = new int[labelFloat.length];
+        for (int i = 0 ; i < labels.length ; ++i)
+            labels[i] = (int) labelFloat[i];
+        labelCount = labels.length;
+    }
 
-        // Compare 'preds' and 'label'.
-        boolean[] accuracy = new boolean[tiled_label.length];
+    private int label(int i)
+    {
+        return labels != null ? labels[i] : (int) mappedLabels.get(i);
+    }
 
-        for (int i = 0; i < tiled_label.length; ++i)
+    // Calculate top k prediction accuracy, the label of image i of the batch is label(offset + i).
+    private float accuracyLayer(Tensor inputMatrix, int offset, int topk)
+    {
+        int n = inputMatrix.shape[0];
+        int w = inputMatrix.sampleSize();
+        if (order == null || order.length < w)
+            order = new int[w];
+
+        int correct = 0;
+        for (int i = 0; i < n; ++i) {
+            // Sort the predictions of the image and compare the top k with its label.
+            myNum.sort(inputMatrix.data, inputMatrix.sampleIndex(i), w, order);
+            int l = label(offset + i);
             for (int j = 0; j < topk; ++j)
-                if (tiled_label[i][j] == preds[i][w - topk + j])
+                if (l == order[w - topk + j])
                 {
-                    accuracy[i] = true;
+                    ++correct;
                     break;
                 }
+        }
 
         // Return the result.
-        return myNum.mean(accuracy);
+        return correct / (float) n;
     }
 }
@@ -10,12 +10,33 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 import messagepack.ParamUnpacker;
+import numdroid.DepthwiseConvolution;
+import numdroid.FftConvolution;
+import numdroid.GemmConvolution;
+import numdroid.HalfTensor;
 import numdroid.MyNum;
-
-public class Convolution implements LayerInterface {
+import numdroid.QuantizedConvolution;
+import numdroid.QuantizedTensor;
+import numdroid.Tensor;
+import numdroid.WinogradConvolution;
+import numdroid.Workers;
+import params.MappedParams;
+import params.ModelBundle;
+import params.ParamHeader;
+import params.ParamConverter;
+
+public class Convolution implements MemoryInterface {
+    private static final int PACKED_KERNEL_CHUNK = 1 << 14;  // floats of a saved kernel copied to its allocation at a time
+    private static final long MIN_PARALLEL_WORK = 1 << 16;   // multiply-adds below which one thread is faster
+    private static final int OUTPUT_BLOCKS_PER_THREAD = 4;   // for load balance
 
     private String name;                    // name of the layer
     private String paramFilePath;           // name of the file which specifies the weights and biases
@@ -29,13 +50,36 @@ public class Convolution implements LayerInterface {
     private NonLinearType nonLinearType;    // non-linearity type (if applicable)
     private boolean parallel;               // implementation method (parallel or sequential)
     private boolean loadParamsAtStart;      // if true, layer parameters will be loaded at the construction of network, otherwise the parameters will be loaded in run time
-    private float[][][][] weight;           // weight parameter of network
+    private Tensor weight;                  // weight parameter of network
+    private float[] gemmWeight;             // resident weights packed for the CPU matrix product (sequential mode, instead of weight, except for depthwise layers)
+    private float[] winogradWeight;         // resident weights transformed for Winograd (instead of gemmWeight, see useWinograd)
+    private int winogradTile = 2;           // output tile of the Winograd convolution, 2 for F(2x2, 3x3), 4 for F(4x4, 3x3), 0 to disable
+    private float[] fftWeight;              // resident kernel spectra for the FFT convolution (instead of gemmWeight, see useFft)
+    private FftMode fftMode = FftMode.Auto; // when to compute through the FFT
+    private HalfTensor halfWeight;          // weight parameter in half precision (instead of weight, see setHalfPrecision)
+    private boolean halfPrecision;          // keep the weights in half precision
+    private QuantizedTensor quantizedWeight;  // weight parameter in int8 (instead of weight, see setQuantization)
+    private boolean quantized;              // compute in int8
+    private float inputScale;               // int8 step of the input, from calibration
+    private int inputOffset;                // 128 if the input is unsigned (quantized to uint8), 0 otherwise
+    private byte[] quantizedFrame;          // quantized and padded images of the batch, reused between calls
+    private int[] weightShape;              // (n_k, c_k, h_k, w_k), known once the parameters have been read
+    private ParamHeader paramHeader;        // header of the parameters file read by the network, null if not given
     private float[] bias;                   // bias parameter of network
     private String tuningFolder;            // location to store online tuning results
     private boolean tuneNow;                // flag to weather execute tuning ro not
     private boolean tuneFunc;               // flag of optional tuning function
     private String algorithm;               // acceleration method
     private String[] names = {"F4F1", "F4F2", "F4F4", "F4F8", "F8F1", "F8F2", "F8F4", "F8F8"};
+    private float[][] scratch = new float[3][];  // staging arrays for RenderScript (frame, output, second output), reused between calls
+    private Object[] prefetched;            // parameters read in advance for the next call (if not resident)
+    private boolean tuning = false;         // the packed kernels are neither saved nor mapped while tuning
+    private final GemmConvolution gemm = new GemmConvolution();             // CPU engines, their tasks reused between calls
+    private final WinogradConvolution winograd = new WinogradConvolution();
+    private final FftConvolution fft = new FftConvolution();
+    private final DepthwiseConvolution depthwise = new DepthwiseConvolution();
+    private final QuantizedConvolution quantizedConvolution = new QuantizedConvolution();
+    private final RolledTasks rolledTasks = new RolledTasks();
 
     private ScriptC_convRolledInF4OutF1 myScript41;
     private ScriptC_convRolledInF4OutF2 myScript42;
@@ -53,6 +97,13 @@ public class Convolution implements LayerInterface {
         None
     }
 
+    // when the sequential mode computes through the FFT instead of im2col + GEMM
+    public enum FftMode {
+        Auto,       // when the cost model of numdroid.FftConvolution estimates it faster
+        On,         // whenever the kernel spectra fit (the Winograd convolution still takes 3x3 stride-1 layers)
+        Off
+    }
+
     public Convolution(int[] stride, int[] pad, int group, String paramFilePath, boolean parallel, boolean loadParamsAtStart, boolean tuneFunc, RenderScript myRS, String name, String tuningFolder) {
         this.paramFilePath = paramFilePath;
         this.stride = stride;
@@ -84,49 +135,71 @@ public class Convolution implements LayerInterface {
             algorithm = "F8F4";
             tuneNow = false;
         }
+    }
 
-        if (loadParamsAtStart && (!tuneNow || !parallel)) {
-            long loadTime = System.currentTimeMillis();
-
-            Object[] objects = paramUnpacker.unpackerFunction(paramFilePath, new Class[]{float[][][][].class, float[].class});
-            weight = (float[][][][]) objects[0];
-            bias = (float[]) objects[1];
+    // Load (and pack, in parallel mode) the parameters kept resident. Called once after construction,
+    // possibly on a worker thread while the other layers load theirs.
+    @Override
+    public void loadParams() {
+        if (!loadParamsAtStart || (tuneNow && parallel))
+            return;
+
+        long loadTime = System.currentTimeMillis();
+
+        // in parallel mode a packed kernel saved in the tuning folder is used without reading the weights
+        Object[] objects = packedKernelSaved() ? new Object[2] : readParams();
+        if (quantized)
+            quantizedWeight = (QuantizedTensor) objects[0];
+        else if (halfPrecision)
+            halfWeight = (HalfTensor) objects[0];
+        else
+            weight = (Tensor) objects[0];
+        bias = (float[]) objects[1];
+        if (!parallel && weight != null && !useDepthwise()) {
+            weightShape = weight.shape;
+            if (useWinograd())
+                winogradWeight = transformKernels(weight);
+            else if (useFft())
+                fftWeight = kernelSpectra(weight);
+            else
+                gemmWeight = packKernels(weight);
+            weight = null;
+        }
 
-            loadTime = System.currentTimeMillis() - loadTime;
+        loadTime = System.currentTimeMillis() - loadTime;
 
-            long kernelTime = System.currentTimeMillis();
-            Log.d("CNNdroid", "layers." + name + ": Parameters Load Time in Constructor = " + String.valueOf(loadTime));
+        long kernelTime = System.currentTimeMillis();
+        Log.d("CNNdroid", "layers." + name + ": Parameters Load Time at Start-up = " + String.valueOf(loadTime));
 
-            if (parallel) {
-                switch (algorithm) {
-                    case "F4F1":
-                        initKernelF4F1(weight, bias);
-                        break;
-                    case "F4F2":
-                        initKernelF4F2(weight, bias);
-                        break;
-                    case "F4F4":
-                        initKernelF4F4(weight, bias);
-                        break;
-                    case "F4F8":
-                        initKernelF4F8(weight, bias);
-                        break;
-                    case "F8F1":
-                        initKernelF8F1(weight, bias);
-                        break;
-                    case "F8F2":
-                        initKernelF8F2(weight, bias);
-                        break;
-                    case "F8F4":
-                        initKernelF8F4(weight, bias);
-                        break;
-                    case "F8F8":
-                        initKernelF8F8(weight, bias);
-                        break;
-                }
-                kernelTime = System.currentTimeMillis() - kernelTime;
-                Log.d("CNNdroid", "layers." + name + ": Kernel Initialization Time in Constructor = " + String.valueOf(kernelTime));
+        if (parallel) {
+            switch (algorithm) {
+                case "F4F1":
+                    initKernelF4F1(weight, bias);
+                    break;
+                case "F4F2":
+                    initKernelF4F2(weight, bias);
+                    break;
+                case "F4F4":
+                    initKernelF4F4(weight, bias);
+                    break;
+                case "F4F8":
+                    initKernelF4F8(weight, bias);
+                    break;
+                case "F8F1":
+                    initKernelF8F1(weight, bias);
+                    break;
+                case "F8F2":
+                    initKernelF8F2(weight, bias);
+                    break;
+                case "F8F4":
+                    initKernelF8F4(weight, bias);
+                    break;
+                case "F8F8":
+                    initKernelF8F8(weight, bias);
+                    break;
             }
+            kernelTime = System.currentTimeMillis() - kernelTime;
+            Log.d("CNNdroid", "layers." + name + ": Kernel Initialization Time at Start-up = " + String.valueOf(kernelTime));
         }
     }
 
@@ -135,15 +208,180 @@ public class Convolution implements LayerInterface {
         nonLinear = true;
     }
 
+    // Keep the weights in half precision, the sequential kernel widens them to float while accumulating.
+    // The RenderScript kernels take single precision weights, so the parallel mode ignores it.
+    public void setHalfPrecision(boolean halfPrecision) {
+        this.halfPrecision = halfPrecision && !parallel;
+    }
+
+    // Output tile of the Winograd convolution used for 3x3 stride-1 layers in sequential mode: 2 for F(2x2, 3x3),
+    // 4 for F(4x4, 3x3), which saves more multiplications but keeps transformed kernels 4 times the size of the
+    // weights instead of 16/9, 0 to use im2col + GEMM instead.
+    public void setWinogradTile(int winogradTile) {
+        this.winogradTile = winogradTile;
+    }
+
+    // Compute large kernels through the FFT in sequential mode, see numdroid.FftConvolution. The kernel spectra
+    // take up to 16 times the memory of the weights.
+    public void setFftMode(FftMode fftMode) {
+        this.fftMode = fftMode;
+    }
+
+    // Header of the parameters file, already read when the network definition was checked, so that the shapes
+    // are known without scanning the file again.
+    public void setParamHeader(ParamHeader paramHeader) {
+        this.paramHeader = paramHeader;
+    }
+
+    // Compute in int8: weights quantized per output channel, the input quantized with one scale for the
+    // range [min, max] seen at calibration (to uint8 if it is never negative), int32 accumulation. The
+    // output is dequantized to float. Like half precision, only the sequential mode supports it.
+    public void setQuantization(float min, float max) {
+        quantized = !parallel;
+        inputOffset = min >= 0 ? 128 : 0;
+        float range = min >= 0 ? max : Math.max(-min, max);
+        inputScale = range > 0 ? range / (min >= 0 ? 255 : 127) : 1;
+    }
+
     @Override
-    public Object compute(Object input) {
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int[] inferOutputShape(int[] inputShape) {
+        int[] k = weightShape();
+        if (k == null || inputShape.length != 4 || inputShape[1] != k[1] * group || k[0] % group != 0) {
+            Log.d("CNNdroid", "layers." + name + ": input blob of shape " + Arrays.toString(inputShape) + " does not match the weights");
+            return null;
+        }
+
+        int h_o = (int) (Math.ceil((inputShape[2] + 2 * pad[0] - k[2]) / ((float) (stride[0]))) + 1);
+        int w_o = (int) (Math.ceil((inputShape[3] + 2 * pad[1] - k[3]) / ((float) (stride[1]))) + 1);
+        return new int[]{inputShape[0], k[0], h_o, w_o};
+    }
+
+    ///////////////////////////////////////Memory Planning//////////////////////////////////////////
+    @Override
+    public long weightBytes() {
+        int[] k = weightShape();
+        if (quantized)
+            return Tensor.count(k) + 12L * k[0];
+        return (halfPrecision ? 2L : 4L) * Tensor.count(k) + 4L * k[0];
+    }
+
+    // The kernel Allocation of the selected algorithm, the input channels are padded to F4/F8 and the
+    // kernels to a multiple of the output vector width.
+    @Override
+    public long packedWeightBytes() {
+        if (useWinograd()) {
+            int[] k = weightShape();
+            return WinogradConvolution.kernelBytes(k[0], k[1], group, winogradTile) - 4L * Tensor.count(k);
+        }
+        if (useFft()) {
+            int[] k = weightShape();
+            return FftConvolution.kernelBytes(k[0], k[1], group, fftTile()) - 4L * Tensor.count(k);
+        }
+        if (!parallel)
+            return 0;
+        int[] k = weightShape();
+        int inWidth = algorithmWidth(1);
+        int outWidth = algorithmWidth(3);
+        long n_k = roundUp(k[0], outWidth);
+        return 4L * (n_k * roundUp(k[1], inWidth) * k[2] * k[3] + n_k);
+    }
+
+    // The padded frame and output of one image, held both in a Java array and in an Allocation.
+    @Override
+    public long scratchBytes(int[] inputShape) {
+        if (quantized) {
+            int[] o = inferOutputShape(inputShape);
+            int[] k = weightShape();
+            return (long) inputShape[0] * inputShape[1] * quantizedFrameHeight(inputShape[2], o[2], k[2])
+                    * quantizedFrameWidth(inputShape[3], o[3], k[3])
+                    + QuantizedConvolution.scratchBytes(k[1], k[2], k[3], o[2], o[3], inputShape[0] * group);
+        }
+        if (!parallel && halfPrecision || useDepthwise())
+            return 0;
+        int[] o = inferOutputShape(inputShape);
+        if (useWinograd()) {
+            int[] k = weightShape();
+            return WinogradConvolution.scratchBytes(k[0], k[1], group, winogradTile, o[2], o[3], inputShape[0] * group);
+        }
+        if (useFft())
+            return FftConvolution.scratchBytes(weightShape()[1], fftTile());
+        if (!parallel) {
+            int[] k = weightShape();
+            return GemmConvolution.scratchBytes(k[1], k[2], k[3], pad, stride, o[2], o[3], inputShape[0] * group);
+        }
+        long frame = (long) roundUp(inputShape[1], algorithmWidth(1) * group) * inputShape[2] * inputShape[3];
+        long out = (long) roundUp(o[1], algorithmWidth(3) * group) * o[2] * o[3];
+        return 2 * 4L * (frame + out);
+    }
+
+    @Override
+    public boolean paramsResident() {
+        return loadParamsAtStart;
+    }
+
+    @Override
+    public void releaseParams() {
+        loadParamsAtStart = false;
+        weight = null;
+        gemmWeight = null;
+        winogradWeight = null;
+        fftWeight = null;
+        halfWeight = null;
+        quantizedWeight = null;
+        bias = null;
+        if (myScript41 != null) {
+            myScript41.destroy();
+            myScript41 = null;
+        }
+        if (myScript42 != null) {
+            myScript42.destroy();
+            myScript42 = null;
+        }
+        if (myScript44 != null) {
+            myScript44.destroy();
+            myScript44 = null;
+        }
+        if (myScript48 != null) {
+            myScript48.destroy();
+            myScript48 = null;
+        }
+        if (myScript81 != null) {
+            myScript81.destroy();
+            myScript81 = null;
+        }
+        if (myScript82 != null) {
+            myScript82.destroy();
+            myScript82 = null;
+        }
+        if (myScript84 != null) {
+            myScript84.destroy();
+            myScript84 = null;
+        }
+        if (myScript88 != null) {
+            myScript88.destroy();
+            myScript88 = null;
+        }
+    }
+
+    @Override
+    public void compute(Tensor input, Tensor output) {
 
         long loadTime;
         if (!loadParamsAtStart && (!tuneNow || !parallel)) {
             loadTime = System.currentTimeMillis();
 
-            Object[] objects = paramUnpacker.unpackerFunction(paramFilePath, new Class[]{float[][][][].class, float[].class});
-            float[][][][] localWeight = (float[][][][]) objects[0];
+            Object[] objects = prefetched;
+            if (objects == null)
+                objects = packedKernelSaved() ? new Object[2] : readParams();
+            prefetched = null;
+            Tensor localWeight = objects[0] instanceof Tensor ? (Tensor) objects[0] : null;
+            HalfTensor localHalfWeight = objects[0] instanceof HalfTensor ? (HalfTensor) objects[0] : null;
+            QuantizedTensor localQuantizedWeight = objects[0] instanceof QuantizedTensor ? (QuantizedTensor) objects[0] : null;
             float[] localBias = (float[]) objects[1];
 
             if (parallel){
@@ -177,98 +415,260 @@ public class Convolution implements LayerInterface {
             loadTime = System.currentTimeMillis() - loadTime;
             Log.d("CNNdroid", "layers." + name + ": Parameters Load Time = " + String.valueOf(loadTime));
 
-            return invokeFunctions(input, localWeight, localBias, true);
+            invokeFunctions(input, output, localWeight, localHalfWeight, localQuantizedWeight, localBias, true);
         }
         else
         {
-            return invokeFunctions(input,weight, bias, false);
+            invokeFunctions(input, output, weight, halfWeight, quantizedWeight, bias, false);
         }
     }
 
 
     ///////////////////////////////////////Sequential///////////////////////////////////////////////
-    private float[][][][] convLayerRolledSeq(float[][][][] inputBlob, float[][][][] filterBlob,
-                                             float[] biasBlob, int[] pad, int[] stride, int group) {
-        /*
-        Convolution Layer
-        Inputs:
-        kernel[0] is a filter blob.
-        kernel[1] is bias blob.
-        */
+    // im2col + blocked matrix product, see numdroid.GemmConvolution. filterBlob is null when the packed kernels
+    // are resident, otherwise it is packed for this call.
+    private void convLayerGemm(Tensor inputBlob, Tensor filterBlob, float[] biasBlob, Tensor outputBlob)
+    {
+        int[] k = weightShape();
+        float[] packed = filterBlob != null ? packKernels(filterBlob) : gemmWeight;
+        int[] o = outputBlob.shape;
+        gemm.convolve(inputBlob.data, inputBlob.offset, inputBlob.shape[0], inputBlob.shape[1],
+                inputBlob.shape[2], inputBlob.shape[3], packed, biasBlob, k[0], k[2], k[3], group, pad, stride,
+                outputBlob.data, outputBlob.offset, o[2], o[3]);
+    }
 
-        // calculate sizes
-        //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+    private float[] packKernels(Tensor filterBlob)
+    {
+        int[] k = filterBlob.shape;
+        return GemmConvolution.packKernels(filterBlob.data, k[0], k[1], k[2], k[3], group);
+    }
 
-        //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
-        int n_k = filterBlob.length;
-        int c_k = filterBlob[0].length;
-        int h_k = filterBlob[0][0].length;
-        int w_k = filterBlob[0][0][0].length;
+    // Winograd F(m x m, 3x3), see numdroid.WinogradConvolution. filterBlob is null when the transformed kernels
+    // are resident, otherwise it is transformed for this call.
+    private void convLayerWinograd(Tensor inputBlob, Tensor filterBlob, float[] biasBlob, Tensor outputBlob)
+    {
+        int[] k = weightShape();
+        float[] transformed = filterBlob != null ? transformKernels(filterBlob) : winogradWeight;
+        int[] o = outputBlob.shape;
+        winograd.convolve(inputBlob.data, inputBlob.offset, inputBlob.shape[0], inputBlob.shape[1],
+                inputBlob.shape[2], inputBlob.shape[3], transformed, winogradTile, biasBlob, k[0], group, pad,
+                outputBlob.data, outputBlob.offset, o[2], o[3]);
+    }
 
+    private float[] transformKernels(Tensor filterBlob)
+    {
+        int[] k = filterBlob.shape;
+        return WinogradConvolution.transformKernels(filterBlob.data, k[0], k[1], group, winogradTile);
+    }
 
-        int n_o = n_i;
-        int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
-        int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
+    // Float weights in sequential mode with 3x3 kernels and stride 1.
+    private boolean useWinograd()
+    {
+        if (parallel || halfPrecision || quantized || winogradTile == 0 || useDepthwise())
+            return false;
+        int[] k = weightShape();
+        return k != null && WinogradConvolution.applies(k[2], k[3], stride);
+    }
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
+    // Depthwise convolution, see numdroid.DepthwiseConvolution. The weights are used as they are read.
+    private void convLayerDepthwise(Tensor inputBlob, Tensor filterBlob, float[] biasBlob, Tensor outputBlob)
+    {
+        int[] k = filterBlob.shape;
+        int[] o = outputBlob.shape;
+        depthwise.convolve(inputBlob.data, inputBlob.offset, inputBlob.shape[0], inputBlob.shape[1],
+                inputBlob.shape[2], inputBlob.shape[3], filterBlob.data, biasBlob, k[0], k[2], k[3], pad, stride,
+                outputBlob.data, outputBlob.offset, o[2], o[3]);
+    }
 
-        // calculate the result
-        for (int n = 0; n < (n_i); n++) // for n in images
-            for (int k = 0; k < (n_k / group); k++)// for k in kernels
-                for (int g = 0; g < (group); g++) {
-                    float[][][] convInFrame = new float[(c_i / group)][h_i][w_i];
-                    float[][][] convInKernel = new float[(c_i / group)][h_i][w_i];
+    // Float weights in sequential mode with one input channel per group.
+    private boolean useDepthwise()
+    {
+        if (parallel || halfPrecision || quantized)
+            return false;
+        int[] k = weightShape();
+        return k != null && DepthwiseConvolution.applies(k[1], group);
+    }
 
-                    int temp = g * c_i / group;
-                    for (int i = g * c_i / group; i < (g + 1) * c_i / group; i++) // copy part of inputBlob
-                        convInFrame[i - temp] = inputBlob[n][i];
+    // Overlap-save FFT convolution, see numdroid.FftConvolution. filterBlob is null when the kernel spectra are
+    // resident, otherwise they are computed for this call.
+    private void convLayerFft(Tensor inputBlob, Tensor filterBlob, float[] biasBlob, Tensor outputBlob)
+    {
+        int[] k = weightShape();
+        float[] spectra = filterBlob != null ? kernelSpectra(filterBlob) : fftWeight;
+        int[] o = outputBlob.shape;
+        fft.convolve(inputBlob.data, inputBlob.offset, inputBlob.shape[0], inputBlob.shape[1],
+                inputBlob.shape[2], inputBlob.shape[3], spectra, fftTile(), biasBlob, k[0], k[2], k[3], group, pad, stride,
+                outputBlob.data, outputBlob.offset, o[2], o[3]);
+    }
 
-                    convInKernel = filterBlob[g * n_k / group + k];       // copy
+    private float[] kernelSpectra(Tensor filterBlob)
+    {
+        int[] k = filterBlob.shape;
+        return FftConvolution.transformKernels(filterBlob.data, k[0], k[1], k[2], k[3], group, fftTile());
+    }
 
-                    outputBlob[n][k + g * n_k / group] = convRolledSeq(convInFrame, convInKernel, biasBlob[g * n_k / group + k], pad, stride);
-                }
+    private int fftTile()
+    {
+        int[] k = weightShape();
+        return FftConvolution.tileSize(k[1], k[0] / group, k[2], k[3]);
+    }
 
-        // return the result
-        return outputBlob;
+    // Float weights in sequential mode that are not taken by the Winograd convolution, with kernels that the
+    // cost model gives to the FFT (or any kernel with spectra that fit if the FFT is forced on).
+    private boolean useFft()
+    {
+        if (parallel || halfPrecision || quantized || fftMode == FftMode.Off || useWinograd() || useDepthwise())
+            return false;
+        int[] k = weightShape();
+        if (k == null)
+            return false;
+        if (fftMode == FftMode.On)
+            return fftTile() != -1;
+        return FftConvolution.preferred(k[1], k[0] / group, k[2], k[3], stride);
     }
 
-    private float[][] convRolledSeq(float[][][] frames, float[][][] kernel, float bias,
-                                    int[] pad, int[] stride) {
-        // Calculate final dimensions.
-        int c_i = frames.length;
-        int h_i = frames[0].length;
-        int w_i = frames[0][0].length;
+    private void convLayerRolledSeq(Tensor inputBlob, Tensor filterBlob, HalfTensor halfFilterBlob,
+                                    float[] biasBlob, int[] pad, int[] stride, int group,
+                                    Tensor outputBlob) {
+        /*
+        Convolution Layer
+        Inputs:
+        kernel[0] is a filter blob.
+        kernel[1] is bias blob.
+        halfFilterBlob, if not null, holds the filters in half precision instead of filterBlob.
+        */
+        int[] filterShape = halfFilterBlob != null ? halfFilterBlob.shape : filterBlob.shape;
+        RolledTasks t = rolledTasks;
 
-        int c_k = kernel.length;
-        int h_k = kernel[0].length;
-        int w_k = kernel[0][0].length;
+        // calculate sizes
+        //(n_i, c_i, h_i, w_i) = inputBlob.shape
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        t.h_i = inputBlob.shape[2];
+        t.w_i = inputBlob.shape[3];
 
-        int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) stride[0])) + 1);
-        int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) stride[1])) + 1);
+        //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
+        t.n_k = filterShape[0];
+        t.c_k = filterShape[1];
+        t.h_k = filterShape[2];
+        t.w_k = filterShape[3];
+
+
+        t.h_o = (int) (Math.ceil((t.h_i + 2 * pad[0] - t.h_k) / ((float) (stride[0]))) + 1);
+        t.w_o = (int) (Math.ceil((t.w_i + 2 * pad[1] - t.w_k) / ((float) (stride[1]))) + 1);
+        t.kernelsPerGroup = t.n_k / group;
+        t.channelsPerGroup = c_i / group;
+
+        // calculate the result, the kernels of every image split in blocks computed on the CPU workers
+        t.blocks = Math.min(t.n_k, Workers.threads() * OUTPUT_BLOCKS_PER_THREAD);
+        if ((long) n_i * t.n_k * t.h_o * t.w_o * t.c_k * t.h_k * t.w_k < MIN_PARALLEL_WORK)
+            t.blocks = 1;
+        t.inputBlob = inputBlob;
+        t.filterBlob = filterBlob;
+        t.halfFilterBlob = halfFilterBlob;
+        t.biasBlob = biasBlob;
+        t.outputBlob = outputBlob;
+        t.run(n_i * t.blocks);
+        t.inputBlob = null;
+        t.filterBlob = null;
+        t.halfFilterBlob = null;
+        t.biasBlob = null;
+        t.outputBlob = null;
+    }
 
+    // Tasks of convLayerRolledSeq, kept between calls: task (image, block of kernels), in this order.
+    private class RolledTasks extends Workers.Loop {
+        Tensor inputBlob, filterBlob, outputBlob;
+        HalfTensor halfFilterBlob;
+        float[] biasBlob;
+        int h_i, w_i, n_k, c_k, h_k, w_k, h_o, w_o, kernelsPerGroup, channelsPerGroup, blocks;
+
+        @Override
+        protected void task(int i) {
+            int image = i / blocks;
+            int first = (int) ((long) n_k * (i % blocks) / blocks);
+            int last = (int) ((long) n_k * (i % blocks + 1) / blocks);
+            for (int k = first; k < last; k++) { // for k in kernels
+                // channels of the group of kernel k are a contiguous part of the image, so no copy is needed
+                int frameOffset = inputBlob.index(image, k / kernelsPerGroup * channelsPerGroup, 0, 0);
+                int outOffset = outputBlob.index(image, k, 0, 0);
+
+                if (halfFilterBlob != null)
+                    convRolledSeq(inputBlob.data, frameOffset, c_k, h_i, w_i, halfFilterBlob.data,
+                            halfFilterBlob.index(k, 0, 0, 0), h_k, w_k,
+                            biasBlob[k], pad, stride, outputBlob.data, outOffset, h_o, w_o);
+                else
+                    convRolledSeq(inputBlob.data, frameOffset, c_k, h_i, w_i, filterBlob.data,
+                            filterBlob.index(k, 0, 0, 0), h_k, w_k,
+                            biasBlob[k], pad, stride, outputBlob.data, outOffset, h_o, w_o);
+            }
+        }
+    }
+
+    private void convRolledSeq(float[] frames, int frameOffset, int c_i, int h_i, int w_i,
+                               float[] kernel, int kernelOffset, int h_k, int w_k, float bias,
+                               int[] pad, int[] stride, float[] out, int outOffset, int h_o, int w_o) {
         int h_s = stride[0];
         int w_s = stride[1];
 
-        float[][] out = new float[h_o][w_o];
-
         // Compute pixel values.
         for (int i = 0; i < h_o; ++i)
             for (int j = 0; j < w_o; ++j)
-                out[i][j] = myNum.sum_conv(frames, kernel, i * h_s, j * w_s, pad[0], pad[1]) + bias;
+                out[outOffset + i * w_o + j] = myNum.sum_conv(frames, frameOffset, c_i, h_i, w_i, kernel, kernelOffset,
+                        h_k, w_k, i * h_s, j * w_s, pad[0], pad[1]) + bias;
+    }
 
-        return out;
+    // Same with a kernel in half precision.
+    private void convRolledSeq(float[] frames, int frameOffset, int c_i, int h_i, int w_i,
+                               short[] kernel, int kernelOffset, int h_k, int w_k, float bias,
+                               int[] pad, int[] stride, float[] out, int outOffset, int h_o, int w_o) {
+        int h_s = stride[0];
+        int w_s = stride[1];
+
+        // Compute pixel values.
+        for (int i = 0; i < h_o; ++i)
+            for (int j = 0; j < w_o; ++j)
+                out[outOffset + i * w_o + j] = myNum.sum_conv(frames, frameOffset, c_i, h_i, w_i, kernel, kernelOffset,
+                        h_k, w_k, i * h_s, j * w_s, pad[0], pad[1]) + bias;
     }
 
 
+    ////////////////////////////////////////Quantized///////////////////////////////////////////////
+    // int8 convolution: the images are quantized into padded frames (pads hold the quantized zero), then lowered
+    // with im2col into a blocked int8 matrix product accumulated in int32 on the CPU workers, see
+    // numdroid.QuantizedConvolution.
+    private void convLayerQuantized(Tensor inputBlob, QuantizedTensor filterBlob, float[] biasBlob, Tensor outputBlob)
+    {
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
+
+        int h_o = outputBlob.shape[2];
+        int w_o = outputBlob.shape[3];
+
+        // the last windows may reach past the padding (the output size is rounded up)
+        int h_q = quantizedFrameHeight(h_i, h_o, filterBlob.shape[2]);
+        int w_q = quantizedFrameWidth(w_i, w_o, filterBlob.shape[3]);
+        int frameSize = c_i * h_q * w_q;
+        if (quantizedFrame == null || quantizedFrame.length < n_i * frameSize)
+            quantizedFrame = new byte[n_i * frameSize];
+        byte[] frames = quantizedFrame;
+
+        Arrays.fill(frames, 0, n_i * frameSize, (byte) -inputOffset);
+        for (int n = 0; n < n_i; n++)
+            for (int c = 0; c < c_i; c++)
+                for (int y = 0; y < h_i; y++)
+                    myNum.quantize(inputBlob.data, inputBlob.index(n, c, y, 0), frames,
+                            n * frameSize + (c * h_q + y + pad[0]) * w_q + pad[1], w_i, inputScale, inputOffset);
+
+        quantizedConvolution.convolve(frames, n_i, c_i, h_q, w_q, filterBlob, inputScale, inputOffset, biasBlob,
+                group, stride, outputBlob.data, outputBlob.offset, h_o, w_o);
+    }
+
     ////////////////////////////////////////Parallel////////////////////////////////////////////////
     // Input: Float4     *****   Output: Float
-    private float[][][][] convLayerRolledParInF4OutF1(float[][][][] inputBlob, float[][][][] myWeight, boolean destroy) {
+    private void convLayerRolledParInF4OutF1(Tensor inputBlob, Tensor outputBlob, boolean destroy) {
         /*
         Convolution layer.
         Inputs:
@@ -278,25 +678,22 @@ public class Convolution implements LayerInterface {
 
         // calculate sizes
         //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
 
-        int n_o = n_i;
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
         int c_i_4 = c_i;
         if (c_i % (4 * group) != 0)
@@ -322,8 +719,8 @@ public class Convolution implements LayerInterface {
         myScript41.set_w_o(w_o);
 
         // calculate the result
-        float[] outMatrix = new float[h_o * w_o * n_k];
-        float[] frameMatrix = new float[h_i * w_i * c_i_4];
+        float[] outMatrix = scratch(1, h_o * w_o * n_k);
+        float[] frameMatrix = scratch(0, h_i * w_i * c_i_4);
         int delta_c = (c_i_4 - c_i) / group;
 
         for (int n = 0; n < (n_i); n++) {// for n in images
@@ -334,9 +731,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i, j, k);
                         }
             }
             frameAllocation.copyFrom(frameMatrix);
@@ -351,34 +748,24 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i, j, k);
                         }
             }
 
             if (n > 0) {
-                for (int i = 0; i < n_k; i++)
-                    for (int j = 0; j < h_o; j++)
-                        for (int k = 0; k < w_o; k++) {
-                            outputBlob[n - 1][i][j][k] = outMatrix[i * h_o * w_o + j * w_o + k];
-                            if (nonLinear)
-                                if (outputBlob[n - 1][i][j][k] < 0)
-                                    outputBlob[n - 1][i][j][k] = 0;
-                        }
+                System.arraycopy(outMatrix, 0, outputBlob.data, outputBlob.index(n - 1, 0, 0, 0), n_k * h_o * w_o);
+                if (nonLinear)
+                    myNum.relu(outputBlob.data, outputBlob.index(n - 1, 0, 0, 0), n_k * h_o * w_o);
             }
 
             outAllocation.copyTo(outMatrix);
 
             if (n == n_i - 1) {
-                for (int i = 0; i < n_k; i++)
-                    for (int j = 0; j < h_o; j++)
-                        for (int k = 0; k < w_o; k++) {
-                            outputBlob[n][i][j][k] = outMatrix[i * h_o * w_o + j * w_o + k];
-                            if (nonLinear)
-                                if (outputBlob[n][i][j][k] < 0)
-                                    outputBlob[n][i][j][k] = 0;
-                        }
+                System.arraycopy(outMatrix, 0, outputBlob.data, outputBlob.index(n, 0, 0, 0), n_k * h_o * w_o);
+                if (nonLinear)
+                    myNum.relu(outputBlob.data, outputBlob.index(n, 0, 0, 0), n_k * h_o * w_o);
             }
 
         }
@@ -391,13 +778,10 @@ public class Convolution implements LayerInterface {
 
         if (destroy)
             myScript41.destroy();
-
-        // return the result
-        return outputBlob;
     }
 
     // Input: Float4    *****   Output: Float2
-    private float[][][][] convLayerRolledParInF4OutF2(float[][][][] inputBlob, float[][][][] myWeight, boolean destroy) {
+    private void convLayerRolledParInF4OutF2(Tensor inputBlob, Tensor outputBlob, boolean destroy) {
         /*
         Convolution layer.
         Inputs:
@@ -407,25 +791,22 @@ public class Convolution implements LayerInterface {
 
         // calculate sizes
         //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
 
-        int n_o = n_i;
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
         int c_i_4 = c_i;
         if (c_i % (4 * group) != 0)
@@ -456,8 +837,8 @@ public class Convolution implements LayerInterface {
         myScript42.set_w_o(w_o);
 
         // calculate the result
-        float[] outMatrix = new float[h_o * w_o * n_k_2];
-        float[] frameMatrix = new float[h_i * w_i * c_i_4];
+        float[] outMatrix = scratch(1, h_o * w_o * n_k_2);
+        float[] frameMatrix = scratch(0, h_i * w_i * c_i_4);
         int delta_c = (c_i_4 - c_i) / group;
 
         for (int n = 0; n < (n_i); n++) {// for n in images
@@ -468,9 +849,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i, j, k);
                         }
             }
             frameAllocation.copyFrom(frameMatrix);
@@ -485,9 +866,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i, j, k);
                         }
             }
 
@@ -496,16 +877,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k_2 / group - delta_n) {
-                                outputBlob[n - 1][i][j][k] = outMatrix[j * w_o * n_k_2 + k * n_k_2 + i];
+                                outputBlob.set(n - 1, i, j, k, outMatrix[j * w_o * n_k_2 + k * n_k_2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i][j][k] < 0)
-                                        outputBlob[n - 1][i][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i, j, k) < 0)
+                                        outputBlob.set(n - 1, i, j, k, 0);
                                 }
                             } else if ((i >= n_k_2 / group) && (i < n_k_2 - delta_n)) {
-                                outputBlob[n - 1][i - delta_n][j][k] = outMatrix[j * w_o * n_k_2 + k * n_k_2 + i];
+                                outputBlob.set(n - 1, i - delta_n, j, k, outMatrix[j * w_o * n_k_2 + k * n_k_2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -518,16 +899,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k_2 / group - delta_n) {
-                                outputBlob[n][i][j][k] = outMatrix[j * w_o * n_k_2 + k * n_k_2 + i];
+                                outputBlob.set(n, i, j, k, outMatrix[j * w_o * n_k_2 + k * n_k_2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i][j][k] < 0)
-                                        outputBlob[n][i][j][k] = 0;
+                                    if (outputBlob.get(n, i, j, k) < 0)
+                                        outputBlob.set(n, i, j, k, 0);
                                 }
                             } else if ((i >= n_k_2 / group) && (i < n_k_2 - delta_n)) {
-                                outputBlob[n][i - delta_n][j][k] = outMatrix[j * w_o * n_k_2 + k * n_k_2 + i];
+                                outputBlob.set(n, i - delta_n, j, k, outMatrix[j * w_o * n_k_2 + k * n_k_2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i - delta_n][j][k] < 0)
-                                        outputBlob[n][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -542,13 +923,10 @@ public class Convolution implements LayerInterface {
 
         if (destroy)
             myScript42.destroy();
-
-        // return the result
-        return outputBlob;
     }
 
     // Input: Float4    *****   Output: Float4
-    private float[][][][] convLayerRolledParInF4OutF4(float[][][][] inputBlob, float[][][][] myWeight, boolean destroy) {
+    private void convLayerRolledParInF4OutF4(Tensor inputBlob, Tensor outputBlob, boolean destroy) {
         /*
         Convolution layer.
         Inputs:
@@ -558,25 +936,22 @@ public class Convolution implements LayerInterface {
 
         // calculate sizes
         //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
 
-        int n_o = n_i;
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
         //check channel count
         int c_k_4 = c_k;
@@ -614,8 +989,8 @@ public class Convolution implements LayerInterface {
         myScript44.set_w_o(w_o);
 
         // calculate the result
-        float[] outMatrix = new float[h_o * w_o * n_k_4];
-        float[] frameMatrix = new float[h_i * w_i * c_i_4];
+        float[] outMatrix = scratch(1, h_o * w_o * n_k_4);
+        float[] frameMatrix = scratch(0, h_i * w_i * c_i_4);
 
         int delta_c = (c_i_4 - c_i) / group;
         for (int n = 0; n < (n_i); n++) {// for n in images
@@ -626,9 +1001,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i, j, k);
                         }
             }
             frameAllocation.copyFrom(frameMatrix);
@@ -643,9 +1018,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i, j, k);
                         }
             }
 
@@ -654,16 +1029,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k_4 / group - delta_n) {
-                                outputBlob[n - 1][i][j][k] = outMatrix[j * w_o * n_k_4 + k * n_k_4 + i];
+                                outputBlob.set(n - 1, i, j, k, outMatrix[j * w_o * n_k_4 + k * n_k_4 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i][j][k] < 0)
-                                        outputBlob[n - 1][i][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i, j, k) < 0)
+                                        outputBlob.set(n - 1, i, j, k, 0);
                                 }
                             } else if ((i >= n_k_4 / group) && (i < n_k_4 - delta_n)) {
-                                outputBlob[n - 1][i - delta_n][j][k] = outMatrix[j * w_o * n_k_4 + k * n_k_4 + i];
+                                outputBlob.set(n - 1, i - delta_n, j, k, outMatrix[j * w_o * n_k_4 + k * n_k_4 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -676,16 +1051,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k_4 / group - delta_n) {
-                                outputBlob[n][i][j][k] = outMatrix[j * w_o * n_k_4 + k * n_k_4 + i];
+                                outputBlob.set(n, i, j, k, outMatrix[j * w_o * n_k_4 + k * n_k_4 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i][j][k] < 0)
-                                        outputBlob[n][i][j][k] = 0;
+                                    if (outputBlob.get(n, i, j, k) < 0)
+                                        outputBlob.set(n, i, j, k, 0);
                                 }
                             } else if ((i >= n_k_4 / group) && (i < n_k_4 - delta_n)) {
-                                outputBlob[n][i - delta_n][j][k] = outMatrix[j * w_o * n_k_4 + k * n_k_4 + i];
+                                outputBlob.set(n, i - delta_n, j, k, outMatrix[j * w_o * n_k_4 + k * n_k_4 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i - delta_n][j][k] < 0)
-                                        outputBlob[n][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -700,13 +1075,10 @@ public class Convolution implements LayerInterface {
 
         if (destroy)
             myScript44.destroy();
-
-        // return the result
-        return outputBlob;
     }
 
     // Input: Float4    *****   Output: Float8
-    private float[][][][] convLayerRolledParInF4OutF8(float[][][][] inputBlob, float[][][][] myWeight, boolean destroy) {
+    private void convLayerRolledParInF4OutF8(Tensor inputBlob, Tensor outputBlob, boolean destroy) {
         /*
         Convolution layer.
         Inputs:
@@ -716,25 +1088,22 @@ public class Convolution implements LayerInterface {
 
         // calculate sizes
         //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
 
-        int n_o = n_i;
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
         //check channel count
         int c_i_4 = c_i;
@@ -769,9 +1138,9 @@ public class Convolution implements LayerInterface {
         myScript48.set_w_o(w_o);
 
         // calculate the result
-        float[] out1Matrix = new float[n_k_8 * h_o * w_o / 2];
-        float[] out2Matrix = new float[n_k_8 * h_o * w_o / 2];
-        float[] frameMatrix = new float[h_i * w_i * c_i_4];
+        float[] out1Matrix = scratch(1, n_k_8 * h_o * w_o / 2);
+        float[] out2Matrix = scratch(2, n_k_8 * h_o * w_o / 2);
+        float[] frameMatrix = scratch(0, h_i * w_i * c_i_4);
         int delta_c = (c_i_4 - c_i) / group;
 
         for (int n = 0; n < (n_i); n++) {// for n in images
@@ -782,9 +1151,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i, j, k);
                         }
             }
 
@@ -800,9 +1169,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i, j, k);
                         }
             }
 
@@ -811,30 +1180,30 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (2 * i < n_k_8 / group - delta_n) {
-                                outputBlob[n - 1][2 * i][j][k] = out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n - 1, 2 * i, j, k, out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][2 * i][j][k] < 0)
-                                        outputBlob[n - 1][2 * i][j][k] = 0;
+                                    if (outputBlob.get(n - 1, 2 * i, j, k) < 0)
+                                        outputBlob.set(n - 1, 2 * i, j, k, 0);
                                 }
                             } else if ((2 * i >= n_k_8 / group) && (2 * i < n_k_8 - delta_n)) {
-                                outputBlob[n - 1][2 * i - delta_n][j][k] = out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n - 1, 2 * i - delta_n, j, k, out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][2 * i - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][2 * i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, 2 * i - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, 2 * i - delta_n, j, k, 0);
                                 }
                             }
 
                             if (2 * i + 1 < n_k_8 / group - delta_n) {
-                                outputBlob[n - 1][2 * i + 1][j][k] = out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n - 1, 2 * i + 1, j, k, out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][2 * i + 1][j][k] < 0)
-                                        outputBlob[n - 1][2 * i + 1][j][k] = 0;
+                                    if (outputBlob.get(n - 1, 2 * i + 1, j, k) < 0)
+                                        outputBlob.set(n - 1, 2 * i + 1, j, k, 0);
                                 }
                             } else if ((2 * i + 1 >= n_k_8 / group) && (2 * i + 1 < n_k_8 - delta_n)) {
-                                outputBlob[n - 1][2 * i + 1 - delta_n][j][k] = out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n - 1, 2 * i + 1 - delta_n, j, k, out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][2 * i + 1 - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][2 * i + 1 - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, 2 * i + 1 - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, 2 * i + 1 - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -848,30 +1217,30 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (2 * i < n_k_8 / group - delta_n) {
-                                outputBlob[n][2 * i][j][k] = out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n, 2 * i, j, k, out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][2 * i][j][k] < 0)
-                                        outputBlob[n][2 * i][j][k] = 0;
+                                    if (outputBlob.get(n, 2 * i, j, k) < 0)
+                                        outputBlob.set(n, 2 * i, j, k, 0);
                                 }
                             } else if ((2 * i >= n_k_8 / group) && (2 * i < n_k_8 - delta_n)) {
-                                outputBlob[n][2 * i - delta_n][j][k] = out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n, 2 * i - delta_n, j, k, out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][2 * i - delta_n][j][k] < 0)
-                                        outputBlob[n][2 * i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, 2 * i - delta_n, j, k) < 0)
+                                        outputBlob.set(n, 2 * i - delta_n, j, k, 0);
                                 }
                             }
 
                             if (2 * i + 1 < n_k_8 / group - delta_n) {
-                                outputBlob[n][2 * i + 1][j][k] = out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n, 2 * i + 1, j, k, out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][2 * i + 1][j][k] < 0)
-                                        outputBlob[n][2 * i + 1][j][k] = 0;
+                                    if (outputBlob.get(n, 2 * i + 1, j, k) < 0)
+                                        outputBlob.set(n, 2 * i + 1, j, k, 0);
                                 }
                             } else if ((2 * i + 1 >= n_k_8 / group) && (2 * i + 1 < n_k_8 - delta_n)) {
-                                outputBlob[n][2 * i + 1 - delta_n][j][k] = out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n, 2 * i + 1 - delta_n, j, k, out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][2 * i + 1 - delta_n][j][k] < 0)
-                                        outputBlob[n][2 * i + 1 - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, 2 * i + 1 - delta_n, j, k) < 0)
+                                        outputBlob.set(n, 2 * i + 1 - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -887,13 +1256,10 @@ public class Convolution implements LayerInterface {
 
         if (destroy)
             myScript48.destroy();
-
-        // return the result
-        return outputBlob;
     }
 
     // Input: Float8    *****   Output: Float1
-    private float[][][][] convLayerRolledParInF8OutF1(float[][][][] inputBlob, float[][][][] myWeight, boolean destroy) {
+    private void convLayerRolledParInF8OutF1(Tensor inputBlob, Tensor outputBlob, boolean destroy) {
         /*
         Convolution layer.
         Inputs:
@@ -903,25 +1269,22 @@ public class Convolution implements LayerInterface {
 
         // calculate sizes
         //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
 
-        int n_o = n_i;
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
         int c_i_8 = c_i;
         if (c_i % (8 * group) != 0)
@@ -949,8 +1312,8 @@ public class Convolution implements LayerInterface {
         myScript81.set_w_o(w_o);
 
         // calculate the result
-        float[] outMatrix = new float[h_o * w_o * n_k];
-        float[] frameMatrix = new float[h_i * w_i * c_i_8];
+        float[] outMatrix = scratch(1, h_o * w_o * n_k);
+        float[] frameMatrix = scratch(0, h_i * w_i * c_i_8);
         int delta_c = (c_i_8 - c_i) / group;
 
         for (int n = 0; n < (n_i); n++) {// for n in images
@@ -961,9 +1324,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_8 / group - delta_c) && (i < c_i_8 / group)) || (i >= c_i_8 - delta_c))
                                 frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = 0;
                             else if (i >= c_i_8 / group)
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n][i][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n, i, j, k);
                         }
             }
             frameAllocation.copyFrom(frameMatrix);
@@ -978,9 +1341,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_8 / group - delta_c) && (i < c_i_8 / group)) || (i >= c_i_8 - delta_c))
                                 frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = 0;
                             else if (i >= c_i_8 / group)
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n + 1][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n + 1, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n + 1][i][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n + 1, i, j, k);
                         }
             }
 
@@ -989,16 +1352,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k / group - delta_n) {
-                                outputBlob[n - 1][i][j][k] = outMatrix[j * w_o * n_k + k * n_k + i];
+                                outputBlob.set(n - 1, i, j, k, outMatrix[j * w_o * n_k + k * n_k + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i][j][k] < 0)
-                                        outputBlob[n - 1][i][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i, j, k) < 0)
+                                        outputBlob.set(n - 1, i, j, k, 0);
                                 }
                             } else if ((i >= n_k / group) && (i < n_k - delta_n)) {
-                                outputBlob[n - 1][i - delta_n][j][k] = outMatrix[j * w_o * n_k + k * n_k + i];
+                                outputBlob.set(n - 1, i - delta_n, j, k, outMatrix[j * w_o * n_k + k * n_k + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -1011,16 +1374,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k / group - delta_n) {
-                                outputBlob[n][i][j][k] = outMatrix[j * w_o * n_k + k * n_k + i];
+                                outputBlob.set(n, i, j, k, outMatrix[j * w_o * n_k + k * n_k + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i][j][k] < 0)
-                                        outputBlob[n][i][j][k] = 0;
+                                    if (outputBlob.get(n, i, j, k) < 0)
+                                        outputBlob.set(n, i, j, k, 0);
                                 }
                             } else if ((i >= n_k / group) && (i < n_k - delta_n)) {
-                                outputBlob[n][i - delta_n][j][k] = outMatrix[j * w_o * n_k + k * n_k + i];
+                                outputBlob.set(n, i - delta_n, j, k, outMatrix[j * w_o * n_k + k * n_k + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i - delta_n][j][k] < 0)
-                                        outputBlob[n][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -1035,13 +1398,10 @@ public class Convolution implements LayerInterface {
 
         if (destroy)
             myScript81.destroy();
-
-        // return the result
-        return outputBlob;
     }
 
     // Input: Float8    *****   Output: Float2
-    private float[][][][] convLayerRolledParInF8OutF2(float[][][][] inputBlob, float[][][][] myWeight, boolean destroy) {
+    private void convLayerRolledParInF8OutF2(Tensor inputBlob, Tensor outputBlob, boolean destroy) {
         /*
         Convolution layer.
         Inputs:
@@ -1051,25 +1411,22 @@ public class Convolution implements LayerInterface {
 
         // calculate sizes
         //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
 
-        int n_o = n_i;
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
         int c_i_8 = c_i;
         if (c_i % (8 * group) != 0)
@@ -1100,8 +1457,8 @@ public class Convolution implements LayerInterface {
         myScript82.set_w_o(w_o);
 
         // calculate the result
-        float[] outMatrix = new float[h_o * w_o * n_k_2];
-        float[] frameMatrix = new float[h_i * w_i * c_i_8];
+        float[] outMatrix = scratch(1, h_o * w_o * n_k_2);
+        float[] frameMatrix = scratch(0, h_i * w_i * c_i_8);
         int delta_c = (c_i_8 - c_i) / group;
 
         for (int n = 0; n < (n_i); n++) {// for n in images
@@ -1112,9 +1469,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_8 / group - delta_c) && (i < c_i_8 / group)) || (i >= c_i_8 - delta_c))
                                 frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = 0;
                             else if (i >= c_i_8 / group)
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n][i][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n, i, j, k);
                         }
             }
             frameAllocation.copyFrom(frameMatrix);
@@ -1129,9 +1486,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_8 / group - delta_c) && (i < c_i_8 / group)) || (i >= c_i_8 - delta_c))
                                 frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = 0;
                             else if (i >= c_i_8 / group)
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n + 1][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n + 1, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n + 1][i][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n + 1, i, j, k);
                         }
             }
 
@@ -1140,16 +1497,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k_2 / group - delta_n) {
-                                outputBlob[n - 1][i][j][k] = outMatrix[j * w_o * n_k_2 + k * n_k_2 + i];
+                                outputBlob.set(n - 1, i, j, k, outMatrix[j * w_o * n_k_2 + k * n_k_2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i][j][k] < 0)
-                                        outputBlob[n - 1][i][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i, j, k) < 0)
+                                        outputBlob.set(n - 1, i, j, k, 0);
                                 }
                             } else if ((i >= n_k_2 / group) && (i < n_k_2 - delta_n)) {
-                                outputBlob[n - 1][i - delta_n][j][k] = outMatrix[j * w_o * n_k_2 + k * n_k_2 + i];
+                                outputBlob.set(n - 1, i - delta_n, j, k, outMatrix[j * w_o * n_k_2 + k * n_k_2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -1162,16 +1519,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k_2 / group - delta_n) {
-                                outputBlob[n][i][j][k] = outMatrix[j * w_o * n_k_2 + k * n_k_2 + i];
+                                outputBlob.set(n, i, j, k, outMatrix[j * w_o * n_k_2 + k * n_k_2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i][j][k] < 0)
-                                        outputBlob[n][i][j][k] = 0;
+                                    if (outputBlob.get(n, i, j, k) < 0)
+                                        outputBlob.set(n, i, j, k, 0);
                                 }
                             } else if ((i >= n_k_2 / group) && (i < n_k_2 - delta_n)) {
-                                outputBlob[n][i - delta_n][j][k] = outMatrix[j * w_o * n_k_2 + k * n_k_2 + i];
+                                outputBlob.set(n, i - delta_n, j, k, outMatrix[j * w_o * n_k_2 + k * n_k_2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i - delta_n][j][k] < 0)
-                                        outputBlob[n][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -1186,13 +1543,10 @@ public class Convolution implements LayerInterface {
 
         if (destroy)
             myScript82.destroy();
-
-        // return the result
-        return outputBlob;
     }
 
     // Input: Float8    *****   Output: Float4
-    private float[][][][] convLayerRolledParInF8OutF4(float[][][][] inputBlob, float[][][][] myWeight, boolean destroy) {
+    private void convLayerRolledParInF8OutF4(Tensor inputBlob, Tensor outputBlob, boolean destroy) {
         /*
         Convolution layer.
         Inputs:
@@ -1202,24 +1556,21 @@ public class Convolution implements LayerInterface {
 
         // calculate sizes
         //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
 
-        int n_o = n_i;
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
         int c_i_8 = c_i;
         if (c_i % (8 * group) != 0)
@@ -1251,8 +1602,8 @@ public class Convolution implements LayerInterface {
         myScript84.set_w_o(w_o);
 
         // calculate the result
-        float[] outMatrix = new float[h_o * w_o * n_k_4];
-        float[] frameMatrix = new float[h_i * w_i * c_i_8];
+        float[] outMatrix = scratch(1, h_o * w_o * n_k_4);
+        float[] frameMatrix = scratch(0, h_i * w_i * c_i_8);
         int delta_c = (c_i_8 - c_i) / group;
 
         for (int n = 0; n < (n_i); n++) {// for n in images
@@ -1263,9 +1614,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_8 / group - delta_c) && (i < c_i_8 / group)) || (i >= c_i_8 - delta_c))
                                 frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = 0;
                             else if (i >= c_i_8 / group)
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n][i][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n, i, j, k);
                         }
             }
             frameAllocation.copyFrom(frameMatrix);
@@ -1280,9 +1631,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_8 / group - delta_c) && (i < c_i_8 / group)) || (i >= c_i_8 - delta_c))
                                 frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = 0;
                             else if (i >= c_i_8 / group)
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n + 1][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n + 1, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob[n + 1][i][j][k];
+                                frameMatrix[j * w_i * c_i_8 + k * c_i_8 + i] = inputBlob.get(n + 1, i, j, k);
                         }
             }
 
@@ -1291,16 +1642,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k_4 / group - delta_n) {
-                                outputBlob[n - 1][i][j][k] = outMatrix[j * w_o * n_k_4 + k * n_k_4 + i];
+                                outputBlob.set(n - 1, i, j, k, outMatrix[j * w_o * n_k_4 + k * n_k_4 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i][j][k] < 0)
-                                        outputBlob[n - 1][i][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i, j, k) < 0)
+                                        outputBlob.set(n - 1, i, j, k, 0);
                                 }
                             } else if ((i >= n_k_4 / group) && (i < n_k_4 - delta_n)) {
-                                outputBlob[n - 1][i - delta_n][j][k] = outMatrix[j * w_o * n_k_4 + k * n_k_4 + i];
+                                outputBlob.set(n - 1, i - delta_n, j, k, outMatrix[j * w_o * n_k_4 + k * n_k_4 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][i - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -1313,16 +1664,16 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (i < n_k_4 / group - delta_n) {
-                                outputBlob[n][i][j][k] = outMatrix[j * w_o * n_k_4 + k * n_k_4 + i];
+                                outputBlob.set(n, i, j, k, outMatrix[j * w_o * n_k_4 + k * n_k_4 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i][j][k] < 0)
-                                        outputBlob[n][i][j][k] = 0;
+                                    if (outputBlob.get(n, i, j, k) < 0)
+                                        outputBlob.set(n, i, j, k, 0);
                                 }
                             } else if ((i >= n_k_4 / group) && (i < n_k_4 - delta_n)) {
-                                outputBlob[n][i - delta_n][j][k] = outMatrix[j * w_o * n_k_4 + k * n_k_4 + i];
+                                outputBlob.set(n, i - delta_n, j, k, outMatrix[j * w_o * n_k_4 + k * n_k_4 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][i - delta_n][j][k] < 0)
-                                        outputBlob[n][i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, i - delta_n, j, k) < 0)
+                                        outputBlob.set(n, i - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -1337,13 +1688,10 @@ public class Convolution implements LayerInterface {
 
         if (destroy)
             myScript84.destroy();
-
-        // return the result
-        return outputBlob;
     }
 
     // Input: Float8    *****   Output: Float8
-    private float[][][][] convLayerRolledParInF8OutF8(float[][][][] inputBlob, float[][][][] myWeight, boolean destroy) {
+    private void convLayerRolledParInF8OutF8(Tensor inputBlob, Tensor outputBlob, boolean destroy) {
         /*
         Convolution layer.
         Inputs:
@@ -1353,25 +1701,22 @@ public class Convolution implements LayerInterface {
 
         // calculate sizes
         //(n_i, c_i, h_i, w_i) = inputBlob.shape
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         //(n_k, c_k, h_k, w_k) = kernel_blob[0].shape
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
 
-        int n_o = n_i;
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / ((float) (stride[0]))) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / ((float) (stride[1]))) + 1);
-        int c_o = n_k;
 
-        // initialize the result
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
         int c_i_4 = c_i;
         if (c_i % (8 * group) != 0)
@@ -1404,9 +1749,9 @@ public class Convolution implements LayerInterface {
         myScript88.set_w_o(w_o);
 
         // calculate the result
-        float[] out1Matrix = new float[n_k_8 * h_o * w_o / 2];
-        float[] out2Matrix = new float[n_k_8 * h_o * w_o / 2];
-        float[] frameMatrix = new float[h_i * w_i * c_i_4];
+        float[] out1Matrix = scratch(1, n_k_8 * h_o * w_o / 2);
+        float[] out2Matrix = scratch(2, n_k_8 * h_o * w_o / 2);
+        float[] frameMatrix = scratch(0, h_i * w_i * c_i_4);
         int delta_c = (c_i_4 - c_i) / group;
 
         for (int n = 0; n < (n_i); n++) {// for n in images
@@ -1417,9 +1762,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n, i, j, k);
                         }
             }
 
@@ -1435,9 +1780,9 @@ public class Convolution implements LayerInterface {
                             if (((i >= c_i_4 / group - delta_c) && (i < c_i_4 / group)) || (i >= c_i_4 - delta_c))
                                 frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = 0;
                             else if (i >= c_i_4 / group)
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i - delta_c][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i - delta_c, j, k);
                             else
-                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob[n + 1][i][j][k];
+                                frameMatrix[j * w_i * c_i_4 + k * c_i_4 + i] = inputBlob.get(n + 1, i, j, k);
                         }
             }
 
@@ -1446,30 +1791,30 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (2 * i < n_k_8 / group - delta_n) {
-                                outputBlob[n - 1][2 * i][j][k] = out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n - 1, 2 * i, j, k, out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][2 * i][j][k] < 0)
-                                        outputBlob[n - 1][2 * i][j][k] = 0;
+                                    if (outputBlob.get(n - 1, 2 * i, j, k) < 0)
+                                        outputBlob.set(n - 1, 2 * i, j, k, 0);
                                 }
                             } else if ((2 * i >= n_k_8 / group) && (2 * i < n_k_8 - delta_n)) {
-                                outputBlob[n - 1][2 * i - delta_n][j][k] = out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n - 1, 2 * i - delta_n, j, k, out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][2 * i - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][2 * i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, 2 * i - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, 2 * i - delta_n, j, k, 0);
                                 }
                             }
 
                             if (2 * i + 1 < n_k_8 / group - delta_n) {
-                                outputBlob[n - 1][2 * i + 1][j][k] = out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n - 1, 2 * i + 1, j, k, out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][2 * i + 1][j][k] < 0)
-                                        outputBlob[n - 1][2 * i + 1][j][k] = 0;
+                                    if (outputBlob.get(n - 1, 2 * i + 1, j, k) < 0)
+                                        outputBlob.set(n - 1, 2 * i + 1, j, k, 0);
                                 }
                             } else if ((2 * i + 1 >= n_k_8 / group) && (2 * i + 1 < n_k_8 - delta_n)) {
-                                outputBlob[n - 1][2 * i + 1 - delta_n][j][k] = out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n - 1, 2 * i + 1 - delta_n, j, k, out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n - 1][2 * i + 1 - delta_n][j][k] < 0)
-                                        outputBlob[n - 1][2 * i + 1 - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n - 1, 2 * i + 1 - delta_n, j, k) < 0)
+                                        outputBlob.set(n - 1, 2 * i + 1 - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -1483,30 +1828,30 @@ public class Convolution implements LayerInterface {
                     for (int j = 0; j < h_o; j++)
                         for (int k = 0; k < w_o; k++) {
                             if (2 * i < n_k_8 / group - delta_n) {
-                                outputBlob[n][2 * i][j][k] = out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n, 2 * i, j, k, out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][2 * i][j][k] < 0)
-                                        outputBlob[n][2 * i][j][k] = 0;
+                                    if (outputBlob.get(n, 2 * i, j, k) < 0)
+                                        outputBlob.set(n, 2 * i, j, k, 0);
                                 }
                             } else if ((2 * i >= n_k_8 / group) && (2 * i < n_k_8 - delta_n)) {
-                                outputBlob[n][2 * i - delta_n][j][k] = out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n, 2 * i - delta_n, j, k, out1Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][2 * i - delta_n][j][k] < 0)
-                                        outputBlob[n][2 * i - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, 2 * i - delta_n, j, k) < 0)
+                                        outputBlob.set(n, 2 * i - delta_n, j, k, 0);
                                 }
                             }
 
                             if (2 * i + 1 < n_k_8 / group - delta_n) {
-                                outputBlob[n][2 * i + 1][j][k] = out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n, 2 * i + 1, j, k, out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][2 * i + 1][j][k] < 0)
-                                        outputBlob[n][2 * i + 1][j][k] = 0;
+                                    if (outputBlob.get(n, 2 * i + 1, j, k) < 0)
+                                        outputBlob.set(n, 2 * i + 1, j, k, 0);
                                 }
                             } else if ((2 * i + 1 >= n_k_8 / group) && (2 * i + 1 < n_k_8 - delta_n)) {
-                                outputBlob[n][2 * i + 1 - delta_n][j][k] = out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i];
+                                outputBlob.set(n, 2 * i + 1 - delta_n, j, k, out2Matrix[j * w_o * n_k_8 / 2 + k * n_k_8 / 2 + i]);
                                 if (nonLinear) {
-                                    if (outputBlob[n][2 * i + 1 - delta_n][j][k] < 0)
-                                        outputBlob[n][2 * i + 1 - delta_n][j][k] = 0;
+                                    if (outputBlob.get(n, 2 * i + 1 - delta_n, j, k) < 0)
+                                        outputBlob.set(n, 2 * i + 1 - delta_n, j, k, 0);
                                 }
                             }
                         }
@@ -1522,18 +1867,16 @@ public class Convolution implements LayerInterface {
 
         if (destroy)
             myScript88.destroy();
-
-        // return the result
-        return outputBlob;
     }
 
 
     ///////////////////////////////Kernel Initialization Functions//////////////////////////////////
-    private void initKernelF4F1(float[][][][] myWeight, float[] myBias) {
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+    private void initKernelF4F1(Tensor myWeight, float[] myBias) {
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
         int c_k_4 = c_k;
         if (c_k % 4 != 0)
@@ -1544,35 +1887,9 @@ public class Convolution implements LayerInterface {
         Type kernelType = Type.createX(myRS, Element.F32_4(myRS), n_k * c_k_4 * h_k * w_k / 4);
         Type biasType = Type.createX(myRS, Element.F32(myRS), n_k);
 
-        float[] kernelMatrix = new float[n_k * h_k * w_k * c_k_4];
-        float[] biasArray = new float[n_k];
-        int delta_n = (n_k - n_k) / group;
-        for (int i = 0; i < n_k; i++)
-            for (int j = 0; j < c_k_4; j++)
-                for (int k = 0; k < h_k; k++)
-                    for (int l = 0; l < w_k; l++) {
-                        if (j >= c_k || ((i >= n_k / group - delta_n) && (i < n_k / group)) || (i >= n_k - delta_n))
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = 0;
-                        else if (i >= n_k / group)
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = myWeight[i - delta_n][j][k][l];
-                        else
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = myWeight[i][j][k][l];
-                    }
-
-        for (int i = 0; i < n_k; i++) {
-            if (((i >= n_k / group - delta_n) && (i < n_k / group)) || (i >= n_k - delta_n))
-                biasArray[i] = 0;
-            else if (i >= n_k / group)
-                biasArray[i] = myBias[i - delta_n];
-            else
-                biasArray[i] = myBias[i];
-        }
-
         kernelAllocation = Allocation.createTyped(myRS, kernelType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        kernelAllocation.copyFrom(kernelMatrix);
-
         biasAllocation = Allocation.createTyped(myRS, biasType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        biasAllocation.copyFrom(biasArray);
+        uploadPackedKernel("F4F1", myWeight, myBias, n_k, c_k_4, kernelAllocation, biasAllocation);
 
         myScript41 = new ScriptC_convRolledInF4OutF1(myRS);
         myScript41.set_Bias_Blob(biasAllocation);
@@ -1589,11 +1906,12 @@ public class Convolution implements LayerInterface {
 
     }
 
-    private void initKernelF4F2(float[][][][] myWeight, float[] myBias) {
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+    private void initKernelF4F2(Tensor myWeight, float[] myBias) {
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
         int c_k_4 = c_k;
         if (c_k % 4 != 0)
@@ -1609,34 +1927,9 @@ public class Convolution implements LayerInterface {
         Type kernelType = Type.createX(myRS, Element.F32_4(myRS), n_k_2 * c_k_4 * h_k * w_k / 4);
         Type biasType = Type.createX(myRS, Element.F32_2(myRS), n_k_2 / 2);
 
-        float[] kernelMatrix = new float[n_k_2 * h_k * w_k * c_k_4];
-        float[] biasArray = new float[n_k_2];
-        int delta_n = (n_k_2 - n_k) / group;
-        for (int i = 0; i < n_k_2; i++)
-            for (int j = 0; j < c_k_4; j++)
-                for (int k = 0; k < h_k; k++)
-                    for (int l = 0; l < w_k; l++) {
-                        if (j >= c_k || ((i >= n_k_2 / group - delta_n) && (i < n_k_2 / group)) || (i >= n_k_2 - delta_n))
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = 0;
-                        else if (i >= n_k_2 / group)
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = myWeight[i - delta_n][j][k][l];
-                        else
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = myWeight[i][j][k][l];
-                    }
-
-        for (int i = 0; i < n_k_2; i++) {
-            if (((i >= n_k_2 / group - delta_n) && (i < n_k_2 / group)) || (i >= n_k_2 - delta_n))
-                biasArray[i] = 0;
-            else if (i >= n_k_2 / group)
-                biasArray[i] = myBias[i - delta_n];
-            else
-                biasArray[i] = myBias[i];
-        }
         kernelAllocation = Allocation.createTyped(myRS, kernelType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        kernelAllocation.copyFrom(kernelMatrix);
-
         biasAllocation = Allocation.createTyped(myRS, biasType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        biasAllocation.copyFrom(biasArray);
+        uploadPackedKernel("F4F2", myWeight, myBias, n_k_2, c_k_4, kernelAllocation, biasAllocation);
 
         myScript42 = new ScriptC_convRolledInF4OutF2(myRS);
         myScript42.set_Bias_Blob(biasAllocation);
@@ -1653,11 +1946,12 @@ public class Convolution implements LayerInterface {
 
     }
 
-    private void initKernelF4F4(float[][][][] myWeight, float[] myBias) {
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+    private void initKernelF4F4(Tensor myWeight, float[] myBias) {
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
         int c_k_4 = c_k;
         if (c_k % 4 != 0)
@@ -1673,34 +1967,9 @@ public class Convolution implements LayerInterface {
         Type kernelType = Type.createX(myRS, Element.F32_4(myRS), n_k_4 * c_k_4 * h_k * w_k / 4);
         Type biasType = Type.createX(myRS, Element.F32_4(myRS), n_k_4 / 4);
 
-        float[] kernelMatrix = new float[n_k_4 * h_k * w_k * c_k_4];
-        float[] biasArray = new float[n_k_4];
-        int delta_n = (n_k_4 - n_k) / group;
-        for (int i = 0; i < n_k_4; i++)
-            for (int j = 0; j < c_k_4; j++)
-                for (int k = 0; k < h_k; k++)
-                    for (int l = 0; l < w_k; l++) {
-                        if (j >= c_k || ((i >= n_k_4 / group - delta_n) && (i < n_k_4 / group)) || (i >= n_k_4 - delta_n))
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = 0;
-                        else if (i >= n_k_4 / group)
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = myWeight[i - delta_n][j][k][l];
-                        else
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = myWeight[i][j][k][l];
-                    }
-
-        for (int i = 0; i < n_k_4; i++) {
-            if (((i >= n_k_4 / group - delta_n) && (i < n_k_4 / group)) || (i >= n_k_4 - delta_n))
-                biasArray[i] = 0;
-            else if (i >= n_k_4 / group)
-                biasArray[i] = myBias[i - delta_n];
-            else
-                biasArray[i] = myBias[i];
-        }
         kernelAllocation = Allocation.createTyped(myRS, kernelType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        kernelAllocation.copyFrom(kernelMatrix);
-
         biasAllocation = Allocation.createTyped(myRS, biasType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        biasAllocation.copyFrom(biasArray);
+        uploadPackedKernel("F4F4", myWeight, myBias, n_k_4, c_k_4, kernelAllocation, biasAllocation);
 
         myScript44 = new ScriptC_convRolledInF4OutF4(myRS);
         myScript44.set_Bias_Blob(biasAllocation);
@@ -1717,11 +1986,12 @@ public class Convolution implements LayerInterface {
 
     }
 
-    private void initKernelF4F8(float[][][][] myWeight, float[] myBias) {
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+    private void initKernelF4F8(Tensor myWeight, float[] myBias) {
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
         int c_k_4 = c_k;
         if (c_k % 4 != 0)
@@ -1738,37 +2008,9 @@ public class Convolution implements LayerInterface {
         kernelType = Type.createX(myRS, Element.F32_4(myRS), n_k_8 * c_k_4 * h_k * w_k / 4);
         biasType = Type.createX(myRS, Element.F32_4(myRS), n_k_8 / 4);
 
-        float[] kernelMatrix = new float[n_k_8 * h_k * w_k * c_k_4];
-        float[] biasArray = new float[n_k_8];
-
-        int delta_n = (n_k_8 - n_k) / group;
-        for (int i = 0; i < n_k_8; i++)
-            for (int j = 0; j < c_k_4; j++)
-                for (int k = 0; k < h_k; k++)
-                    for (int l = 0; l < w_k; l++) {
-                        if (j >= c_k || ((i >= n_k_8 / group - delta_n) && (i < n_k_8 / group)) || (i >= n_k_8 - delta_n))
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = 0;
-                        else if (i >= n_k_8 / group)
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = myWeight[i - delta_n][j][k][l];
-                        else
-                            kernelMatrix[i * h_k * w_k * c_k_4 + k * w_k * c_k_4 + l * c_k_4 + j] = myWeight[i][j][k][l];
-                    }
-
-        for (int i = 0; i < n_k_8; i++) {
-            if (((i >= n_k_8 / group - delta_n) && (i < n_k_8 / group)) || (i >= n_k_8 - delta_n))
-                biasArray[i] = 0;
-            else if (i >= n_k_8 / group)
-                biasArray[i] = myBias[i - delta_n];
-            else
-                biasArray[i] = myBias[i];
-        }
-
-
         kernelAllocation = Allocation.createTyped(myRS, kernelType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        kernelAllocation.copyFrom(kernelMatrix);
-
         biasAllocation = Allocation.createTyped(myRS, biasType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        biasAllocation.copyFrom(biasArray);
+        uploadPackedKernel("F4F8", myWeight, myBias, n_k_8, c_k_4, kernelAllocation, biasAllocation);
 
         myScript48 = new ScriptC_convRolledInF4OutF8(myRS);
         myScript48.set_Bias_Blob(biasAllocation);
@@ -1785,11 +2027,12 @@ public class Convolution implements LayerInterface {
 
     }
 
-    private void initKernelF8F1(float[][][][] myWeight, float[] myBias) {
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+    private void initKernelF8F1(Tensor myWeight, float[] myBias) {
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
         int c_k_8 = c_k;
         if (c_k % 8 != 0)
@@ -1800,35 +2043,9 @@ public class Convolution implements LayerInterface {
         Type kernelType = Type.createX(myRS, Element.F32_4(myRS), n_k * c_k_8 * h_k * w_k / 4);
         Type biasType = Type.createX(myRS, Element.F32(myRS), n_k);
 
-        float[] kernelMatrix = new float[n_k * h_k * w_k * c_k_8];
-        float[] biasArray = new float[n_k];
-        int delta_n = (n_k - n_k) / group;
-        for (int i = 0; i < n_k; i++)
-            for (int j = 0; j < c_k_8; j++)
-                for (int k = 0; k < h_k; k++)
-                    for (int l = 0; l < w_k; l++) {
-                        if (j >= c_k || ((i >= n_k / group - delta_n) && (i < n_k / group)) || (i >= n_k - delta_n))
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = 0;
-                        else if (i >= n_k / group)
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = myWeight[i - delta_n][j][k][l];
-                        else
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = myWeight[i][j][k][l];
-                    }
-
-        for (int i = 0; i < n_k; i++) {
-            if (((i >= n_k / group - delta_n) && (i < n_k / group)) || (i >= n_k - delta_n))
-                biasArray[i] = 0;
-            else if (i >= n_k / group)
-                biasArray[i] = myBias[i - delta_n];
-            else
-                biasArray[i] = myBias[i];
-        }
-
         kernelAllocation = Allocation.createTyped(myRS, kernelType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        kernelAllocation.copyFrom(kernelMatrix);
-
         biasAllocation = Allocation.createTyped(myRS, biasType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        biasAllocation.copyFrom(biasArray);
+        uploadPackedKernel("F8F1", myWeight, myBias, n_k, c_k_8, kernelAllocation, biasAllocation);
 
         myScript81 = new ScriptC_convRolledInF8OutF1(myRS);
         myScript81.set_Bias_Blob(biasAllocation);
@@ -1844,11 +2061,12 @@ public class Convolution implements LayerInterface {
         myScript81.set_group(group);
     }
 
-    private void initKernelF8F2(float[][][][] myWeight, float[] myBias) {
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+    private void initKernelF8F2(Tensor myWeight, float[] myBias) {
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
         int c_k_8 = c_k;
         if (c_k % 8 != 0)
@@ -1864,34 +2082,9 @@ public class Convolution implements LayerInterface {
         Type kernelType = Type.createX(myRS, Element.F32_4(myRS), n_k_2 * c_k_8 * h_k * w_k / 4);
         Type biasType = Type.createX(myRS, Element.F32_2(myRS), n_k_2 / 2);
 
-        float[] kernelMatrix = new float[n_k_2 * h_k * w_k * c_k_8];
-        float[] biasArray = new float[n_k_2];
-        int delta_n = (n_k_2 - n_k) / group;
-        for (int i = 0; i < n_k_2; i++)
-            for (int j = 0; j < c_k_8; j++)
-                for (int k = 0; k < h_k; k++)
-                    for (int l = 0; l < w_k; l++) {
-                        if (j >= c_k || ((i >= n_k_2 / group - delta_n) && (i < n_k_2 / group)) || (i >= n_k_2 - delta_n))
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = 0;
-                        else if (i >= n_k_2 / group)
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = myWeight[i - delta_n][j][k][l];
-                        else
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = myWeight[i][j][k][l];
-                    }
-
-        for (int i = 0; i < n_k_2; i++) {
-            if (((i >= n_k_2 / group - delta_n) && (i < n_k_2 / group)) || (i >= n_k_2 - delta_n))
-                biasArray[i] = 0;
-            else if (i >= n_k_2 / group)
-                biasArray[i] = myBias[i - delta_n];
-            else
-                biasArray[i] = myBias[i];
-        }
         kernelAllocation = Allocation.createTyped(myRS, kernelType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        kernelAllocation.copyFrom(kernelMatrix);
-
         biasAllocation = Allocation.createTyped(myRS, biasType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        biasAllocation.copyFrom(biasArray);
+        uploadPackedKernel("F8F2", myWeight, myBias, n_k_2, c_k_8, kernelAllocation, biasAllocation);
 
         myScript82 = new ScriptC_convRolledInF8OutF2(myRS);
         myScript82.set_Bias_Blob(biasAllocation);
@@ -1907,11 +2100,12 @@ public class Convolution implements LayerInterface {
         myScript82.set_group(group);
     }
 
-    private void initKernelF8F4(float[][][][] myWeight, float[] myBias) {
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+    private void initKernelF8F4(Tensor myWeight, float[] myBias) {
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
         int c_k_8 = c_k;
         if (c_k % 8 != 0)
@@ -1927,34 +2121,9 @@ public class Convolution implements LayerInterface {
         Type kernelType = Type.createX(myRS, Element.F32_4(myRS), n_k_4 * c_k_8 * h_k * w_k / 4);
         Type biasType = Type.createX(myRS, Element.F32_4(myRS), n_k_4 / 4);
 
-        float[] kernelMatrix = new float[n_k_4 * h_k * w_k * c_k_8];
-        float[] biasArray = new float[n_k_4];
-        int delta_n = (n_k_4 - n_k) / group;
-        for (int i = 0; i < n_k_4; i++)
-            for (int j = 0; j < c_k_8; j++)
-                for (int k = 0; k < h_k; k++)
-                    for (int l = 0; l < w_k; l++) {
-                        if (j >= c_k || ((i >= n_k_4 / group - delta_n) && (i < n_k_4 / group)) || (i >= n_k_4 - delta_n))
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = 0;
-                        else if (i >= n_k_4 / group)
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = myWeight[i - delta_n][j][k][l];
-                        else
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = myWeight[i][j][k][l];
-                    }
-
-        for (int i = 0; i < n_k_4; i++) {
-            if (((i >= n_k_4 / group - delta_n) && (i < n_k_4 / group)) || (i >= n_k_4 - delta_n))
-                biasArray[i] = 0;
-            else if (i >= n_k_4 / group)
-                biasArray[i] = myBias[i - delta_n];
-            else
-                biasArray[i] = myBias[i];
-        }
         kernelAllocation = Allocation.createTyped(myRS, kernelType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        kernelAllocation.copyFrom(kernelMatrix);
-
         biasAllocation = Allocation.createTyped(myRS, biasType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        biasAllocation.copyFrom(biasArray);
+        uploadPackedKernel("F8F4", myWeight, myBias, n_k_4, c_k_8, kernelAllocation, biasAllocation);
 
         myScript84 = new ScriptC_convRolledInF8OutF4(myRS);
         myScript84.set_Bias_Blob(biasAllocation);
@@ -1971,11 +2140,12 @@ public class Convolution implements LayerInterface {
 
     }
 
-    private void initKernelF8F8(float[][][][] myWeight, float[] myBias) {
-        int n_k = myWeight.length;
-        int c_k = myWeight[0].length;
-        int h_k = myWeight[0][0].length;
-        int w_k = myWeight[0][0][0].length;
+    private void initKernelF8F8(Tensor myWeight, float[] myBias) {
+        int[] kernelShape = weightShape();
+        int n_k = kernelShape[0];
+        int c_k = kernelShape[1];
+        int h_k = kernelShape[2];
+        int w_k = kernelShape[3];
 
         int c_k_8 = c_k;
         if (c_k % 8 != 0)
@@ -1991,37 +2161,9 @@ public class Convolution implements LayerInterface {
         Type biasType = Type.createX(myRS, Element.F32_4(myRS), n_k_8 / 4);
 
 
-        float[] kernelMatrix = new float[n_k_8 * h_k * w_k * c_k_8];
-        float[] biasArray = new float[n_k_8];
-
-        int delta_n = (n_k_8 - n_k) / group;
-        for (int i = 0; i < n_k_8; i++)
-            for (int j = 0; j < c_k_8; j++)
-                for (int k = 0; k < h_k; k++)
-                    for (int l = 0; l < w_k; l++) {
-                        if (j >= c_k || ((i >= n_k_8 / group - delta_n) && (i < n_k_8 / group)) || (i >= n_k_8 - delta_n))
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = 0;
-                        else if (i >= n_k_8 / group)
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = myWeight[i - delta_n][j][k][l];
-                        else
-                            kernelMatrix[i * h_k * w_k * c_k_8 + k * w_k * c_k_8 + l * c_k_8 + j] = myWeight[i][j][k][l];
-                    }
-
-        for (int i = 0; i < n_k_8; i++) {
-            if (((i >= n_k_8 / group - delta_n) && (i < n_k_8 / group)) || (i >= n_k_8 - delta_n))
-                biasArray[i] = 0;
-            else if (i >= n_k_8 / group)
-                biasArray[i] = myBias[i - delta_n];
-            else
-                biasArray[i] = myBias[i];
-        }
-
-
         kernelAllocation = Allocation.createTyped(myRS, kernelType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        kernelAllocation.copyFrom(kernelMatrix);
-
         biasAllocation = Allocation.createTyped(myRS, biasType, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
-        biasAllocation.copyFrom(biasArray);
+        uploadPackedKernel("F8F8", myWeight, myBias, n_k_8, c_k_8, kernelAllocation, biasAllocation);
 
         myScript88 = new ScriptC_convRolledInF8OutF8(myRS);
         myScript88.set_Bias_Blob(biasAllocation);
@@ -2038,40 +2180,41 @@ public class Convolution implements LayerInterface {
     }
 
     /////////////////////////////////////////Tuning Function////////////////////////////////////////
-    private Object tuneFunction(float[][][][] input) {
+    private void tuneFunction(Tensor input, Tensor output) {
         Log.d("CNNdroid", "layers." + name + ": Tuning process is starting...");
         long tuneTime = System.currentTimeMillis();
 
-        Object[] objects = paramUnpacker.unpackerFunction(paramFilePath, new Class[]{float[][][][].class, float[].class});
-        float[][][][] myWeight = (float[][][][]) objects[0];
+        Object[] objects = readParams();
+        Tensor myWeight = (Tensor) objects[0];
         float[] myBias = (float[]) objects[1];
         tuneNow = false;
+        tuning = true;
         long[] time = new long[]{0, 0, 0, 0};
         long temp;
-        int c_i = input[0].length;
-        float[][][][] tuneInput = new float[1][c_i][input[0][0].length][input[0][0][0].length];
-        tuneInput[0] = input[0];
+        int c_i = input.shape[1];
+        Tensor tuneInput = input.slice(0, 0, 1);
+        Tensor tuneOutput = output.slice(0, 0, 1);
 
         if (c_i < 5) {
             for (int i = 0; i < 2; i++) {
                 temp = System.currentTimeMillis();
                 initKernelF4F1(myWeight, myBias);
-                convLayerRolledParInF4OutF1(tuneInput, myWeight, true);
+                convLayerRolledParInF4OutF1(tuneInput, tuneOutput, true);
                 time[0] += System.currentTimeMillis() - temp;
 
                 temp = System.currentTimeMillis();
                 initKernelF4F2(myWeight, myBias);
-                convLayerRolledParInF4OutF2(tuneInput, myWeight, true);
+                convLayerRolledParInF4OutF2(tuneInput, tuneOutput, true);
                 time[1] += System.currentTimeMillis() - temp;
 
                 temp = System.currentTimeMillis();
                 initKernelF4F4(myWeight, myBias);
-                convLayerRolledParInF4OutF4(tuneInput, myWeight, true);
+                convLayerRolledParInF4OutF4(tuneInput, tuneOutput, true);
                 time[2] += System.currentTimeMillis() - temp;
 
                 temp = System.currentTimeMillis();
                 initKernelF4F8(myWeight, myBias);
-                convLayerRolledParInF4OutF8(tuneInput, myWeight, true);
+                convLayerRolledParInF4OutF8(tuneInput, tuneOutput, true);
                 time[3] += System.currentTimeMillis() - temp;
             }
 
@@ -2085,22 +2228,22 @@ public class Convolution implements LayerInterface {
             for (int i = 0; i < 2; i++) {
                 temp = System.currentTimeMillis();
                 initKernelF8F1(myWeight, myBias);
-                convLayerRolledParInF8OutF1(tuneInput, myWeight, true);
+                convLayerRolledParInF8OutF1(tuneInput, tuneOutput, true);
                 time[0] += System.currentTimeMillis() - temp;
 
                 temp = System.currentTimeMillis();
                 initKernelF8F2(myWeight, myBias);
-                convLayerRolledParInF8OutF2(tuneInput, myWeight, true);
+                convLayerRolledParInF8OutF2(tuneInput, tuneOutput, true);
                 time[1] += System.currentTimeMillis() - temp;
 
                 temp = System.currentTimeMillis();
                 initKernelF8F4(myWeight, myBias);
-                convLayerRolledParInF8OutF4(tuneInput, myWeight, true);
+                convLayerRolledParInF8OutF4(tuneInput, tuneOutput, true);
                 time[2] += System.currentTimeMillis() - temp;
 
                 temp = System.currentTimeMillis();
                 initKernelF8F8(myWeight, myBias);
-                convLayerRolledParInF8OutF8(tuneInput, myWeight, true);
+                convLayerRolledParInF8OutF8(tuneInput, tuneOutput, true);
                 time[3] += System.currentTimeMillis() - temp;
             }
 
@@ -2113,8 +2256,10 @@ public class Convolution implements LayerInterface {
         }
 
         initKernelF4F8(myWeight, myBias);
-        Object output = convLayerRolledParInF4OutF8(input, myWeight, true);
+        convLayerRolledParInF4OutF8(input, output, true);
+        tuning = false;
 
+        // only the layout of the chosen algorithm is saved, by its initialization
         writeFile(algorithm);
         if(loadParamsAtStart) {
             weight = myWeight;
@@ -2148,55 +2293,247 @@ public class Convolution implements LayerInterface {
         }
         tuneTime = System.currentTimeMillis() - tuneTime;
         Log.d("CNNdroid", "layers." + name + ": Tuning process finished in " + tuneTime + "ms.");
-        return output;
     }
 
     ////////////////////////////////////////Local Functions/////////////////////////////////////////
-    private Object invokeFunctions(Object input, float[][][][] myWeight, float[] myBias, boolean destroy)
+    // Copy the kernel and bias in the layout of the given algorithm to their allocations: n_k_p kernels (the
+    // kernels of every group padded with zero kernels) of c_k_p channels (padded with zeros), channels innermost.
+    // Except while tuning, the layout is saved in the tuning folder the first time, keyed by layer, shapes, layout
+    // and parameters file, and later streamed from the mapping of that file. myWeight and myBias may then be null,
+    // they are read if the saved layout turns out to be unusable.
+    private void uploadPackedKernel(String layout, Tensor myWeight, float[] myBias, int n_k_p, int c_k_p,
+                                    Allocation kernelAllocation, Allocation biasAllocation)
+    {
+        int[] shape = weightShape();
+        int n_k = shape[0];
+        int c_k = shape[1];
+        int h_k = shape[2];
+        int w_k = shape[3];
+        int size = n_k_p * h_k * w_k * c_k_p;
+
+        File f = tuning ? null : packedKernelFile(layout, shape);
+        if (f != null && f.exists()) {
+            MappedParams p = MappedParams.open(f.getPath());
+            if (p != null && p.arrayCount() == 2 && Tensor.count(p.shape(0)) == size && p.shape(1)[0] == n_k_p) {
+                // float4 elements, a chunk at a time
+                FloatBuffer kernels = p.floats(0);
+                float[] chunk = new float[Math.min(size, PACKED_KERNEL_CHUNK)];
+                for (int i = 0; i < size; i += chunk.length) {
+                    int n = Math.min(chunk.length, size - i);
+                    kernels.get(chunk, 0, n);
+                    kernelAllocation.copy1DRangeFrom(i / 4, n / 4, chunk);
+                }
+                biasAllocation.copyFrom(p.toArray(1));
+                return;
+            }
+        }
+        if (myWeight == null) {
+            Object[] objects = readParams();
+            myWeight = (Tensor) objects[0];
+            myBias = (float[]) objects[1];
+        }
+
+        float[] kernelMatrix = new float[size];
+        float[] biasArray = new float[n_k_p];
+        int delta_n = (n_k_p - n_k) / group;
+        for (int i = 0; i < n_k_p; i++)
+            for (int j = 0; j < c_k_p; j++)
+                for (int k = 0; k < h_k; k++)
+                    for (int l = 0; l < w_k; l++) {
+                        if (j >= c_k || ((i >= n_k_p / group - delta_n) && (i < n_k_p / group)) || (i >= n_k_p - delta_n))
+                            kernelMatrix[i * h_k * w_k * c_k_p + k * w_k * c_k_p + l * c_k_p + j] = 0;
+                        else if (i >= n_k_p / group)
+                            kernelMatrix[i * h_k * w_k * c_k_p + k * w_k * c_k_p + l * c_k_p + j] = myWeight.get(i - delta_n, j, k, l);
+                        else
+                            kernelMatrix[i * h_k * w_k * c_k_p + k * w_k * c_k_p + l * c_k_p + j] = myWeight.get(i, j, k, l);
+                    }
+
+        for (int i = 0; i < n_k_p; i++) {
+            if (((i >= n_k_p / group - delta_n) && (i < n_k_p / group)) || (i >= n_k_p - delta_n))
+                biasArray[i] = 0;
+            else if (i >= n_k_p / group)
+                biasArray[i] = myBias[i - delta_n];
+            else
+                biasArray[i] = myBias[i];
+        }
+
+        if (f != null) {
+            List<int[]> shapes = new ArrayList<>();
+            List<float[]> arrays = new ArrayList<>();
+            shapes.add(new int[]{n_k_p, h_k, w_k, c_k_p});
+            shapes.add(new int[]{n_k_p});
+            arrays.add(kernelMatrix);
+            arrays.add(biasArray);
+            try {
+                // layouts of older parameters files of this layer are not needed anymore
+                File[] old = f.getParentFile().listFiles();
+                if (old != null)
+                    for (File o : old)
+                        if (o.getName().startsWith(name + "_" + layout + "_") && !o.equals(f))
+                            o.delete();
+                ParamConverter.write(f.getPath(), shapes, arrays);
+            } catch (IOException e) {
+                Log.d("CNNdroid", "layers." + name + ": packed kernel could not be saved: " + e.getMessage());
+            }
+        }
+        kernelAllocation.copyFrom(kernelMatrix);
+        biasAllocation.copyFrom(biasArray);
+    }
+
+    // Whether the packed kernel of the tuned algorithm is saved in the tuning folder, so that the parallel mode
+    // does not need the weights (see uploadPackedKernel).
+    private boolean packedKernelSaved()
+    {
+        if (!parallel || tuneNow)
+            return false;
+        int[] shape = weightShape();
+        return shape != null && packedKernelFile(algorithm, shape).exists();
+    }
+
+    private File packedKernelFile(String layout, int[] shape)
+    {
+        File params = ModelBundle.containerOf(paramFilePath);
+        long version = params.lastModified() * 31 + params.length();
+        return new File(tuningFolder + "/" + name + "_" + layout + "_" + shape[0] + "x" + shape[1] + "x" + shape[2] + "x" + shape[3]
+                + "_g" + group + "_" + Long.toHexString(version) + ".bin");
+    }
+
+    // Staging array of at least the given size, only reallocated when a larger one is needed.
+    private float[] scratch(int slot, int size)
+    {
+        if (scratch[slot] == null || scratch[slot].length < size)
+            scratch[slot] = new float[size];
+        return scratch[slot];
+    }
+
+    // Vector width of the input (pos = 1) or output (pos = 3) of the algorithm, the widest one while it is not tuned yet.
+    private int algorithmWidth(int pos)
+    {
+        if (algorithm == null || tuneNow)
+            return 8;
+        return algorithm.charAt(pos) - '0';
+    }
+
+    // Size of the quantized frame: the padded image, or more if the last windows reach past the padding.
+    private int quantizedFrameHeight(int h_i, int h_o, int h_k)
+    {
+        return Math.max(h_i + 2 * pad[0], (h_o - 1) * stride[0] + h_k);
+    }
+
+    private int quantizedFrameWidth(int w_i, int w_o, int w_k)
+    {
+        return Math.max(w_i + 2 * pad[1], (w_o - 1) * stride[1] + w_k);
+    }
+
+    private static int roundUp(int x, int m)
+    {
+        if (x % m == 0)
+            return x;
+        return x + m - x % m;
+    }
+
+    @Override
+    public void setPrefetchedParams(Object[] params) {
+        prefetched = params;
+    }
+
+    // Weights (as a Tensor, a HalfTensor in half precision or a QuantizedTensor in int8) and bias, from a mapped
+    // binary parameters file or from a MessagePack one.
+    @Override
+    public Object[] readParams()
+    {
+        if (MappedParams.isMappedFile(paramFilePath)) {
+            MappedParams p = MappedParams.open(paramFilePath);
+            if (p == null)
+                return null;
+            if (quantized)
+                return new Object[]{QuantizedTensor.quantize(p.toArray(0), p.shape(0)), p.toArray(1)};
+            if (halfPrecision)
+                return new Object[]{new HalfTensor(p.toHalfArray(0), p.shape(0)), p.toArray(1)};
+            return new Object[]{Tensor.wrap(p.toArray(0), p.shape(0)), p.toArray(1)};
+        }
+        Tensor[] tensors = paramUnpacker.unpackTensors(paramFilePath, 2);
+        if (tensors == null)
+            return null;
+        if (quantized)
+            return new Object[]{QuantizedTensor.quantize(tensors[0].data, tensors[0].shape), tensors[1].data};
+        return new Object[]{halfPrecision ? HalfTensor.of(tensors[0]) : tensors[0], tensors[1].data};
+    }
+
+    // Read from the header of the parameters file when the weights are not resident yet.
+    private int[] weightShape()
+    {
+        if (weight != null)
+            weightShape = weight.shape;
+        if (halfWeight != null)
+            weightShape = halfWeight.shape;
+        if (quantizedWeight != null)
+            weightShape = quantizedWeight.shape;
+        if (weightShape == null) {
+            try {
+                weightShape = (paramHeader != null ? paramHeader : ParamHeader.read(paramFilePath)).shape(0);
+            } catch (IOException e) {
+                Log.d("CNNdroid", "layers." + name + ": parameters file could not be read: " + e.getMessage());
+                return null;
+            }
+        }
+        return weightShape;
+    }
+
+    private void invokeFunctions(Tensor input, Tensor output, Tensor myWeight, HalfTensor myHalfWeight,
+                                 QuantizedTensor myQuantizedWeight, float[] myBias, boolean destroy)
     {
-        Object output = null;
         long runTime = System.currentTimeMillis();
 
-        if (!parallel)
-            output = convLayerRolledSeq((float[][][][]) input, myWeight, myBias, pad, stride, group);
+        if (myQuantizedWeight != null)
+            convLayerQuantized(input, myQuantizedWeight, myBias, output);
+        else if (!parallel && myHalfWeight == null && useDepthwise())
+            convLayerDepthwise(input, myWeight, myBias, output);
+        else if (!parallel && myHalfWeight == null && useWinograd())
+            convLayerWinograd(input, myWeight, myBias, output);
+        else if (!parallel && myHalfWeight == null && useFft())
+            convLayerFft(input, myWeight, myBias, output);
+        else if (!parallel && myHalfWeight == null)
+            convLayerGemm(input, myWeight, myBias, output);
+        else if (!parallel)
+            convLayerRolledSeq(input, null, myHalfWeight, myBias, pad, stride, group, output);
         else {
             if (tuneNow) {
-                output = tuneFunction((float[][][][]) input);
+                tuneFunction(input, output);
             }
             else {
                 switch (algorithm) {
                     case "F4F1":
-                        output = convLayerRolledParInF4OutF1((float[][][][]) input, myWeight, destroy);
+                        convLayerRolledParInF4OutF1(input, output, destroy);
                         break;
                     case "F4F2":
-                        output = convLayerRolledParInF4OutF2((float[][][][]) input, myWeight, destroy);
+                        convLayerRolledParInF4OutF2(input, output, destroy);
                         break;
                     case "F4F4":
-                        output = convLayerRolledParInF4OutF4((float[][][][]) input, myWeight, destroy);
+                        convLayerRolledParInF4OutF4(input, output, destroy);
                         break;
                     case "F4F8":
-                        output = convLayerRolledParInF4OutF8((float[][][][]) input, myWeight, destroy);
+                        convLayerRolledParInF4OutF8(input, output, destroy);
                         break;
                     case "F8F1":
-                        output = convLayerRolledParInF8OutF1((float[][][][]) input, myWeight, destroy);
+                        convLayerRolledParInF8OutF1(input, output, destroy);
                         break;
                     case "F8F2":
-                        output = convLayerRolledParInF8OutF2((float[][][][]) input, myWeight, destroy);
+                        convLayerRolledParInF8OutF2(input, output, destroy);
                         break;
                     case "F8F4":
-                        output = convLayerRolledParInF8OutF4((float[][][][]) input, myWeight, destroy);
+                        convLayerRolledParInF8OutF4(input, output, destroy);
                         break;
                     case "F8F8":
-                        output = convLayerRolledParInF8OutF8((float[][][][]) input, myWeight, destroy);
+                        convLayerRolledParInF8OutF8(input, output, destroy);
                         break;
                 }
             }
         }
 
         runTime = System.currentTimeMillis() - runTime;
-        Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
-
-        return output;
+        if (Log.isLoggable("CNNdroid", Log.DEBUG))
+            Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
     }
     private boolean corrupted(String str)
     {
@@ -0,0 +1,6 @@
+package layers;
+
+// A layer whose output element i only depends on input element i. Such a layer may be given the same blob
+// as input and output, which lets the network overwrite an activation that is not read anymore.
+public interface ElementwiseInterface extends LayerInterface {
+}
@@ -9,12 +9,27 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Scanner;
 
 import messagepack.ParamUnpacker;
+import numdroid.Gemm;
+import numdroid.GemmInnerProduct;
+import numdroid.Half;
 import numdroid.MyNum;
+import numdroid.QuantizedTensor;
+import numdroid.SparseMatrix;
+import numdroid.Tensor;
+import numdroid.Workers;
+import params.MappedParams;
+import params.ParamHeader;
+import params.Pruner;
+
+public class FullyConnected implements MemoryInterface {
+    private static final long MIN_PARALLEL_WORK = 1 << 16;  // multiply-adds below which one thread is faster
+    private static final int OUTPUT_BLOCKS_PER_THREAD = 4;  // for load balance
 
-public class FullyConnected implements LayerInterface {
     private String name;                    // name of the layer
     private String paramFilePath;           // name of the file which specifies the weights and biases
     private ParamUnpacker paramUnpacker;    // for extracting the wieghts and biases from the parameters file
@@ -25,12 +40,30 @@ public class FullyConnected implements LayerInterface {
     private boolean parallel;               // implementation method (parallel or sequential)
     private boolean loadParamsAtStart;		// if true, layer parameters will be loaded at the construction of network, otherwise the parameters will be loaded in run time
     private float[] weight; 			    // weight parameter of network
+    private float[] gemmWeight;             // resident weights packed for the CPU matrix product (sequential mode, instead of weight)
+    private short[] halfWeight;             // weight parameter in half precision (instead of weight, see setHalfPrecision)
+    private boolean halfPrecision;          // keep the weights in half precision
+    private QuantizedTensor quantizedWeight;  // weight parameter in int8 (instead of weight, see setQuantization)
+    private boolean quantized;              // compute in int8
+    private float inputScale;               // int8 step of the input, from calibration
+    private int inputOffset;                // 128 if the input is unsigned (quantized to uint8), 0 otherwise
+    private byte[] quantizedRow;            // quantized input rows of the batch, reused between calls
+    private SparseMatrix sparseWeight;      // weight parameter in CSR form (instead of weight, see setSparse)
+    private boolean sparse;                 // compute with sparse weights
+    private int nonZeros = -1;              // number of stored weights when sparse, -1 until known
     private float[] bias;					// bias parameter of network
+    private int[] weightShape;              // (c_o, c_i), known once the parameters have been read
+    private ParamHeader paramHeader;        // header of the parameters file read by the network, null if not given
     private String tuningFolder;            // location to store online tuning results
     private boolean tuneNow;                // flag to weather execute tuning ro not
     private boolean tuneFunc;               // flag of optional tuning function
     private String algorithm;               // acceleration method
     private String[] names = {"F4F1", "F8F1"};
+    private float[][] scratch = new float[2][];  // staging arrays for RenderScript (frame, output), reused between calls
+    private Object[] prefetched;            // parameters read in advance for the next call (if not resident)
+    private final GemmInnerProduct gemm = new GemmInnerProduct();   // CPU engine, its tasks reused between calls
+    private final HalfBlocks halfBlocks = new HalfBlocks();
+    private final QuantizedBlocks quantizedBlocks = new QuantizedBlocks();
 
     private ScriptC_innerProductInF4OutF1 myScriptF4;
     private ScriptC_innerProductInF8OutF1 myScriptF8;
@@ -70,31 +103,64 @@ public class FullyConnected implements LayerInterface {
             algorithm = "F8F1";
             tuneNow = false;
         }
+
+        // files written by Pruner hold sparse weights
+        if (MappedParams.isMappedFile(paramFilePath)) {
+            MappedParams p = MappedParams.open(paramFilePath);
+            if (p != null && Pruner.isSparse(p)) {
+                setSparse(true);
+                nonZeros = Tensor.count(p.shape(3));
+            }
+        }
 		  
-       if (loadParamsAtStart && (!tuneNow || !parallel)) {
-          long loadTime = System.currentTimeMillis();
-          Object[] objects = paramUnpacker.unpackerFunction(paramFilePath, new Class[]{float[].class, float[].class});
-          weight = (float[]) objects[0];
-          bias = (float[]) objects[1];
-
-          loadTime = System.currentTimeMillis() - loadTime;
-          Log.d("CNNdroid","layers." + name + ": Parameters Load Time in Constructor = " + String.valueOf(loadTime) + ", Shape: " + bias.length);
-
-          if (parallel)
-          {
-              long kernelTime = System.currentTimeMillis();
-              switch (algorithm) {
-                  case "F4F1":
-                      initKernelF4F1(weight, bias);
-                      break;
-                  case "F8F1":
-                      initKernelF8F1(weight, bias);
-                      break;
-              }
-              kernelTime = System.currentTimeMillis() - kernelTime;
-              Log.d("CNNdroid", "layers." + name + ": Kernel Initialization Time in Constructor = " + String.valueOf(kernelTime));
-          }
-       }
+    }
+
+    // Load (and pack, in parallel mode) the parameters kept resident. Called once after construction,
+    // possibly on a worker thread while the other layers load theirs.
+    @Override
+    public void loadParams() {
+        if (!loadParamsAtStart || (tuneNow && parallel))
+            return;
+
+        long loadTime = System.currentTimeMillis();
+        Object[] objects = readParams();
+        if (sparse) {
+            sparseWeight = (SparseMatrix) objects[0];
+            nonZeros = sparseWeight.nonZeros();
+        }
+        else if (quantized)
+            quantizedWeight = (QuantizedTensor) objects[0];
+        else if (halfPrecision)
+            halfWeight = (short[]) objects[0];
+        else
+            weight = (float[]) objects[0];
+        bias = (float[]) objects[1];
+        if (!parallel && weight != null) {
+            int[] w = weightShape();
+            gemmWeight = GemmInnerProduct.packWeights(weight, w[0], w[1]);
+            weight = null;
+        }
+
+        loadTime = System.currentTimeMillis() - loadTime;
+        Log.d("CNNdroid","layers." + name + ": Parameters Load Time at Start-up = " + String.valueOf(loadTime) + ", Shape: " + bias.length);
+        if (sparse)
+            Log.d("CNNdroid", "layers." + name + ": " + sparseWeight.nonZeros() + " non-zero weights ("
+                    + String.format("%.1f", 100 * sparseWeight.density()) + "%)");
+
+        if (parallel && !sparse)
+        {
+            long kernelTime = System.currentTimeMillis();
+            switch (algorithm) {
+                case "F4F1":
+                    initKernelF4F1(weight, bias);
+                    break;
+                case "F8F1":
+                    initKernelF8F1(weight, bias);
+                    break;
+            }
+            kernelTime = System.currentTimeMillis() - kernelTime;
+            Log.d("CNNdroid", "layers." + name + ": Kernel Initialization Time at Start-up = " + String.valueOf(kernelTime));
+        }
     }
 
     public void setNonLinearType(NonLinearType nonLinearType) {
@@ -102,17 +168,134 @@ public class FullyConnected implements LayerInterface {
         nonLinear = true;
     }
 
+    // Keep the weights in half precision, the sequential kernel widens them to float while accumulating.
+    // The RenderScript kernels take single precision weights, so the parallel mode ignores it.
+    public void setHalfPrecision(boolean halfPrecision) {
+        this.halfPrecision = halfPrecision && !parallel;
+    }
+
+    // Compute with the weights in compressed sparse row form, on the CPU in both modes. Sparse parameters files
+    // (see Pruner) turn it on; with dense files the zero weights are dropped at load time.
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+        if (sparse)
+            tuneNow = false;
+    }
+
+    // Header of the parameters file, already read when the network definition was checked, so that the shapes
+    // are known without scanning the file again.
+    public void setParamHeader(ParamHeader paramHeader) {
+        this.paramHeader = paramHeader;
+    }
+
+    // Compute in int8: weights quantized per output, the input quantized with one scale for the range
+    // [min, max] seen at calibration (to uint8 if it is never negative), int32 accumulation. The output is
+    // dequantized to float. Like half precision, only the sequential mode supports it.
+    public void setQuantization(float min, float max) {
+        quantized = !parallel;
+        inputOffset = min >= 0 ? 128 : 0;
+        float range = min >= 0 ? max : Math.max(-min, max);
+        inputScale = range > 0 ? range / (min >= 0 ? 255 : 127) : 1;
+    }
+
     @Override
-    public Object compute(Object input) {
+    public String getName() {
+        return name;
+    }
+
+    // (n, c) and (n, c, h, w) inputs give a (n, c_o) output.
+    @Override
+    public int[] inferOutputShape(int[] inputShape) {
+        int[] w = weightShape();
+        int c_i = Tensor.count(inputShape) / inputShape[0];
+        if (w == null || c_i != w[1]) {
+            Log.d("CNNdroid", "layers." + name + ": input blob of shape " + Arrays.toString(inputShape) + " does not match the weights");
+            return null;
+        }
+        return new int[]{inputShape[0], w[0]};
+    }
+
+    ///////////////////////////////////////Memory Planning//////////////////////////////////////////
+    @Override
+    public long weightBytes() {
+        int[] w = weightShape();
+        if (sparse && nonZeros >= 0)
+            return 8L * nonZeros + 8L * w[0] + 4;
+        if (quantized)
+            return (long) w[0] * w[1] + 12L * w[0];
+        return (halfPrecision ? 2L : 4L) * w[0] * w[1] + 4L * w[0];
+    }
+
+    // The kernel and bias Allocations hold a copy of the parameters.
+    @Override
+    public long packedWeightBytes() {
+        if (!parallel && !sparse && !quantized && !halfPrecision) {
+            int[] w = weightShape();
+            return 4L * Gemm.packedSize(w[0], w[1]) - 4L * w[0] * w[1];
+        }
+        if (!parallel || sparse)
+            return 0;
+        return weightBytes();
+    }
+
+    // The padded input rows and the output, held both in a Java array and in an Allocation.
+    @Override
+    public long scratchBytes(int[] inputShape) {
+        if (quantized)
+            return (long) inputShape[0] * weightShape()[1];
+        if (!parallel && !sparse && !halfPrecision) {
+            int[] w = weightShape();
+            return GemmInnerProduct.scratchBytes(w[0], w[1], inputShape[0]);
+        }
+        if (!parallel || sparse)
+            return 0;
+        int[] w = weightShape();
+        int width = (algorithm == null || tuneNow) ? 8 : algorithm.charAt(1) - '0';
+        int c_i = w[1];
+        if (c_i % width != 0)
+            c_i = c_i + width - c_i % width;
+        return 2 * 4L * ((long) inputShape[0] * c_i + (long) inputShape[0] * w[0]);
+    }
+
+    @Override
+    public boolean paramsResident() {
+        return loadParamsAtStart;
+    }
+
+    @Override
+    public void releaseParams() {
+        loadParamsAtStart = false;
+        weight = null;
+        gemmWeight = null;
+        halfWeight = null;
+        quantizedWeight = null;
+        sparseWeight = null;
+        bias = null;
+        if (myScriptF4 != null) {
+            myScriptF4.destroy();
+            myScriptF4 = null;
+        }
+        if (myScriptF8 != null) {
+            myScriptF8.destroy();
+            myScriptF8 = null;
+        }
+    }
+
+    @Override
+    public void compute(Tensor input, Tensor output) {
         long loadTime;
         if (!loadParamsAtStart && (!tuneNow || !parallel)) {
 		    loadTime = System.currentTimeMillis();
 
-		    Object[] objects = paramUnpacker.unpackerFunction(paramFilePath, new Class[]{float[].class, float[].class});
-		    float[] localWeight = (float[]) objects[0];
+		    Object[] objects = prefetched != null ? prefetched : readParams();
+		    prefetched = null;
+		    float[] localWeight = objects[0] instanceof float[] ? (float[]) objects[0] : null;
+		    short[] localHalfWeight = objects[0] instanceof short[] ? (short[]) objects[0] : null;
+		    QuantizedTensor localQuantizedWeight = objects[0] instanceof QuantizedTensor ? (QuantizedTensor) objects[0] : null;
+		    SparseMatrix localSparseWeight = objects[0] instanceof SparseMatrix ? (SparseMatrix) objects[0] : null;
 		    float[] localBias = (float[]) objects[1];
 
-            if (parallel) {
+            if (parallel && !sparse) {
                 switch (algorithm) {
                     case "F4F1":
                         initKernelF4F1(localWeight, localBias);
@@ -125,72 +308,134 @@ public class FullyConnected implements LayerInterface {
 		    loadTime = System.currentTimeMillis() - loadTime;
             Log.d("CNNdroid","layers." + name + ": Parameters Load Time = " + String.valueOf(loadTime));
 
-            return invokeFunctions(input, localWeight, localBias, true);
+            invokeFunctions(input, output, localWeight, localHalfWeight, localQuantizedWeight, localSparseWeight, localBias, true);
         }
 
         else
         {
-            return invokeFunctions(input,weight, bias, false);
+            invokeFunctions(input, output, weight, halfWeight, quantizedWeight, sparseWeight, bias, false);
         }
     }
 
     ///////////////////////////////////////Sequential///////////////////////////////////////////////
-    private float[][] fullyConnectedLayerSeq(float[][] inputBlob2, float[] weight, float[] bias) {
+    // The input may be (n, c) or (n, c, h, w); both are seen as one row of c_i values per image.
+    // Float weights go through numdroid.GemmInnerProduct, weight is null when the packed weights are resident,
+    // otherwise it is packed for this call. halfWeight, if not null, holds the weights in half precision instead.
+    private void fullyConnectedLayerSeq(Tensor inputBlob, float[] weight, short[] halfWeight, float[] bias, Tensor outputBlob) {
         // fully connected layer
-        int h_w = bias.length;
-        int w_w = weight.length / h_w;
-
         // Calculate sizes.
-        int n_i, c_i;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.sampleSize();
+        int c_o = bias.length;
 
-        n_i = inputBlob2.length;
-        c_i = inputBlob2[0].length;
+        // Calculate inner product.
+        if (halfWeight == null) {
+            float[] packed = weight != null ? GemmInnerProduct.packWeights(weight, c_o, c_i) : gemmWeight;
+            gemm.multiply(inputBlob.data, inputBlob.offset, inputBlob.strides[0], n_i, c_i, packed, bias,
+                    c_o, outputBlob.data, outputBlob.offset, outputBlob.strides[0]);
+            return;
+        }
+        halfBlocks.weight = halfWeight;
+        halfBlocks.run(inputBlob, bias, outputBlob, n_i, c_i, c_o);
+        halfBlocks.weight = null;
+    }
 
-        int n_o = n_i;
-        int c_o = h_w;
+    // Outputs of every image split in blocks computed on the CPU workers, on the calling thread for small layers.
+    // The tasks are kept between calls; compute(n, first, last) gives outputs [first, last) of image n.
+    private abstract static class OutputBlocks extends Workers.Loop {
+        Tensor in, out;
+        float[] bias;
+        int c_i, c_o, blocks;
+
+        void run(Tensor in, float[] bias, Tensor out, int n_i, int c_i, int c_o) {
+            this.in = in;
+            this.bias = bias;
+            this.out = out;
+            this.c_i = c_i;
+            this.c_o = c_o;
+            blocks = Math.min(c_o, Workers.threads() * OUTPUT_BLOCKS_PER_THREAD);
+            if ((long) n_i * c_o * c_i < MIN_PARALLEL_WORK)
+                blocks = 1;
+            run(n_i * blocks);
+            this.in = null;
+            this.bias = null;
+            this.out = null;
+        }
 
-        // Initialize the result.
-        float[][] outputBlob = new float[n_o][c_o];
+        @Override
+        protected void task(int i) {
+            int block = i % blocks;
+            compute(i / blocks, (int) ((long) c_o * block / blocks), (int) ((long) c_o * (block + 1) / blocks));
+        }
 
-        // Calculate inner product.
-        for (int n = 0; n < n_i; n++)
-            for (int c = 0; c < c_o; c++)
-                outputBlob[n][c] = myNum.sum_innerproduct_layer2(inputBlob2[n], weight, c, w_w, c_i) + bias[c];
+        abstract void compute(int n, int first, int last);
+    }
 
-        // return the result
-        return outputBlob;
+    private class HalfBlocks extends OutputBlocks {
+        short[] weight;
+
+        @Override
+        void compute(int n, int first, int last) {
+            int row = in.sampleIndex(n);
+            for (int c = first; c < last; c++)
+                out.set(n, c, myNum.sum_innerproduct(in.data, row, weight, c * c_i, c_i) + bias[c]);
+        }
     }
 
-    private float[][] fullyConnectedLayerSeq(float[][][][] inputBlob4, float[] weight, float[] bias) {
-        // fully connected layer
-        int h_w = bias.length;
-        int w_w = weight.length / h_w;
+    private class QuantizedBlocks extends OutputBlocks {
+        QuantizedTensor weight;
+        byte[] rows;
 
-        // Calculate sizes.
-        int n_i, c_i, h_i, w_i;
-        n_i = inputBlob4.length;
-        c_i = inputBlob4[0].length;
-        h_i = inputBlob4[0][0].length;
-        w_i = inputBlob4[0][0][0].length;
+        @Override
+        void compute(int n, int first, int last) {
+            for (int c = first; c < last; c++) {
+                int acc = myNum.sum_innerproduct(rows, n * c_i, weight.data, c * c_i, c_i) + inputOffset * weight.sums[c];
+                out.set(n, c, acc * inputScale * weight.scales[c] + bias[c]);
+            }
+        }
+    }
 
-        int n_o = n_i;
-        int c_o = h_w;
+    ////////////////////////////////////////Quantized///////////////////////////////////////////////
+    // int8 inner products accumulated in int32 and scaled back to float. With an unsigned input the row holds
+    // q - 128, which the sums of the weights of every output correct.
+    private void fullyConnectedLayerQuantized(Tensor inputBlob, QuantizedTensor weight, float[] bias, Tensor outputBlob)
+    {
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.sampleSize();
+        int c_o = bias.length;
 
-        // Initialize the result.
-        float[][] outputBlob = new float[n_o][c_o];
+        if (quantizedRow == null || quantizedRow.length < n_i * c_i)
+            quantizedRow = new byte[n_i * c_i];
 
-        // Calculate inner product.
         for (int n = 0; n < n_i; n++)
-            for (int c = 0; c < c_o; c++)
-                outputBlob[n][c] = myNum.sum_innerproduct_layer4(inputBlob4[n], weight, c, w_w, c_i, h_i, w_i) + bias[c];
+            myNum.quantize(inputBlob.data, inputBlob.sampleIndex(n), quantizedRow, n * c_i, c_i, inputScale, inputOffset);
+        quantizedBlocks.weight = weight;
+        quantizedBlocks.rows = quantizedRow;
+        quantizedBlocks.run(inputBlob, bias, outputBlob, n_i, c_i, c_o);
+        quantizedBlocks.weight = null;
+    }
 
-        // return the result
-        return outputBlob;
+    //////////////////////////////////////////Sparse////////////////////////////////////////////////
+    // Sparse matrix times the input rows, multithreaded over the outputs.
+    private void fullyConnectedLayerSparse(Tensor inputBlob, SparseMatrix weight, float[] bias, Tensor outputBlob)
+    {
+        int n_i = inputBlob.shape[0];
+        int c_o = bias.length;
+
+        weight.multiply(inputBlob.data, inputBlob.offset, inputBlob.strides[0], n_i, bias,
+                outputBlob.data, outputBlob.offset, outputBlob.strides[0]);
+        if (nonLinear) {
+            switch (nonLinearType) {
+                case RectifiedLinearUnit:
+                    myNum.relu(outputBlob.data, outputBlob.offset, n_i * c_o);
+                    break;
+            }
+        }
     }
 
     ////////////////////////////////////////Parallel////////////////////////////////////////////////
     // Input: Float4     *****   Output: Float
-    private float[][] fullyConnectedLayerInF4OutF1(float[][] inputBlob4, float[] myWeight, float[] myBias, boolean destroy) {
+    private void fullyConnectedLayerInF4OutF1(Tensor inputBlob, float[] myWeight, float[] myBias, Tensor outputBlob, boolean destroy) {
         // fully connected layer
 
         int h_w = myBias.length;
@@ -198,8 +443,8 @@ public class FullyConnected implements LayerInterface {
 
         // Calculate sizes.
         int n_i, c_i;
-        n_i = inputBlob4.length;
-        c_i = inputBlob4[0].length;
+        n_i = inputBlob.shape[0];
+        c_i = inputBlob.sampleSize();
 
         int c_i_4 = c_i;
         if (c_i % 4 != 0)
@@ -208,8 +453,6 @@ public class FullyConnected implements LayerInterface {
         int n_o = n_i;
         int c_o = h_w;
 
-        // Initialize the result.
-        float[][] outputBlob = new float[n_o][c_o];
 
         //initialize Renderscript
         Type inputType, outType;
@@ -224,13 +467,11 @@ public class FullyConnected implements LayerInterface {
         myScriptF4.set_c_i(c_i_4);
         // calculate the result
 
-        float[] frameMatrix = new float[n_i * c_i_4];
-        for (int n = 0 ; n < n_i ; n++)
-            for (int i = 0 ; i < c_i_4 ; i++)
-                if (i < c_i)
-                    frameMatrix[n * w_w + i] = inputBlob4[n][i];
-                else
-                    frameMatrix[n * w_w + i] = 0;
+        float[] frameMatrix = scratch(0, n_i * c_i_4);
+        for (int n = 0 ; n < n_i ; n++) {
+            System.arraycopy(inputBlob.data, inputBlob.sampleIndex(n), frameMatrix, n * w_w, c_i);
+            Arrays.fill(frameMatrix, n * w_w + c_i, n * w_w + c_i_4, 0);
+        }
 
         frameAllocation.copyFrom(frameMatrix);
         myScriptF4.set_In_Blob(frameAllocation);
@@ -238,21 +479,17 @@ public class FullyConnected implements LayerInterface {
 
         myScriptF4.forEach_root(outAllocation);
 
-        float[] outMatrix = new float[n_o * c_o];
+        float[] outMatrix = scratch(1, n_o * c_o);
         outAllocation.copyTo(outMatrix);
 
-        for (int n = 0 ; n < n_i ; n++)
-            for (int c = 0 ; c < c_o ; c++) {
-                outputBlob[n][c] = outMatrix[n * c_o + c];
-                if (nonLinear) {
-                    switch (nonLinearType) {
-                        case RectifiedLinearUnit:
-                            if (outputBlob[n][c] < 0)
-                                outputBlob[n][c] = 0;
-                            break;
-                    }
-                }
+        System.arraycopy(outMatrix, 0, outputBlob.data, outputBlob.offset, n_o * c_o);
+        if (nonLinear) {
+            switch (nonLinearType) {
+                case RectifiedLinearUnit:
+                    myNum.relu(outputBlob.data, outputBlob.offset, n_o * c_o);
+                    break;
             }
+        }
 
         frameAllocation.destroy();
         outAllocation.destroy();
@@ -264,30 +501,10 @@ public class FullyConnected implements LayerInterface {
             myScriptF4.destroy();
             myScriptF4 = null;
         }
-
-        // return the result
-        return outputBlob;
-    }
-
-    // Input: Float4     *****   Output: Float
-    private float[][] fullyConnectedLayerInF4OutF1(float[][][][] inputBlob4, float[] myWeight, float[] myBias, boolean destroy) {
-        int n_i, c_i, h_i = 0, w_i = 0;
-        n_i = inputBlob4.length;
-        c_i = inputBlob4[0].length;
-        h_i = inputBlob4[0][0].length;
-        w_i = inputBlob4[0][0][0].length;
-        float[][] data = new float[n_i][c_i * h_i * w_i];
-        for (int n = 0 ; n < n_i ; n++)
-            for (int i = 0 ; i < c_i ; i++)
-                for (int j = 0 ; j < h_i ; j++)
-                    for (int k = 0 ; k < w_i ; k++)
-                        data[n][i * h_i * w_i + j * w_i + k] = inputBlob4[n][i][j][k];
-
-        return fullyConnectedLayerInF4OutF1(data, myWeight, myBias, destroy);
     }
 
     // Input: Float8     *****   Output: Float
-    private float[][] fullyConnectedLayerInF8OutF1(float[][] inputBlob4, float[] myWeight, float[] myBias, boolean destroy) {
+    private void fullyConnectedLayerInF8OutF1(Tensor inputBlob, float[] myWeight, float[] myBias, Tensor outputBlob, boolean destroy) {
         // fully connected layer
 
         int h_w = myBias.length;
@@ -295,8 +512,8 @@ public class FullyConnected implements LayerInterface {
 
         // Calculate sizes.
         int n_i, c_i;
-        n_i = inputBlob4.length;
-        c_i = inputBlob4[0].length;
+        n_i = inputBlob.shape[0];
+        c_i = inputBlob.sampleSize();
 
         int c_i_8 = c_i;
         if (c_i % 8 != 0)
@@ -305,8 +522,6 @@ public class FullyConnected implements LayerInterface {
         int n_o = n_i;
         int c_o = h_w;
 
-        // Initialize the result.
-        float[][] outputBlob = new float[n_o][c_o];
 
         //initialize Renderscript
         Type inputType, outType;
@@ -321,13 +536,11 @@ public class FullyConnected implements LayerInterface {
         myScriptF8.set_c_i(c_i_8);
         // calculate the result
 
-        float[] frameMatrix = new float[n_i * c_i_8];
-        for (int n = 0 ; n < n_i ; n++)
-            for (int i = 0 ; i < c_i_8 ; i++)
-                if (i < c_i)
-                    frameMatrix[n * w_w + i] = inputBlob4[n][i];
-                else
-                    frameMatrix[n * w_w + i] = 0;
+        float[] frameMatrix = scratch(0, n_i * c_i_8);
+        for (int n = 0 ; n < n_i ; n++) {
+            System.arraycopy(inputBlob.data, inputBlob.sampleIndex(n), frameMatrix, n * w_w, c_i);
+            Arrays.fill(frameMatrix, n * w_w + c_i, n * w_w + c_i_8, 0);
+        }
 
         frameAllocation.copyFrom(frameMatrix);
         myScriptF8.set_In_Blob(frameAllocation);
@@ -335,21 +548,17 @@ public class FullyConnected implements LayerInterface {
 
         myScriptF8.forEach_root(outAllocation);
 
-        float[] outMatrix = new float[n_o * c_o];
+        float[] outMatrix = scratch(1, n_o * c_o);
         outAllocation.copyTo(outMatrix);
 
-        for (int n = 0 ; n < n_i ; n++)
-            for (int c = 0 ; c < c_o ; c++) {
-                outputBlob[n][c] = outMatrix[n * c_o + c];
-                if (nonLinear) {
-                    switch (nonLinearType) {
-                        case RectifiedLinearUnit:
-                            if (outputBlob[n][c] < 0)
-                                outputBlob[n][c] = 0;
-                            break;
-                    }
-                }
+        System.arraycopy(outMatrix, 0, outputBlob.data, outputBlob.offset, n_o * c_o);
+        if (nonLinear) {
+            switch (nonLinearType) {
+                case RectifiedLinearUnit:
+                    myNum.relu(outputBlob.data, outputBlob.offset, n_o * c_o);
+                    break;
             }
+        }
 
         frameAllocation.destroy();
         outAllocation.destroy();
@@ -361,26 +570,6 @@ public class FullyConnected implements LayerInterface {
             myScriptF8.destroy();
             myScriptF8 = null;
         }
-
-        // return the result
-        return outputBlob;
-    }
-
-    // Input: Float8     *****   Output: Float
-    private float[][] fullyConnectedLayerInF8OutF1(float[][][][] inputBlob4, float[] myWeight, float[] myBias, boolean destroy) {
-        int n_i, c_i, h_i, w_i;
-        n_i = inputBlob4.length;
-        c_i = inputBlob4[0].length;
-        h_i = inputBlob4[0][0].length;
-        w_i = inputBlob4[0][0][0].length;
-        float[][] data = new float[n_i][c_i * h_i * w_i];
-        for (int n = 0 ; n < n_i ; n++)
-            for (int i = 0 ; i < c_i ; i++)
-                for (int j = 0 ; j < h_i ; j++)
-                    for (int k = 0 ; k < w_i ; k++)
-                        data[n][i * h_i * w_i + j * w_i + k] = inputBlob4[n][i][j][k];
-
-        return fullyConnectedLayerInF8OutF1(data, myWeight, myBias, destroy);
     }
 
 
@@ -440,27 +629,25 @@ public class FullyConnected implements LayerInterface {
     }
 
     /////////////////////////////////////////Tuning Function////////////////////////////////////////
-    private Object tuneFunction(float[][] input) {
+    private void tuneFunction(Tensor input, Tensor output) {
         long tuneTime = System.currentTimeMillis();
         Log.d("CNNdroid", "layers." + name + ": Tuning process is starting...");
-        Object[] objects = paramUnpacker.unpackerFunction(paramFilePath, new Class[]{float[].class, float[].class});
+        Object[] objects = readParams();
         float[] myWeight = (float[]) objects[0];
         float[] myBias = (float[]) objects[1];
         tuneNow = false;
         long[] time = new long[]{0, 0};
         long temp;
 
-        Object output = null;
-
         for (int i = 0; i < 2; i++) {
             temp = System.currentTimeMillis();
             initKernelF4F1(myWeight, myBias);
-            fullyConnectedLayerInF4OutF1(input, myWeight, myBias, true);
+            fullyConnectedLayerInF4OutF1(input, myWeight, myBias, output, true);
             time[0] += System.currentTimeMillis() - temp;
 
             temp = System.currentTimeMillis();
             initKernelF8F1(myWeight, myBias);
-            output = fullyConnectedLayerInF8OutF1(input, myWeight, myBias, true);
+            fullyConnectedLayerInF8OutF1(input, myWeight, myBias, output, true);
             time[1] += System.currentTimeMillis() - temp;
         }
 
@@ -487,67 +674,120 @@ public class FullyConnected implements LayerInterface {
 
         tuneTime = System.currentTimeMillis() - tuneTime;
         Log.d("CNNdroid", "layers." + name + ": Tuning process finished in " + tuneTime + "ms.");
-        return output;
-    }
-
-    private Object tuneFunction(float[][][][] input) {
-        int n_i, c_i, h_i, w_i;
-        n_i = input.length;
-        c_i = input[0].length;
-        h_i = input[0][0].length;
-        w_i = input[0][0][0].length;
-        float[][] data = new float[n_i][c_i * h_i * w_i];
-        for (int n = 0 ; n < n_i ; n++)
-            for (int i = 0 ; i < c_i ; i++)
-                for (int j = 0 ; j < h_i ; j++)
-                    for (int k = 0 ; k < w_i ; k++)
-                        data[n][i * h_i * w_i + j * w_i + k] = input[n][i][j][k];
-
-        return tuneFunction(data);
     }
 
     ////////////////////////////////////////Local Functions/////////////////////////////////////////
-    private Object invokeFunctions(Object input, float[] myWeight, float[] myBias, boolean destroy)
+    private void invokeFunctions(Tensor input, Tensor output, float[] myWeight, short[] myHalfWeight,
+                                 QuantizedTensor myQuantizedWeight, SparseMatrix mySparseWeight, float[] myBias, boolean destroy)
     {
-        Object output = null;
         long runTime = System.currentTimeMillis();
 
-        if (!parallel) {
-            if (input.getClass().toString().equals("class [[[[F"))
-                output = fullyConnectedLayerSeq(((float[][][][]) input), myWeight, myBias);
-            else
-                output = fullyConnectedLayerSeq((float[][]) input, myWeight, myBias);
-        }
+        if (mySparseWeight != null)
+            fullyConnectedLayerSparse(input, mySparseWeight, myBias, output);
+        else if (myQuantizedWeight != null)
+            fullyConnectedLayerQuantized(input, myQuantizedWeight, myBias, output);
+        else if (!parallel)
+            fullyConnectedLayerSeq(input, myWeight, myHalfWeight, myBias, output);
         else {
-            if (tuneNow) {
-                if (input.getClass().toString().equals("class [[[[F"))
-                    output = tuneFunction((float[][][][]) input);
-                else
-                    output = tuneFunction((float[][]) input);
-            }
+            if (tuneNow)
+                tuneFunction(input, output);
             else {
                 switch (algorithm) {
                     case "F4F1":
-                        if (input.getClass().toString().equals("class [[[[F"))
-                            output = fullyConnectedLayerInF4OutF1(((float[][][][]) input), myWeight, myBias, destroy);
-                        else
-                            output = fullyConnectedLayerInF4OutF1((float[][]) input, myWeight, myBias, destroy);
+                        fullyConnectedLayerInF4OutF1(input, myWeight, myBias, output, destroy);
                         break;
                     case "F8F1":
-                        if (input.getClass().toString().equals("class [[[[F"))
-                            output = fullyConnectedLayerInF8OutF1(((float[][][][]) input), myWeight, myBias, destroy);
-                        else
-                            output = fullyConnectedLayerInF8OutF1((float[][]) input, myWeight, myBias, destroy);
+                        fullyConnectedLayerInF8OutF1(input, myWeight, myBias, output, destroy);
                         break;
                 }
             }
         }
 
         runTime = System.currentTimeMillis() - runTime;
-        Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
+        if (Log.isLoggable("CNNdroid", Log.DEBUG))
+            Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
+    }
+    // Staging array of at least the given size, only reallocated when a larger one is needed.
+    private float[] scratch(int slot, int size)
+    {
+        if (scratch[slot] == null || scratch[slot].length < size)
+            scratch[slot] = new float[size];
+        return scratch[slot];
+    }
 
-        return output;
+    @Override
+    public void setPrefetchedParams(Object[] params) {
+        prefetched = params;
     }
+
+    // Flattened weights (float[], short[] in half precision, a QuantizedTensor in int8 or a SparseMatrix) and
+    // bias, from a mapped binary parameters file or from a MessagePack one.
+    @Override
+    public Object[] readParams()
+    {
+        if (MappedParams.isMappedFile(paramFilePath)) {
+            MappedParams p = MappedParams.open(paramFilePath);
+            if (p == null)
+                return null;
+            if (Pruner.isSparse(p))
+                return Pruner.read(p);
+            float[] b = p.toArray(1);
+            if (sparse) {
+                float[] w = p.toArray(0);
+                return new Object[]{SparseMatrix.fromDense(w, b.length, w.length / b.length, 0), b};
+            }
+            if (quantized)
+                return new Object[]{quantize(p.toArray(0), b), b};
+            return new Object[]{halfPrecision ? p.toHalfArray(0) : p.toArray(0), b};
+        }
+        Tensor[] tensors = paramUnpacker.unpackTensors(paramFilePath, 2);
+        if (tensors == null)
+            return null;
+        if (sparse)
+            return new Object[]{SparseMatrix.fromDense(tensors[0].data, tensors[1].data.length,
+                    tensors[0].data.length / tensors[1].data.length, 0), tensors[1].data};
+        if (quantized)
+            return new Object[]{quantize(tensors[0].data, tensors[1].data), tensors[1].data};
+        return new Object[]{halfPrecision ? Half.fromFloats(tensors[0].data) : tensors[0].data, tensors[1].data};
+    }
+
+    private static QuantizedTensor quantize(float[] weight, float[] bias)
+    {
+        return QuantizedTensor.quantize(weight, new int[]{bias.length, weight.length / bias.length});
+    }
+
+    // Read from the headers of the parameters file when the weights are not resident yet.
+    private int[] weightShape()
+    {
+        if (weight != null)
+            weightShape = new int[]{bias.length, weight.length / bias.length};
+        if (halfWeight != null)
+            weightShape = new int[]{bias.length, halfWeight.length / bias.length};
+        if (quantizedWeight != null)
+            weightShape = quantizedWeight.shape;
+        if (sparseWeight != null)
+            weightShape = new int[]{sparseWeight.rows, sparseWeight.cols};
+        if (weightShape == null && MappedParams.isMappedFile(paramFilePath)) {
+            MappedParams p = MappedParams.open(paramFilePath);
+            if (p == null)
+                return null;
+            if (Pruner.isSparse(p))
+                weightShape = p.toIntArray(0);
+            else
+                weightShape = new int[]{p.shape(1)[0], Tensor.count(p.shape(0)) / p.shape(1)[0]};
+        }
+        if (weightShape == null) {
+            try {
+                ParamHeader h = paramHeader != null ? paramHeader : ParamHeader.read(paramFilePath);
+                weightShape = new int[]{h.count(1), h.count(0) / h.count(1)};
+            } catch (IOException e) {
+                Log.d("CNNdroid", "layers." + name + ": parameters file could not be read: " + e.getMessage());
+                return null;
+            }
+        }
+        return weightShape;
+    }
+
     private boolean corrupted(String str)
     {
         for (int i = 0 ; i < names.length ; i++)
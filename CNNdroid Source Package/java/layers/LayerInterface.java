@@ -1,6 +1,14 @@
 package layers;
 
+import numdroid.Tensor;
+
 public interface LayerInterface {
-    // the method responsible for the mathematical computations of a layer
-    public Object compute(Object input);
+    // the method responsible for the mathematical computations of a layer, the result is written to
+    // output which has the shape given by inferOutputShape
+    public void compute(Tensor input, Tensor output);
+
+    // the shape of the output blob for a given input shape, or null if the input shape is not accepted
+    public int[] inferOutputShape(int[] inputShape);
+
+    public String getName();
 }
@@ -21,8 +21,9 @@ public class LocalResponseNormalization implements LayerInterface {
     private String tuningFolder;                // location to store online tuning results
     private boolean tuneNow;                    // flag to weather execute tuning ro not
     private boolean tuneFunc;                   // flag of optional tuning function
-    private int threadCount;                    // thread count for acceleration
+    private int threadCount;                    // channel blocks per image in multithread mode, run on the CPU workers
     private int[] threadCounts = {4, 6, 8};
+    private final ChannelBlocks channelBlocks = new ChannelBlocks();
 
     public LocalResponseNormalization(int localSize, double alpha, double beta, String normRegion,
                                       boolean parallel, boolean tuneFunc, String name, String tuningFolder) {
@@ -54,116 +55,106 @@ public class LocalResponseNormalization implements LayerInterface {
     }
 
     @Override
-    public Object compute(Object input) {
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int[] inferOutputShape(int[] inputShape) {
+        if (inputShape.length != 4) {
+            Log.d("CNNdroid", "layers." + name + ": input blob must have 4 dimensions");
+            return null;
+        }
+        return inputShape.clone();
+    }
 
-        Object output;
+    @Override
+    public void compute(Tensor input, Tensor output) {
 
         long runTime = System.currentTimeMillis();
 
         if (!parallel)
-            output = lrnLayerSeq((float[][][][])input, localSize, alpha, beta, normRegion);
+            lrnLayerSeq(input, output, localSize, alpha, beta, normRegion);
         else if (tuneNow)
-            output = tuneFunction((float[][][][]) input);
+            tuneFunction(input, output);
         else
-            output = lrnLayerMultithread((float[][][][]) input, localSize, alpha, beta, normRegion, threadCount);
+            lrnLayerMultithread(input, output, localSize, alpha, beta, normRegion, threadCount);
 
         runTime = System.currentTimeMillis() - runTime;
-        Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
-
-        return output;
+        if (Log.isLoggable("CNNdroid", Log.DEBUG))
+            Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
     }
 
 
     ///////////////////////////////////////Sequential///////////////////////////////////////////////
-    private float[][][][] lrnLayerSeq(float[][][][] inputBlob, int localSize, double alpha,
-                                     double beta, String normRegion) {
+    private void lrnLayerSeq(Tensor inputBlob, Tensor outputBlob, int localSize, double alpha,
+                               double beta, String normRegion) {
         // Calculate sizes.
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
-        // Initialize the result.
-        float[][][][] outputBlob = new float[n_i][c_i][h_i][w_i];
 
         // Calculate the result.
         if (normRegion.equals("across_channels"))
         {
             for (int n = 0; n < n_i; ++n)
                 for (int c = 0; c < c_i; ++c)
-                    // For first few channels, do zero padding.
-                    if (c < (localSize - 1) / 2)
-                        outputBlob[n][c] = myNum.divide(inputBlob[n][c], myNum.power(myNum.sum(myNum.multiply(myNum.sum(myNum.power(inputBlob, n, 0, c + (localSize - 1) / 2 + 1, h_i, w_i, 2)), (float)alpha / localSize), 1), beta));
-                        // For last few channels, do zero padding.
-                    else if (c > c_i - (localSize - 1) / 2 - 1)
-                        outputBlob[n][c] = myNum.divide(inputBlob[n][c], myNum.power(myNum.sum(myNum.multiply(myNum.sum(myNum.power(inputBlob, n, c - (localSize - 1) / 2, c_i, h_i, w_i, 2)), (float)alpha / localSize), 1), beta));
-                    else
-                        outputBlob[n][c] = myNum.divide(inputBlob[n][c], myNum.power(myNum.sum(myNum.multiply(myNum.mean(myNum.power(inputBlob, n, c - (localSize - 1) / 2, c + (localSize - 1) / 2 + 1, h_i, w_i, 2)), (float) alpha), 1), beta));
+                    myNum.lrn_across_channels(inputBlob.data, inputBlob.sampleIndex(n), outputBlob.data, outputBlob.sampleIndex(n),
+                            c_i, h_i, w_i, c, localSize, alpha, beta);
         }
 
-        return outputBlob;
     }
 
 
     ///////////////////////////////////////Multithread//////////////////////////////////////////////
-    public float[][][][] lrnLayerMultithread(float[][][][] inputBlob, int localSize, double alpha,
-                                             double beta, String normRegion, int threadCount) {
+    public void lrnLayerMultithread(Tensor inputBlob, Tensor outputBlob, int localSize, double alpha,
+                                      double beta, String normRegion, int threadCount) {
         // Calculate sizes.
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
-        // Initialize the result.
-        float[][][][] outputBlob = new float[n_i][c_i][h_i][w_i];
 
         // Calculate the result.
         if (normRegion.equals("across_channels"))
         {
-            for (int frame = 0 ; frame < n_i ; frame++) {
-                // Calculate the result
-                MultiThreadLrn[] threads = new MultiThreadLrn[threadCount];
-                for (int thread = 0; thread < threadCount ; ++thread) {
-                    threads[thread] = new MultiThreadLrn(inputBlob, frame, c_i, h_i, w_i, localSize, alpha, beta, myNum, thread, threadCount);
-                    threads[thread].start();
-                }
-
-                while (true) {
-                    int thread;
-                    for (thread = 0; thread < threadCount ; thread++)
-                        if (!threads[thread].done)
-                            break;
-                    if (thread == threadCount)
-                        break;
-                    try {
-                        Thread.sleep(5);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                for (int thread = 0; thread < threadCount ; ++thread) {
-                    int channelCount = c_i / threadCount;
-                    if (c_i % threadCount != 0)
-                        channelCount += 1;
-                    int cStart = thread * channelCount;
-                    int cEnd = cStart + channelCount;
-                    if (cStart > c_i)
-                        cStart = c_i;
-                    if (cEnd > c_i)
-                        cEnd = c_i;
-
-                    for (int c = cStart ; c < cEnd ; ++c)
-                        outputBlob[frame][c]=threads[thread].outputBlob[c - cStart];
-                }
-            }
+            // Each task writes its own channels of an image of the output blob.
+            ChannelBlocks t = channelBlocks;
+            t.inputBlob = inputBlob;
+            t.outputBlob = outputBlob;
+            t.blocks = threadCount;
+            t.run(n_i * threadCount);
+            t.inputBlob = null;
+            t.outputBlob = null;
         }
 
-        return outputBlob;
+    }
+
+    // Tasks of lrnLayerMultithread, kept between calls: task i normalizes block i % blocks of the channels of
+    // image i / blocks.
+    private class ChannelBlocks extends Workers.Loop {
+        Tensor inputBlob, outputBlob;
+        int blocks;
+
+        @Override
+        protected void task(int i) {
+            int frame = i / blocks;
+            int c_i = inputBlob.shape[1];
+            int channelCount = (c_i + blocks - 1) / blocks;
+            int cStart = Math.min(i % blocks * channelCount, c_i);
+            int cEnd = Math.min(cStart + channelCount, c_i);
+            for (int c = cStart; c < cEnd; ++c)
+                myNum.lrn_across_channels(inputBlob.data, inputBlob.sampleIndex(frame), outputBlob.data,
+                        outputBlob.sampleIndex(frame), c_i, inputBlob.shape[2], inputBlob.shape[3], c, localSize,
+                        alpha, beta);
+        }
     }
 
     /////////////////////////////////////////Tuning Function////////////////////////////////////////
-    private Object tuneFunction(float[][][][] input){
+    private void tuneFunction(Tensor input, Tensor output){
         Log.d("CNNdroid", "layers." + name + ": Tuning process is starting...");
         long tuneTime = System.currentTimeMillis();
 
@@ -172,15 +163,11 @@ public class LocalResponseNormalization implements LayerInterface {
         for (int i = 0 ; i < threadCounts.length ; i++)
             time[i] = 0;
         long temp;
-        int c_i = input[0].length;
-        float[][][][] tuneInput = new float[1][c_i][input[0][0].length][input[0][0][0].length];
-        tuneInput[0] = input[0];
-        Object output = null;
 
         for (int i = 0; i < 4; i++) {
             for (int thread = 0 ; thread < threadCounts.length ; thread++) {
                 temp = System.currentTimeMillis();
-                output = lrnLayerMultithread(input, localSize, alpha, beta, normRegion, thread);
+                lrnLayerMultithread(input, output, localSize, alpha, beta, normRegion, threadCounts[thread]);
                 time[thread] += System.currentTimeMillis() - temp;
             }
         }
@@ -195,7 +182,6 @@ public class LocalResponseNormalization implements LayerInterface {
         writeFile(threadCount);
         tuneTime = System.currentTimeMillis() - tuneTime;
         Log.d("CNNdroid", "layers." + name + ": Tuning process finished in " + tuneTime + "ms.");
-        return output;
     }
 
     ////////////////////////////////////////Local Functions/////////////////////////////////////////
@@ -222,58 +208,3 @@ public class LocalResponseNormalization implements LayerInterface {
         }
     }
 }
-
-class MultiThreadLrn extends Thread {
-    private float[][][][] inputBlob;
-    private int frame, c_i, h_i, w_i, localSize;
-    private double alpha, beta;
-    private MyNum myNum;
-    private int cStart;
-    private int cEnd;
-
-    public float[][][] outputBlob;
-    public boolean done;
-
-    public MultiThreadLrn(float[][][][] inputBlob, int frame, int c_i, int h_i, int w_i, int localSize,
-                          double alpha, double beta, MyNum myNum, int threadNum, int threadCount) {
-        this.inputBlob = inputBlob;
-        this.frame = frame;
-        this.c_i = c_i;
-        this.h_i = h_i;
-        this.w_i = w_i;
-        this.localSize = localSize;
-        this.alpha = alpha;
-        this.beta = beta;
-        this.myNum = myNum;
-
-        int channelCount = c_i / threadCount;
-        if (c_i % threadCount != 0)
-            channelCount += 1;
-        cStart = threadNum * channelCount;
-        cEnd = cStart + channelCount;
-        if (cStart > c_i)
-            cStart = c_i;
-        if (cEnd > c_i)
-            cEnd = c_i;
-
-        channelCount = cEnd - cStart;
-
-
-        outputBlob = new float[channelCount][h_i][w_i];
-    }
-
-    @Override
-    public void run() {
-        for (int c = cStart; c < cEnd ; ++c)
-            // For first few channels, do zero padding.
-            if (c < (localSize - 1) / 2)
-                outputBlob[c - cStart] = myNum.divide(inputBlob[frame][c], myNum.power(myNum.sum(myNum.multiply(myNum.sum(myNum.power(inputBlob, frame, 0, c + (localSize - 1) / 2 + 1, h_i, w_i, 2)), (float)alpha / localSize), 1), beta));
-                // For last few channels, do zero padding.
-            else if (c > c_i - (localSize - 1) / 2 - 1)
-                outputBlob[c - cStart] = myNum.divide(inputBlob[frame][c], myNum.power(myNum.sum(myNum.multiply(myNum.sum(myNum.power(inputBlob, frame, c - (localSize - 1) / 2, c_i, h_i, w_i, 2)), (float)alpha / localSize), 1), beta));
-            else
-                outputBlob[c - cStart] = myNum.divide(inputBlob[frame][c], myNum.power(myNum.sum(myNum.multiply(myNum.mean(myNum.power(inputBlob, frame, c - (localSize - 1) / 2, c + (localSize - 1) / 2 + 1, h_i, w_i, 2)), (float) alpha), 1), beta));
-
-        done = true;
-    }
-}
@@ -0,0 +1,22 @@
+package layers;
+
+// A layer holding memory besides its input and output blobs. All sizes are in bytes and are estimated
+// without running the layer.
+public interface MemoryInterface extends LayerInterface {
+    // size of the parameters as read from the parameters file
+    public long weightBytes();
+    // size of the parameters repacked for the accelerated implementation, 0 if they are used as read
+    public long packedWeightBytes();
+    // staging and scratch arrays needed while computing an input blob of the given shape
+    public long scratchBytes(int[] inputShape);
+    // whether the parameters stay in memory between calls, otherwise they are loaded at every call
+    public boolean paramsResident();
+    // load the resident parameters, called once after construction and possibly on a worker thread
+    public void loadParams();
+    // drop the resident parameters, they are loaded at every call from now on
+    public void releaseParams();
+    // read the parameters from the file without keeping them, safe to call from another thread
+    public Object[] readParams();
+    // parameters returned by readParams to use at the next call instead of reading the file again
+    public void setPrefetchedParams(Object[] params);
+}
@@ -3,7 +3,10 @@ package layers;
 
 import android.util.Log;
 
-public class NonLinear implements LayerInterface {
+import numdroid.Kernels;
+import numdroid.Tensor;
+
+public class NonLinear implements ElementwiseInterface {
 
     private String name;                    // name of the layer
     private NonLinearType nonLinearType;    // non-linearity type
@@ -19,61 +22,40 @@ public class NonLinear implements LayerInterface {
     }
 
     @Override
-    public Object compute(Object input) {
-        Object output = new Object();
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int[] inferOutputShape(int[] inputShape) {
+        return inputShape.clone();
+    }
 
+    @Override
+    public void compute(Tensor input, Tensor output) {
         long runTime = System.currentTimeMillis();
 
         switch (nonLinearType) {
             case RectifiedLinearUnit:
-                if (input.getClass().toString().equals("class [[[[F"))
-                    output =  reluLayer((float[][][][]) input);
-                else
-                    output =  reluLayer((float[][]) input);
+                reluLayer(input, output);
                 break;
         }
 
         runTime = System.currentTimeMillis() - runTime;
-        Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
-
-        return output;
+        if (Log.isLoggable("CNNdroid", Log.DEBUG))
+            Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
     }
 
-    private float[][][][] reluLayer(float [][][][] inputBlob) {
-        int n = inputBlob.length;
-        int c = inputBlob[0].length;
-        int h = inputBlob[0][0].length;
-        int w = inputBlob[0][0][0].length;
-
-        float[][][][] outputBlob = new float[n][c][h][w];
-
-
-        for (int i = 0; i < n; ++i)
-            for (int j = 0; j < c; ++j)
-                for (int k = 0; k < h; ++k)
-                    for (int l = 0; l < w; ++l)
-                        if (inputBlob[i][j][k][l] > 0)
-                            outputBlob[i][j][k][l] = inputBlob[i][j][k][l];
-                        else
-                            outputBlob[i][j][k][l] = 0;
-
-        return outputBlob;
-    }
-
-    private float[][] reluLayer(float [][] inputBlob) {
-        int n = inputBlob.length;
-        int c = inputBlob[0].length;
-
-        float[][] outputBlob = new float[n][c];
-
+    // The same code serves (n, c) and (n, c, h, w) blobs since the data is flat.
+    private void reluLayer(Tensor inputBlob, Tensor outputBlob) {
+        float[] in = inputBlob.data;
+        float[] out = outputBlob.data;
+        int inOffset = inputBlob.offset;
+        int outOffset = outputBlob.offset;
 
-        for (int i = 0; i < n; ++i)
-            for (int j = 0; j < c; ++j)
-                if (inputBlob[i][j] > 0)
-                    outputBlob[i][j] = inputBlob[i][j];
-                else
-                    outputBlob[i][j] = 0;
+        int size = inputBlob.size();
 
-        return outputBlob;
+        // In place or not, see Kernels.relu.
+        Kernels.get().relu(in, inOffset, out, outOffset, size);
     }
 }
@@ -8,6 +8,8 @@ import java.io.FileOutputStream;
 import java.util.Scanner;
 
 import numdroid.MyNum;
+import numdroid.Tensor;
+import numdroid.Workers;
 
 public class Pooling implements LayerInterface {
     public final String type = "Pooling";
@@ -23,8 +25,9 @@ public class Pooling implements LayerInterface {
     private String tuningFolder;                // location to store online tuning results
     private boolean tuneNow;                    // flag to weather execute tuning ro not
     private boolean tuneFunc;                   // flag of optional tuning function
-    private int threadCount;                    // thread count for acceleration
+    private int threadCount;                    // channel blocks per image in multithread mode, run on the CPU workers
     private int[] threadCounts = {4, 6, 8};
+    private final ChannelBlocks channelBlocks = new ChannelBlocks();
 
     // types of non-linear layer that may be appended to this layer
     public enum NonLinearType {
@@ -68,33 +71,46 @@ public class Pooling implements LayerInterface {
     }
 
     @Override
-    public Object compute(Object input) {
+    public String getName() {
+        return name;
+    }
 
-        Object output;
+    @Override
+    public int[] inferOutputShape(int[] inputShape) {
+        if (inputShape.length != 4) {
+            Log.d("CNNdroid", "layers." + name + ": input blob must have 4 dimensions");
+            return null;
+        }
+        int h_o = (int) (Math.ceil((inputShape[2] + 2 * pad[0] - kernelSize[0]) / (double) stride[0]) + 1);
+        int w_o = (int) (Math.ceil((inputShape[3] + 2 * pad[1] - kernelSize[1]) / (double) stride[1]) + 1);
+        return new int[]{inputShape[0], inputShape[1], h_o, w_o};
+    }
+
+    @Override
+    public void compute(Tensor input, Tensor output) {
 
         long runTime = System.currentTimeMillis();
 
         if(!parallel)
-            output = poolLayerSeq((float[][][][])input, kernelSize, kernelType, pad, stride);
+            poolLayerSeq(input, output, kernelSize, kernelType, pad, stride);
         else if (tuneNow)
-            output = tuneFunction((float[][][][]) input);
+            tuneFunction(input, output);
         else
-            output = poolLayerMultithread((float[][][][]) input, kernelSize, kernelType, pad, stride, threadCount, nonLinear);
+            poolLayerMultithread(input, output, kernelSize, kernelType, pad, stride, threadCount, nonLinear);
 
         runTime = System.currentTimeMillis() - runTime;
-        Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
-
-        return output;
+        if (Log.isLoggable("CNNdroid", Log.DEBUG))
+            Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
     }
 
     ///////////////////////////////////////Sequential///////////////////////////////////////////////
-    private float[][][][] poolLayerSeq(float[][][][] inputBlob, int[] kernelSize,
-                                      String kernelType, int[] pad, int[] stride) {
+    private void poolLayerSeq(Tensor inputBlob, Tensor outputBlob, int[] kernelSize,
+                                String kernelType, int[] pad, int[] stride) {
         // Calculate sizes.
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         int h_k = kernelSize[0];
         int w_k = kernelSize[1];
@@ -104,59 +120,44 @@ public class Pooling implements LayerInterface {
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / (double) stride[0]) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / (double) stride[1]) + 1);
 
-        // Initialize the result.
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
 
 
         // Calculate the result
         for (int n = 0; n < n_i; ++n)
             for (int c = 0; c < c_i; ++c)
-                outputBlob[n][c] = pool(inputBlob[n][c], kernelType, kernelSize, pad, stride);
+                pool(inputBlob.data, inputBlob.index(n, c, 0, 0), h_i, w_i, kernelType, kernelSize, pad, stride,
+                        outputBlob.data, outputBlob.index(n, c, 0, 0), h_o, w_o);
 
-        return outputBlob;
     }
 
-    private float[][] pool(float[][] frames, String kernelType, int[] kernelSize,
-                           int[] pad, int[] stride) {
-        // Calculate final dimensions.
-
-        int h_i = frames.length;
-        int w_i = frames[0].length;
-
+    private void pool(float[] frames, int frameOffset, int h_i, int w_i, String kernelType, int[] kernelSize,
+                      int[] pad, int[] stride, float[] out, int outOffset, int h_o, int w_o) {
         int h_k = kernelSize[0];
         int w_k = kernelSize[1];
 
-        int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / (double) stride[0]) + 1);
-        int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / (double) stride[1]) + 1);
-
         int h_s = stride[0];
         int w_s = stride[1];
 
         // Compute pixel values.
-        float[][] out = new float[h_o][w_o];
-
-
         if (kernelType.equals("max"))
             for (int x = 0; x < h_o; ++x)
                 for (int y = 0; y < w_o; ++y)
-                    out[x][y] = myNum.frame_max(frames, x * h_s, x * h_s + h_k, y * w_s, y * w_s + w_k, h_i, w_i, pad);
+                    out[outOffset + x * w_o + y] = myNum.frame_max(frames, frameOffset, x * h_s, x * h_s + h_k, y * w_s, y * w_s + w_k, h_i, w_i, pad);
         else if (kernelType.equals("ave"))
             for (int x = 0; x < h_o; ++x)
                 for (int y = 0; y < w_o; ++y)
-                    out[x][y] = myNum.frame_mean(frames, x * h_s, x * h_s + h_k, y * w_s, y * w_s + w_k, h_i, w_i, pad);
-
-        return out;
+                    out[outOffset + x * w_o + y] = myNum.frame_mean(frames, frameOffset, x * h_s, x * h_s + h_k, y * w_s, y * w_s + w_k, h_i, w_i, pad);
     }
 
     ///////////////////////////////////////Multithread//////////////////////////////////////////////
-    public float[][][][] poolLayerMultithread(float[][][][] inputBlob, int[] kernelSize,
-                                              String kernelType, int[] pad, int[] stride,
-                                              int threadCount, boolean hasRelu) {
+    public void poolLayerMultithread(Tensor inputBlob, Tensor outputBlob, int[] kernelSize,
+                                       String kernelType, int[] pad, int[] stride,
+                                       int threadCount, boolean hasRelu) {
         // Calculate sizes.
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-        int h_i = inputBlob[0][0].length;
-        int w_i = inputBlob[0][0][0].length;
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.shape[1];
+        int h_i = inputBlob.shape[2];
+        int w_i = inputBlob.shape[3];
 
         int h_k = kernelSize[0];
         int w_k = kernelSize[1];
@@ -166,52 +167,46 @@ public class Pooling implements LayerInterface {
         int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / (double) stride[0]) + 1);
         int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / (double) stride[1]) + 1);
 
-        // Initialize the result.
-        float[][][][] outputBlob = new float[n_o][c_o][h_o][w_o];
-
-        for (int frame = 0 ; frame < n_i ; frame++) {
-            // Calculate the result
-            MultiThreadPool[] threads = new MultiThreadPool[threadCount];
-            for (int thread = 0; thread < threadCount ; ++thread) {
-                threads[thread] = new MultiThreadPool(inputBlob, kernelSize, kernelType, pad, stride, frame, c_o, h_o, w_o, myNum, thread, threadCount, hasRelu);
-                threads[thread].start();
-            }
 
-            while (true) {
-                int thread;
-                for (thread = 0; thread < threadCount ; thread++)
-                    if (!threads[thread].done)
-                        break;
-                if (thread == threadCount)
-                    break;
-                try {
-                    Thread.sleep(5);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+        // Calculate the result, each task writes its own channels of an image of the output blob.
+        ChannelBlocks t = channelBlocks;
+        t.inputBlob = inputBlob;
+        t.outputBlob = outputBlob;
+        t.c_o = c_o;
+        t.h_o = h_o;
+        t.w_o = w_o;
+        t.blocks = threadCount;
+        t.hasRelu = hasRelu;
+        t.run(n_i * threadCount);
+        t.inputBlob = null;
+        t.outputBlob = null;
+    }
 
-            for (int thread = 0; thread < threadCount ; ++thread) {
-                int channelCount = c_o / threadCount;
-                if (c_o % threadCount != 0)
-                    channelCount += 1;
-                int cStart = thread * channelCount;
-                int cEnd = cStart + channelCount;
-                if (cStart > c_o)
-                    cStart = c_o;
-                if (cEnd > c_o)
-                    cEnd = c_o;
-
-                for (int c = cStart ; c < cEnd ; ++c)
-                    outputBlob[frame][c]=threads[thread].outputBlob[c - cStart];
+    // Tasks of poolLayerMultithread, kept between calls: task i pools block i % blocks of the channels of image
+    // i / blocks.
+    private class ChannelBlocks extends Workers.Loop {
+        Tensor inputBlob, outputBlob;
+        int c_o, h_o, w_o, blocks;
+        boolean hasRelu;
+
+        @Override
+        protected void task(int i) {
+            int frame = i / blocks;
+            int channelCount = (c_o + blocks - 1) / blocks;
+            int cStart = Math.min(i % blocks * channelCount, c_o);
+            int cEnd = Math.min(cStart + channelCount, c_o);
+            for (int c = cStart; c < cEnd; ++c) {
+                int outOffset = outputBlob.index(frame, c, 0, 0);
+                pool(inputBlob.data, inputBlob.index(frame, c, 0, 0), inputBlob.shape[2], inputBlob.shape[3],
+                        kernelType, kernelSize, pad, stride, outputBlob.data, outOffset, h_o, w_o);
+                if (hasRelu)
+                    myNum.relu(outputBlob.data, outOffset, h_o * w_o);
             }
-
         }
-        return outputBlob;
     }
 
     /////////////////////////////////////////Tuning Function////////////////////////////////////////
-    private Object tuneFunction(float[][][][] input){
+    private void tuneFunction(Tensor input, Tensor output){
         Log.d("CNNdroid", "layers." + name + ": Tuning process is starting...");
         long tuneTime = System.currentTimeMillis();
 
@@ -220,15 +215,11 @@ public class Pooling implements LayerInterface {
         for (int i = 0 ; i < threadCounts.length ; i++)
             time[i] = 0;
         long temp;
-        int c_i = input[0].length;
-        float[][][][] tuneInput = new float[1][c_i][input[0][0].length][input[0][0][0].length];
-        tuneInput[0] = input[0];
-        Object output = null;
 
         for (int i = 0; i < 4; i++) {
             for (int thread = 0 ; thread < threadCounts.length ; thread++) {
                 temp = System.currentTimeMillis();
-                output = poolLayerMultithread(input, kernelSize, kernelType, pad, stride, threadCounts[thread], nonLinear);
+                poolLayerMultithread(input, output, kernelSize, kernelType, pad, stride, threadCounts[thread], nonLinear);
                 time[thread] += System.currentTimeMillis() - temp;
             }
         }
@@ -243,7 +234,6 @@ public class Pooling implements LayerInterface {
         writeFile(threadCount);
         tuneTime = System.currentTimeMillis() - tuneTime;
         Log.d("CNNdroid", "layers." + name + ": Tuning process finished in " + tuneTime + "ms.");
-        return output;
     }
 
     ////////////////////////////////////////Local Functions/////////////////////////////////////////
@@ -270,113 +260,3 @@ public class Pooling implements LayerInterface {
         }
     }
 }
-
-class MultiThreadPool extends Thread {
-    private float[][][][] inputBlob;
-    private int[] kernelSize;
-    private String kernelType;
-    private int[] pad;
-    private int[] stride;
-    private int frame, c_o, h_o, w_o;
-    private MyNum myNum;
-    private boolean hasRelu;
-    private int cStart;
-    private int cEnd;
-
-    public float[][][] outputBlob;
-    public boolean done;
-
-    public MultiThreadPool(float[][][][] inputBlob, int[] kernelSize, String kernelType, int[] pad, int[] stride, int frame, int c_o, int h_o, int w_o, MyNum myNum, int threadNum, int threadCount, boolean hasRelu)
-    {
-        this.inputBlob = inputBlob;
-        this.kernelSize = kernelSize;
-        this.kernelType = kernelType;
-        this.pad = pad;
-        this.stride = stride;
-        this.frame = frame;
-        this.c_o = c_o;
-        this.h_o = h_o;
-        this.w_o = w_o;
-        this.myNum = myNum;
-        this.hasRelu = hasRelu;
-
-        int channelCount = c_o / threadCount;
-        if (c_o % threadCount != 0)
-            channelCount += 1;
-        cStart = threadNum * channelCount;
-        cEnd = cStart + channelCount;
-        if (cStart > c_o)
-            cStart = c_o;
-        if (cEnd > c_o)
-            cEnd = c_o;
-
-        channelCount = cEnd - cStart;
-
-        outputBlob = new float[channelCount][h_o][w_o];
-    }
-
-    @Override
-    public void run()
-    {
-        for (int c = cStart; c < cEnd ; ++c)
-            outputBlob[c - cStart] = pool(inputBlob[frame][c], kernelType, kernelSize, pad, stride);
-        done = true;
-    }
-
-    // frame pooling
-    private float[][] pool(float[][] frames, String kernelType, int[] kernelSize, int[] pad, int[] stride)
-    {
-        // Calculate final dimensions.
-        int h_i = frames.length;
-        int w_i = frames[0].length;
-
-        int h_k = kernelSize[0];
-        int w_k = kernelSize[1];
-
-        int h_o = (int) (Math.ceil((h_i + 2 * pad[0] - h_k) / (double) stride[0]) + 1);
-        int w_o = (int) (Math.ceil((w_i + 2 * pad[1] - w_k) / (double) stride[1]) + 1);
-
-        int h_s = stride[0];
-        int w_s = stride[1];
-
-        // Compute pixel values.
-        float[][] out = new float[h_o][w_o];
-
-        if (hasRelu)
-        {
-            if (kernelType.equals("max"))
-                for (int x = 0; x < h_o; ++x)
-                    for (int y = 0; y < w_o; ++y)
-                        out[x][y] = myNum.frame_max(frames, x * h_s, x * h_s + h_k, y * w_s, y * w_s + w_k, h_i, w_i, pad);
-            else if (kernelType.equals("ave"))
-                for (int x = 0; x < h_o; ++x)
-                    for (int y = 0; y < w_o; ++y)
-                        out[x][y] = myNum.frame_mean(frames, x * h_s, x * h_s + h_k, y * w_s, y * w_s + w_k, h_i, w_i, pad);
-        }
-        else
-        {
-            if (kernelType.equals("max"))
-                for (int x = 0; x < h_o; ++x)
-                    for (int y = 0; y < w_o; ++y)
-                    {
-                        float f = myNum.frame_max(frames, x * h_s, x * h_s + h_k, y * w_s, y * w_s + w_k, h_i, w_i, pad);
-                        if (f > 0)
-                            out[x][y] = f;
-                        else
-                            out[x][y] = 0;
-                    }
-            else if (kernelType.equals("ave"))
-                for (int x = 0; x < h_o; ++x)
-                    for (int y = 0; y < w_o; ++y)
-                    {
-                        float f = myNum.frame_mean(frames, x * h_s, x * h_s + h_k, y * w_s, y * w_s + w_k, h_i, w_i, pad);
-                        if (f > 0)
-                            out[x][y] = f;
-                        else
-                            out[x][y] = 0;
-                    }
-        }
-
-        return out;
-    }
-}
\ No newline at end of file
@@ -3,6 +3,7 @@ package layers;
 import android.util.Log;
 
 import numdroid.MyNum;
+import numdroid.Tensor;
 
 public class Softmax implements LayerInterface {
     private String name;                // name of the layer
@@ -14,47 +15,36 @@ public class Softmax implements LayerInterface {
     }
 
     @Override
-    public Object compute(Object input) {
+    public String getName() {
+        return name;
+    }
+
+    // (n, c) and (n, c, 1, 1) inputs give a (n, c) output.
+    @Override
+    public int[] inferOutputShape(int[] inputShape) {
+        return new int[]{inputShape[0], Tensor.count(inputShape) / inputShape[0]};
+    }
+
+    @Override
+    public void compute(Tensor input, Tensor output) {
 
         long runTime = System.currentTimeMillis();
 
-        Object output;
-        if (input.getClass().toString().equals("class [[[[F"))
-            output = softmaxLayer((float[][][][])input);
-        else
-            output = softmaxLayer((float[][]) input);
+        softmaxLayer(input, output);
 
         runTime = System.currentTimeMillis() - runTime;
-        Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
-
-        return output;
+        if (Log.isLoggable("CNNdroid", Log.DEBUG))
+            Log.d("CNNdroid", "layers." + name + ": Computation Run Time = " + String.valueOf(runTime));
     }
 
-    private float[][] softmaxLayer(float[][] inputBlob) {
-        int n_i = inputBlob.length;
-        int c_i = inputBlob[0].length;
-
-        //initialize the result
-        float[][] outputBlob = new float[n_i][c_i];
+    // (n, c) and (n, c, 1, 1) blobs are both treated as one row of c scores per image.
+    private void softmaxLayer(Tensor inputBlob, Tensor outputBlob) {
+        int n_i = inputBlob.shape[0];
+        int c_i = inputBlob.sampleSize();
 
         //calculate the result
         for (int n = 0  ; n <(n_i) ; n++)
-            outputBlob[n] = myNum.averaged_exp(inputBlob[n]);         //  vect = inputBlob[n].ravel()  //  vect_exp = np.exp(vect)  // outputBlob[n,:]=vect_exp / np.sum(vect_exp)
-
-        //return the result
-        return outputBlob;
-    }
-
-    private float[][] softmaxLayer(float[][][][] inputBlob) {
-        int n_i, c_i;
-        n_i = inputBlob.length;
-        c_i = inputBlob[0].length;
-        float[][] data = new float[n_i][c_i];
-        for (int n = 0 ; n < n_i ; n++)
-            for (int i = 0 ; i < c_i ; i++)
-                data[n][i] = inputBlob[n][i][0][0];
-
-        return softmaxLayer(data);
+            myNum.averaged_exp(inputBlob.data, inputBlob.sampleIndex(n), outputBlob.data, outputBlob.sampleIndex(n), c_i);         //  vect = inputBlob[n].ravel()  //  vect_exp = np.exp(vect)  // outputBlob[n,:]=vect_exp / np.sum(vect_exp)
     }
 
 }
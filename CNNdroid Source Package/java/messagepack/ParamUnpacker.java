@@ -9,6 +9,8 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 
+import numdroid.Tensor;
+
 public class ParamUnpacker {
 
     public Object[] unpackerFunction(String paramFilePath, Class[] classTypes) {
@@ -42,6 +44,24 @@ public class ParamUnpacker {
         return convParams;
     }
 
+    // The first count arrays of the file, each one decoded straight into a flat Tensor.
+    public Tensor[] unpackTensors(String paramFilePath, int count) {
+        Tensor[] tensors = new Tensor[count];
+        try {
+            StreamingUnpacker unpacker = new StreamingUnpacker(paramFilePath);
+            try {
+                for (int i = 0; i < count; ++i)
+                    tensors[i] = unpacker.readTensor();
+            } finally {
+                unpacker.close();
+            }
+        } catch (Exception e) {
+            Log.d("MessagePack Exception:", String.valueOf(e.getMessage()));
+            return null;
+        }
+        return tensors;
+    }
+
     private Unpacker read_parameters_MessagePack_Init(String name) {
         MessagePack msgpack = new MessagePack();
         File f = new File(name);
@@ -0,0 +1,266 @@
+package messagepack;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import numdroid.Tensor;
+
+// Decoder for the parameters files written by the scripts in "Parameter Generation Scripts": a sequence of
+// (nested) MessagePack arrays of numbers. Every array is read straight from the stream into one flat float[]
+// in row-major order, its shape is taken from the array headers. The file is never held in memory as a whole,
+// and runs of float32 values are decoded directly from the read buffer.
+public class StreamingUnpacker implements Closeable {
+
+    private InputStream in;                 // file stream
+    private byte[] buf = new byte[1 << 16]; // read buffer
+    private int pos = 0;                    // next byte to decode in buf
+    private int limit = 0;                  // end of the valid bytes in buf
+
+    public StreamingUnpacker(String path) throws IOException {
+        this(new FileInputStream(path));
+    }
+
+    public StreamingUnpacker(InputStream in) {
+        this.in = in;
+    }
+
+    // Whether another top-level value follows.
+    public boolean hasNext() throws IOException {
+        return ensure(1);
+    }
+
+    // The next top-level value as a contiguous Tensor, a scalar gives a tensor of shape (1).
+    public Tensor readTensor() throws IOException {
+        int[] shape = peekShape();
+        float[] data = new float[Tensor.count(shape)];
+        readValue(data, 0, shape, 0);
+        if (shape.length == 0)
+            shape = new int[]{1};
+        return Tensor.wrap(data, shape);
+    }
+
+    // Skip the next top-level value and return its shape, the numbers are skipped without being decoded.
+    public int[] readShape() throws IOException {
+        int[] shape = peekShape();
+        skipValue();
+        return shape;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Shape of the next value, read from the headers of its first elements without consuming them.
+    private int[] peekShape() throws IOException {
+        if (!ensure(1))
+            throw new EOFException();
+        ensure(16 * 5);
+
+        int[] dims = new int[16];
+        int rank = 0;
+        int p = pos;
+        while (p < limit) {
+            int b = buf[p] & 0xff;
+            int n;
+            if ((b & 0xf0) == 0x90) {
+                n = b & 0x0f;
+                p += 1;
+            } else if (b == 0xdc && p + 3 <= limit) {
+                n = ((buf[p + 1] & 0xff) << 8) | (buf[p + 2] & 0xff);
+                p += 3;
+            } else if (b == 0xdd && p + 5 <= limit) {
+                n = ((buf[p + 1] & 0xff) << 24) | ((buf[p + 2] & 0xff) << 16) | ((buf[p + 3] & 0xff) << 8) | (buf[p + 4] & 0xff);
+                p += 5;
+            } else
+                break;
+            if (rank == dims.length)
+                throw new IOException("MessagePack arrays are nested too deeply");
+            dims[rank++] = n;
+            if (n == 0)
+                break;
+        }
+
+        int[] shape = new int[rank];
+        System.arraycopy(dims, 0, shape, 0, rank);
+        return shape;
+    }
+
+    // Decode a value of the given depth into data starting at index, returns the index after it.
+    private int readValue(float[] data, int index, int[] shape, int depth) throws IOException {
+        int b = readByte();
+        int n = arrayLength(b);
+        if (n < 0) {
+            if (depth != shape.length)
+                throw new IOException("MessagePack array is not rectangular");
+            data[index] = readNumber(b);
+            return index + 1;
+        }
+
+        if (depth == shape.length || n != shape[depth])
+            throw new IOException("MessagePack array is not rectangular");
+        if (depth == shape.length - 1)
+            return readNumbers(data, index, n);
+        for (int i = 0; i < n; ++i)
+            index = readValue(data, index, shape, depth + 1);
+        return index;
+    }
+
+    // n numbers of the innermost dimension.
+    private int readNumbers(float[] data, int index, int n) throws IOException {
+        int end = index + n;
+        while (index < end) {
+            // Runs of float32 values (0xca followed by 4 big-endian bytes) are decoded in place.
+            while (index < end && limit - pos >= 5 && buf[pos] == (byte) 0xca) {
+                data[index++] = Float.intBitsToFloat(((buf[pos + 1] & 0xff) << 24) | ((buf[pos + 2] & 0xff) << 16)
+                        | ((buf[pos + 3] & 0xff) << 8) | (buf[pos + 4] & 0xff));
+                pos += 5;
+            }
+            if (index < end)
+                data[index++] = readNumber(readByte());
+        }
+        return end;
+    }
+
+    // Skip one value, counting the values left instead of recursing into arrays. Runs of float32 values and
+    // fixints, which make up the parameters files, are skipped by scanning their tags in the buffer.
+    private void skipValue() throws IOException {
+        long left = 1;
+        while (left > 0) {
+            int p = pos;
+            int end = limit - 4;                                // a float32 takes 5 bytes
+            while (left > 0 && p < end) {
+                int b = buf[p] & 0xff;
+                if (b == 0xca)
+                    p += 5;
+                else if (b <= 0x7f || b >= 0xe0)
+                    p += 1;
+                else
+                    break;
+                --left;
+            }
+            pos = p;
+            if (left == 0)
+                break;
+
+            int b = readByte();
+            --left;
+            int n = arrayLength(b);
+            if (n < 0)
+                skip(numberSize(b));
+            else
+                left += n;
+        }
+    }
+
+    // Length of the array whose header starts with b, or -1 if b does not start an array.
+    private int arrayLength(int b) throws IOException {
+        if ((b & 0xf0) == 0x90)
+            return b & 0x0f;
+        if (b == 0xdc)
+            return (int) readUnsigned(2);
+        if (b == 0xdd)
+            return (int) readUnsigned(4);
+        return -1;
+    }
+
+    // A number whose first byte is b.
+    private float readNumber(int b) throws IOException {
+        if (b <= 0x7f)
+            return b;                                           // positive fixint
+        if (b >= 0xe0)
+            return b - 0x100;                                   // negative fixint
+        switch (b) {
+            case 0xca:
+                return Float.intBitsToFloat((int) readUnsigned(4));
+            case 0xcb:
+                return (float) Double.longBitsToDouble(readUnsigned(8));
+            case 0xcc:
+                return readUnsigned(1);
+            case 0xcd:
+                return readUnsigned(2);
+            case 0xce:
+                return readUnsigned(4);
+            case 0xcf:
+                return readUnsigned(8);
+            case 0xd0:
+                return (byte) readUnsigned(1);
+            case 0xd1:
+                return (short) readUnsigned(2);
+            case 0xd2:
+                return (int) readUnsigned(4);
+            case 0xd3:
+                return readUnsigned(8);
+            default:
+                throw new IOException("unexpected MessagePack type 0x" + Integer.toHexString(b) + " in a parameters file");
+        }
+    }
+
+    // Number of bytes after the first byte b of a number.
+    private int numberSize(int b) throws IOException {
+        if (b <= 0x7f || b >= 0xe0)
+            return 0;                                           // fixint
+        switch (b) {
+            case 0xcc:
+            case 0xd0:
+                return 1;
+            case 0xcd:
+            case 0xd1:
+                return 2;
+            case 0xca:
+            case 0xce:
+            case 0xd2:
+                return 4;
+            case 0xcb:
+            case 0xcf:
+            case 0xd3:
+                return 8;
+            default:
+                throw new IOException("unexpected MessagePack type 0x" + Integer.toHexString(b) + " in a parameters file");
+        }
+    }
+
+    private void skip(int bytes) throws IOException {
+        while (bytes > 0) {
+            if (pos == limit && !ensure(1))
+                throw new EOFException();
+            int n = Math.min(bytes, limit - pos);
+            pos += n;
+            bytes -= n;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (pos == limit && !ensure(1))
+            throw new EOFException();
+        return buf[pos++] & 0xff;
+    }
+
+    // Big-endian unsigned value of the given number of bytes.
+    private long readUnsigned(int bytes) throws IOException {
+        long v = 0;
+        for (int i = 0; i < bytes; ++i)
+            v = (v << 8) | readByte();
+        return v;
+    }
+
+    // Try to have at least count bytes in the buffer, returns false if the stream ends before.
+    private boolean ensure(int count) throws IOException {
+        if (limit - pos >= count)
+            return true;
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < count) {
+            int r = in.read(buf, limit, buf.length - limit);
+            if (r == -1)
+                return false;
+            limit += r;
+        }
+        return true;
+    }
+}
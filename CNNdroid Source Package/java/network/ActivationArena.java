@@ -0,0 +1,90 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import numdroid.Tensor;
+
+// Storage of the intermediate blobs of the network. Blob i is the input of layer i and the output of
+// layer i - 1; blob 0 belongs to the caller. Every other blob lives from the layer that writes it to
+// the last layer that reads it, and blobs whose lifetimes do not overlap share the same buffer.
+// Buffers are only allocated when the network is planned, so steady-state inference allocates nothing.
+// An element-wise layer whose input dies with it writes its output over its input.
+public class ActivationArena {
+
+    private int[][] shapes;             // shape of every blob
+    private int[] buffer;               // buffer index of every blob, -1 for the caller's input
+    private List<float[]> buffers;      // backing arrays, sized to the largest blob they hold
+    private Tensor[] views;             // blob i seen with its own shape
+    private int inPlaceCount;           // number of layers writing over their input
+
+    // lastUse[i] is the index of the last layer reading blob i, inPlace[i] tells whether layer i may be
+    // given the same blob as input and output.
+    public ActivationArena(int[][] shapes, int[] lastUse, boolean[] inPlace) {
+        this.shapes = shapes;
+        int blobCount = shapes.length;
+        buffer = new int[blobCount];
+        buffers = new ArrayList<>();
+        views = new Tensor[blobCount];
+
+        List<Integer> bufferSize = new ArrayList<>();
+        List<Integer> freeAfter = new ArrayList<>();    // last layer reading the current occupant of each buffer
+
+        buffer[0] = -1;
+        for (int i = 1; i < blobCount; ++i) {
+            int size = Tensor.count(shapes[i]);
+            int b = -1;
+
+            // The input of layer i - 1 belongs to the caller when i == 1 and must not be overwritten.
+            if (i > 1 && inPlace[i - 1] && lastUse[i - 1] == i - 1 && size == Tensor.count(shapes[i - 1])) {
+                b = buffer[i - 1];
+                ++inPlaceCount;
+            }
+
+            // Blob i is written by layer i - 1, so buffers still read by that layer are taken.
+            for (int j = 0; b == -1 && j < bufferSize.size(); ++j)
+                if (freeAfter.get(j) < i - 1)
+                    b = j;
+
+            if (b == -1) {
+                b = bufferSize.size();
+                bufferSize.add(size);
+                freeAfter.add(lastUse[i]);
+            } else {
+                bufferSize.set(b, Math.max(bufferSize.get(b), size));
+                freeAfter.set(b, Math.max(freeAfter.get(b), lastUse[i]));
+            }
+            buffer[i] = b;
+        }
+
+        for (int j = 0; j < bufferSize.size(); ++j)
+            buffers.add(new float[bufferSize.get(j)]);
+        for (int i = 1; i < blobCount; ++i)
+            views[i] = Tensor.wrap(buffers.get(buffer[i]), shapes[i]);
+    }
+
+    // blob i, valid until the buffer is written by a later layer
+    public Tensor blob(int i) {
+        return views[i];
+    }
+
+    public int bufferOf(int i) {
+        return buffer[i];
+    }
+
+    public int bufferCount() {
+        return buffers.size();
+    }
+
+    public int inPlaceCount() {
+        return inPlaceCount;
+    }
+
+    // total size of the arena in bytes
+    public long bytes() {
+        long sum = 0;
+        for (float[] b : buffers)
+            sum += 4L * b.length;
+        return sum;
+    }
+}
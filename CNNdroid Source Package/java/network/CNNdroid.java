@@ -4,19 +4,33 @@ import android.renderscript.RenderScript;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import layers.Accuracy;
 import layers.Convolution;
+import layers.ElementwiseInterface;
 import layers.FullyConnected;
 import layers.LayerInterface;
 import layers.LocalResponseNormalization;
+import layers.MemoryInterface;
 import layers.NonLinear;
 import layers.Pooling;
 import layers.Softmax;
+import numdroid.DepthwiseConvolution;
+import numdroid.Kernels;
+import numdroid.Tensor;
+import numdroid.Workers;
+import params.ModelBundle;
+import params.ParamHeader;
 
 public class CNNdroid {
 
@@ -34,6 +48,25 @@ public class CNNdroid {
     private RenderScript myRS;                  // RenderScript object
     private LayerInterface lastLayer = null;    // the last constructed layer
     private boolean[] necessaryDefinition;      // execution_mode, auto_tuning
+    private int[] inputShape;                   // optional input blob shape given in the network definition file
+    private int[][] blobShapes;                 // blobShapes[i] is the input shape of layer i, the last one is the network output
+    private ActivationArena arena;              // preallocated storage of the blobs produced by the layers
+    private boolean inPlace = true;             // run element-wise layers in place when possible (on or off)
+    private MemoryPlanner memoryPlan;           // memory needed by the network for the resolved shapes
+    private List<Future<?>> pendingLoads;       // parameters still being loaded by the CPU workers
+    private ParamPrefetcher prefetcher;         // background reader of the parameters that are not resident
+    private WeightCache.Policy cachePolicy = WeightCache.Policy.LRU;  // eviction policy of the weight cache, null if disabled
+    private boolean halfPrecision = false;      // keep the weights of the layers in half precision (weight_precision)
+    private boolean quantized = false;          // compute the calibrated layers in int8 (quantization)
+    private String calibrationFile;             // input ranges of the layers for int8, relative to rootDir (calibration_file)
+    private Map<String, float[]> calibration;   // input ranges read from calibrationFile, by layer name, null if not quantized
+    private Calibrator calibrator;              // records the input ranges of the layers while calibrating, null otherwise
+    private ModelBundle bundle;                 // model bundle the network is read from, null for a network definition file
+    private boolean pinModel = false;           // read the whole model bundle into memory at start-up (pin_model)
+    private int cpuParallelism = 0;             // threads of the CPU kernels, 0 for one per core; the first network sets them for all (cpu_parallelism)
+    private Map<String, ParamHeader> paramHeaders = new HashMap<>();  // shapes of the parameters files, by name
+    private int blobChannels = -1;              // channels of the output of the last parsed layer, -1 if unknown
+    private int blobSize = -1;                  // values per image of the output of the last parsed layer, -1 if unknown
 
     public CNNdroid(RenderScript myRS, String netStructureFile) throws Exception {
         this.myRS = myRS;
@@ -42,44 +75,270 @@ public class CNNdroid {
         necessaryDefinition = new boolean[2];
 
         layers = new ArrayList<>();
+        // A model bundle holds the network definition and all parameters files; the tuning folder and the
+        // calibration file are next to it unless root_directory says otherwise.
+        if (ModelBundle.isBundle(netStructureFile)) {
+            bundle = ModelBundle.open(netStructureFile);
+            if (bundle == null || bundle.definition() == null) {
+                Log.d("CNNdroid", "Error: cannot read the network definition of model bundle \"" + netStructureFile + "\"");
+                throw new Exception("CNNdroid model bundle cannot be read.");
+            }
+            rootDir = new File(netStructureFile).getAbsoluteFile().getParent() + "/";
+        }
         preParse();
         parse();
+        int threads = Workers.setParallelism(cpuParallelism);
+        if (cpuParallelism > 0 && threads != cpuParallelism)
+            Log.d("CNNdroid", "cpu_parallelism " + cpuParallelism + " ignored, the CPU kernels of all networks use the "
+                    + threads + " threads set by the first network");
+        Log.d("CNNdroid", "CPU kernels: " + Kernels.get().name());
+        if (bundle != null && pinModel)
+            bundle.pin();
+        if (quantized)
+            applyCalibration();
+        // the layers may save packed kernels in the tuning folder while they load
         File f = new File(rootDir + tuningFolder);
         if (!f.exists())
             f.mkdir();
+        startLoading();
+        if (inputShape != null)
+            resolveShapes(inputShape);
     }
 
     // support for 3d input
+    // Legacy entry point: float[][][] or float[][][][] input, the output is returned in the array form
+    // the layers used to produce (float[][][][], float[][] or Float for the accuracy layer).
     public Object compute(Object input) {
-        Object output;
-        if (input.getClass().toString().equals("class [[[[F"))
-            output = input;
-        else if (input.getClass().toString().equals("class [[[F")) {
-            float[][][][] newInput = new float[1][][][];
-            newInput[0] = (float[][][]) input;
-            output = newInput;
-        } else {
+        Tensor tensorInput;
+        if (input instanceof Tensor)
+            return compute((Tensor) input);
+        else if (input instanceof float[][][][])
+            tensorInput = Tensor.fromArray((float[][][][]) input);
+        else if (input instanceof float[][][])
+            tensorInput = Tensor.fromArray((float[][][]) input);
+        else {
+            Log.d("CNNdroid", "Error: input type is not supported");
+            return null;
+        }
+
+        Tensor output = compute(tensorInput);
+        if (output == null)
+            return null;
+        else if (output.rank() == 4)
+            return output.toArray4();
+        else if (output.rank() == 2)
+            return output.toArray2();
+        else
+            return output.data[output.offset];
+    }
+
+    // The input is a (n, c, h, w) or (c, h, w) blob. The returned blob lives in the network's arena and is
+    // only valid until the next call to compute, copy it to keep it longer.
+    public Tensor compute(Tensor input) {
+        Tensor output = input.isContiguous() ? input : input.copy();
+        if (output.rank() == 3)
+            output = output.reshape(1, output.shape[0], output.shape[1], output.shape[2]);
+        else if (output.rank() != 4) {
             Log.d("CNNdroid", "Error: input type is not supported");
             return null;
         }
 
+        try {
+            awaitLoading();
+            if (blobShapes == null || !Arrays.equals(blobShapes[0], output.shape))
+                resolveShapes(output.shape);
+        } catch (Exception e) {
+            return null;
+        }
 
         for (int i = 0 ; i < layers.size() ; i++) {
-            Object temp = output;
-            output = layers.get(i).compute(output);
+            Tensor next = arena.blob(i + 1);
+            if (calibrator != null)
+                calibrator.observe(i, output);
+            prefetcher.beforeLayer(i);
+            layers.get(i).compute(output, next);
+            output = next;
         }
 
+        WeightCache cache = prefetcher.getCache();
+        if (cache != null && cache.hits() + cache.misses() > 0)
+            cache.report();
+
         return output;
     }
 
-    // Determine whether or not the parameters should be loaded at start-up.
+    // Shape of the network output, known once the input shape is (see input_shape in the network definition file).
+    public int[] getOutputShape() {
+        if (blobShapes == null)
+            return null;
+        return blobShapes[blobShapes.length - 1].clone();
+    }
+
+    // Statistics of the cache of the parameters that are not resident, null if it is disabled or the input
+    // shape is not known yet.
+    public WeightCache getWeightCache() {
+        if (prefetcher == null)
+            return null;
+        return prefetcher.getCache();
+    }
+
+    // Index in the label files of the Accuracy layers of the first image of the next batches, to evaluate a
+    // dataset in several batches: pass 0 for the first batch, n for the second one, and so on.
+    public void setLabelOffset(int offset) {
+        for (LayerInterface layer : layers)
+            if (layer instanceof Accuracy)
+                ((Accuracy) layer).setBatchOffset(offset);
+    }
+
+    // Run sample inputs through the network and save the input range of every Convolution and FullyConnected
+    // layer to calibrationFile (relative to root_directory), for a network definition with quantization: "int8".
+    // The network itself must not be quantized.
+    public boolean calibrate(List<Tensor> samples, String calibrationFile) {
+        if (quantized) {
+            Log.d("CNNdroid", "Error: calibration needs a network computed in float, remove quantization from the network definition file");
+            return false;
+        }
+        calibrator = new Calibrator(layers);
+        try {
+            for (Tensor sample : samples)
+                if (compute(sample) == null)
+                    return false;
+            calibrator.write(rootDir + calibrationFile);
+        } catch (IOException e) {
+            Log.d("CNNdroid", "Error: cannot write calibration file \"" + rootDir + calibrationFile + "\": " + e.getMessage());
+            return false;
+        } finally {
+            calibrator = null;
+        }
+        return true;
+    }
+
+    // Memory report of the network, known once the input shape is.
+    public MemoryPlanner getMemoryPlan() {
+        return memoryPlan;
+    }
+
+    // Read the calibration file, from the directory of the parameters files.
+    private Map<String, float[]> readCalibration(String dir) throws Exception {
+        if (calibrationFile == null) {
+            Log.d("CNNdroid", "Error: calibration_file is not specified in the network structure definition file");
+            throw new Exception("CNNdroid calibration file is not specified.");
+        }
+        try {
+            return Calibrator.read(dir + calibrationFile);
+        } catch (IOException e) {
+            Log.d("CNNdroid", "Error: cannot read calibration file \"" + dir + calibrationFile + "\": " + e.getMessage());
+            throw new Exception("CNNdroid calibration file cannot be read.");
+        }
+    }
+
+    // Quantize the layers listed in the calibration file, the other ones are computed in float.
+    private void applyCalibration() throws Exception {
+        for (LayerInterface layer : layers) {
+            if (!(layer instanceof Convolution) && !(layer instanceof FullyConnected))
+                continue;
+            float[] range = calibration.get(layer.getName());
+            if (range == null)
+                Log.d("CNNdroid", "layers." + layer.getName() + ": not in the calibration file, computed in float");
+            else if (layer instanceof Convolution)
+                ((Convolution) layer).setQuantization(range[0], range[1]);
+            else
+                ((FullyConnected) layer).setQuantization(range[0], range[1]);
+        }
+    }
+
+    // Load the resident parameters of all layers on the CPU workers (numdroid.Workers), one task per layer, so
+    // that loading uses the cpu_parallelism threads of the kernels instead of a pool of its own. Decoding and
+    // kernel packing of the layers overlap; awaitLoading joins them before the network is used.
+    private void startLoading() {
+        pendingLoads = new ArrayList<>();
+        for (LayerInterface layer : layers) {
+            if (layer instanceof MemoryInterface && ((MemoryInterface) layer).paramsResident()) {
+                final MemoryInterface m = (MemoryInterface) layer;
+                pendingLoads.add(Workers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        m.loadParams();
+                    }
+                }));
+            }
+        }
+    }
+
+    private void awaitLoading() throws Exception {
+        if (pendingLoads == null)
+            return;
+        long waitTime = System.currentTimeMillis();
+        List<Future<?>> loads = pendingLoads;
+        pendingLoads = null;
+        for (Future<?> load : loads) {
+            try {
+                load.get();
+            } catch (ExecutionException e) {
+                Log.d("CNNdroid", "Error: parameters could not be loaded: " + e.getCause());
+                throw new Exception("CNNdroid parameters could not be loaded.");
+            }
+        }
+        waitTime = System.currentTimeMillis() - waitTime;
+        Log.d("CNNdroid", "Parameters loaded, waited " + waitTime + "ms");
+    }
+
+    // Infer the shape of every blob of the network for the given input shape and plan their storage.
+    private void resolveShapes(int[] inputShape) throws Exception {
+        awaitLoading();
+        int[][] shapes = new int[layers.size() + 1][];
+        shapes[0] = inputShape.clone();
+        for (int i = 0 ; i < layers.size() ; i++) {
+            LayerInterface layer = layers.get(i);
+            shapes[i + 1] = layer.inferOutputShape(shapes[i]);
+            if (shapes[i + 1] == null) {
+                Log.d("CNNdroid", "Error: layer \"" + layer.getName() + "\" does not accept an input blob of shape " + Arrays.toString(shapes[i]));
+                throw new Exception("CNNdroid layer " + layer.getName() + " does not accept an input blob of shape " + Arrays.toString(shapes[i]) + ".");
+            }
+        }
+        blobShapes = shapes;
+        Log.d("CNNdroid", "Network output shape = " + Arrays.toString(shapes[layers.size()]));
+
+        // Layer i only reads blob i, the network output is read by the caller after the last layer.
+        int[] lastUse = new int[shapes.length];
+        for (int i = 0 ; i < shapes.length ; i++)
+            lastUse[i] = Math.min(i, layers.size());
+        boolean[] elementwise = new boolean[layers.size()];
+        for (int i = 0 ; i < layers.size() ; i++)
+            elementwise[i] = inPlace && layers.get(i) instanceof ElementwiseInterface;
+        arena = new ActivationArena(shapes, lastUse, elementwise);
+        Log.d("CNNdroid", "Activation arena: " + arena.bufferCount() + " buffers, " + arena.bytes() + " bytes, "
+                + arena.inPlaceCount() + " layers in place");
+
+        // allocated_ram covers the activations and scratch arrays as well, not only the parameters.
+        memoryPlan = new MemoryPlanner(layers, shapes, arena);
+        if (!memoryPlan.fit(allocatedRAM)) {
+            memoryPlan.report();
+            Log.d("CNNdroid", "Error: the network needs at least " + memoryPlan.peakBytes() + " bytes, allocated_ram is " + allocatedRAM + " bytes");
+            throw new Exception("CNNdroid allocated RAM is too small for the network.");
+        }
+        memoryPlan.report();
+
+        // The memory left once the plan fits is used to read the parameters that are not resident ahead of time.
+        if (prefetcher != null)
+            prefetcher.shutdown();
+        long spare = allocatedRAM - memoryPlan.peakBytes();
+        prefetcher = new ParamPrefetcher(layers, spare, cachePolicy == null ? null : new WeightCache(cachePolicy, spare));
+    }
+
+    // Determine whether or not the parameters should be loaded at start-up. Only the headers of the parameters
+    // files are read, which gives the memory the parameters take once loaded.
     private void preParse() throws Exception {
-        File f = new File(netStructureFile);
-        List<Long> paramSize = new ArrayList<>();
+        List<String> paramFiles = new ArrayList<>();
+        Map<String, String> fileLayers = new HashMap<>();   // Convolution and FullyConnected layer of every parameters file
+        List<String> layerFiles = new ArrayList<>();        // parameters files of the current layer
+        String layerName = null;
+        String layerType = null;
+        boolean parallelMode = false;
         Scanner s;
         String root = "";
 
-        s = new Scanner(f);
+        s = definitionScanner();
         while (s.hasNextLine()) {
             String str = s.nextLine();
             str = str.trim();
@@ -99,17 +358,45 @@ public class CNNdroid {
             else if (strLow.startsWith("parameters_file")) {
                 str = str.substring(15);
                 String fName = deriveStr(str);
-                File pf = new File(root + fName);
-                if (pf.exists())
-                    paramSize.add(pf.length());
-                else {
+                boolean exists = bundle != null ? bundle.sectionSize(fName) != -1 : new File(root + fName).exists();
+                if (!exists) {
                     Log.d("CNNdroid", "Error: Missing parameters file \"" + str + "\"");
                     throw new Exception("CNNdroid parameter file does not exist.");
                 }
+                if (!paramHeaders.containsKey(fName)) {
+                    String path = bundle != null ? bundle.pathOf(fName) : root + fName;
+                    try {
+                        paramHeaders.put(fName, ParamHeader.read(path));
+                    } catch (IOException e) {
+                        Log.d("CNNdroid", "Error: parameters file \"" + fName + "\" cannot be read: " + e.getMessage());
+                        throw new Exception("CNNdroid parameter file cannot be read.");
+                    }
+                }
+                paramFiles.add(fName);
+                layerFiles.add(fName);
             }
+            else if (strLow.startsWith("weight_precision"))
+                halfPrecision = deriveStr(strLow.substring(16)).equals("half");
+            else if (strLow.startsWith("quantization"))
+                quantized = deriveStr(strLow.substring(12)).equals("int8");
+            else if (strLow.startsWith("calibration_file") && !deriveStr(str.substring(16)).equals(""))
+                calibrationFile = deriveStr(str.substring(16));
+            else if (strLow.startsWith("execution_mode"))
+                parallelMode = deriveStr(strLow.substring(14)).equals("parallel");
+            else if (strLow.startsWith("layer")) {
+                addQuantizable(fileLayers, layerFiles, layerName, layerType);
+                layerFiles.clear();
+                layerName = null;
+                layerType = null;
+            }
+            else if (strLow.startsWith("name"))
+                layerName = deriveStr(str.substring(4));
+            else if (strLow.startsWith("type"))
+                layerType = deriveStr(str.substring(4));
         }
+        addQuantizable(fileLayers, layerFiles, layerName, layerType);
 
-        if (root.equals("")) {
+        if (root.equals("") && bundle == null) {
             Log.d("CNNdroid", "Error: root_directory is not specified in the network structure definition file");
             throw new Exception("CNNdroid root directory is not specified.");
         }
@@ -118,7 +405,16 @@ public class CNNdroid {
             throw new Exception("CNNdroid allocated RAM is not specified.");
         }
 
-        long[] params = longArray(paramSize);
+        // weights kept in half precision take 2 bytes per value, in int8 1; only the layers in the calibration
+        // file are quantized, and none in parallel mode
+        if (quantized)
+            calibration = readCalibration(root.equals("") ? rootDir : root);
+        long[] params = new long[paramFiles.size()];
+        for (int i = 0; i < params.length; ++i) {
+            String layer = fileLayers.get(paramFiles.get(i));
+            boolean int8 = quantized && !parallelMode && layer != null && calibration.containsKey(layer);
+            params[i] = paramHeaders.get(paramFiles.get(i)).loadedBytes(int8 ? 1 : halfPrecision ? 2 : 4);
+        }
         int[] index = mergeSort(params, 0, params.length - 1);
 
         loadtAtStart = new boolean[params.length];
@@ -132,11 +428,19 @@ public class CNNdroid {
         }
     }
 
+    // Record the parameters files of a layer that can be computed in int8.
+    private static void addQuantizable(Map<String, String> fileLayers, List<String> files, String name, String type) {
+        if (name == null || type == null)
+            return;
+        if (type.equalsIgnoreCase("Convolution") || type.equalsIgnoreCase("FullyConnected"))
+            for (String file : files)
+                fileLayers.put(file, name);
+    }
+
     // Parse the network definition file and construct layers.
     private void parse() throws Exception {
         int layerNum = 0;
-        File f = new File(netStructureFile);
-        Scanner s = new Scanner(f);
+        Scanner s = definitionScanner();
 
         while (s.hasNextLine()) {
             String str = s.nextLine();
@@ -160,6 +464,105 @@ public class CNNdroid {
                     throw new Exception("CNNdroid allocated RAM is not specified correctly.");
                 }
             }
+            else if (strLow.startsWith("input_shape")) {
+                str = str.substring(11);
+                str = deriveStr(str);
+                inputShape = deriveShape(str);
+                if (inputShape == null) {
+                    Log.d("CNNdroid", "Error: input_shape is not specified correctly in the network structure definition file");
+                    throw new Exception("CNNdroid input shape is not specified correctly.");
+                }
+                if (layers.isEmpty() && inputShape.length > 1) {
+                    blobChannels = inputShape[1];
+                    blobSize = Tensor.count(inputShape) / inputShape[0];
+                }
+            }
+            else if (strLow.startsWith("in_place")) {
+                strLow = strLow.substring(8);
+                strLow = deriveStr(strLow);
+                if (strLow.equals("on"))
+                    inPlace = true;
+                else if (strLow.equals("off"))
+                    inPlace = false;
+                else {
+                    Log.d("CNNdroid", "Error: in_place is not specified correctly in the network structure definition file");
+                    throw new Exception("CNNdroid in-place execution is not specified correctly.");
+                }
+            }
+            else if (strLow.startsWith("weight_cache")) {
+                strLow = strLow.substring(12);
+                strLow = deriveStr(strLow);
+                if (strLow.equals("lru"))
+                    cachePolicy = WeightCache.Policy.LRU;
+                else if (strLow.equals("cost"))
+                    cachePolicy = WeightCache.Policy.COST;
+                else if (strLow.equals("frequency"))
+                    cachePolicy = WeightCache.Policy.FREQUENCY;
+                else if (strLow.equals("off"))
+                    cachePolicy = null;
+                else {
+                    Log.d("CNNdroid", "Error: weight_cache is not specified correctly in the network structure definition file");
+                    throw new Exception("CNNdroid weight cache is not specified correctly.");
+                }
+            }
+            else if (strLow.startsWith("weight_precision")) {
+                strLow = strLow.substring(16);
+                strLow = deriveStr(strLow);
+                if (strLow.equals("half"))
+                    halfPrecision = true;
+                else if (strLow.equals("float"))
+                    halfPrecision = false;
+                else {
+                    Log.d("CNNdroid", "Error: weight_precision is not specified correctly in the network structure definition file");
+                    throw new Exception("CNNdroid weight precision is not specified correctly.");
+                }
+            }
+            else if (strLow.startsWith("quantization")) {
+                strLow = strLow.substring(12);
+                strLow = deriveStr(strLow);
+                if (strLow.equals("int8"))
+                    quantized = true;
+                else if (strLow.equals("off"))
+                    quantized = false;
+                else {
+                    Log.d("CNNdroid", "Error: quantization is not specified correctly in the network structure definition file");
+                    throw new Exception("CNNdroid quantization is not specified correctly.");
+                }
+            }
+            else if (strLow.startsWith("pin_model")) {
+                strLow = strLow.substring(9);
+                strLow = deriveStr(strLow);
+                if (strLow.equals("on"))
+                    pinModel = true;
+                else if (strLow.equals("off"))
+                    pinModel = false;
+                else {
+                    Log.d("CNNdroid", "Error: pin_model is not specified correctly in the network structure definition file");
+                    throw new Exception("CNNdroid model pinning is not specified correctly.");
+                }
+            }
+            else if (strLow.startsWith("calibration_file")) {
+                str = str.substring(16);
+                str = deriveStr(str);
+                if (str.equals("")) {
+                    Log.d("CNNdroid", "Error: calibration_file is not specified correctly in the network structure definition file");
+                    throw new Exception("CNNdroid calibration file is not specified correctly.");
+                }
+                calibrationFile = str;
+            }
+            else if (strLow.startsWith("cpu_parallelism")) {
+                str = str.substring(15);
+                str = deriveNum(str);
+                try {
+                    cpuParallelism = Integer.parseInt(str);
+                } catch (NumberFormatException e) {
+                    cpuParallelism = -1;
+                }
+                if (cpuParallelism < 0) {
+                    Log.d("CNNdroid", "Error: cpu_parallelism is not specified correctly in the network structure definition file");
+                    throw new Exception("CNNdroid CPU parallelism is not specified correctly.");
+                }
+            }
             else if (strLow.startsWith("execution_mode")) {
                 strLow = strLow.substring(14);
                 strLow = deriveStr(strLow);
@@ -222,6 +625,70 @@ public class CNNdroid {
         }
     }
 
+    // Check the parameters file of a convolution layer against its group and the channels of its input, from
+    // the header of the file only.
+    private void checkConvolution(String name, String parametersFile, int group) throws Exception {
+        ParamHeader h = paramHeaders.get(parametersFile);
+        int[] k = h.shape(0);
+        String error = null;
+        if (h.arrayCount() != 2 || k.length != 4 || h.count(1) != k[0])
+            error = "weights of shape (n_k, c_k, h_k, w_k) and n_k biases are expected";
+        else if (group < 1 || k[0] % group != 0)
+            error = k[0] + " kernels cannot be split in " + group + " groups";
+        else if (blobChannels != -1 && blobChannels != k[1] * group)
+            error = "the input has " + blobChannels + " channels, the kernels expect " + k[1] * group;
+        parametersMismatch(name, parametersFile, error);
+        blobChannels = k[0];
+        blobSize = -1;
+    }
+
+    // Check the parameters file of a fully connected layer against the size of its input, from the header of
+    // the file only. The number of inputs of sparse weights is not in the header and is not checked.
+    private void checkFullyConnected(String name, String parametersFile) throws Exception {
+        ParamHeader h = paramHeaders.get(parametersFile);
+        String error = null;
+        int c_o = -1;
+        int c_i = -1;
+        if (h.isSparse())
+            c_o = h.count(4);
+        else if (h.arrayCount() != 2 || h.count(1) == 0 || h.count(0) % h.count(1) != 0)
+            error = "weights of c_o * c_i values and c_o biases are expected";
+        else {
+            c_o = h.count(1);
+            c_i = h.count(0) / c_o;
+        }
+        if (error == null && c_i != -1) {
+            if (blobSize != -1 && blobSize != c_i)
+                error = "the input has " + blobSize + " values per image, the weights expect " + c_i;
+            else if (blobSize == -1 && blobChannels != -1 && c_i % blobChannels != 0)
+                error = "the input has " + blobChannels + " channels, which do not divide the " + c_i + " inputs of the weights";
+        }
+        parametersMismatch(name, parametersFile, error);
+        blobChannels = c_o;
+        blobSize = c_o;
+    }
+
+    private void parametersMismatch(String name, String parametersFile, String error) throws Exception {
+        if (error == null)
+            return;
+        Log.d("CNNdroid", "Error: layer \"" + name + "\" does not match parameters file \"" + parametersFile + "\": " + error);
+        throw new Exception("CNNdroid layer " + name + " does not match its parameters file.");
+    }
+
+    // The network definition, read from the model bundle if there is one.
+    private Scanner definitionScanner() throws Exception {
+        if (bundle != null)
+            return new Scanner(bundle.definition());
+        return new Scanner(new File(netStructureFile));
+    }
+
+    // Path of a parameters file as given to the layers, a section of the model bundle if there is one.
+    private String parametersPath(String parametersFile) {
+        if (bundle != null)
+            return bundle.pathOf(parametersFile);
+        return rootDir + parametersFile;
+    }
+
     private String deriveStr(String str) {
         str = str.trim();
         if (!str.startsWith(":"))
@@ -268,7 +735,28 @@ public class CNNdroid {
             return str.substring(0, i);
     }
 
-    private boolean deriveLayer(String str) {
+    // "n c h w" or "c h w"
+    private int[] deriveShape(String str) {
+        String[] strArr = str.trim().split("\\s+");
+        if (strArr.length != 3 && strArr.length != 4)
+            return null;
+
+        int[] shape = new int[4];
+        shape[0] = 1;
+        try {
+            for (int i = 0; i < strArr.length; ++i)
+                shape[i + 4 - strArr.length] = Integer.parseInt(strArr[i]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        for (int i = 0; i < 4; ++i)
+            if (shape[i] <= 0)
+                return null;
+        return shape;
+    }
+
+    private boolean deriveLayer(String str) throws Exception {
         String[] strArr = str.split("\n");
 
         strArr[0] = strArr[0].trim();
@@ -329,6 +817,8 @@ public class CNNdroid {
             int pad = 0;
             int stride = 1;
             int group = 1;
+            int winogradTile = 2;
+            Convolution.FftMode fftMode = Convolution.FftMode.Auto;
             for (int i = 0; i < args.size(); ++i) {
                 String tempArg = args.get(i);
                 String tempValue = values.get(i);
@@ -340,13 +830,34 @@ public class CNNdroid {
                     stride = Integer.parseInt(tempValue);
                 else if (tempArg.equalsIgnoreCase("group"))
                     group = Integer.parseInt(tempValue);
+                else if (tempArg.equalsIgnoreCase("winograd") && tempValue.equalsIgnoreCase("f2"))
+                    winogradTile = 2;
+                else if (tempArg.equalsIgnoreCase("winograd") && tempValue.equalsIgnoreCase("f4"))
+                    winogradTile = 4;
+                else if (tempArg.equalsIgnoreCase("winograd") && tempValue.equalsIgnoreCase("off"))
+                    winogradTile = 0;
+                else if (tempArg.equalsIgnoreCase("fft") && tempValue.equalsIgnoreCase("auto"))
+                    fftMode = Convolution.FftMode.Auto;
+                else if (tempArg.equalsIgnoreCase("fft") && tempValue.equalsIgnoreCase("on"))
+                    fftMode = Convolution.FftMode.On;
+                else if (tempArg.equalsIgnoreCase("fft") && tempValue.equalsIgnoreCase("off"))
+                    fftMode = Convolution.FftMode.Off;
                 else
                     return false;
             }
             if (parametersFile == null )
                 return false;
+            checkConvolution(name, parametersFile, group);
+            // the RenderScript kernels pad every group to 4 or 8 channels, depthwise layers run on the CPU
+            boolean depthwise = DepthwiseConvolution.applies(paramHeaders.get(parametersFile).shape(0)[1], group);
+            if (parallel && depthwise)
+                Log.d("CNNdroid", "layers." + name + ": depthwise convolution, computed on the CPU");
             Convolution c = new Convolution(new int[]{stride, stride}, new int[]{pad, pad}, group,
-                    rootDir + parametersFile, parallel, loadtAtStart[layerCounter], autoTuning, myRS, name, rootDir + tuningFolder);
+                    parametersPath(parametersFile), parallel && !depthwise, loadtAtStart[layerCounter], autoTuning, myRS, name, rootDir + tuningFolder);
+            c.setParamHeader(paramHeaders.get(parametersFile));
+            c.setHalfPrecision(halfPrecision);
+            c.setWinogradTile(winogradTile);
+            c.setFftMode(fftMode);
             ++layerCounter;
             lastLayer = c;
             layers.add(c);
@@ -375,6 +886,7 @@ public class CNNdroid {
                 return false;
             Pooling p = new Pooling(new int[]{kernelSize, kernelSize}, pool, new int[]{pad, pad},
                     new int[]{stride, stride}, parallel, autoTuning, name, rootDir + tuningFolder);
+            blobSize = -1;
             lastLayer = p;
             layers.add(p);
             return true;
@@ -408,17 +920,27 @@ public class CNNdroid {
         }
         else if (type.equalsIgnoreCase("FullyConnected")) {
             String parametersFile = null;
+            boolean sparse = false;
             for (int i = 0; i < args.size(); ++i) {
                 String tempArg = args.get(i);
                 String tempValue = values.get(i);
                 if (tempArg.equalsIgnoreCase("parameters_file"))
                     parametersFile = tempValue;
+                else if (tempArg.equalsIgnoreCase("weight_format") && tempValue.equalsIgnoreCase("csr"))
+                    sparse = true;
+                else if (tempArg.equalsIgnoreCase("weight_format") && tempValue.equalsIgnoreCase("dense"))
+                    sparse = false;
                 else
                     return false;
             }
             if (parametersFile == null)
                 return false;
-            FullyConnected fc = new FullyConnected(rootDir + parametersFile, parallel, loadtAtStart[layerCounter], autoTuning, myRS, name, rootDir + tuningFolder);
+            checkFullyConnected(name, parametersFile);
+            FullyConnected fc = new FullyConnected(parametersPath(parametersFile), parallel, loadtAtStart[layerCounter], autoTuning, myRS, name, rootDir + tuningFolder);
+            fc.setParamHeader(paramHeaders.get(parametersFile));
+            fc.setHalfPrecision(halfPrecision);
+            if (sparse)
+                fc.setSparse(true);
             ++layerCounter;
             lastLayer = fc;
             layers.add(fc);
@@ -439,7 +961,7 @@ public class CNNdroid {
             }
             if (parametersFile == null || topk == -1)
                 return false;
-            Accuracy a = new Accuracy(topk, rootDir + parametersFile, name);
+            Accuracy a = new Accuracy(topk, parametersPath(parametersFile), name);
             lastLayer = a;
             layers.add(a);
             return true;
@@ -0,0 +1,87 @@
+package network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+
+import layers.Convolution;
+import layers.FullyConnected;
+import layers.LayerInterface;
+import numdroid.Tensor;
+
+// Range of the input of every Convolution and FullyConnected layer over sample inputs run through the float
+// network, used to pick the activation scales of the int8 implementation (quantization: "int8").
+//
+// Calibration file: one line per layer, "<layer name> <min> <max>".
+public class Calibrator {
+
+    private List<LayerInterface> layers;    // layers of the network
+    private float[] min;                    // smallest input value seen by every layer
+    private float[] max;                    // largest input value seen by every layer
+    private boolean[] seen;                 // whether the layer has been observed
+
+    public Calibrator(List<LayerInterface> layers) {
+        this.layers = layers;
+        min = new float[layers.size()];
+        max = new float[layers.size()];
+        seen = new boolean[layers.size()];
+    }
+
+    // Called with the input of layer i before it computes.
+    public void observe(int i, Tensor input) {
+        LayerInterface layer = layers.get(i);
+        if (!(layer instanceof Convolution) && !(layer instanceof FullyConnected))
+            return;
+        float lo = seen[i] ? min[i] : Float.MAX_VALUE;
+        float hi = seen[i] ? max[i] : -Float.MAX_VALUE;
+        int end = input.offset + input.size();
+        for (int j = input.offset; j < end; ++j) {
+            float v = input.data[j];
+            if (v < lo)
+                lo = v;
+            if (v > hi)
+                hi = v;
+        }
+        min[i] = lo;
+        max[i] = hi;
+        seen[i] = true;
+    }
+
+    public void write(String path) throws IOException {
+        PrintWriter out = new PrintWriter(new FileOutputStream(path));
+        try {
+            for (int i = 0; i < layers.size(); ++i)
+                if (seen[i])
+                    out.println(layers.get(i).getName() + " " + String.format(Locale.US, "%.9g %.9g", min[i], max[i]));
+        } finally {
+            out.close();
+        }
+    }
+
+    // (min, max) of every layer of a calibration file, by layer name.
+    public static Map<String, float[]> read(String path) throws IOException {
+        Map<String, float[]> ranges = new HashMap<>();
+        Scanner s = new Scanner(new File(path));
+        try {
+            s.useLocale(Locale.US);
+            while (s.hasNext()) {
+                String name = s.next();
+                if (!s.hasNextFloat())
+                    throw new IOException("malformed calibration entry for layer " + name);
+                float lo = s.nextFloat();
+                if (!s.hasNextFloat())
+                    throw new IOException("malformed calibration entry for layer " + name);
+                ranges.put(name, new float[]{lo, s.nextFloat()});
+            }
+        } finally {
+            s.close();
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,117 @@
+package network;
+
+import android.util.Log;
+
+import java.util.List;
+
+import layers.LayerInterface;
+import layers.MemoryInterface;
+import numdroid.Tensor;
+
+// Memory needed to run the network, derived from the layer list and the blob shapes without running it.
+// Resident parameters and the activation arena are held for the whole life of the network; the parameters
+// of the other layers, their packed copies and the scratch arrays only exist while their layer runs.
+public class MemoryPlanner {
+
+    private List<LayerInterface> layers;   // layers of the network
+    private int[][] shapes;                 // blob shapes, shapes[i] is the input of layer i
+    private ActivationArena arena;          // storage of the blobs produced by the layers
+
+    private long[] weightBytes;             // parameters of each layer
+    private long[] packedBytes;             // packed copy of the parameters of each layer
+    private long[] scratchBytes;            // scratch arrays of each layer
+    private long[] activationBytes;         // input and output blobs of each layer
+    private boolean[] resident;             // whether the parameters of each layer stay in memory
+
+    public MemoryPlanner(List<LayerInterface> layers, int[][] shapes, ActivationArena arena) {
+        this.layers = layers;
+        this.shapes = shapes;
+        this.arena = arena;
+
+        int layerCount = layers.size();
+        weightBytes = new long[layerCount];
+        packedBytes = new long[layerCount];
+        scratchBytes = new long[layerCount];
+        activationBytes = new long[layerCount];
+        resident = new boolean[layerCount];
+        plan();
+    }
+
+    private void plan() {
+        for (int i = 0 ; i < layers.size() ; i++) {
+            LayerInterface layer = layers.get(i);
+            if (layer instanceof MemoryInterface) {
+                MemoryInterface m = (MemoryInterface) layer;
+                weightBytes[i] = m.weightBytes();
+                packedBytes[i] = m.packedWeightBytes();
+                scratchBytes[i] = m.scratchBytes(shapes[i]);
+                resident[i] = m.paramsResident();
+            }
+            activationBytes[i] = 4L * (Tensor.count(shapes[i]) + Tensor.count(shapes[i + 1]));
+        }
+    }
+
+    // parameters and packed parameters kept between calls
+    public long residentBytes() {
+        long sum = 0;
+        for (int i = 0 ; i < layers.size() ; i++)
+            if (resident[i])
+                sum += weightBytes[i] + packedBytes[i];
+        return sum;
+    }
+
+    // the arena plus the input blob, which may have to be copied when it is not contiguous
+    public long activationBytes() {
+        return arena.bytes() + 4L * Tensor.count(shapes[0]);
+    }
+
+    // memory that only exists while layer i runs
+    public long transientBytes(int i) {
+        long sum = scratchBytes[i];
+        if (!resident[i])
+            sum += weightBytes[i] + packedBytes[i];
+        return sum;
+    }
+
+    public int peakLayer() {
+        int peak = 0;
+        for (int i = 0 ; i < layers.size() ; i++)
+            if (transientBytes(i) > transientBytes(peak))
+                peak = i;
+        return peak;
+    }
+
+    public long peakBytes() {
+        long sum = residentBytes() + activationBytes();
+        if (layers.size() > 0)
+            sum += transientBytes(peakLayer());
+        return sum;
+    }
+
+    // Make the peak fit in the given budget by releasing the largest resident parameters first.
+    // Returns false if it does not fit even with no resident parameters.
+    public boolean fit(long budget) {
+        while (peakBytes() > budget) {
+            int largest = -1;
+            for (int i = 0 ; i < layers.size() ; i++)
+                if (resident[i] && (largest == -1 || weightBytes[i] + packedBytes[i] > weightBytes[largest] + packedBytes[largest]))
+                    largest = i;
+            if (largest == -1)
+                return false;
+
+            ((MemoryInterface) layers.get(largest)).releaseParams();
+            resident[largest] = false;
+            Log.d("CNNdroid", "Memory plan: parameters of layer \"" + layers.get(largest).getName() + "\" are not kept resident to fit allocated_ram");
+        }
+        return true;
+    }
+
+    public void report() {
+        for (int i = 0 ; i < layers.size() ; i++)
+            Log.d("CNNdroid", "Memory plan: layer \"" + layers.get(i).getName() + "\": weights = " + weightBytes[i]
+                    + ", packed weights = " + packedBytes[i] + ", activations = " + activationBytes[i]
+                    + ", scratch = " + scratchBytes[i] + (resident[i] ? ", resident" : ""));
+        Log.d("CNNdroid", "Memory plan: resident parameters = " + residentBytes() + ", activations = " + activationBytes()
+                + ", peak = " + peakBytes() + " bytes");
+    }
+}
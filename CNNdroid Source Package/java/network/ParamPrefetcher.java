@@ -0,0 +1,166 @@
+package network;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import layers.LayerInterface;
+import layers.MemoryInterface;
+
+// Reads the parameters of the layers that are not resident in the background, so that a layer finds its
+// parameters ready instead of reading them inside its compute call. Layers are prefetched in network order,
+// wrapping around to the start of the next call, as long as the parameters read ahead fit in the budget.
+// With a weight cache, parameters that were read are kept between calls and cached layers are not read again.
+// The cache only gets the part of the budget above the prefetch headroom (half of the budget, and at least the
+// largest layer), so that a full cache never stops the reads ahead.
+public class ParamPrefetcher {
+
+    private List<LayerInterface> layers;    // layers of the network
+    private int[] order;                    // indices of the layers that are not resident, in network order
+    private int[] position;                 // position of every layer in order, -1 if it is resident
+    private long[] bytes;                   // size of the parameters of every layer in order
+    private long budget;                    // memory available to parameters read ahead
+    private long headroom;                  // part of the budget the cache cannot use
+    private long inFlight = 0;              // size of the parameters read ahead and not yet handed over
+    private Future<Loaded>[] pending;       // reads in progress or done, by position in order
+    private int next = 0;                   // position in order of the next layer to prefetch
+    private ExecutorService worker;         // single background reader
+    private WeightCache cache;              // parameters kept between calls, null if disabled
+
+    // parameters read by the background reader
+    private static class Loaded {
+        Object[] params;
+        long loadTime;                      // ms
+    }
+
+    @SuppressWarnings("unchecked")
+    public ParamPrefetcher(List<LayerInterface> layers, long budget, WeightCache cache) {
+        this.layers = layers;
+        this.budget = budget;
+        this.cache = cache;
+
+        int count = 0;
+        position = new int[layers.size()];
+        for (int i = 0 ; i < layers.size() ; i++) {
+            LayerInterface layer = layers.get(i);
+            position[i] = -1;
+            if (layer instanceof MemoryInterface && !((MemoryInterface) layer).paramsResident())
+                position[i] = count++;
+        }
+        order = new int[count];
+        bytes = new long[count];
+        for (int i = 0 ; i < layers.size() ; i++)
+            if (position[i] != -1) {
+                order[position[i]] = i;
+                bytes[position[i]] = ((MemoryInterface) layers.get(i)).weightBytes();
+            }
+        pending = (Future<Loaded>[]) new Future<?>[count];
+
+        long largest = 0;
+        for (long b : bytes)
+            largest = Math.max(largest, b);
+        headroom = Math.min(budget, Math.max(largest, budget / 2));
+        if (cache != null)
+            cache.setCapacity(budget - headroom);
+
+        if (count > 0)
+            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CNNdroid prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        Log.d("CNNdroid", "Prefetch: " + count + " layers not resident, budget = " + budget + " bytes");
+
+        // start with the first layers of the first call
+        if (count > 0)
+            schedule();
+    }
+
+    // Called before layer i computes: hands over its parameters if they are cached or were read ahead and
+    // starts reading the following ones.
+    public void beforeLayer(int i) {
+        int p = position[i];
+        if (p == -1)
+            return;
+        MemoryInterface layer = (MemoryInterface) layers.get(i);
+
+        Object[] params = cache != null ? cache.get(i) : null;
+        if (params == null) {
+            long loadTime = 0;
+            if (pending[p] != null) {
+                try {
+                    Loaded loaded = pending[p].get();
+                    params = loaded.params;
+                    loadTime = loaded.loadTime;
+                } catch (Exception e) {
+                    Log.d("CNNdroid", "layers." + layer.getName() + ": prefetch failed, the parameters are read in place");
+                }
+                pending[p] = null;
+                inFlight -= bytes[p];
+            }
+            else {
+                if (next == p)
+                    next = (p + 1) % order.length;
+                // not read ahead: without a cache the layer reads its parameters itself
+                if (cache == null) {
+                    schedule();
+                    return;
+                }
+                loadTime = System.currentTimeMillis();
+                params = layer.readParams();
+                loadTime = System.currentTimeMillis() - loadTime;
+            }
+
+            if (cache != null)
+                cache.put(i, params, bytes[p], loadTime);
+        }
+        layer.setPrefetchedParams(params);
+
+        schedule();
+    }
+
+    public WeightCache getCache() {
+        return cache;
+    }
+
+    // Stop the background reader, the parameters read ahead are dropped.
+    public void shutdown() {
+        if (worker != null)
+            worker.shutdownNow();
+    }
+
+    // Read ahead the next layers that are not cached while they fit in the free part of the budget.
+    private void schedule() {
+        for (int k = 0; k < order.length && pending[next] == null; ++k) {
+            if (cache != null && cache.contains(order[next])) {
+                next = (next + 1) % order.length;
+                continue;
+            }
+            long free = budget - inFlight - (cache != null ? cache.usedBytes() : 0);
+            if (bytes[next] > free)
+                break;
+
+            final MemoryInterface layer = (MemoryInterface) layers.get(order[next]);
+            pending[next] = worker.submit(new Callable<Loaded>() {
+                @Override
+                public Loaded call() {
+                    Loaded loaded = new Loaded();
+                    loaded.loadTime = System.currentTimeMillis();
+                    loaded.params = layer.readParams();
+                    loaded.loadTime = System.currentTimeMillis() - loaded.loadTime;
+                    return loaded;
+                }
+            });
+            inFlight += bytes[next];
+            next = (next + 1) % order.length;
+        }
+    }
+}
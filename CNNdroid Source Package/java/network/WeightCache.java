@@ -0,0 +1,165 @@
+package network;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Parameters of the layers that are not resident, kept between calls while they fit in the budget. When a new
+// entry does not fit, entries are evicted according to the policy:
+//   LRU        the least recently used entry first
+//   COST       the entry that is cheapest to reload per byte first, aged so that entries that are not used
+//              anymore are evicted eventually (GreedyDual-Size)
+//   FREQUENCY  the least used entry first, the least recently used one among equals
+public class WeightCache {
+
+    public enum Policy {
+        LRU,
+        COST,
+        FREQUENCY
+    }
+
+    private Policy policy;                  // eviction policy
+    private long capacity;                  // budget of the cache in bytes
+    private long used = 0;                  // size of the entries in bytes
+    private long tick = 0;                  // logical time, incremented at every access
+    private double inflation = 0;           // GreedyDual-Size aging value, the priority of the last eviction
+    private Map<Integer, Entry> entries = new HashMap<>();
+
+    private long hits = 0;                  // statistics
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejected = 0;              // entries larger than the whole cache
+    private long reloadTime = 0;            // time spent reading parameters on misses (ms)
+
+    private static class Entry {
+        Object[] params;                    // parameters as returned by the layer
+        long bytes;                         // size of the parameters
+        long loadTime;                      // time it took to read them (ms)
+        long lastUse;                       // tick of the last access
+        long uses;                          // number of accesses
+        double priority;                    // GreedyDual-Size priority
+    }
+
+    public WeightCache(Policy policy, long capacity) {
+        this.policy = policy;
+        this.capacity = Math.max(0, capacity);
+    }
+
+    // Parameters of layer key, null on a miss.
+    public Object[] get(int key) {
+        ++tick;
+        Entry e = entries.get(key);
+        if (e == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        e.lastUse = tick;
+        ++e.uses;
+        e.priority = inflation + cost(e);
+        return e.params;
+    }
+
+    // Keep the parameters of layer key, loadTime is how long reading them took.
+    public void put(int key, Object[] params, long bytes, long loadTime) {
+        reloadTime += loadTime;
+        if (params == null || entries.containsKey(key))
+            return;
+        if (bytes > capacity) {
+            ++rejected;
+            return;
+        }
+        while (used + bytes > capacity)
+            evict();
+
+        Entry e = new Entry();
+        e.params = params;
+        e.bytes = bytes;
+        e.loadTime = loadTime;
+        e.lastUse = tick;
+        e.uses = 1;
+        e.priority = inflation + cost(e);
+        entries.put(key, e);
+        used += bytes;
+    }
+
+    public boolean contains(int key) {
+        return entries.containsKey(key);
+    }
+
+    // Change the budget, entries are evicted at the next insertion if they do not fit anymore.
+    public void setCapacity(long capacity) {
+        this.capacity = Math.max(0, capacity);
+    }
+
+    public long usedBytes() {
+        return used;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public long reloadTime() {
+        return reloadTime;
+    }
+
+    public void report() {
+        Log.d("CNNdroid", "Weight cache (" + policy + "): " + entries.size() + " entries, " + used + " / " + capacity
+                + " bytes, hits = " + hits + ", misses = " + misses + ", evictions = " + evictions
+                + ", too large = " + rejected + ", reload time = " + reloadTime + "ms");
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private void evict() {
+        Integer victim = null;
+        Entry v = null;
+        for (Map.Entry<Integer, Entry> me : entries.entrySet()) {
+            Entry e = me.getValue();
+            if (v == null || before(e, v)) {
+                victim = me.getKey();
+                v = e;
+            }
+        }
+        if (policy == Policy.COST)
+            inflation = v.priority;
+        entries.remove(victim);
+        used -= v.bytes;
+        ++evictions;
+    }
+
+    // whether a should be evicted before b
+    private boolean before(Entry a, Entry b) {
+        switch (policy) {
+            case COST:
+                if (a.priority != b.priority)
+                    return a.priority < b.priority;
+                break;
+            case FREQUENCY:
+                if (a.uses != b.uses)
+                    return a.uses < b.uses;
+                break;
+            default:
+                break;
+        }
+        return a.lastUse < b.lastUse;
+    }
+
+    // reload time per byte, with at least 1 ms so that fast reloads still rank by size
+    private static double cost(Entry e) {
+        return Math.max(1, e.loadTime) / (double) Math.max(1, e.bytes);
+    }
+}
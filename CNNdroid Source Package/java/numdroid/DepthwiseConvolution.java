@@ -0,0 +1,111 @@
+package numdroid;
+
+import java.util.Arrays;
+
+// Depthwise convolution: one input channel per group (group == channels), with n_k / group kernels per channel.
+// As a matrix product every kernel would be a single row of h_k * w_k values, all packing and no reuse, so the
+// output is computed directly. Each output row is accumulated one kernel tap at a time over the span of the
+// row whose input lies inside the image: the inner loop has no bounds checks and, at stride 1, is a unit-stride
+// multiply-add. The planes of the output (image, kernel) are split among the workers, each reading its input
+// channel in place. Each layer has its own instance, whose tasks are reused from call to call.
+public class DepthwiseConvolution
+{
+    private static final long MIN_PARALLEL_WORK = 1 << 16;  // multiply-adds below which one thread is faster
+    private static final int TASKS_PER_THREAD = 4;          // for load balance
+    private static final Kernels simd = Kernels.get();      // row multiply-adds
+
+    // arguments of the call in progress, read by the tasks
+    private float[] in, kernels, bias, out;
+    private int inOffset, outOffset, c_i, h_i, w_i, n_k, h_k, w_k, h_o, w_o;
+    private int[] pad, stride;
+    private int multiplier;                 // kernels per input channel
+    private int planes, taskCount;          // output planes (image, kernel), split in taskCount ranges
+
+    // task t: output planes [planes * t / taskCount, planes * (t + 1) / taskCount)
+    private final Workers.Loop tasks = new Workers.Loop() {
+        @Override
+        protected void task(int t)
+        {
+            int first = (int) ((long) planes * t / taskCount);
+            int last = (int) ((long) planes * (t + 1) / taskCount);
+            for (int p = first; p < last; ++p) {
+                int n = p / n_k;
+                int k = p % n_k;
+                convolvePlane(in, inOffset + (n * c_i + k / multiplier) * h_i * w_i, h_i, w_i, kernels,
+                        k * h_k * w_k, bias[k], h_k, w_k, pad, stride, out, outOffset + p * h_o * w_o, h_o, w_o);
+            }
+        }
+    };
+
+    // Kernels of one input channel each, split in more than one group.
+    public static boolean applies(int c_k, int group)
+    {
+        return c_k == 1 && group > 1;
+    }
+
+    // out (n_i, n_k, h_o, w_o) = in (n_i, c_i, h_i, w_i) convolved with the kernels (n_k, 1, h_k, w_k), plus
+    // bias, kernel k reading input channel k / (n_k / c_i).
+    public void convolve(float[] in, int inOffset, int n_i, int c_i, int h_i, int w_i, float[] kernels, float[] bias,
+                         int n_k, int h_k, int w_k, int[] pad, int[] stride, float[] out, int outOffset, int h_o,
+                         int w_o)
+    {
+        this.in = in;
+        this.inOffset = inOffset;
+        this.c_i = c_i;
+        this.h_i = h_i;
+        this.w_i = w_i;
+        this.kernels = kernels;
+        this.bias = bias;
+        this.n_k = n_k;
+        this.h_k = h_k;
+        this.w_k = w_k;
+        this.pad = pad;
+        this.stride = stride;
+        this.out = out;
+        this.outOffset = outOffset;
+        this.h_o = h_o;
+        this.w_o = w_o;
+        multiplier = n_k / c_i;
+        planes = n_i * n_k;
+        taskCount = Math.min(planes, Workers.threads() * TASKS_PER_THREAD);
+        if ((long) planes * h_o * w_o * h_k * w_k < MIN_PARALLEL_WORK)
+            taskCount = 1;
+        tasks.run(taskCount);
+        this.in = null;                 // the blobs and the weights of a layer that is not resident can be freed
+        this.kernels = null;
+        this.bias = null;
+        this.out = null;
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private static void convolvePlane(float[] in, int inOffset, int h_i, int w_i, float[] kernels, int kOffset,
+                                      float bias, int h_k, int w_k, int[] pad, int[] stride, float[] out,
+                                      int outOffset, int h_o, int w_o)
+    {
+        int h_s = stride[0];
+        int w_s = stride[1];
+        for (int y = 0; y < h_o; ++y) {
+            int o = outOffset + y * w_o;
+            Arrays.fill(out, o, o + w_o, bias);
+            for (int i = 0; i < h_k; ++i) {
+                int row = y * h_s - pad[0] + i;
+                if (row < 0 || row >= h_i)
+                    continue;
+                for (int j = 0; j < w_k; ++j) {
+                    float w = kernels[kOffset + i * w_k + j];
+                    // output columns [x0, x1) read input column x * w_s + shift inside the row
+                    int shift = j - pad[1];
+                    int x0 = shift >= 0 ? 0 : (-shift + w_s - 1) / w_s;
+                    int x1 = w_i - 1 - shift < 0 ? 0 : Math.min(w_o, (w_i - 1 - shift) / w_s + 1);
+                    int src = inOffset + row * w_i + shift;
+                    if (w_s == 1) {
+                        if (x0 < x1)
+                            simd.axpy(w, in, src + x0, out, o + x0, x1 - x0);
+                    } else
+                        for (int x = x0; x < x1; ++x)
+                            out[o + x] += w * in[src + x * w_s];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package numdroid;
+
+// Radix-2 complex FFT of a fixed size n (a power of 2), in place on the real and imaginary parts held in two
+// regions of an array. The inverse transform is not scaled by 1 / n.
+public class FFT
+{
+    private final int n;
+    private final int[] reverse;        // bit-reversed index of every index
+    private final float[] cos;          // cos(2 pi k / n), k < n / 2
+    private final float[] sin;          // sin(2 pi k / n), k < n / 2
+
+    public FFT(int n)
+    {
+        if (n < 1 || (n & (n - 1)) != 0)
+            throw new IllegalArgumentException("FFT size " + n + " is not a power of 2");
+        this.n = n;
+        reverse = new int[n];
+        int bits = Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; ++i)
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        cos = new float[n / 2];
+        sin = new float[n / 2];
+        for (int k = 0; k < n / 2; ++k) {
+            cos[k] = (float) Math.cos(2 * Math.PI * k / n);
+            sin[k] = (float) Math.sin(2 * Math.PI * k / n);
+        }
+    }
+
+    public int size()
+    {
+        return n;
+    }
+
+    // Transform the n values at offset + i * stride, the real parts from data[re + ...], the imaginary parts
+    // from data[im + ...].
+    public void transform(float[] data, int re, int im, int offset, int stride, boolean inverse)
+    {
+        for (int i = 0; i < n; ++i) {
+            int j = reverse[i];
+            if (i < j) {
+                int a = offset + i * stride;
+                int b = offset + j * stride;
+                float t = data[re + a];
+                data[re + a] = data[re + b];
+                data[re + b] = t;
+                t = data[im + a];
+                data[im + a] = data[im + b];
+                data[im + b] = t;
+            }
+        }
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size >> 1;
+            int step = n / size;
+            for (int start = 0; start < n; start += size)
+                for (int k = 0; k < half; ++k) {
+                    float wr = cos[k * step];
+                    float wi = inverse ? sin[k * step] : -sin[k * step];
+                    int a = offset + (start + k) * stride;
+                    int b = a + half * stride;
+                    float br = data[re + b];
+                    float bi = data[im + b];
+                    float tr = br * wr - bi * wi;
+                    float ti = br * wi + bi * wr;
+                    float ar = data[re + a];
+                    float ai = data[im + a];
+                    data[re + b] = ar - tr;
+                    data[im + b] = ai - ti;
+                    data[re + a] = ar + tr;
+                    data[im + a] = ai + ti;
+                }
+        }
+    }
+
+    // Transform the n x n row-major matrix whose real parts start at data[re] and imaginary parts at data[im],
+    // rows then columns.
+    public void transform2D(float[] data, int re, int im, boolean inverse)
+    {
+        for (int r = 0; r < n; ++r)
+            transform(data, re, im, r * n, 1, inverse);
+        for (int c = 0; c < n; ++c)
+            transform(data, re, im, c, n, inverse);
+    }
+}
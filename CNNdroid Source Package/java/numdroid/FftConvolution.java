@@ -0,0 +1,279 @@
+package numdroid;
+
+import java.util.Arrays;
+
+// Convolution with large kernels through the FFT, by overlap-save: the (stride 1) correlation of the padded input
+// with a kernel is computed in tiles of N x N input values, N a power of 2, whose circular correlation with the
+// kernel is exact on the first (N - h_k + 1) x (N - w_k + 1) positions. With a larger stride, the positions
+// that are not on the stride are computed and dropped.
+//
+// The kernel spectra are computed once, conjugated (correlation instead of convolution) and scaled by 1 / N^2.
+// Kernels go by pairs: the output of two real kernels is the real and the imaginary part of the inverse
+// transform of sum over channels of X . (W1* + i W2*), so every pair takes one spectrum product per channel
+// and one inverse transform.
+//
+// A cost model (preferred) chooses this over im2col + GEMM for large kernel areas at small strides.
+// The tasks of a call are kept by the instance (one per layer) and run again for the next calls.
+public class FftConvolution
+{
+    private static final int MIN_SIZE = 8;
+    private static final int MAX_SIZE = 32;             // larger tiles waste more on small images, whose size is not known at load
+    private static final int MIN_KERNEL_AREA = 25;      // smaller kernels are always faster as a matrix product
+    private static final float GEMM_SPEEDUP = 4;        // a multiply-add of Gemm is about this much faster than one of the FFT path (measured)
+    private static final int MAX_EXPANSION = 16;        // largest size of the kernel spectra relative to the weights
+    private static final long MIN_PARALLEL_WORK = 1 << 16;
+
+    private static final ThreadLocal<float[]> buffers = new ThreadLocal<>();   // tile buffers of every thread
+    private static final FFT[] ffts = createFfts();     // tables of every tile size, indexed by log2(n); read-only, shared by all threads
+
+    // arguments of the call in progress, read by the tasks
+    private float[] in, spectra, bias, out;
+    private int inOffset, outOffset, c_i, h_i, w_i, n, n_k, group, h_o, w_o;
+    private int[] pad, stride;
+    private int m_k, c_k;                   // kernels and channels per group
+    private int validY, validX;             // positions of the stride-1 correlation computed by a tile
+    private int spanY, spanX;               // positions of the stride-1 correlation that are needed
+    private int tilesY, tilesX;
+
+    // task (image, group, row of tiles, column of tiles), in this order
+    private final Workers.Loop tasks = new Workers.Loop() {
+        @Override
+        protected void task(int i)
+        {
+            int b = i / tilesX / tilesY / group;
+            int g = i / tilesX / tilesY % group;
+            int top = i / tilesX % tilesY * validY;
+            int left = i % tilesX * validX;
+            convolveTile(in, inOffset + (b * c_i + g * c_k) * h_i * w_i, c_k, h_i, w_i, spectra, n, bias, m_k, g, pad,
+                    stride, out, outOffset + (b * n_k + g * m_k) * h_o * w_o, h_o, w_o, top, left,
+                    Math.min(validY, spanY - top), Math.min(validX, spanX - left));
+        }
+    };
+
+    // Tile size N with the lowest cost per output of the stride-1 correlation among the sizes whose kernel
+    // spectra (N^2 values for every kernel and channel) stay within MAX_EXPANSION times the weights, -1 if none.
+    public static int tileSize(int c_k, int m_k, int h_k, int w_k)
+    {
+        int best = -1;
+        double bestCost = 0;
+        for (int n = MIN_SIZE; n <= MAX_SIZE; n <<= 1) {
+            if (n <= h_k || n <= w_k || n * n > MAX_EXPANSION * h_k * w_k)
+                continue;
+            double cost = costPerOutput(c_k, m_k, h_k, w_k, n);
+            if (best == -1 || cost < bestCost) {
+                best = n;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    // Whether the FFT path is estimated to be faster than im2col + GEMM for this layer.
+    public static boolean preferred(int c_k, int m_k, int h_k, int w_k, int[] stride)
+    {
+        if (h_k * w_k < MIN_KERNEL_AREA)
+            return false;
+        int n = tileSize(c_k, m_k, h_k, w_k);
+        if (n == -1)
+            return false;
+        double fft = costPerOutput(c_k, m_k, h_k, w_k, n) * stride[0] * stride[1];
+        double gemm = (double) m_k * c_k * h_k * w_k / GEMM_SPEEDUP;
+        return fft < gemm;
+    }
+
+    // Spectra of the kernels (n_k, c_k, h_k, w_k) for tiles of n x n: for every group, pair of kernels and
+    // channel, the real then the imaginary part of (W1* + i W2*) / n^2.
+    public static float[] transformKernels(float[] kernels, int n_k, int c_k, int h_k, int w_k, int group, int n)
+    {
+        FFT fft = fft(n);
+        int m_k = n_k / group;
+        int pairs = (m_k + 1) / 2;
+        int area = n * n;
+        float scale = 1f / area;
+        float[] spectra = new float[group * pairs * c_k * 2 * area];
+        float[] z = new float[2 * area];       // real parts, then imaginary parts
+        for (int g = 0; g < group; ++g)
+            for (int p = 0; p < pairs; ++p)
+                for (int c = 0; c < c_k; ++c) {
+                    // W1 + i W2 transformed at once, then split into the two spectra
+                    int k1 = g * m_k + 2 * p;
+                    boolean second = 2 * p + 1 < m_k;
+                    Arrays.fill(z, 0);
+                    for (int y = 0; y < h_k; ++y)
+                        for (int x = 0; x < w_k; ++x) {
+                            z[y * n + x] = kernels[((k1 * c_k + c) * h_k + y) * w_k + x];
+                            if (second)
+                                z[area + y * n + x] = kernels[(((k1 + 1) * c_k + c) * h_k + y) * w_k + x];
+                        }
+                    fft.transform2D(z, 0, area, false);
+                    int dst = ((g * pairs + p) * c_k + c) * 2 * area;
+                    for (int f = 0; f < area; ++f) {
+                        int r = (n - f / n) % n * n + (n - f % n) % n;     // index of -f
+                        // W1 = (Z[f] + Z*[-f]) / 2, W2 = (Z[f] - Z*[-f]) / 2i
+                        float w1r = (z[f] + z[r]) / 2;
+                        float w1i = (z[area + f] - z[area + r]) / 2;
+                        float w2r = (z[area + f] + z[area + r]) / 2;
+                        float w2i = (z[r] - z[f]) / 2;
+                        // W1* + i W2* = (w1r + w2i) + i (w2r - w1i)
+                        spectra[dst + f] = (w1r + w2i) * scale;
+                        spectra[dst + area + f] = (w2r - w1i) * scale;
+                    }
+                }
+        return spectra;
+    }
+
+    // out (n_i, n_k, h_o, w_o) = in (n_i, c_i, h_i, w_i) convolved with the kernel spectra for tiles of n x n.
+    public void convolve(float[] in, int inOffset, int n_i, int c_i, int h_i, int w_i, float[] spectra, int n,
+                         float[] bias, int n_k, int h_k, int w_k, int group, int[] pad, int[] stride, float[] out,
+                         int outOffset, int h_o, int w_o)
+    {
+        this.in = in;
+        this.inOffset = inOffset;
+        this.c_i = c_i;
+        this.h_i = h_i;
+        this.w_i = w_i;
+        this.spectra = spectra;
+        this.n = n;
+        this.bias = bias;
+        this.n_k = n_k;
+        this.group = group;
+        this.pad = pad;
+        this.stride = stride;
+        this.out = out;
+        this.outOffset = outOffset;
+        this.h_o = h_o;
+        this.w_o = w_o;
+        m_k = n_k / group;
+        c_k = c_i / group;
+        validY = n - h_k + 1;
+        validX = n - w_k + 1;
+        spanY = (h_o - 1) * stride[0] + 1;
+        spanX = (w_o - 1) * stride[1] + 1;
+        tilesY = (spanY + validY - 1) / validY;
+        tilesX = (spanX + validX - 1) / validX;
+
+        int count = n_i * group * tilesY * tilesX;
+        if ((long) n_i * n_k * c_k * tilesY * tilesX * n * n < MIN_PARALLEL_WORK)
+            tasks.runHere(count);
+        else
+            tasks.run(count);
+        this.in = null;                 // the blobs and the spectra of a layer that is not resident can be freed
+        this.spectra = null;
+        this.bias = null;
+        this.out = null;
+    }
+
+    // Memory of the kernel spectra.
+    public static long kernelBytes(int n_k, int c_k, int group, int n)
+    {
+        return 4L * group * ((n_k / group + 1) / 2) * c_k * 2 * n * n;
+    }
+
+    // Memory of the tile buffers of all threads.
+    public static long scratchBytes(int c_k, int n)
+    {
+        return 4L * (c_k + 1) * 2 * n * n * Workers.threads();
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Multiply-adds per output of the stride-1 correlation, for all the kernels of a group: forward transforms
+    // of the channels, spectrum products (4 multiply-adds per frequency) and inverse transforms of the pairs,
+    // over the valid outputs of a tile. A complex FFT of n x n takes about 2.5 n^2 log2(n^2) multiply-adds.
+    private static double costPerOutput(int c_k, int m_k, int h_k, int w_k, int n)
+    {
+        double area = (double) n * n;
+        double fft = 2.5 * area * (2 * Integer.numberOfTrailingZeros(n));
+        int pairs = (m_k + 1) / 2;
+        double tile = c_k * fft + pairs * (c_k * 4 * area + fft);
+        return tile / ((n - h_k + 1) * (n - w_k + 1));
+    }
+
+    // One tile: positions [top, top + rows) x [left, left + cols) of the stride-1 correlation over the padded
+    // input, of all kernels of the group.
+    private static void convolveTile(float[] in, int frame, int c_k, int h_i, int w_i, float[] spectra, int n,
+                                     float[] bias, int m_k, int group, int[] pad, int[] stride, float[] out, int plane,
+                                     int h_o, int w_o, int top, int left, int rows, int cols)
+    {
+        FFT fft = fft(n);
+        int area = n * n;
+        int pairs = (m_k + 1) / 2;
+        float[] buffer = buffer((c_k + 1) * 2 * area);
+        int acc = c_k * 2 * area;
+
+        // spectra of the input tiles of all channels
+        for (int c = 0; c < c_k; ++c) {
+            int x = c * 2 * area;
+            int channel = frame + c * h_i * w_i;
+            for (int i = 0; i < n; ++i) {
+                int y = top + i - pad[0];
+                for (int j = 0; j < n; ++j) {
+                    int col = left + j - pad[1];
+                    buffer[x + i * n + j] = y >= 0 && y < h_i && col >= 0 && col < w_i ? in[channel + y * w_i + col] : 0;
+                    buffer[x + area + i * n + j] = 0;
+                }
+            }
+            fft.transform2D(buffer, x, x + area, false);
+        }
+
+        for (int p = 0; p < pairs; ++p) {
+            Arrays.fill(buffer, acc, acc + 2 * area, 0);
+            for (int c = 0; c < c_k; ++c) {
+                int x = c * 2 * area;
+                int w = ((group * pairs + p) * c_k + c) * 2 * area;
+                for (int f = 0; f < area; ++f) {
+                    float xr = buffer[x + f];
+                    float xi = buffer[x + area + f];
+                    float wr = spectra[w + f];
+                    float wi = spectra[w + area + f];
+                    buffer[acc + f] += xr * wr - xi * wi;
+                    buffer[acc + area + f] += xr * wi + xi * wr;
+                }
+            }
+            fft.transform2D(buffer, acc, acc + area, true);
+
+            // keep the positions on the stride, the real part is kernel 2p, the imaginary part kernel 2p + 1
+            int k1 = 2 * p;
+            for (int i = 0; i < rows; ++i) {
+                int u = top + i;
+                if (u % stride[0] != 0)
+                    continue;
+                int y = u / stride[0];
+                for (int j = 0; j < cols; ++j) {
+                    int v = left + j;
+                    if (v % stride[1] != 0)
+                        continue;
+                    int x = v / stride[1];
+                    out[plane + (k1 * h_o + y) * w_o + x] = buffer[acc + i * n + j] + bias[group * m_k + k1];
+                    if (k1 + 1 < m_k)
+                        out[plane + ((k1 + 1) * h_o + y) * w_o + x] = buffer[acc + area + i * n + j] + bias[group * m_k + k1 + 1];
+                }
+            }
+        }
+    }
+
+    private static FFT[] createFfts()
+    {
+        FFT[] f = new FFT[Integer.numberOfTrailingZeros(MAX_SIZE) + 1];
+        for (int n = MIN_SIZE; n <= MAX_SIZE; n <<= 1)
+            f[Integer.numberOfTrailingZeros(n)] = new FFT(n);
+        return f;
+    }
+
+    private static FFT fft(int n)
+    {
+        int log = Integer.numberOfTrailingZeros(n);
+        if ((n & (n - 1)) == 0 && log < ffts.length && ffts[log] != null)
+            return ffts[log];
+        return new FFT(n);
+    }
+
+    private static float[] buffer(int size)
+    {
+        float[] b = buffers.get();
+        if (b == null || b.length < size) {
+            b = new float[size];
+            buffers.set(b);
+        }
+        return b;
+    }
+}
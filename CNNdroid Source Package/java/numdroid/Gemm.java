@@ -0,0 +1,126 @@
+package numdroid;
+
+// Single-precision matrix product C = A * B + bias on the CPU, blocked for registers and caches. A (m x k, the
+// weights) is packed once into panels of MR rows (packA). B (k x n) is read as panels of NR columns: either
+// packed one after the other by the caller (see GemmConvolution) or read in place from a row-major matrix.
+// The micro-kernel keeps an MR x NR block of C in local variables while it runs over KC values of k, so that
+// the slices of the A and B panels it reads stay in the L1 cache.
+public class Gemm
+{
+    public static final int MR = 4;         // rows of C computed together
+    public static final int NR = 8;         // columns of C computed together
+    public static final int KC = 256;       // values of k per pass over a block of C
+
+    // Size of an m x k matrix once packed.
+    public static int packedSize(int m, int k)
+    {
+        return (m + MR - 1) / MR * MR * k;
+    }
+
+    // Pack the row-major m x k matrix starting at a[offset] into panels of MR rows: panel p holds, column after
+    // column, the values of rows p * MR .. p * MR + MR - 1, the rows after m are zero.
+    public static void packA(float[] a, int offset, int m, int k, float[] packed, int packedOffset)
+    {
+        for (int i0 = 0; i0 < m; i0 += MR) {
+            int base = packedOffset + i0 * k;
+            for (int p = 0; p < k; ++p)
+                for (int i = 0; i < MR; ++i)
+                    packed[base + p * MR + i] = i0 + i < m ? a[offset + (i0 + i) * k + p] : 0;
+        }
+    }
+
+    // C[i][j] = bias[biasOffset + i] + sum over p of A[i][p] * B[p][j], for i < m and j < n, bias may be null.
+    // A is packed (packA) from packedA[aOffset]. B[p][j] is b[bOffset + (j / NR) * panelStride + p * ldb + j % NR]:
+    // panels packed one after the other have ldb = NR and panelStride = k * NR, a row-major matrix read in
+    // place has ldb = its row length and panelStride = NR. Row i of C starts at c[cOffset + i * ldc].
+    public static void multiply(float[] packedA, int aOffset, int m, int k, float[] b, int bOffset, int ldb,
+                                int panelStride, int n, float[] bias, int biasOffset, float[] c, int cOffset, int ldc)
+    {
+        for (int k0 = 0; k0 < k; k0 += KC) {
+            int kc = Math.min(KC, k - k0);
+            for (int j0 = 0; j0 < n; j0 += NR) {
+                int cols = Math.min(NR, n - j0);
+                int bi = bOffset + j0 / NR * panelStride + k0 * ldb;
+                for (int i0 = 0; i0 < m; i0 += MR) {
+                    int rows = Math.min(MR, m - i0);
+                    int ai = aOffset + i0 * k + k0 * MR;
+                    int ci = cOffset + i0 * ldc + j0;
+                    if (rows == MR && cols == NR)
+                        kernel(packedA, ai, b, bi, ldb, kc, c, ci, ldc, k0 == 0, bias, biasOffset + i0);
+                    else
+                        edgeKernel(packedA, ai, b, bi, ldb, kc, c, ci, ldc, rows, cols, k0 == 0, bias, biasOffset + i0);
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // MR x NR block of C over kc values of k. The first pass starts from the bias, later ones from C.
+    private static void kernel(float[] a, int ai, float[] b, int bi, int ldb, int kc, float[] c, int ci, int ldc,
+                               boolean first, float[] bias, int biasOffset)
+    {
+        float c00, c01, c02, c03, c04, c05, c06, c07;
+        float c10, c11, c12, c13, c14, c15, c16, c17;
+        float c20, c21, c22, c23, c24, c25, c26, c27;
+        float c30, c31, c32, c33, c34, c35, c36, c37;
+        int r0 = ci;
+        int r1 = ci + ldc;
+        int r2 = ci + 2 * ldc;
+        int r3 = ci + 3 * ldc;
+        if (first) {
+            float v0 = bias != null ? bias[biasOffset] : 0;
+            float v1 = bias != null ? bias[biasOffset + 1] : 0;
+            float v2 = bias != null ? bias[biasOffset + 2] : 0;
+            float v3 = bias != null ? bias[biasOffset + 3] : 0;
+            c00 = c01 = c02 = c03 = c04 = c05 = c06 = c07 = v0;
+            c10 = c11 = c12 = c13 = c14 = c15 = c16 = c17 = v1;
+            c20 = c21 = c22 = c23 = c24 = c25 = c26 = c27 = v2;
+            c30 = c31 = c32 = c33 = c34 = c35 = c36 = c37 = v3;
+        }
+        else {
+            c00 = c[r0]; c01 = c[r0 + 1]; c02 = c[r0 + 2]; c03 = c[r0 + 3]; c04 = c[r0 + 4]; c05 = c[r0 + 5]; c06 = c[r0 + 6]; c07 = c[r0 + 7];
+            c10 = c[r1]; c11 = c[r1 + 1]; c12 = c[r1 + 2]; c13 = c[r1 + 3]; c14 = c[r1 + 4]; c15 = c[r1 + 5]; c16 = c[r1 + 6]; c17 = c[r1 + 7];
+            c20 = c[r2]; c21 = c[r2 + 1]; c22 = c[r2 + 2]; c23 = c[r2 + 3]; c24 = c[r2 + 4]; c25 = c[r2 + 5]; c26 = c[r2 + 6]; c27 = c[r2 + 7];
+            c30 = c[r3]; c31 = c[r3 + 1]; c32 = c[r3 + 2]; c33 = c[r3 + 3]; c34 = c[r3 + 4]; c35 = c[r3 + 5]; c36 = c[r3 + 6]; c37 = c[r3 + 7];
+        }
+
+        for (int p = 0; p < kc; ++p) {
+            float a0 = a[ai];
+            float a1 = a[ai + 1];
+            float a2 = a[ai + 2];
+            float a3 = a[ai + 3];
+            float b0 = b[bi];
+            float b1 = b[bi + 1];
+            float b2 = b[bi + 2];
+            float b3 = b[bi + 3];
+            float b4 = b[bi + 4];
+            float b5 = b[bi + 5];
+            float b6 = b[bi + 6];
+            float b7 = b[bi + 7];
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3; c04 += a0 * b4; c05 += a0 * b5; c06 += a0 * b6; c07 += a0 * b7;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3; c14 += a1 * b4; c15 += a1 * b5; c16 += a1 * b6; c17 += a1 * b7;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3; c24 += a2 * b4; c25 += a2 * b5; c26 += a2 * b6; c27 += a2 * b7;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3; c34 += a3 * b4; c35 += a3 * b5; c36 += a3 * b6; c37 += a3 * b7;
+            ai += MR;
+            bi += ldb;
+        }
+
+        c[r0] = c00; c[r0 + 1] = c01; c[r0 + 2] = c02; c[r0 + 3] = c03; c[r0 + 4] = c04; c[r0 + 5] = c05; c[r0 + 6] = c06; c[r0 + 7] = c07;
+        c[r1] = c10; c[r1 + 1] = c11; c[r1 + 2] = c12; c[r1 + 3] = c13; c[r1 + 4] = c14; c[r1 + 5] = c15; c[r1 + 6] = c16; c[r1 + 7] = c17;
+        c[r2] = c20; c[r2 + 1] = c21; c[r2 + 2] = c22; c[r2 + 3] = c23; c[r2 + 4] = c24; c[r2 + 5] = c25; c[r2 + 6] = c26; c[r2 + 7] = c27;
+        c[r3] = c30; c[r3 + 1] = c31; c[r3 + 2] = c32; c[r3 + 3] = c33; c[r3 + 4] = c34; c[r3 + 5] = c35; c[r3 + 6] = c36; c[r3 + 7] = c37;
+    }
+
+    // Partial block at the bottom or right edge of C, only the valid rows and columns are read and written.
+    private static void edgeKernel(float[] a, int ai, float[] b, int bi, int ldb, int kc, float[] c, int ci, int ldc,
+                                   int rows, int cols, boolean first, float[] bias, int biasOffset)
+    {
+        for (int i = 0; i < rows; ++i)
+            for (int j = 0; j < cols; ++j) {
+                float sum = first ? (bias != null ? bias[biasOffset + i] : 0) : c[ci + i * ldc + j];
+                for (int p = 0; p < kc; ++p)
+                    sum += a[ai + p * MR + i] * b[bi + p * ldb + j];
+                c[ci + i * ldc + j] = sum;
+            }
+    }
+}
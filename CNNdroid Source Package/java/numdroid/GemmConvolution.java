@@ -0,0 +1,202 @@
+package numdroid;
+
+// Convolution of a batch on the CPU as matrix products. For every image and group, the output (kernels x output
+// pixels) is the product of the kernels (kernels x c_k * h_k * w_k, packed once with packKernels) and the im2col
+// matrix of the input (c_k * h_k * w_k x output pixels), whose column j holds the input values under the kernel
+// at output pixel j. The output pixels are split in tiles whose im2col matrix fits in the L2 cache; tiles are
+// lowered straight into Gemm panels and multiplied in parallel, each thread in its own reusable buffer. When
+// there are fewer tiles than threads, the kernels are split in blocks as well.
+// A 1x1 convolution with stride 1 and no padding needs no im2col: the channel planes of the input are the
+// rows of its im2col matrix, which Gemm reads in place.
+// A layer keeps one instance: its tasks are reused from call to call, so that a call allocates nothing once the
+// buffers have grown to the size of the layer.
+public class GemmConvolution
+{
+    private static final int TILE_BYTES = 1 << 17;          // im2col panels of a tile, about half an L2 cache
+    private static final long MIN_PARALLEL_WORK = 1 << 16;  // multiply-adds below which one thread is faster
+
+    private static final ThreadLocal<float[]> panels = new ThreadLocal<>();    // im2col buffer of every thread
+    private static final ThreadLocal<int[]> corners = new ThreadLocal<>();     // input positions of NR output pixels, for every thread
+
+    // arguments of the call in progress, read by the tasks
+    private float[] in, packed, bias, out;
+    private int inOffset, outOffset, c_i, h_i, w_i, n_k, h_k, w_k, group, w_o;
+    private int[] pad, stride;
+    private int m, c_k, k, pixels;          // kernels, channels and im2col rows per group, output pixels per image
+    private int tile, tiles, rows, blocks;  // output pixels, tiles per image, kernels, kernel blocks per group
+    private boolean pointwise;
+
+    // task (image, group, block of kernels, tile of output pixels), in this order
+    private final Workers.Loop tasks = new Workers.Loop() {
+        @Override
+        protected void task(int i)
+        {
+            multiplyTile(i / tiles / blocks / group, i / tiles / blocks % group, i / tiles % blocks * rows,
+                    i % tiles * tile);
+        }
+    };
+
+    // Kernels (n_k, c_k, h_k, w_k) packed for Gemm, group after group.
+    public static float[] packKernels(float[] kernels, int n_k, int c_k, int h_k, int w_k, int group)
+    {
+        int m = n_k / group;
+        int k = c_k * h_k * w_k;
+        int size = Gemm.packedSize(m, k);
+        float[] packed = new float[size * group];
+        for (int g = 0; g < group; ++g)
+            Gemm.packA(kernels, g * m * k, m, k, packed, g * size);
+        return packed;
+    }
+
+    // out (n_i, n_k, h_o, w_o) = in (n_i, c_i, h_i, w_i) convolved with the packed kernels, plus bias. Both blobs
+    // are contiguous, starting at in[inOffset] and out[outOffset].
+    public void convolve(float[] in, int inOffset, int n_i, int c_i, int h_i, int w_i, float[] packed, float[] bias,
+                         int n_k, int h_k, int w_k, int group, int[] pad, int[] stride, float[] out, int outOffset,
+                         int h_o, int w_o)
+    {
+        this.in = in;
+        this.inOffset = inOffset;
+        this.c_i = c_i;
+        this.h_i = h_i;
+        this.w_i = w_i;
+        this.packed = packed;
+        this.bias = bias;
+        this.n_k = n_k;
+        this.h_k = h_k;
+        this.w_k = w_k;
+        this.group = group;
+        this.pad = pad;
+        this.stride = stride;
+        this.out = out;
+        this.outOffset = outOffset;
+        this.w_o = w_o;
+        m = n_k / group;
+        c_k = c_i / group;
+        k = c_k * h_k * w_k;
+        pixels = h_o * w_o;
+        tile = tileWidth(k, pixels, n_i * group);
+        pointwise = pointwise(h_k, w_k, pad, stride);
+        tiles = (pixels + tile - 1) / tile;
+        rows = blockRows(m, n_i * group * tiles);
+        blocks = (m + rows - 1) / rows;
+
+        int count = n_i * group * blocks * tiles;
+        if ((long) n_i * n_k * pixels * k < MIN_PARALLEL_WORK)
+            tasks.runHere(count);
+        else
+            tasks.run(count);
+        this.in = null;                 // the blobs and the weights of a layer that is not resident can be freed
+        this.packed = null;
+        this.bias = null;
+        this.out = null;
+    }
+
+    // A 1x1 convolution with stride 1 and no padding, computed without im2col.
+    public static boolean pointwise(int h_k, int w_k, int[] pad, int[] stride)
+    {
+        return h_k == 1 && w_k == 1 && pad[0] == 0 && pad[1] == 0 && stride[0] == 1 && stride[1] == 1;
+    }
+
+    // Memory of the im2col buffers of all threads.
+    public static long scratchBytes(int c_k, int h_k, int w_k, int[] pad, int[] stride, int h_o, int w_o, int batches)
+    {
+        if (pointwise(h_k, w_k, pad, stride))
+            return 0;
+        int k = c_k * h_k * w_k;
+        return 4L * k * roundUp(tileWidth(k, h_o * w_o, batches), Gemm.NR) * Workers.threads();
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Kernels [i0, i0 + rows) of group g times output pixels [j0, j0 + tile) of image n.
+    private void multiplyTile(int n, int g, int i0, int j0)
+    {
+        int frame = inOffset + (n * c_i + g * c_k) * h_i * w_i;
+        int aOffset = g * Gemm.packedSize(m, k) + i0 * k;
+        int cOffset = outOffset + (n * n_k + g * m + i0) * pixels + j0;
+        int mb = Math.min(rows, m - i0);
+        int cols = Math.min(tile, pixels - j0);
+        int biasOffset = g * m + i0;
+        if (pointwise) {
+            Gemm.multiply(packed, aOffset, mb, k, in, frame + j0, pixels, Gemm.NR, cols, bias, biasOffset, out,
+                    cOffset, pixels);
+            return;
+        }
+        float[] b = panels(k * roundUp(cols, Gemm.NR));
+        im2col(in, frame, c_k, h_i, w_i, h_k, w_k, pad, stride, w_o, j0, cols, b);
+        Gemm.multiply(packed, aOffset, mb, k, b, 0, Gemm.NR, k * Gemm.NR, cols, bias, biasOffset, out, cOffset,
+                pixels);
+    }
+
+    // Output pixels per tile: the im2col panels fit in TILE_BYTES, and there are enough tiles for all threads.
+    private static int tileWidth(int k, int pixels, int batches)
+    {
+        int tile = Math.max(Gemm.NR, TILE_BYTES / (4 * k) / Gemm.NR * Gemm.NR);
+        long perThread = ((long) pixels * batches + Workers.threads() - 1) / Workers.threads();
+        if (perThread < tile)
+            tile = Math.max(Gemm.NR, roundUp((int) perThread, Gemm.NR));
+        return Math.min(tile, roundUp(pixels, Gemm.NR));
+    }
+
+    // Kernels per task: all of them, unless there are fewer tiles than threads, then blocks of a multiple of MR
+    // kernels so that every thread gets work (each block lowers its tile again).
+    private static int blockRows(int m, int tiles)
+    {
+        int threads = Workers.threads();
+        if (tiles >= threads)
+            return m;
+        int blocks = Math.min((m + Gemm.MR - 1) / Gemm.MR, (threads + tiles - 1) / tiles);
+        return roundUp((m + blocks - 1) / blocks, Gemm.MR);
+    }
+
+    // im2col of output pixels [first, first + cols) of one image and group, written as Gemm panels of NR
+    // columns: panel q holds, row after row, the NR input values of row r = (c * h_k + y) * w_k + x. Taps in the
+    // padding and columns after cols are zero.
+    private static void im2col(float[] in, int frame, int c_k, int h_i, int w_i, int h_k, int w_k, int[] pad,
+                               int[] stride, int w_o, int first, int cols, float[] b)
+    {
+        int k = c_k * h_k * w_k;
+        int[] corner = corners.get();   // top row of the window of output pixel j at j, left column at NR + j
+        if (corner == null) {
+            corner = new int[2 * Gemm.NR];
+            corners.set(corner);
+        }
+        for (int j0 = 0; j0 < cols; j0 += Gemm.NR) {
+            int nc = Math.min(Gemm.NR, cols - j0);
+            for (int j = 0; j < nc; ++j) {
+                int pixel = first + j0 + j;
+                corner[j] = pixel / w_o * stride[0] - pad[0];
+                corner[Gemm.NR + j] = pixel % w_o * stride[1] - pad[1];
+            }
+            int dst = j0 / Gemm.NR * k * Gemm.NR;
+            for (int c = 0; c < c_k; ++c) {
+                int plane = frame + c * h_i * w_i;
+                for (int y = 0; y < h_k; ++y)
+                    for (int x = 0; x < w_k; ++x) {
+                        for (int j = 0; j < nc; ++j) {
+                            int row = corner[j] + y;
+                            int col = corner[Gemm.NR + j] + x;
+                            b[dst + j] = row >= 0 && row < h_i && col >= 0 && col < w_i ? in[plane + row * w_i + col] : 0;
+                        }
+                        for (int j = nc; j < Gemm.NR; ++j)
+                            b[dst + j] = 0;
+                        dst += Gemm.NR;
+                    }
+            }
+        }
+    }
+
+    private static float[] panels(int size)
+    {
+        float[] b = panels.get();
+        if (b == null || b.length < size) {
+            b = new float[size];
+            panels.set(b);
+        }
+        return b;
+    }
+
+    private static int roundUp(int x, int m)
+    {
+        return (x + m - 1) / m * m;
+    }
+}
@@ -0,0 +1,171 @@
+package numdroid;
+
+// Fully connected layer of a batch as one matrix product: out^T (c_o x n_i) = W (c_o x c_i) * in^T + bias. The
+// weights are packed once into Gemm panels (packWeights) and the input rows into panels of Gemm.NR images for
+// every call, so every block of weights is read once for NR images instead of once per image as in a
+// matrix-vector product. The batch is padded to a multiple of NR so that only the full micro-kernel runs.
+// Batches smaller than MIN_BATCH are computed one image at a time from the same packed weights, MR outputs at
+// once. The outputs are split in blocks of rows among the workers, each computing its rows for the whole batch
+// in its own buffer and writing them back image by image.
+// A layer keeps one instance; the tasks are created by its first call and reused by the next ones.
+public class GemmInnerProduct
+{
+    public static final int MIN_BATCH = 4;                  // smaller batches are faster one image at a time
+    private static final long MIN_PARALLEL_WORK = 1 << 16;  // multiply-adds below which one thread is faster
+    private static final int BLOCKS_PER_THREAD = 4;         // for load balance
+
+    private static final ThreadLocal<float[]> inputs = new ThreadLocal<>();    // input panels of the caller
+    private static final ThreadLocal<float[]> results = new ThreadLocal<>();   // output block of every thread
+
+    // arguments of the call in progress, read by the tasks
+    private float[] in, packed, bias, out;
+    private int inOffset, inStride, n_i, c_i, c_o, outOffset, outStride;
+    private int rows;                       // outputs per task
+    private int cols;                       // images padded to a multiple of NR
+    private float[] panels;                 // input rows packed in panels of NR images
+
+    // task b: outputs [b * rows, b * rows + rows) of each image, one image at a time
+    private final Workers.Loop vectorTasks = new Workers.Loop() {
+        @Override
+        protected void task(int b)
+        {
+            int first = b * rows;
+            int last = Math.min(c_o, first + rows);
+            for (int n = 0; n < n_i; ++n)
+                multiplyVector(in, inOffset + n * inStride, c_i, packed, bias, first, last, out,
+                        outOffset + n * outStride);
+        }
+    };
+
+    // task b: outputs [b * rows, b * rows + rows) of the whole batch
+    private final Workers.Loop panelTasks = new Workers.Loop() {
+        @Override
+        protected void task(int b)
+        {
+            int first = b * rows;
+            int mb = Math.min(rows, c_o - first);
+            float[] c = buffer(results, mb * cols);
+            Gemm.multiply(packed, first * c_i, mb, c_i, panels, 0, Gemm.NR, c_i * Gemm.NR, cols, bias, first, c, 0,
+                    cols);
+            for (int n = 0; n < n_i; ++n) {
+                int dst = outOffset + n * outStride + first;
+                for (int i = 0; i < mb; ++i)
+                    out[dst + i] = c[i * cols + n];
+            }
+        }
+    };
+
+    // The row-major (c_o, c_i) weights packed for multiply.
+    public static float[] packWeights(float[] weight, int c_o, int c_i)
+    {
+        float[] packed = new float[Gemm.packedSize(c_o, c_i)];
+        Gemm.packA(weight, 0, c_o, c_i, packed, 0);
+        return packed;
+    }
+
+    // out[outOffset + n * outStride + c] = bias[c] + sum over p of W[c][p] * in[inOffset + n * inStride + p].
+    public void multiply(float[] in, int inOffset, int inStride, int n_i, int c_i, float[] packed, float[] bias,
+                         int c_o, float[] out, int outOffset, int outStride)
+    {
+        this.in = in;
+        this.inOffset = inOffset;
+        this.inStride = inStride;
+        this.n_i = n_i;
+        this.c_i = c_i;
+        this.packed = packed;
+        this.bias = bias;
+        this.c_o = c_o;
+        this.out = out;
+        this.outOffset = outOffset;
+        this.outStride = outStride;
+        rows = blockRows(c_o, c_i, n_i);
+        int blocks = (c_o + rows - 1) / rows;
+        if (n_i < MIN_BATCH) {
+            vectorTasks.run(blocks);
+        }
+        else {
+            cols = roundUp(n_i, Gemm.NR);
+            panels = buffer(inputs, c_i * cols);
+            for (int j = 0; j < cols; ++j) {
+                int dst = j / Gemm.NR * c_i * Gemm.NR + j % Gemm.NR;
+                int src = inOffset + j * inStride;
+                if (j < n_i)
+                    for (int p = 0; p < c_i; ++p)
+                        panels[dst + p * Gemm.NR] = in[src + p];
+                else
+                    for (int p = 0; p < c_i; ++p)
+                        panels[dst + p * Gemm.NR] = 0;
+            }
+            panelTasks.run(blocks);
+        }
+        this.in = null;                 // the blobs and the weights of a layer that is not resident can be freed
+        this.packed = null;
+        this.bias = null;
+        this.out = null;
+        this.panels = null;
+    }
+
+    // Memory of the input panels and of the output blocks of all threads.
+    public static long scratchBytes(int c_o, int c_i, int n_i)
+    {
+        if (n_i < MIN_BATCH)
+            return 0;
+        int cols = roundUp(n_i, Gemm.NR);
+        return 4L * cols * ((long) c_i + (long) blockRows(c_o, c_i, n_i) * Workers.threads());
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Outputs [first, last) of one image, first a multiple of MR: the MR rows of a panel are accumulated
+    // together while the panel is read in order (MR is 4).
+    private static void multiplyVector(float[] in, int inOffset, int c_i, float[] packed, float[] bias, int first,
+                                       int last, float[] out, int outOffset)
+    {
+        for (int i0 = first; i0 < last; i0 += Gemm.MR) {
+            int a = i0 * c_i;
+            float s0 = 0;
+            float s1 = 0;
+            float s2 = 0;
+            float s3 = 0;
+            for (int p = 0; p < c_i; ++p, a += Gemm.MR) {
+                float x = in[inOffset + p];
+                s0 += packed[a] * x;
+                s1 += packed[a + 1] * x;
+                s2 += packed[a + 2] * x;
+                s3 += packed[a + 3] * x;
+            }
+            int rows = Math.min(Gemm.MR, last - i0);
+            int dst = outOffset + i0;
+            out[dst] = s0 + bias[i0];
+            if (rows > 1)
+                out[dst + 1] = s1 + bias[i0 + 1];
+            if (rows > 2)
+                out[dst + 2] = s2 + bias[i0 + 2];
+            if (rows > 3)
+                out[dst + 3] = s3 + bias[i0 + 3];
+        }
+    }
+
+    // Outputs per task, a multiple of MR.
+    private static int blockRows(int c_o, int c_i, int n_i)
+    {
+        int blocks = Math.min((c_o + Gemm.MR - 1) / Gemm.MR, Workers.threads() * BLOCKS_PER_THREAD);
+        if ((long) c_o * c_i * n_i < MIN_PARALLEL_WORK || Workers.threads() == 1)
+            blocks = 1;
+        return roundUp((c_o + blocks - 1) / blocks, Gemm.MR);
+    }
+
+    private static float[] buffer(ThreadLocal<float[]> local, int size)
+    {
+        float[] b = local.get();
+        if (b == null || b.length < size) {
+            b = new float[size];
+            local.set(b);
+        }
+        return b;
+    }
+
+    private static int roundUp(int x, int m)
+    {
+        return (x + m - 1) / m * m;
+    }
+}
@@ -0,0 +1,69 @@
+package numdroid;
+
+// IEEE 754 half-precision (binary16) values kept in shorts. Conversions to half precision round to the
+// nearest even value; values out of range become infinities.
+public class Half
+{
+    public static short fromFloat(float f)
+    {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int val = bits & 0x7fffffff;
+
+        if (val >= 0x7f800000)                              // infinity or NaN
+            return (short) (sign | 0x7c00 | (val > 0x7f800000 ? 0x200 | ((val >>> 13) & 0x3ff) : 0));
+        if (val >= 0x477ff000)                              // rounds to 65520 or more
+            return (short) (sign | 0x7c00);
+        if (val < 0x38800000) {                             // subnormal in half precision
+            if (val < 0x33000000)
+                return (short) sign;
+            int exp = val >>> 23;
+            int mant = (val & 0x7fffff) | 0x800000;
+            int shift = 126 - exp;
+            int h = mant >>> shift;
+            int rem = mant & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rem > halfway || (rem == halfway && (h & 1) != 0))
+                ++h;
+            return (short) (sign | h);
+        }
+
+        int h = (val >>> 13) - ((127 - 15) << 10);
+        int rem = val & 0x1fff;
+        if (rem > 0x1000 || (rem == 0x1000 && (h & 1) != 0))
+            ++h;
+        return (short) (sign | h);
+    }
+
+    public static float toFloat(short half)
+    {
+        int h = half & 0xffff;
+        int sign = (h & 0x8000) << 16;
+        int exp = (h >>> 10) & 0x1f;
+        int mant = h & 0x3ff;
+
+        if (exp == 0) {                                     // zero or subnormal: mant * 2^-24
+            float v = mant * 5.9604645e-8f;
+            return sign != 0 ? -v : v;
+        }
+        if (exp == 31)
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        return Float.intBitsToFloat(sign | ((exp + 127 - 15) << 23) | (mant << 13));
+    }
+
+    public static short[] fromFloats(float[] data)
+    {
+        short[] half = new short[data.length];
+        for (int i = 0; i < data.length; ++i)
+            half[i] = fromFloat(data[i]);
+        return half;
+    }
+
+    public static float[] toFloats(short[] half)
+    {
+        float[] data = new float[half.length];
+        for (int i = 0; i < half.length; ++i)
+            data[i] = toFloat(half[i]);
+        return data;
+    }
+}
@@ -0,0 +1,48 @@
+package numdroid;
+
+// Contiguous blob of half-precision values, used to keep parameters in half the memory of a Tensor. Values
+// are widened to float when they are read.
+public class HalfTensor
+{
+    public final short[] data;      // values in half precision (see Half)
+    public final int[] shape;       // dimensions, e.g. (n, c, h, w)
+
+    public HalfTensor(short[] data, int[] shape)
+    {
+        if (Tensor.count(shape) > data.length)
+            throw new IllegalArgumentException("HalfTensor shape does not fit in the given array.");
+        this.data = data;
+        this.shape = shape.clone();
+    }
+
+    // Half-precision copy of a tensor.
+    public static HalfTensor of(Tensor t)
+    {
+        Tensor c = t.isContiguous() && t.offset == 0 ? t : t.copy();
+        short[] half = new short[c.size()];
+        for (int i = 0; i < half.length; ++i)
+            half[i] = Half.fromFloat(c.data[i]);
+        return new HalfTensor(half, c.shape);
+    }
+
+    public int size()
+    {
+        return Tensor.count(shape);
+    }
+
+    public int index(int n, int c, int h, int w)
+    {
+        return ((n * shape[1] + c) * shape[2] + h) * shape[3] + w;
+    }
+
+    public float get(int n, int c, int h, int w)
+    {
+        return Half.toFloat(data[index(n, c, h, w)]);
+    }
+
+    // Float copy of this blob.
+    public Tensor toTensor()
+    {
+        return Tensor.wrap(Half.toFloats(data), shape);
+    }
+}
@@ -0,0 +1,86 @@
+package numdroid;
+
+import android.util.Log;
+
+// Inner loops over contiguous runs of floats shared by the CPU layers: dot product, axpy, max-reduce and ReLU.
+// This class is the scalar implementation. get() returns numdroid.VectorKernels instead when it is on the class
+// path, can be initialized and reports itself usable, i.e. on a desktop JVM started with --add-modules
+// jdk.incubator.vector (its sources are in "java-vector", outside the Android sources since Android has no Vector
+// API). The choice, and the reason for falling back to the scalar loops, is logged once. The elementwise
+// operations give the same results with both; the vector dot product adds in a different order.
+public class Kernels
+{
+    private static final Kernels instance = load();
+
+    public static Kernels get()
+    {
+        return instance;
+    }
+
+    // Shown in the log when a network is created.
+    public String name()
+    {
+        return "scalar";
+    }
+
+    // sum over i < n of a[aOff + i] * b[bOff + i]
+    public float dot(float[] a, int aOff, float[] b, int bOff, int n)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < n; ++i)
+            sum += a[aOff + i] * b[bOff + i];
+        return sum;
+    }
+
+    // y[yOff + i] += alpha * x[xOff + i] for i < n
+    public void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n)
+    {
+        for (int i = 0; i < n; ++i)
+            y[yOff + i] += alpha * x[xOff + i];
+    }
+
+    // Largest of init and a[off .. off + n).
+    public float max(float[] a, int off, int n, float init)
+    {
+        float max = init;
+
+        for (int i = off; i < off + n; ++i)
+            max = Math.max(max, a[i]);
+        return max;
+    }
+
+    // y[yOff + i] = x[xOff + i] clamped below at 0 for i < n; x and y may be the same run.
+    public void relu(float[] x, int xOff, float[] y, int yOff, int n)
+    {
+        for (int i = 0; i < n; ++i) {
+            float v = x[xOff + i];
+            y[yOff + i] = v < 0 ? 0 : v;
+        }
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private static Kernels load()
+    {
+        String reason;
+        try {
+            Class<?> vector = Class.forName("numdroid.VectorKernels");
+            if ((Boolean) vector.getMethod("usable").invoke(null)) {
+                Kernels kernels = (Kernels) vector.getConstructor().newInstance();
+                Log.d("CNNdroid", "Kernels: " + kernels.name());
+                return kernels;
+            }
+            reason = "the preferred float vectors of the CPU are too narrow";
+        } catch (ClassNotFoundException e) {
+            reason = "numdroid.VectorKernels is not on the class path";
+        } catch (LinkageError e) {
+            // NoClassDefFoundError when the JVM was started without the jdk.incubator.vector module
+            reason = "numdroid.VectorKernels cannot be linked, " + e;
+        } catch (ReflectiveOperationException e) {
+            reason = "numdroid.VectorKernels cannot be created, " + e;
+        }
+        Kernels kernels = new Kernels();
+        Log.d("CNNdroid", "Kernels: " + kernels.name() + ", " + reason);
+        return kernels;
+    }
+}
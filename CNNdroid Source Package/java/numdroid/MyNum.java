@@ -2,6 +2,8 @@ package numdroid;
 
 public class MyNum
 {
+    private static final Kernels kernels = Kernels.get();  // inner loops, vectorized where available
+
     public float sum_conv(float[][][] frames, float[][][] kernel, int x, int y, int pad_x , int pad_y)
     {
         int i_k = kernel.length;
@@ -30,26 +32,118 @@ public class MyNum
         return sum;
     }
 
-    public float sum_innerproduct_layer4(float[][][] in1 , float[] in2 , int wIter, int w_w, int c, int h, int w)
+    // flat version: frames and kernel are contiguous (c, h, w) blocks starting at f_off and k_off
+    public float sum_conv(float[] frames, int f_off, int c_i, int h_i, int w_i, float[] kernel, int k_off,
+                          int h_k, int w_k, int x, int y, int pad_x, int pad_y)
     {
         float sum = 0;
 
-        for (int i = 0 ; i < c ; ++i)
-            for (int j = 0 ; j < h ; ++j)
-                for (int k = 0 ; k < w ; ++k)
-                    sum += in1[i][j][k] * in2[wIter * w_w + i * h * w + j * w + k];
+        for (int i = 0 ; i < c_i ; i++)
+            for (int h = 0 ; h < h_k ; h++)
+            {
+                int cur_x = x + h - pad_x;
+                if (cur_x < 0 || cur_x >= h_i)
+                    continue;
+                int frame_row = f_off + (i * h_i + cur_x) * w_i - pad_y;
+                int kernel_row = k_off + (i * h_k + h) * w_k;
+                // taps w_l .. w_h - 1 read inside the row
+                int w_l = Math.max(0, pad_y - y);
+                int w_h = Math.min(w_k, w_i + pad_y - y);
+                if (w_l < w_h)
+                    sum += kernels.dot(frames, frame_row + y + w_l, kernel, kernel_row + w_l, w_h - w_l);
+            }
 
         return sum;
     }
 
-    public float sum_innerproduct_layer2(float[] in1 , float[] in2 , int wIter, int w_w, int c)
+    // same as above with a half-precision kernel, widened to float while accumulating
+    public float sum_conv(float[] frames, int f_off, int c_i, int h_i, int w_i, short[] kernel, int k_off,
+                          int h_k, int w_k, int x, int y, int pad_x, int pad_y)
+    {
+        float sum = 0;
+
+        for (int i = 0 ; i < c_i ; i++)
+            for (int h = 0 ; h < h_k ; h++)
+            {
+                int cur_x = x + h - pad_x;
+                if (cur_x < 0 || cur_x >= h_i)
+                    continue;
+                int frame_row = f_off + (i * h_i + cur_x) * w_i - pad_y;
+                int kernel_row = k_off + (i * h_k + h) * w_k;
+                for (int w = 0 ; w < w_k ; w++)
+                {
+                    int cur_y = y + w - pad_y;
+                    if (cur_y < 0 || cur_y >= w_i)
+                        continue;
+                    sum += frames[frame_row + y + w] * Half.toFloat(kernel[kernel_row + w]);
+                }
+            }
+
+        return sum;
+    }
+
+    public float sum_innerproduct(float[] in1, int off1, float[] in2, int off2, int c)
+    {
+        return kernels.dot(in1, off1, in2, off2, c);
+    }
+
+    // in2 in half precision, widened to float while accumulating
+    public float sum_innerproduct(float[] in1, int off1, short[] in2, int off2, int c)
     {
         float sum = 0;
 
         for (int i = 0 ; i < c ; i++)
-            sum += in1[i] * in2[wIter * w_w + i];
+            sum += in1[off1 + i] * Half.toFloat(in2[off2 + i]);
         return sum;
+    }
+
+    // int8 inner product accumulated in int32
+    public int sum_innerproduct(byte[] in1, int off1, byte[] in2, int off2, int c)
+    {
+        int sum = 0;
 
+        for (int i = 0 ; i < c ; i++)
+            sum += in1[off1 + i] * in2[off2 + i];
+        return sum;
+    }
+
+    // Quantize len values to int8: x / scale rounded to the nearest integer, shifted down by offset (0 for
+    // signed inputs, 128 for unsigned ones) and saturated.
+    public void quantize(float[] in, int in_off, byte[] out, int out_off, int len, float scale, int offset)
+    {
+        float inv = 1 / scale;
+        int lo = offset == 0 ? -127 : -128;
+
+        for (int i = 0 ; i < len ; i++)
+        {
+            int q = Math.round(in[in_off + i] * inv) - offset;
+            if (q < lo)
+                q = lo;
+            else if (q > 127)
+                q = 127;
+            out[out_off + i] = (byte) q;
+        }
+    }
+
+    public void relu(float[] data, int off, int len)
+    {
+        kernels.relu(data, off, data, off, len);
+    }
+
+    public float sum_innerproduct_layer4(float[][][] in1 , float[] in2 , int wIter, int w_w, int c, int h, int w)
+    {
+        float sum = 0;
+
+        for (int i = 0 ; i < c ; ++i)
+            for (int j = 0 ; j < h ; ++j)
+                sum += kernels.dot(in1[i][j], 0, in2, wIter * w_w + i * h * w + j * w, w);
+
+        return sum;
+    }
+
+    public float sum_innerproduct_layer2(float[] in1 , float[] in2 , int wIter, int w_w, int c)
+    {
+        return kernels.dot(in1, 0, in2, wIter * w_w, c);
     }
 
     public float[] averaged_exp(float[] input)
@@ -69,6 +163,18 @@ public class MyNum
         return output;
     }
 
+    public void averaged_exp(float[] input, int in_off, float[] output, int out_off, int size)
+    {
+        float sum = 0;
+        for (int i = 0 ; i < size ; i++)
+        {
+            output[out_off + i] = (float) Math.pow(2.71828, input[in_off + i]);
+            sum += output[out_off + i];
+        }
+        for (int i = 0 ; i < size ; i++)
+            output[out_off + i] /= sum;
+    }
+
     public float frame_max(float[][] frames, int x_l, int x_h, int y_l, int y_h, int h_i, int w_i, int[] pad)
     {
         float max;
@@ -112,6 +218,73 @@ public class MyNum
         return sum / (float) ((x_h - x_l) * (y_h - y_l));
     }
 
+    // flat version: frames is a contiguous (h_i, w_i) plane starting at off, padded positions count as zero
+    public float frame_max(float[] frames, int off, int x_l, int x_h, int y_l, int y_h, int h_i, int w_i, int[] pad)
+    {
+        if (x_h > h_i + 2 * pad[0])
+            x_h = h_i + 2 * pad[0];
+
+        if (y_h > w_i + 2 * pad[1])
+            y_h = w_i + 2 * pad[1];
+
+        // columns j_l .. j_h - 1 of the window are inside the image
+        int j_l = Math.max(y_l, pad[1]);
+        int j_h = Math.min(y_h, w_i + pad[1]);
+        boolean padded = false;
+
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = x_l; i < x_h; ++i)
+            if (i < pad[0] || i >= h_i + pad[0] || j_l >= j_h)
+                padded = true;
+            else {
+                if (j_l > y_l || j_h < y_h)
+                    padded = true;
+                max = kernels.max(frames, off + (i - pad[0]) * w_i + j_l - pad[1], j_h - j_l, max);
+            }
+
+        return padded ? Math.max(max, 0) : max;
+    }
+
+    public float frame_mean(float[] frames, int off, int x_l, int x_h, int y_l, int y_h, int h_i, int w_i, int[] pad)
+    {
+        float sum = 0;
+
+        if (x_h > h_i + 2 * pad[0])
+            x_h = h_i + 2 * pad[0];
+
+        if (y_h > w_i + 2 * pad[1])
+            y_h = w_i + 2 * pad[1];
+
+        for (int i = x_l; i < x_h; ++i)
+            for (int j = y_l; j < y_h; ++j)
+                if (!(i < pad[0] || i >= h_i + pad[0] || j < pad[1] || j >= w_i + pad[1]))
+                    sum += frames[off + (i - pad[0]) * w_i + j - pad[1]];
+
+        return sum / (float) ((x_h - x_l) * (y_h - y_l));
+    }
+
+    // Normalize channel c of one (c_i, h_i, w_i) image across its neighbouring channels; the window
+    // is clipped at the first and last channels, which is the same as zero padding.
+    public void lrn_across_channels(float[] input, int in_off, float[] output, int out_off, int c_i, int h_i, int w_i,
+                                    int c, int localSize, double alpha, double beta)
+    {
+        int c_l = Math.max(0, c - (localSize - 1) / 2);
+        int c_h = Math.min(c_i, c + (localSize - 1) / 2 + 1);
+        int plane = h_i * w_i;
+        float scale = (float) alpha / localSize;
+
+        for (int j = 0; j < plane; ++j)
+        {
+            float sum = 0;
+            for (int i = c_l; i < c_h; ++i)
+            {
+                float v = input[in_off + i * plane + j];
+                sum += v * v;
+            }
+            output[out_off + c * plane + j] = input[in_off + c * plane + j] / (float) Math.pow(sum * scale + 1, beta);
+        }
+    }
+
     public float[][][] power(float[][][][] input, int n, int c_l, int c_h, int h, int w, double p)
     {
         float[][][] output = new float[c_h - c_l][h][w];
@@ -259,6 +432,34 @@ public class MyNum
         return index;
     }
 
+    // flat version: sort input[off] to input[off + h - 1]
+    public int[] sort(float[] input, int off, int h)
+    {
+        return sort(input, off, h, new int[h]);
+    }
+
+    // into index[0] to index[h - 1], for callers that reuse the array
+    public int[] sort(float[] input, int off, int h, int[] index)
+    {
+        for (int i = 0; i < h; ++i)
+            index[i] = i;
+
+        for (int i = h - 1; i > 0; --i)
+        {
+            // Find the index of the maximum of input[off] to input[off + i].
+            int max = 0;
+            for (int j = 1; j <= i; ++j)
+                if (input[off + index[j]] > input[off + index[max]])
+                    max = j;
+
+            int temp = index[i];
+            index[i] = index[max];
+            index[max] = temp;
+        }
+
+        return index;
+    }
+
     public int[][] tile_transpose(int[] input, int n)
     {
         int w = input.length;
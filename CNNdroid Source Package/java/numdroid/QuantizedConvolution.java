@@ -0,0 +1,261 @@
+package numdroid;
+
+// int8 convolution of a batch on the CPU as matrix products accumulated in int32, blocked like GemmConvolution:
+// for every image and group, the quantized kernels (kernels x c_k * h_k * w_k, read in place, one row per
+// kernel) times the im2col matrix of the quantized input. The caller quantizes the images into padded frames
+// whose pads hold the quantized zero, so im2col copies bytes without bounds checks. Output pixels are split in
+// tiles lowered into panels of Gemm.NR columns, and the kernels in blocks when there are fewer tiles than
+// threads; the tasks run on the CPU workers. The int32 sums are scaled back to float with the scale of the input
+// and of every kernel. With an unsigned input the frames hold q - 128, which the sums of the kernels correct.
+// As with GemmConvolution, a layer keeps one instance and its tasks are reused.
+public class QuantizedConvolution
+{
+    private static final int MR = Gemm.MR;                  // kernels computed together
+    private static final int NR = Gemm.NR;                  // output pixels computed together
+    private static final int TILE_BYTES = 1 << 17;          // im2col panels of a tile, about half an L2 cache
+    private static final long MIN_PARALLEL_WORK = 1 << 16;  // multiply-adds below which one thread is faster
+
+    private static final ThreadLocal<byte[]> panels = new ThreadLocal<>();     // im2col buffer of every thread
+    private static final ThreadLocal<int[]> corners = new ThreadLocal<>();     // frame positions of NR output pixels, for every thread
+
+    // arguments of the call in progress, read by the tasks
+    private byte[] frames;
+    private QuantizedTensor kernels;
+    private float[] bias, out;
+    private float inputScale;
+    private int inputOffset, outOffset, c_i, h_q, w_q, group, w_o;
+    private int[] stride;
+    private int n_k, c_k, h_k, w_k;
+    private int m, k, pixels;               // kernels and im2col rows per group, output pixels per image
+    private int tile, tiles, rows, blocks;  // output pixels, tiles per image, kernels, kernel blocks per group
+
+    // task (image, group, block of kernels, tile of output pixels), in this order
+    private final Workers.Loop tasks = new Workers.Loop() {
+        @Override
+        protected void task(int i)
+        {
+            int n = i / tiles / blocks / group;
+            int g = i / tiles / blocks % group;
+            int i0 = i / tiles % blocks * rows;
+            int j0 = i % tiles * tile;
+            int kernel = g * m + i0;
+            int cols = Math.min(tile, pixels - j0);
+            byte[] b = panels(k * roundUp(cols, NR));
+            im2col(frames, (n * c_i + g * c_k) * h_q * w_q, c_k, h_q, w_q, h_k, w_k, stride, w_o, j0, cols, b);
+            multiply(kernels, kernel, Math.min(rows, m - i0), k, b, cols, inputScale, inputOffset, bias, out,
+                    outOffset + (n * n_k + kernel) * pixels + j0, pixels);
+        }
+    };
+
+    // out (n_i, n_k, h_o, w_o) = frames (n_i, c_i, h_q, w_q), quantized and padded, convolved with the kernels
+    // (n_k, c_k, h_k, w_k), then scaled and offset by the bias. The output starts at out[outOffset].
+    public void convolve(byte[] frames, int n_i, int c_i, int h_q, int w_q, QuantizedTensor kernels, float inputScale,
+                         int inputOffset, float[] bias, int group, int[] stride, float[] out, int outOffset, int h_o,
+                         int w_o)
+    {
+        this.frames = frames;
+        this.c_i = c_i;
+        this.h_q = h_q;
+        this.w_q = w_q;
+        this.kernels = kernels;
+        this.inputScale = inputScale;
+        this.inputOffset = inputOffset;
+        this.bias = bias;
+        this.group = group;
+        this.stride = stride;
+        this.out = out;
+        this.outOffset = outOffset;
+        this.w_o = w_o;
+        n_k = kernels.shape[0];
+        c_k = kernels.shape[1];
+        h_k = kernels.shape[2];
+        w_k = kernels.shape[3];
+        m = n_k / group;
+        k = c_k * h_k * w_k;
+        pixels = h_o * w_o;
+        tile = tileWidth(k, pixels, n_i * group);
+        tiles = (pixels + tile - 1) / tile;
+        rows = blockRows(m, n_i * group * tiles);
+        blocks = (m + rows - 1) / rows;
+
+        int count = n_i * group * blocks * tiles;
+        if ((long) n_i * n_k * pixels * k < MIN_PARALLEL_WORK)
+            tasks.runHere(count);
+        else
+            tasks.run(count);
+        this.kernels = null;            // the weights of a layer that is not resident can be freed
+        this.bias = null;
+        this.out = null;
+    }
+
+    // Memory of the im2col buffers of all threads.
+    public static long scratchBytes(int c_k, int h_k, int w_k, int h_o, int w_o, int batches)
+    {
+        int k = c_k * h_k * w_k;
+        return (long) k * roundUp(tileWidth(k, h_o * w_o, batches), NR) * Workers.threads();
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Output pixels per tile: the im2col panels fit in TILE_BYTES, and there are enough tiles for all threads.
+    private static int tileWidth(int k, int pixels, int batches)
+    {
+        int tile = Math.max(NR, TILE_BYTES / k / NR * NR);
+        long perThread = ((long) pixels * batches + Workers.threads() - 1) / Workers.threads();
+        if (perThread < tile)
+            tile = Math.max(NR, roundUp((int) perThread, NR));
+        return Math.min(tile, roundUp(pixels, NR));
+    }
+
+    // Kernels per task: all of them, unless there are fewer tiles than threads, then blocks of a multiple of MR
+    // kernels so that every thread gets work (each block lowers its tile again).
+    private static int blockRows(int m, int tiles)
+    {
+        int threads = Workers.threads();
+        if (tiles >= threads)
+            return m;
+        int blocks = Math.min((m + MR - 1) / MR, (threads + tiles - 1) / tiles);
+        return roundUp((m + blocks - 1) / blocks, MR);
+    }
+
+    // im2col of output pixels [first, first + cols) of one padded frame, written as panels of NR columns: panel
+    // q holds, row after row, the NR input values of row r = (c * h_k + y) * w_k + x. Columns after cols are zero.
+    private static void im2col(byte[] in, int frame, int c_k, int h_q, int w_q, int h_k, int w_k, int[] stride,
+                               int w_o, int first, int cols, byte[] b)
+    {
+        int k = c_k * h_k * w_k;
+        int[] corner = corners.get();
+        if (corner == null) {
+            corner = new int[NR];
+            corners.set(corner);
+        }
+        for (int j0 = 0; j0 < cols; j0 += NR) {
+            int nc = Math.min(NR, cols - j0);
+            for (int j = 0; j < nc; ++j) {
+                int pixel = first + j0 + j;
+                corner[j] = pixel / w_o * stride[0] * w_q + pixel % w_o * stride[1];
+            }
+            int dst = j0 / NR * k * NR;
+            for (int c = 0; c < c_k; ++c) {
+                int plane = frame + c * h_q * w_q;
+                for (int y = 0; y < h_k; ++y)
+                    for (int x = 0; x < w_k; ++x) {
+                        int src = plane + y * w_q + x;
+                        for (int j = 0; j < nc; ++j)
+                            b[dst + j] = in[src + corner[j]];
+                        for (int j = nc; j < NR; ++j)
+                            b[dst + j] = 0;
+                        dst += NR;
+                    }
+            }
+        }
+    }
+
+    // Kernels [kernel, kernel + m) times the n columns of the panels, scaled back to float into rows of out
+    // starting at out[cOffset], ldc apart.
+    private static void multiply(QuantizedTensor kernels, int kernel, int m, int k, byte[] b, int n, float inputScale,
+                                 int inputOffset, float[] bias, float[] out, int cOffset, int ldc)
+    {
+        for (int j0 = 0; j0 < n; j0 += NR) {
+            int cols = Math.min(NR, n - j0);
+            int bi = j0 / NR * k * NR;
+            for (int i0 = 0; i0 < m; i0 += MR) {
+                int rows = Math.min(MR, m - i0);
+                int ci = cOffset + i0 * ldc + j0;
+                if (rows == MR && cols == NR)
+                    kernel(kernels, kernel + i0, k, b, bi, inputScale, inputOffset, bias, out, ci, ldc);
+                else
+                    edgeKernel(kernels, kernel + i0, k, b, bi, rows, cols, inputScale, inputOffset, bias, out, ci, ldc);
+            }
+        }
+    }
+
+    // MR x NR block of the output over all k values, in int32.
+    private static void kernel(QuantizedTensor kernels, int kernel, int k, byte[] b, int bi, float inputScale,
+                               int inputOffset, float[] bias, float[] out, int ci, int ldc)
+    {
+        byte[] a = kernels.data;
+        int a0 = kernel * k;
+        int a1 = a0 + k;
+        int a2 = a1 + k;
+        int a3 = a2 + k;
+        int c00 = 0, c01 = 0, c02 = 0, c03 = 0, c04 = 0, c05 = 0, c06 = 0, c07 = 0;
+        int c10 = 0, c11 = 0, c12 = 0, c13 = 0, c14 = 0, c15 = 0, c16 = 0, c17 = 0;
+        int c20 = 0, c21 = 0, c22 = 0, c23 = 0, c24 = 0, c25 = 0, c26 = 0, c27 = 0;
+        int c30 = 0, c31 = 0, c32 = 0, c33 = 0, c34 = 0, c35 = 0, c36 = 0, c37 = 0;
+
+        for (int p = 0; p < k; ++p) {
+            int w0 = a[a0 + p];
+            int w1 = a[a1 + p];
+            int w2 = a[a2 + p];
+            int w3 = a[a3 + p];
+            int b0 = b[bi];
+            int b1 = b[bi + 1];
+            int b2 = b[bi + 2];
+            int b3 = b[bi + 3];
+            int b4 = b[bi + 4];
+            int b5 = b[bi + 5];
+            int b6 = b[bi + 6];
+            int b7 = b[bi + 7];
+            c00 += w0 * b0; c01 += w0 * b1; c02 += w0 * b2; c03 += w0 * b3; c04 += w0 * b4; c05 += w0 * b5; c06 += w0 * b6; c07 += w0 * b7;
+            c10 += w1 * b0; c11 += w1 * b1; c12 += w1 * b2; c13 += w1 * b3; c14 += w1 * b4; c15 += w1 * b5; c16 += w1 * b6; c17 += w1 * b7;
+            c20 += w2 * b0; c21 += w2 * b1; c22 += w2 * b2; c23 += w2 * b3; c24 += w2 * b4; c25 += w2 * b5; c26 += w2 * b6; c27 += w2 * b7;
+            c30 += w3 * b0; c31 += w3 * b1; c32 += w3 * b2; c33 += w3 * b3; c34 += w3 * b4; c35 += w3 * b5; c36 += w3 * b6; c37 += w3 * b7;
+            bi += NR;
+        }
+
+        store(kernels, kernel, inputScale, inputOffset, bias, out, ci, c00, c01, c02, c03, c04, c05, c06, c07);
+        store(kernels, kernel + 1, inputScale, inputOffset, bias, out, ci + ldc, c10, c11, c12, c13, c14, c15, c16, c17);
+        store(kernels, kernel + 2, inputScale, inputOffset, bias, out, ci + 2 * ldc, c20, c21, c22, c23, c24, c25, c26, c27);
+        store(kernels, kernel + 3, inputScale, inputOffset, bias, out, ci + 3 * ldc, c30, c31, c32, c33, c34, c35, c36, c37);
+    }
+
+    // One row of NR sums of a kernel, scaled back to float.
+    private static void store(QuantizedTensor kernels, int kernel, float inputScale, int inputOffset, float[] bias,
+                              float[] out, int ci, int s0, int s1, int s2, int s3, int s4, int s5, int s6, int s7)
+    {
+        float scale = inputScale * kernels.scales[kernel];
+        int correction = inputOffset * kernels.sums[kernel];
+        float b = bias[kernel];
+        out[ci] = (s0 + correction) * scale + b;
+        out[ci + 1] = (s1 + correction) * scale + b;
+        out[ci + 2] = (s2 + correction) * scale + b;
+        out[ci + 3] = (s3 + correction) * scale + b;
+        out[ci + 4] = (s4 + correction) * scale + b;
+        out[ci + 5] = (s5 + correction) * scale + b;
+        out[ci + 6] = (s6 + correction) * scale + b;
+        out[ci + 7] = (s7 + correction) * scale + b;
+    }
+
+    // Partial block at the bottom or right edge of the output, only the valid rows and columns are computed.
+    private static void edgeKernel(QuantizedTensor kernels, int kernel, int k, byte[] b, int bi, int rows, int cols,
+                                   float inputScale, int inputOffset, float[] bias, float[] out, int ci, int ldc)
+    {
+        byte[] a = kernels.data;
+        for (int i = 0; i < rows; ++i) {
+            int row = (kernel + i) * k;
+            float scale = inputScale * kernels.scales[kernel + i];
+            int correction = inputOffset * kernels.sums[kernel + i];
+            for (int j = 0; j < cols; ++j) {
+                int sum = 0;
+                for (int p = 0; p < k; ++p)
+                    sum += a[row + p] * b[bi + p * NR + j];
+                out[ci + i * ldc + j] = (sum + correction) * scale + bias[kernel + i];
+            }
+        }
+    }
+
+    private static byte[] panels(int size)
+    {
+        byte[] b = panels.get();
+        if (b == null || b.length < size) {
+            b = new byte[size];
+            panels.set(b);
+        }
+        return b;
+    }
+
+    private static int roundUp(int x, int m)
+    {
+        return (x + m - 1) / m * m;
+    }
+}
@@ -0,0 +1,50 @@
+package numdroid;
+
+// Weights quantized to int8 with one symmetric scale per output channel (the first dimension):
+// w[c][...] = data[c][...] * scales[c].
+public class QuantizedTensor
+{
+    public final byte[] data;       // quantized values in [-127, 127], contiguous
+    public final int[] shape;       // dimensions, e.g. (n_k, c_k, h_k, w_k) or (c_o, c_i)
+    public final float[] scales;    // scale of every output channel
+    public final int[] sums;        // sum of the quantized values of every output channel
+
+    public QuantizedTensor(byte[] data, int[] shape, float[] scales)
+    {
+        this.data = data;
+        this.shape = shape.clone();
+        this.scales = scales;
+
+        int size = channelSize();
+        sums = new int[shape[0]];
+        for (int c = 0; c < shape[0]; ++c)
+            for (int i = c * size; i < (c + 1) * size; ++i)
+                sums[c] += data[i];
+    }
+
+    // Quantize contiguous weights of the given shape, every output channel is scaled to its largest magnitude.
+    public static QuantizedTensor quantize(float[] weights, int[] shape)
+    {
+        int n = shape[0];
+        int size = Tensor.count(shape) / n;
+        byte[] data = new byte[n * size];
+        float[] scales = new float[n];
+
+        for (int c = 0; c < n; ++c) {
+            float max = 0;
+            for (int i = c * size; i < (c + 1) * size; ++i)
+                max = Math.max(max, Math.abs(weights[i]));
+            scales[c] = max > 0 ? max / 127 : 1;
+            float inv = 1 / scales[c];
+            for (int i = c * size; i < (c + 1) * size; ++i)
+                data[i] = (byte) Math.max(-127, Math.min(127, Math.round(weights[i] * inv)));
+        }
+        return new QuantizedTensor(data, shape, scales);
+    }
+
+    // number of weights of one output channel
+    public int channelSize()
+    {
+        return Tensor.count(shape) / shape[0];
+    }
+}
@@ -0,0 +1,142 @@
+package numdroid;
+
+import java.util.Arrays;
+
+// Matrix in compressed sparse row (CSR) format: the non-zero values of row r are values[rowPtr[r] .. rowPtr[r + 1])
+// and lie in the columns colIndex[rowPtr[r] .. rowPtr[r + 1]).
+public class SparseMatrix
+{
+    private static final int MIN_PARALLEL_WORK = 1 << 15;  // multiply-adds below which one thread is faster
+
+    public final int rows;
+    public final int cols;
+    public final int[] rowPtr;      // rows + 1 entries
+    public final int[] colIndex;    // column of every non-zero value
+    public final float[] values;    // non-zero values, row by row
+
+    private int[] splits;           // task t computes rows [splits[t], splits[t + 1])
+
+    // arguments of the call in progress, read by the tasks
+    private float[] in, bias, out;
+    private int inOffset, inStride, n, outOffset, outStride;
+
+    private final Workers.Loop tasks = new Workers.Loop() {
+        @Override
+        protected void task(int t)
+        {
+            multiplyRows(splits[t], splits[t + 1], in, inOffset, inStride, n, bias, out, outOffset, outStride);
+        }
+    };
+
+    public SparseMatrix(int rows, int cols, int[] rowPtr, int[] colIndex, float[] values)
+    {
+        if (rowPtr.length != rows + 1 || colIndex.length != values.length || rowPtr[rows] != values.length)
+            throw new IllegalArgumentException("inconsistent CSR arrays");
+        this.rows = rows;
+        this.cols = cols;
+        this.rowPtr = rowPtr;
+        this.colIndex = colIndex;
+        this.values = values;
+    }
+
+    // Keep the values of a row-major dense matrix whose magnitude is above threshold.
+    public static SparseMatrix fromDense(float[] dense, int rows, int cols, float threshold)
+    {
+        int[] rowPtr = new int[rows + 1];
+        int nnz = 0;
+        for (int i = 0; i < rows * cols; ++i)
+            if (Math.abs(dense[i]) > threshold)
+                ++nnz;
+
+        int[] colIndex = new int[nnz];
+        float[] values = new float[nnz];
+        int k = 0;
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) {
+                float v = dense[r * cols + c];
+                if (Math.abs(v) > threshold) {
+                    colIndex[k] = c;
+                    values[k++] = v;
+                }
+            }
+            rowPtr[r + 1] = k;
+        }
+        return new SparseMatrix(rows, cols, rowPtr, colIndex, values);
+    }
+
+    public int nonZeros()
+    {
+        return values.length;
+    }
+
+    // fraction of the values that are stored
+    public float density()
+    {
+        return rows * (long) cols == 0 ? 0 : values.length / (float) (rows * (long) cols);
+    }
+
+    public float[] toDense()
+    {
+        float[] dense = new float[rows * cols];
+        for (int r = 0; r < rows; ++r)
+            for (int k = rowPtr[r]; k < rowPtr[r + 1]; ++k)
+                dense[r * cols + colIndex[k]] = values[k];
+        return dense;
+    }
+
+    // out = in * this^T + bias for n input rows: input row i starts at in[inOffset + i * inStride], output row i
+    // at out[outOffset + i * outStride]. Rows of the matrix are split among threads with about the same number
+    // of non-zero values each; the split and the tasks are made by the first call and reused.
+    public void multiply(float[] in, int inOffset, int inStride, int n, float[] bias, float[] out, int outOffset,
+                         int outStride)
+    {
+        int parts = Math.min(Workers.threads(), rows);
+        if (parts <= 1 || (long) values.length * n < MIN_PARALLEL_WORK) {
+            multiplyRows(0, rows, in, inOffset, inStride, n, bias, out, outOffset, outStride);
+            return;
+        }
+
+        if (splits == null) {
+            int[] ends = new int[parts + 1];
+            int count = 0;
+            for (int p = 1; p <= parts && ends[count] < rows; ++p) {
+                int start = ends[count];
+                // first row after which p / parts of the non-zero values are covered
+                long target = (long) values.length * p / parts;
+                int end = p == parts ? rows : start + 1;
+                while (end < rows && rowPtr[end] < target)
+                    ++end;
+                ends[++count] = end;
+            }
+            splits = Arrays.copyOf(ends, count + 1);
+        }
+        this.in = in;
+        this.inOffset = inOffset;
+        this.inStride = inStride;
+        this.n = n;
+        this.bias = bias;
+        this.out = out;
+        this.outOffset = outOffset;
+        this.outStride = outStride;
+        tasks.run(splits.length - 1);
+        this.in = null;
+        this.bias = null;
+        this.out = null;
+    }
+
+    private void multiplyRows(int from, int to, float[] in, int inOffset, int inStride, int n, float[] bias,
+                              float[] out, int outOffset, int outStride)
+    {
+        for (int r = from; r < to; ++r) {
+            int begin = rowPtr[r];
+            int end = rowPtr[r + 1];
+            for (int i = 0; i < n; ++i) {
+                int row = inOffset + i * inStride;
+                float sum = 0;
+                for (int k = begin; k < end; ++k)
+                    sum += values[k] * in[row + colIndex[k]];
+                out[outOffset + i * outStride + r] = sum + bias[r];
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package numdroid;
+
+public class Tensor
+{
+    public final float[] data;      // backing storage shared by all views of this blob
+    public final int offset;        // index of the first element in data
+    public final int[] shape;       // dimensions, e.g. (n, c, h, w)
+    public final int[] strides;     // distance in data between neighbours along each dimension
+
+    public Tensor(int... shape)
+    {
+        this(new float[count(shape)], 0, shape.clone(), contiguousStrides(shape));
+    }
+
+    public Tensor(float[] data, int offset, int[] shape, int[] strides)
+    {
+        this.data = data;
+        this.offset = offset;
+        this.shape = shape;
+        this.strides = strides;
+    }
+
+    // Wrap an existing flat array without copying.
+    public static Tensor wrap(float[] data, int... shape)
+    {
+        if (count(shape) > data.length)
+            throw new IllegalArgumentException("Tensor shape does not fit in the given array.");
+        return new Tensor(data, 0, shape.clone(), contiguousStrides(shape));
+    }
+
+    public int rank()
+    {
+        return shape.length;
+    }
+
+    public int dim(int axis)
+    {
+        return shape[axis];
+    }
+
+    // number of elements
+    public int size()
+    {
+        return count(shape);
+    }
+
+    // number of elements of one image (all dimensions but the first)
+    public int sampleSize()
+    {
+        int s = 1;
+        for (int i = 1; i < shape.length; ++i)
+            s *= shape[i];
+        return s;
+    }
+
+    public boolean isContiguous()
+    {
+        int s = 1;
+        for (int i = shape.length - 1; i >= 0; --i) {
+            if (shape[i] != 1 && strides[i] != s)
+                return false;
+            s *= shape[i];
+        }
+        return true;
+    }
+
+    // index of the first element of image n
+    public int sampleIndex(int n)
+    {
+        return offset + n * strides[0];
+    }
+
+    public int index(int n, int c)
+    {
+        return offset + n * strides[0] + c * strides[1];
+    }
+
+    public int index(int n, int c, int h, int w)
+    {
+        return offset + n * strides[0] + c * strides[1] + h * strides[2] + w * strides[3];
+    }
+
+    public float get(int n, int c)
+    {
+        return data[index(n, c)];
+    }
+
+    public float get(int n, int c, int h, int w)
+    {
+        return data[index(n, c, h, w)];
+    }
+
+    public void set(int n, int c, float value)
+    {
+        data[index(n, c)] = value;
+    }
+
+    public void set(int n, int c, int h, int w, float value)
+    {
+        data[index(n, c, h, w)] = value;
+    }
+
+    // Same data seen with another shape; only valid for contiguous tensors.
+    public Tensor reshape(int... newShape)
+    {
+        if (!isContiguous() || count(newShape) != size())
+            throw new IllegalArgumentException("Tensor cannot be reshaped to the requested shape.");
+        return new Tensor(data, offset, newShape.clone(), contiguousStrides(newShape));
+    }
+
+    // View of the elements [start, end) along one axis, sharing the same data.
+    public Tensor slice(int axis, int start, int end)
+    {
+        int[] newShape = shape.clone();
+        newShape[axis] = end - start;
+        return new Tensor(data, offset + start * strides[axis], newShape, strides.clone());
+    }
+
+    // Copy the content of this tensor to a contiguous destination of the same size.
+    public void copyTo(Tensor dst)
+    {
+        if (isContiguous() && dst.isContiguous()) {
+            System.arraycopy(data, offset, dst.data, dst.offset, size());
+            return;
+        }
+        int[] pos = new int[shape.length];
+        int total = size();
+        for (int i = 0; i < total; ++i) {
+            int src = offset;
+            int des = dst.offset;
+            for (int d = 0; d < shape.length; ++d) {
+                src += pos[d] * strides[d];
+                des += pos[d] * dst.strides[d];
+            }
+            dst.data[des] = data[src];
+            for (int d = shape.length - 1; d >= 0; --d) {
+                if (++pos[d] < shape[d])
+                    break;
+                pos[d] = 0;
+            }
+        }
+    }
+
+    ///////////////////////////////////Conversion Functions/////////////////////////////////////////
+    public static Tensor fromArray(float[][][][] input)
+    {
+        int n = input.length;
+        int c = input[0].length;
+        int h = input[0][0].length;
+        int w = input[0][0][0].length;
+
+        Tensor t = new Tensor(n, c, h, w);
+        int k = 0;
+        for (int i = 0; i < n; ++i)
+            for (int j = 0; j < c; ++j)
+                for (int l = 0; l < h; ++l) {
+                    System.arraycopy(input[i][j][l], 0, t.data, k, w);
+                    k += w;
+                }
+        return t;
+    }
+
+    public static Tensor fromArray(float[][][] input)
+    {
+        int c = input.length;
+        int h = input[0].length;
+        int w = input[0][0].length;
+
+        Tensor t = new Tensor(1, c, h, w);
+        int k = 0;
+        for (int j = 0; j < c; ++j)
+            for (int l = 0; l < h; ++l) {
+                System.arraycopy(input[j][l], 0, t.data, k, w);
+                k += w;
+            }
+        return t;
+    }
+
+    public static Tensor fromArray(float[][] input)
+    {
+        int n = input.length;
+        int c = input[0].length;
+
+        Tensor t = new Tensor(n, c);
+        for (int i = 0; i < n; ++i)
+            System.arraycopy(input[i], 0, t.data, i * c, c);
+        return t;
+    }
+
+    public float[][][][] toArray4()
+    {
+        float[][][][] output = new float[shape[0]][shape[1]][shape[2]][shape[3]];
+        for (int i = 0; i < shape[0]; ++i)
+            for (int j = 0; j < shape[1]; ++j)
+                for (int k = 0; k < shape[2]; ++k)
+                    for (int l = 0; l < shape[3]; ++l)
+                        output[i][j][k][l] = get(i, j, k, l);
+        return output;
+    }
+
+    // Flatten every image into one row.
+    public float[][] toArray2()
+    {
+        int n = shape[0];
+        int c = sampleSize();
+        Tensor t = isContiguous() ? this : copy();
+
+        float[][] output = new float[n][c];
+        for (int i = 0; i < n; ++i)
+            System.arraycopy(t.data, t.offset + i * c, output[i], 0, c);
+        return output;
+    }
+
+    public Tensor copy()
+    {
+        Tensor t = new Tensor(shape);
+        copyTo(t);
+        return t;
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    public static int count(int[] shape)
+    {
+        int s = 1;
+        for (int i = 0; i < shape.length; ++i)
+            s *= shape[i];
+        return s;
+    }
+
+    public static int[] contiguousStrides(int[] shape)
+    {
+        int[] strides = new int[shape.length];
+        int s = 1;
+        for (int i = shape.length - 1; i >= 0; --i) {
+            strides[i] = s;
+            s *= shape[i];
+        }
+        return strides;
+    }
+}
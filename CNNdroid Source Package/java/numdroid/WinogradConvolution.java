@@ -0,0 +1,259 @@
+package numdroid;
+
+// Winograd convolution F(m x m, 3 x 3) for 3 x 3 kernels with stride 1, with output tiles of m = 2 or m = 4
+// pixels a side. The output is computed in tiles of m x m pixels from input tiles of a x a pixels, a = m + 2:
+//   Y = A^T [ sum over channels of (G g G^T) . (B^T d B) ] A
+// for a kernel g and an input tile d, where . is the element-wise product. The kernels are transformed once
+// (transformKernels); for every image the input tiles are transformed, and for each of the a * a positions of a
+// transformed tile the sum over channels is one matrix product (kernels x channels times channels x tiles),
+// computed with Gemm. F(2x2, 3x3) takes 16 multiplications per output tile instead of 36, F(4x4, 3x3) 36 instead
+// of 144, at the cost of transformed kernels a * a / 9 times the size of the weights.
+// A layer keeps one instance, whose tasks are reused from call to call.
+public class WinogradConvolution
+{
+    private static final int BLOCK_BYTES = 1 << 20;         // transformed input and products of a block of tiles
+    private static final long MIN_PARALLEL_WORK = 1 << 16;  // multiply-adds below which one thread is faster
+
+    // transforms of F(2x2, 3x3)
+    private static final float[][] BT2 = {
+            {1, 0, -1, 0},
+            {0, 1, 1, 0},
+            {0, -1, 1, 0},
+            {0, 1, 0, -1}};
+    private static final float[][] G2 = {
+            {1, 0, 0},
+            {0.5f, 0.5f, 0.5f},
+            {0.5f, -0.5f, 0.5f},
+            {0, 0, 1}};
+    private static final float[][] AT2 = {
+            {1, 1, 1, 0},
+            {0, 1, -1, -1}};
+
+    // transforms of F(4x4, 3x3)
+    private static final float[][] BT4 = {
+            {4, 0, -5, 0, 1, 0},
+            {0, -4, -4, 1, 1, 0},
+            {0, 4, -4, -1, 1, 0},
+            {0, -2, -1, 2, 1, 0},
+            {0, 2, -1, -2, 1, 0},
+            {0, 4, 0, -5, 0, 1}};
+    private static final float[][] G4 = {
+            {1 / 4f, 0, 0},
+            {-1 / 6f, -1 / 6f, -1 / 6f},
+            {-1 / 6f, 1 / 6f, -1 / 6f},
+            {1 / 24f, 1 / 12f, 1 / 6f},
+            {1 / 24f, -1 / 12f, 1 / 6f},
+            {0, 0, 1}};
+    private static final float[][] AT4 = {
+            {1, 1, 1, 1, 1, 0},
+            {0, 1, -1, 2, -2, 0},
+            {0, 1, 1, 4, 4, 0},
+            {0, 1, -1, 8, -8, 1}};
+
+    private static final ThreadLocal<float[]> buffers = new ThreadLocal<>();   // block buffers of every thread
+
+    // arguments of the call in progress, read by the tasks
+    private float[] in, transformed, bias, out;
+    private int inOffset, outOffset, c_i, h_i, w_i, m, n_k, group, h_o, w_o;
+    private int[] pad;
+    private int m_k, c_k;                   // kernels and channels per group
+    private int tilesX, tiles, block, blocks;   // output tiles per row and per image, tiles per task, tasks per image and group
+
+    // task (image, group, block of tiles), in this order
+    private final Workers.Loop tasks = new Workers.Loop() {
+        @Override
+        protected void task(int i)
+        {
+            int n = i / blocks / group;
+            int g = i / blocks % group;
+            int first = i % blocks * block;
+            convolveBlock(in, inOffset + (n * c_i + g * c_k) * h_i * w_i, c_k, h_i, w_i, transformed, m, bias, m_k,
+                    g, pad, out, outOffset + (n * n_k + g * m_k) * h_o * w_o, h_o, w_o, tilesX, first,
+                    Math.min(block, tiles - first));
+        }
+    };
+
+    public static boolean applies(int h_k, int w_k, int[] stride)
+    {
+        return h_k == 3 && w_k == 3 && stride[0] == 1 && stride[1] == 1;
+    }
+
+    // Kernels (n_k, c_k, 3, 3) transformed to G g G^T for output tiles of m pixels a side: for every group and
+    // every position e of the a x a transformed tile, the (kernels x channels) matrix of position e packed for
+    // Gemm.
+    public static float[] transformKernels(float[] kernels, int n_k, int c_k, int group, int m)
+    {
+        float[][] g = m == 4 ? G4 : G2;
+        int a = m + 2;
+        int m_k = n_k / group;
+        int size = Gemm.packedSize(m_k, c_k);
+        float[] u = new float[a * a * m_k * c_k];       // (e, kernel, channel) of one group
+        float[] tmp = new float[a * 3];
+        float[] packed = new float[group * a * a * size];
+        for (int gr = 0; gr < group; ++gr) {
+            for (int k = 0; k < m_k; ++k)
+                for (int c = 0; c < c_k; ++c) {
+                    int w = ((gr * m_k + k) * c_k + c) * 9;
+                    // tmp = G w (a x 3), then G w G^T (a x a)
+                    for (int i = 0; i < a; ++i)
+                        for (int j = 0; j < 3; ++j)
+                            tmp[i * 3 + j] = g[i][0] * kernels[w + j] + g[i][1] * kernels[w + 3 + j] + g[i][2] * kernels[w + 6 + j];
+                    for (int i = 0; i < a; ++i)
+                        for (int j = 0; j < a; ++j)
+                            u[((i * a + j) * m_k + k) * c_k + c] = tmp[i * 3] * g[j][0] + tmp[i * 3 + 1] * g[j][1] + tmp[i * 3 + 2] * g[j][2];
+                }
+            for (int e = 0; e < a * a; ++e)
+                Gemm.packA(u, e * m_k * c_k, m_k, c_k, packed, (gr * a * a + e) * size);
+        }
+        return packed;
+    }
+
+    // out (n_i, n_k, h_o, w_o) = in (n_i, c_i, h_i, w_i) convolved with the transformed kernels, plus bias.
+    public void convolve(float[] in, int inOffset, int n_i, int c_i, int h_i, int w_i, float[] transformed, int m,
+                         float[] bias, int n_k, int group, int[] pad, float[] out, int outOffset, int h_o, int w_o)
+    {
+        this.in = in;
+        this.inOffset = inOffset;
+        this.c_i = c_i;
+        this.h_i = h_i;
+        this.w_i = w_i;
+        this.transformed = transformed;
+        this.m = m;
+        this.bias = bias;
+        this.n_k = n_k;
+        this.group = group;
+        this.pad = pad;
+        this.out = out;
+        this.outOffset = outOffset;
+        this.h_o = h_o;
+        this.w_o = w_o;
+        m_k = n_k / group;
+        c_k = c_i / group;
+        tilesX = (w_o + m - 1) / m;
+        tiles = (h_o + m - 1) / m * tilesX;
+        block = blockWidth(m, c_k, m_k, tiles, n_i * group);
+        blocks = (tiles + block - 1) / block;
+
+        int count = n_i * group * blocks;
+        if ((long) n_i * n_k * tiles * c_k * (m + 2) * (m + 2) < MIN_PARALLEL_WORK)
+            tasks.runHere(count);
+        else
+            tasks.run(count);
+        this.in = null;                 // the blobs and the weights of a layer that is not resident can be freed
+        this.transformed = null;
+        this.bias = null;
+        this.out = null;
+    }
+
+    // Memory of the transformed kernels.
+    public static long kernelBytes(int n_k, int c_k, int group, int m)
+    {
+        return 4L * group * (m + 2) * (m + 2) * Gemm.packedSize(n_k / group, c_k);
+    }
+
+    // Memory of the block buffers of all threads.
+    public static long scratchBytes(int n_k, int c_k, int group, int m, int h_o, int w_o, int batches)
+    {
+        int tiles = (h_o + m - 1) / m * ((w_o + m - 1) / m);
+        int block = blockWidth(m, c_k, n_k / group, tiles, batches);
+        return 4L * (m + 2) * (m + 2) * (c_k + n_k / group) * block * Workers.threads();
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Tiles per block: the transformed input and the products of a block fit in BLOCK_BYTES, and there are
+    // enough blocks for all threads.
+    private static int blockWidth(int m, int c_k, int m_k, int tiles, int batches)
+    {
+        int a = m + 2;
+        int block = Math.max(Gemm.NR, BLOCK_BYTES / (4 * a * a * (c_k + m_k)) / Gemm.NR * Gemm.NR);
+        long perThread = ((long) tiles * batches + Workers.threads() - 1) / Workers.threads();
+        if (perThread < block)
+            block = Math.max(Gemm.NR, (int) perThread);
+        return Math.min(block, tiles);
+    }
+
+    // Output tiles [first, first + count) of one image and group.
+    private static void convolveBlock(float[] in, int frame, int c_k, int h_i, int w_i, float[] transformed, int m,
+                                      float[] bias, int m_k, int group, int[] pad, float[] out, int plane,
+                                      int h_o, int w_o, int tilesX, int first, int count)
+    {
+        float[][] bt = m == 4 ? BT4 : BT2;
+        float[][] at = m == 4 ? AT4 : AT2;
+        int a = m + 2;
+        int positions = a * a;
+        float[] buffer = buffer(positions * (c_k + m_k) * count + 2 * positions);
+        int products = positions * c_k * count;         // v: (e, channel, tile), then products: (e, kernel, tile)
+        int d = products + positions * m_k * count;     // input tile, then its transform
+        int tmp = d + positions;
+
+        // v[e][c][t] = (B^T d B)[e] of the input tile t of channel c
+        for (int c = 0; c < c_k; ++c) {
+            int channel = frame + c * h_i * w_i;
+            for (int t = 0; t < count; ++t) {
+                int top = (first + t) / tilesX * m - pad[0];
+                int left = (first + t) % tilesX * m - pad[1];
+                for (int i = 0; i < a; ++i)
+                    for (int j = 0; j < a; ++j) {
+                        int y = top + i;
+                        int x = left + j;
+                        buffer[d + i * a + j] = y >= 0 && y < h_i && x >= 0 && x < w_i ? in[channel + y * w_i + x] : 0;
+                    }
+                transform(bt, a, a, buffer, d, buffer, tmp);
+                for (int e = 0; e < positions; ++e)
+                    buffer[(e * c_k + c) * count + t] = buffer[d + e];
+            }
+        }
+
+        // one matrix product per position: (kernels x channels) times (channels x tiles)
+        int size = Gemm.packedSize(m_k, c_k);
+        for (int e = 0; e < positions; ++e)
+            Gemm.multiply(transformed, (group * positions + e) * size, m_k, c_k, buffer, e * c_k * count, count,
+                    Gemm.NR, count, null, 0, buffer, products + e * m_k * count, count);
+
+        // Y = A^T M A for every kernel and tile, cut at the edges of the output
+        for (int k = 0; k < m_k; ++k) {
+            float b = bias[group * m_k + k];
+            int outPlane = plane + k * h_o * w_o;
+            for (int t = 0; t < count; ++t) {
+                for (int e = 0; e < positions; ++e)
+                    buffer[d + e] = buffer[products + (e * m_k + k) * count + t];
+                transform(at, m, a, buffer, d, buffer, tmp);
+                int top = (first + t) / tilesX * m;
+                int left = (first + t) % tilesX * m;
+                for (int i = 0; i < m && top + i < h_o; ++i)
+                    for (int j = 0; j < m && left + j < w_o; ++j)
+                        out[outPlane + (top + i) * w_o + left + j] = buffer[d + i * m + j] + b;
+            }
+        }
+    }
+
+    // x (cols x cols, at x[xOffset]) = t x t^T for a (rows x cols) matrix t, the result is rows x rows; tmp
+    // holds rows * cols values.
+    private static void transform(float[][] t, int rows, int cols, float[] x, int xOffset, float[] buffer, int tmp)
+    {
+        for (int i = 0; i < rows; ++i)
+            for (int j = 0; j < cols; ++j) {
+                float s = 0;
+                for (int l = 0; l < cols; ++l)
+                    s += t[i][l] * x[xOffset + l * cols + j];
+                buffer[tmp + i * cols + j] = s;
+            }
+        for (int i = 0; i < rows; ++i)
+            for (int j = 0; j < rows; ++j) {
+                float s = 0;
+                for (int l = 0; l < cols; ++l)
+                    s += buffer[tmp + i * cols + l] * t[j][l];
+                x[xOffset + i * rows + j] = s;
+            }
+    }
+
+    private static float[] buffer(int size)
+    {
+        float[] b = buffers.get();
+        if (b == null || b.length < size) {
+            b = new float[size];
+            buffers.set(b);
+        }
+        return b;
+    }
+}
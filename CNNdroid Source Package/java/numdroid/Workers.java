@@ -0,0 +1,163 @@
+package numdroid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+// Fork/join pool shared by the multithreaded CPU kernels of all networks, created on first use. The tasks of a
+// call are forked into the pool and balanced by work stealing, so tiles that take longer (at the borders of an
+// image, or on a core that is also busy with something else) do not hold the other threads back. The number of
+// threads defaults to the number of cores (see setParallelism, cpu_parallelism in the network definition file).
+// It is fixed by the first network, so the pool is never replaced while another network may be running on it.
+public class Workers
+{
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+    private static boolean fixed;                       // parallelism set by a network or pool created, no longer changed
+    private static ForkJoinPool pool;
+
+    // Number of threads computing the tasks, 0 for one per core. Only the first call, before any task has run,
+    // sets it; later calls keep the threads of the pool. Returns the number of threads used.
+    public static synchronized int setParallelism(int threads)
+    {
+        if (!fixed && threads > 0)
+            parallelism = threads;
+        fixed = true;
+        return parallelism;
+    }
+
+    public static synchronized int threads()
+    {
+        return parallelism;
+    }
+
+    // Run the tasks and wait for all of them. With one task or one thread they run on the calling thread.
+    public static void run(List<Callable<Void>> tasks)
+    {
+        if (tasks.size() == 1 || threads() == 1) {
+            for (Callable<Void> task : tasks)
+                call(task);
+            return;
+        }
+        final List<ForkJoinTask<Void>> forks = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks)
+            forks.add(ForkJoinTask.adapt(task));
+        pool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute()
+            {
+                invokeAll(forks);
+            }
+        });
+    }
+
+    // Run the task on the pool without waiting for it, for work such as parameter loading that overlaps with the
+    // caller. get() on the result rethrows its exception wrapped in an ExecutionException.
+    public static Future<?> submit(Runnable task)
+    {
+        return pool().submit(task);
+    }
+
+    // Tasks 0 to count - 1 of a computation, run on the pool like run(List) but without allocating once the loop
+    // has run as many tasks: the fork/join tasks are kept and reinitialized for the next call. The CPU kernels
+    // keep one loop per layer, set the arguments of the call in fields read by task, and run it. A loop runs one
+    // call at a time.
+    public abstract static class Loop
+    {
+        private Part[] parts = new Part[0];     // tasks 1 to count - 1, task 0 runs on the calling thread
+        private int count;                      // tasks of the call in progress
+        private final RecursiveAction all = new RecursiveAction() {
+            @Override
+            protected void compute()
+            {
+                for (int i = count - 1; i > 0; --i)
+                    parts[i].fork();
+                task(0);
+                for (int i = 1; i < count; ++i)
+                    parts[i].quietlyJoin();
+                for (int i = 1; i < count; ++i)
+                    parts[i].join();            // rethrows the exception of a task once all of them are done
+            }
+        };
+
+        // Task i of the call.
+        protected abstract void task(int i);
+
+        // Run the tasks and wait for all of them. With one task or one thread they run on the calling thread.
+        public final void run(int count)
+        {
+            if (count == 1 || threads() == 1) {
+                runHere(count);
+                return;
+            }
+            if (parts.length < count) {
+                Part[] grown = new Part[count];
+                for (int i = 0; i < count; ++i)
+                    grown[i] = i < parts.length ? parts[i] : new Part(this, i);
+                parts = grown;
+            }
+            for (int i = 1; i < count; ++i)
+                parts[i].reinitialize();
+            this.count = count;
+            all.reinitialize();
+            pool().invoke(all);
+        }
+
+        // Run the tasks one after the other on the calling thread, for work too small to split.
+        public final void runHere(int count)
+        {
+            for (int i = 0; i < count; ++i)
+                task(i);
+        }
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private static synchronized ForkJoinPool pool()
+    {
+        fixed = true;
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool p)
+                {
+                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                    t.setName("CNNdroid worker");
+                    return t;
+                }
+            }, null, false);
+        return pool;
+    }
+
+    private static class Part extends RecursiveAction
+    {
+        private final Loop loop;
+        private final int index;
+
+        Part(Loop loop, int index)
+        {
+            this.loop = loop;
+            this.index = index;
+        }
+
+        @Override
+        protected void compute()
+        {
+            loop.task(index);
+        }
+    }
+
+    private static void call(Callable<Void> task)
+    {
+        try {
+            task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package params;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import numdroid.Half;
+
+// Parameters file in the CNNdroid binary format, opened with FileChannel.map so that the data is paged in
+// from the file on access instead of being read and decoded up front. A path of the form "<bundle>#<section>"
+// refers to a section of a model bundle (see ModelBundle), which is read from the mapping of the bundle.
+//
+// Layout (little-endian):
+//   int32   magic, "CNDP"
+//   int32   version (1)
+//   int32   number of arrays
+//   int32   reserved (0)
+//   for every array:
+//     int32   data type (DTYPE_FLOAT32, DTYPE_FLOAT16 or DTYPE_INT32)
+//     int32   rank
+//     int32   dimensions [rank]
+//     int64   offset of the data from the start of the file, a multiple of ALIGNMENT
+//   raw data of every array
+public class MappedParams
+{
+    public static final int MAGIC = 0x50444E43;     // "CNDP" read as a little-endian int
+    public static final int VERSION = 1;
+    public static final int DTYPE_FLOAT32 = 0;
+    public static final int DTYPE_FLOAT16 = 1;     // IEEE half precision, see numdroid.Half
+    public static final int DTYPE_INT32 = 2;       // indices, e.g. of sparse weights (see Pruner)
+    public static final int ALIGNMENT = 64;         // alignment of the data of every array
+
+    private ByteBuffer buffer;          // the whole file, or its section of a bundle
+    private int[][] shapes;             // shape of every array
+    private int[] dtypes;               // data type of every array
+    private long[] offsets;             // position of the data of every array
+
+    private MappedParams(ByteBuffer buffer) throws IOException
+    {
+        this.buffer = buffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC)
+            throw new IOException("not a CNDP parameters file");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("unsupported CNDP version " + buffer.getInt(4));
+
+        int count = buffer.getInt(8);
+        shapes = new int[count][];
+        dtypes = new int[count];
+        offsets = new long[count];
+
+        int pos = 16;
+        for (int i = 0; i < count; ++i) {
+            dtypes[i] = buffer.getInt(pos);
+            int rank = buffer.getInt(pos + 4);
+            pos += 8;
+            shapes[i] = new int[rank];
+            for (int d = 0; d < rank; ++d) {
+                shapes[i][d] = buffer.getInt(pos);
+                pos += 4;
+            }
+            offsets[i] = buffer.getLong(pos);
+            pos += 8;
+
+            if (dtypes[i] != DTYPE_FLOAT32 && dtypes[i] != DTYPE_FLOAT16 && dtypes[i] != DTYPE_INT32)
+                throw new IOException("unsupported data type " + dtypes[i]);
+            if (offsets[i] + (long) elementSize(dtypes[i]) * count(shapes[i]) > buffer.capacity())
+                throw new IOException("array " + i + " goes past the end of the file");
+        }
+    }
+
+    // Map a parameters file, null if it cannot be read.
+    public static MappedParams open(String path)
+    {
+        String[] section = ModelBundle.split(path);
+        if (section != null) {
+            ModelBundle bundle = ModelBundle.open(section[0]);
+            ByteBuffer b = bundle != null ? bundle.section(section[1]) : null;
+            if (b == null) {
+                Log.d("CNNdroid", "Error: no section \"" + section[1] + "\" in model bundle \"" + section[0] + "\"");
+                return null;
+            }
+            try {
+                return new MappedParams(b);
+            } catch (IOException e) {
+                Log.d("CNNdroid", "Error: cannot read parameters \"" + path + "\": " + e.getMessage());
+                return null;
+            }
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                return new MappedParams(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                raf.close();        // the mapping stays valid after the channel is closed
+            }
+        } catch (IOException e) {
+            Log.d("CNNdroid", "Error: cannot map parameters file \"" + path + "\": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Whether the file starts with the magic number of the binary format.
+    public static boolean isMappedFile(String path)
+    {
+        String[] section = ModelBundle.split(path);
+        if (section != null) {
+            ModelBundle bundle = ModelBundle.open(section[0]);
+            ByteBuffer b = bundle != null ? bundle.section(section[1]) : null;
+            return b != null && b.capacity() >= 16 && b.getInt(0) == MAGIC;
+        }
+        File f = new File(path);
+        if (f.length() < 16)
+            return false;
+        try {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                byte[] b = new byte[4];
+                if (in.read(b) != 4)
+                    return false;
+                return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int arrayCount()
+    {
+        return shapes.length;
+    }
+
+    public int[] shape(int i)
+    {
+        return shapes[i].clone();
+    }
+
+    public int dtype(int i)
+    {
+        return dtypes[i];
+    }
+
+    // View of the data of array i, read from the mapped file; array i must be DTYPE_FLOAT32.
+    public FloatBuffer floats(int i)
+    {
+        if (dtypes[i] != DTYPE_FLOAT32)
+            throw new IllegalStateException("array " + i + " is not stored in single precision");
+        return data(i).asFloatBuffer();
+    }
+
+    // View of the data of array i, read from the mapped file; array i must be DTYPE_FLOAT16.
+    public ShortBuffer halves(int i)
+    {
+        if (dtypes[i] != DTYPE_FLOAT16)
+            throw new IllegalStateException("array " + i + " is not stored in half precision");
+        return data(i).asShortBuffer();
+    }
+
+    // View of the data of array i, read from the mapped file; array i must be DTYPE_INT32.
+    public IntBuffer ints(int i)
+    {
+        if (dtypes[i] != DTYPE_INT32)
+            throw new IllegalStateException("array " + i + " is not stored as integers");
+        return data(i).asIntBuffer();
+    }
+
+    public int[] toIntArray(int i)
+    {
+        int[] data = new int[count(shapes[i])];
+        ints(i).get(data);
+        return data;
+    }
+
+    // Copy of the data of array i in one flat array, widened if it is stored in half precision.
+    public float[] toArray(int i)
+    {
+        if (dtypes[i] == DTYPE_FLOAT16)
+            return Half.toFloats(toHalfArray(i));
+        float[] data = new float[count(shapes[i])];
+        floats(i).get(data);
+        return data;
+    }
+
+    // Copy of the data of array i in half precision, narrowed if it is stored in single precision.
+    public short[] toHalfArray(int i)
+    {
+        if (dtypes[i] == DTYPE_FLOAT32) {
+            FloatBuffer f = floats(i);
+            short[] half = new short[f.remaining()];
+            for (int j = 0; j < half.length; ++j)
+                half[j] = Half.fromFloat(f.get(j));
+            return half;
+        }
+        short[] half = new short[count(shapes[i])];
+        halves(i).get(half);
+        return half;
+    }
+
+    static int elementSize(int dtype)
+    {
+        return dtype == DTYPE_FLOAT16 ? 2 : 4;
+    }
+
+    private ByteBuffer data(int i)
+    {
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        b.position((int) offsets[i]);
+        b.limit((int) (offsets[i] + (long) elementSize(dtypes[i]) * count(shapes[i])));
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static int count(int[] shape)
+    {
+        int s = 1;
+        for (int d : shape)
+            s *= d;
+        return s;
+    }
+}
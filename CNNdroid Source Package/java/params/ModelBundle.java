@@ -0,0 +1,327 @@
+package params;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+// Single-file model: the network definition and the parameters files of all layers, each in its own section of
+// one file that is mapped once. The parameters of a bundle are addressed as "<bundle path>#<section name>"
+// (see pathOf); MappedParams.open reads such a path from the mapping without opening another file.
+//
+// Layout (little-endian):
+//   int32   magic, "CNDB"
+//   int32   version (1)
+//   int32   number of sections
+//   int32   reserved (0)
+//   for every section:
+//     int32   length of the name in bytes
+//     byte    name [length], UTF-8
+//     int64   offset of the section from the start of the file, a multiple of MappedParams.ALIGNMENT
+//     int64   size of the section in bytes
+//   data of every section
+// The section DEFINITION holds the network definition text. Every other section is a parameters file in the
+// binary format of MappedParams, named after the parameters_file entry of the definition that refers to it.
+//
+// Usage: java params.ModelBundle net.txt model.cnnb    bundles net.txt and the parameters files it refers to
+public class ModelBundle
+{
+    public static final int MAGIC = 0x42444E43;     // "CNDB" read as a little-endian int
+    public static final int VERSION = 1;
+    public static final String DEFINITION = "network_definition";
+    public static final String SEPARATOR = "#";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Map<String, ModelBundle> bundles = new HashMap<>();   // bundles mapped so far, by path
+
+    private String path;                    // bundle file
+    private MappedByteBuffer buffer;        // the whole file
+    private Map<String, long[]> sections;   // offset and size of every section, by name
+
+    private ModelBundle(String path, MappedByteBuffer buffer) throws IOException
+    {
+        this.path = path;
+        this.buffer = buffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC)
+            throw new IOException("not a CNDB model bundle");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("unsupported CNDB version " + buffer.getInt(4));
+
+        int count = buffer.getInt(8);
+        sections = new LinkedHashMap<>();
+        int pos = 16;
+        for (int i = 0; i < count; ++i) {
+            int length = buffer.getInt(pos);
+            byte[] name = new byte[length];
+            for (int j = 0; j < length; ++j)
+                name[j] = buffer.get(pos + 4 + j);
+            pos += 4 + length;
+            long offset = buffer.getLong(pos);
+            long size = buffer.getLong(pos + 8);
+            pos += 16;
+            if (offset + size > buffer.capacity())
+                throw new IOException("section " + new String(name, UTF8) + " goes past the end of the file");
+            sections.put(new String(name, UTF8), new long[]{offset, size});
+        }
+    }
+
+    // Map a bundle, or return the mapping of a bundle opened before; null if it cannot be read.
+    public static synchronized ModelBundle open(String path)
+    {
+        ModelBundle b = bundles.get(path);
+        if (b != null)
+            return b;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                b = new ModelBundle(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                raf.close();        // the mapping stays valid after the channel is closed
+            }
+        } catch (IOException e) {
+            Log.d("CNNdroid", "Error: cannot map model bundle \"" + path + "\": " + e.getMessage());
+            return null;
+        }
+        bundles.put(path, b);
+        return b;
+    }
+
+    // Whether the file starts with the magic number of a bundle.
+    public static boolean isBundle(String path)
+    {
+        synchronized (ModelBundle.class) {
+            if (bundles.containsKey(path))
+                return true;
+        }
+        File f = new File(path);
+        if (!f.isFile() || f.length() < 16)
+            return false;
+        try {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                byte[] b = new byte[4];
+                if (in.read(b) != 4)
+                    return false;
+                return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // (bundle path, section name) of a path inside a bundle, null for a plain file. Section names are parameters
+    // file names, which may hold the separator themselves: the bundle is the shortest prefix that is one.
+    public static String[] split(String path)
+    {
+        for (int i = path.indexOf(SEPARATOR); i >= 0; i = path.indexOf(SEPARATOR, i + 1))
+            if (isBundle(path.substring(0, i)))
+                return new String[]{path.substring(0, i), path.substring(i + 1)};
+        return null;
+    }
+
+    // The file holding the data of a path: the bundle for a section, the path itself otherwise.
+    public static File containerOf(String path)
+    {
+        String[] parts = split(path);
+        return new File(parts != null ? parts[0] : path);
+    }
+
+    public String path()
+    {
+        return path;
+    }
+
+    // Path of a section, as given to the layers.
+    public String pathOf(String section)
+    {
+        return path + SEPARATOR + section;
+    }
+
+    // Size of a section in bytes, -1 if there is no such section.
+    public long sectionSize(String name)
+    {
+        long[] s = sections.get(name);
+        return s == null ? -1 : s[1];
+    }
+
+    // View of a section, null if there is no such section.
+    public ByteBuffer section(String name)
+    {
+        long[] s = sections.get(name);
+        if (s == null)
+            return null;
+        ByteBuffer b = buffer.duplicate();
+        b.position((int) s[0]);
+        b.limit((int) (s[0] + s[1]));
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public String definition()
+    {
+        ByteBuffer b = section(DEFINITION);
+        if (b == null)
+            return null;
+        byte[] text = new byte[b.remaining()];
+        b.get(text);
+        return new String(text, UTF8);
+    }
+
+    // Read the whole bundle into memory now, so that the layers do not page it in as they go.
+    public void pin()
+    {
+        buffer.load();
+    }
+
+    ////////////////////////////////////////Bundle Writer///////////////////////////////////////////
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 2) {
+            System.out.println("Usage: ModelBundle <network definition file> <bundle file>");
+            return;
+        }
+        write(args[0], args[1]);
+        System.out.println(args[0] + " -> " + args[1]);
+    }
+
+    // Bundle a network definition file and the parameters files it refers to. MessagePack parameters files are
+    // converted to the binary format. The root_directory entry is left out: the parameters are in the bundle.
+    public static void write(String netFile, String bundleFile) throws IOException
+    {
+        String root = "";
+        StringBuilder definition = new StringBuilder();
+        List<String> files = new ArrayList<>();
+        Scanner s = new Scanner(new File(netFile));
+        try {
+            while (s.hasNextLine()) {
+                String line = s.nextLine();
+                String low = line.trim().toLowerCase();
+                if (low.startsWith("root_directory")) {
+                    root = quoted(line);
+                    continue;
+                }
+                if (low.startsWith("parameters_file") && !files.contains(quoted(line)))
+                    files.add(quoted(line));
+                definition.append(line).append('\n');
+            }
+        } finally {
+            s.close();
+        }
+
+        // every section as a file to copy
+        List<String> names = new ArrayList<>();
+        List<File> contents = new ArrayList<>();
+        List<File> temporary = new ArrayList<>();
+        File bundle = new File(bundleFile);
+        File dir = bundle.getAbsoluteFile().getParentFile();
+        try {
+            File def = File.createTempFile("cnndroid", ".txt", dir);
+            temporary.add(def);
+            FileOutputStream out = new FileOutputStream(def);
+            try {
+                out.write(definition.toString().getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+            names.add(DEFINITION);
+            contents.add(def);
+
+            for (String name : files) {
+                File f = new File(root + name);
+                if (!MappedParams.isMappedFile(f.getPath())) {
+                    File bin = File.createTempFile("cnndroid", ".bin", dir);
+                    temporary.add(bin);
+                    ParamConverter.convert(f.getPath(), bin.getPath());
+                    f = bin;
+                }
+                names.add(name);
+                contents.add(f);
+            }
+
+            int headerSize = 16;
+            for (String name : names)
+                headerSize += 4 + name.getBytes(UTF8).length + 16;
+            long[] offsets = new long[names.size()];
+            long pos = align(headerSize);
+            for (int i = 0; i < names.size(); ++i) {
+                offsets[i] = pos;
+                pos = align(pos + contents.get(i).length());
+            }
+
+            ByteBuffer header = ByteBuffer.allocate((int) align(headerSize)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(names.size());
+            header.putInt(0);
+            for (int i = 0; i < names.size(); ++i) {
+                byte[] name = names.get(i).getBytes(UTF8);
+                header.putInt(name.length);
+                header.put(name);
+                header.putLong(offsets[i]);
+                header.putLong(contents.get(i).length());
+            }
+            header.position(0);
+
+            FileOutputStream bundleOut = new FileOutputStream(bundle);
+            try {
+                FileChannel channel = bundleOut.getChannel();
+                while (header.hasRemaining())
+                    channel.write(header);
+                for (int i = 0; i < names.size(); ++i) {
+                    FileInputStream in = new FileInputStream(contents.get(i));
+                    try {
+                        FileChannel src = in.getChannel();
+                        long size = src.size();
+                        for (long done = 0; done < size; )
+                            done += src.transferTo(done, size - done, channel.position(offsets[i] + done));
+                    } finally {
+                        in.close();
+                    }
+                }
+                // pad the last section so every section ends inside the file
+                if (channel.size() < pos) {
+                    channel.position(pos - 1);
+                    channel.write(ByteBuffer.allocate(1));
+                }
+            } finally {
+                bundleOut.close();
+            }
+        } finally {
+            for (File t : temporary)
+                t.delete();
+        }
+    }
+
+    // Value of a 'key: "value"' line of a network definition file.
+    private static String quoted(String line)
+    {
+        int start = line.indexOf('"');
+        int end = line.indexOf('"', start + 1);
+        if (start < 0 || end < 0)
+            return "";
+        return line.substring(start + 1, end);
+    }
+
+    private static long align(long pos)
+    {
+        return (pos + MappedParams.ALIGNMENT - 1) / MappedParams.ALIGNMENT * MappedParams.ALIGNMENT;
+    }
+}
@@ -0,0 +1,152 @@
+package params;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import messagepack.StreamingUnpacker;
+import numdroid.Half;
+import numdroid.Tensor;
+
+// Converts MessagePack parameters files, as written by the scripts in "Parameter Generation Scripts", to the
+// binary format read by MappedParams. Every top-level array of the MessagePack file becomes one array of the
+// binary file; its shape is taken from the nesting of the MessagePack arrays (see StreamingUnpacker).
+// With --fp16 the weights (the first array of files holding weights and bias) are stored in half precision,
+// biases and labels are kept in single precision.
+//
+// Usage: java params.ParamConverter [--fp16] conv1.msg [fc6.msg ...]   writes conv1.bin, fc6.bin, ...
+public class ParamConverter
+{
+    public static void main(String[] args) throws IOException
+    {
+        boolean half = args.length > 0 && args[0].equals("--fp16");
+        if (args.length == (half ? 1 : 0)) {
+            System.out.println("Usage: ParamConverter [--fp16] <file.msg> [<file.msg> ...]");
+            return;
+        }
+        for (int i = half ? 1 : 0; i < args.length; ++i) {
+            String msgFile = args[i];
+            String binFile = (msgFile.endsWith(".msg") ? msgFile.substring(0, msgFile.length() - 4) : msgFile) + ".bin";
+            convert(msgFile, binFile, half);
+            System.out.println(msgFile + " -> " + binFile);
+        }
+    }
+
+    public static void convert(String msgFile, String binFile) throws IOException
+    {
+        convert(msgFile, binFile, false);
+    }
+
+    public static void convert(String msgFile, String binFile, boolean half) throws IOException
+    {
+        List<int[]> shapes = new ArrayList<>();
+        List<float[]> arrays = new ArrayList<>();
+
+        StreamingUnpacker unpacker = new StreamingUnpacker(msgFile);
+        try {
+            while (unpacker.hasNext()) {
+                Tensor t = unpacker.readTensor();
+                shapes.add(t.shape);
+                arrays.add(t.data);
+            }
+        } finally {
+            unpacker.close();
+        }
+
+        int[] dtypes = new int[shapes.size()];
+        for (int i = 0; i < dtypes.length; ++i)
+            dtypes[i] = half && i == 0 && dtypes.length == 2 ? MappedParams.DTYPE_FLOAT16 : MappedParams.DTYPE_FLOAT32;
+        write(binFile, shapes, arrays, dtypes);
+    }
+
+    public static void write(String binFile, List<int[]> shapes, List<float[]> arrays) throws IOException
+    {
+        write(binFile, shapes, arrays, new int[arrays.size()]);
+    }
+
+    // Arrays whose data type is DTYPE_FLOAT16 are narrowed to half precision while they are written.
+    public static void write(String binFile, List<int[]> shapes, List<float[]> arrays, int[] dtypes) throws IOException
+    {
+        writeArrays(binFile, shapes, new ArrayList<Object>(arrays), dtypes);
+    }
+
+    // Every array is a float[] (DTYPE_FLOAT32 or DTYPE_FLOAT16) or an int[] (DTYPE_INT32).
+    public static void writeArrays(String binFile, List<int[]> shapes, List<Object> arrays, int[] dtypes) throws IOException
+    {
+        int headerSize = 16;
+        for (int[] s : shapes)
+            headerSize += 8 + 4 * s.length + 8;
+
+        long[] offsets = new long[arrays.size()];
+        long pos = align(headerSize);
+        for (int i = 0; i < arrays.size(); ++i) {
+            offsets[i] = pos;
+            pos = align(pos + (long) MappedParams.elementSize(dtypes[i]) * length(arrays.get(i)));
+        }
+
+        ByteBuffer header = ByteBuffer.allocate((int) align(headerSize)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MappedParams.MAGIC);
+        header.putInt(MappedParams.VERSION);
+        header.putInt(arrays.size());
+        header.putInt(0);
+        for (int i = 0; i < arrays.size(); ++i) {
+            header.putInt(dtypes[i]);
+            header.putInt(shapes.get(i).length);
+            for (int d : shapes.get(i))
+                header.putInt(d);
+            header.putLong(offsets[i]);
+        }
+        header.position(0);
+
+        FileOutputStream out = new FileOutputStream(binFile);
+        try {
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining())
+                channel.write(header);
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < arrays.size(); ++i) {
+                channel.position(offsets[i]);
+                Object a = arrays.get(i);
+                int length = length(a);
+                int size = MappedParams.elementSize(dtypes[i]);
+                for (int j = 0; j < length; ) {
+                    chunk.clear();
+                    int n = Math.min(chunk.capacity() / size, length - j);
+                    if (a instanceof int[])
+                        chunk.asIntBuffer().put((int[]) a, j, n);
+                    else if (dtypes[i] == MappedParams.DTYPE_FLOAT16)
+                        for (int k = 0; k < n; ++k)
+                            chunk.putShort(Half.fromFloat(((float[]) a)[j + k]));
+                    else
+                        chunk.asFloatBuffer().put((float[]) a, j, n);
+                    chunk.position(0);
+                    chunk.limit(size * n);
+                    while (chunk.hasRemaining())
+                        channel.write(chunk);
+                    j += n;
+                }
+            }
+            // pad the last array so every array ends inside the file
+            if (channel.size() < pos) {
+                channel.position(pos - 1);
+                channel.write(ByteBuffer.allocate(1));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int length(Object array)
+    {
+        return array instanceof int[] ? ((int[]) array).length : ((float[]) array).length;
+    }
+
+    private static long align(long pos)
+    {
+        return (pos + MappedParams.ALIGNMENT - 1) / MappedParams.ALIGNMENT * MappedParams.ALIGNMENT;
+    }
+}
@@ -0,0 +1,96 @@
+package params;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import messagepack.StreamingUnpacker;
+
+// Shapes and data types of the arrays of a parameters file, read from its headers only: the header of the
+// binary format (see MappedParams), or the array headers of a MessagePack file, whose numbers are skipped
+// without being decoded. A network definition is checked and its parameters sized with it before anything
+// is loaded.
+public class ParamHeader
+{
+    private int[][] shapes;             // shape of every array
+    private int[] dtypes;               // data type of every array, DTYPE_FLOAT32 for MessagePack files
+
+    private ParamHeader(int[][] shapes, int[] dtypes)
+    {
+        this.shapes = shapes;
+        this.dtypes = dtypes;
+    }
+
+    public static ParamHeader read(String path) throws IOException
+    {
+        if (MappedParams.isMappedFile(path)) {
+            MappedParams p = MappedParams.open(path);
+            if (p == null)
+                throw new IOException("cannot map \"" + path + "\"");
+            int[][] shapes = new int[p.arrayCount()][];
+            int[] dtypes = new int[p.arrayCount()];
+            for (int i = 0; i < shapes.length; ++i) {
+                shapes[i] = p.shape(i);
+                dtypes[i] = p.dtype(i);
+            }
+            return new ParamHeader(shapes, dtypes);
+        }
+
+        List<int[]> shapes = new ArrayList<>();
+        StreamingUnpacker unpacker = new StreamingUnpacker(path);
+        try {
+            while (unpacker.hasNext())
+                shapes.add(unpacker.readShape());
+        } finally {
+            unpacker.close();
+        }
+        return new ParamHeader(shapes.toArray(new int[shapes.size()][]), new int[shapes.size()]);
+    }
+
+    public int arrayCount()
+    {
+        return shapes.length;
+    }
+
+    public int[] shape(int i)
+    {
+        return shapes[i].clone();
+    }
+
+    public int dtype(int i)
+    {
+        return dtypes[i];
+    }
+
+    // Number of values of array i.
+    public int count(int i)
+    {
+        return MappedParams.count(shapes[i]);
+    }
+
+    // Whether the file holds CSR weights written by Pruner.
+    public boolean isSparse()
+    {
+        return shapes.length == 5 && dtypes[0] == MappedParams.DTYPE_INT32;
+    }
+
+    // Memory taken by the parameters once they are loaded. The weights of a (weights, bias) file take
+    // weightSize bytes per value: 4 in single precision, 2 in half precision, 1 in int8, which adds a scale
+    // and a sum per output channel. Every other array is held in 32-bit values, the shape of sparse weights
+    // is not kept.
+    public long loadedBytes(int weightSize)
+    {
+        if (isSparse())
+            return 4L * (count(1) + count(2) + count(3) + count(4));
+        if (shapes.length == 2) {
+            long bytes = (long) weightSize * count(0) + 4L * count(1);
+            if (weightSize == 1)
+                bytes += 8L * count(1);
+            return bytes;
+        }
+        long bytes = 0;
+        for (int i = 0; i < shapes.length; ++i)
+            bytes += 4L * count(i);
+        return bytes;
+    }
+}
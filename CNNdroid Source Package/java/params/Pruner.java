@@ -0,0 +1,121 @@
+package params;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import messagepack.StreamingUnpacker;
+import numdroid.SparseMatrix;
+import numdroid.Tensor;
+
+// Prunes the weights of FullyConnected parameters files and writes them in compressed sparse row form, in the
+// binary format read by MappedParams. FullyConnected detects these files and computes with the sparse weights.
+//
+// Layout of a sparse parameters file (arrays of the binary format):
+//   0   int32   (2)        dense shape of the weights (c_o, c_i)
+//   1   int32   (c_o + 1)  row pointers
+//   2   int32   (nnz)      column indices
+//   3   float32 (nnz)      non-zero weights
+//   4   float32 (c_o)      bias
+//
+// Usage: java params.Pruner --sparsity 0.9 fc6.msg [fc7.bin ...]     drops the 90% smallest weights of every layer
+//        java params.Pruner --threshold 0.001 fc6.msg [...]         drops the weights of magnitude up to 0.001
+// writes fc6_sparse.bin, fc7_sparse.bin, ...
+public class Pruner
+{
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3 || (!args[0].equals("--sparsity") && !args[0].equals("--threshold"))) {
+            System.out.println("Usage: Pruner (--sparsity <fraction> | --threshold <magnitude>) <file> [<file> ...]");
+            return;
+        }
+        boolean bySparsity = args[0].equals("--sparsity");
+        float value = Float.parseFloat(args[1]);
+        for (int i = 2; i < args.length; ++i) {
+            String inFile = args[i];
+            String base = inFile.endsWith(".msg") || inFile.endsWith(".bin") ? inFile.substring(0, inFile.length() - 4) : inFile;
+            String outFile = base + "_sparse.bin";
+            SparseMatrix m = prune(inFile, outFile, bySparsity ? value : -1, bySparsity ? -1 : value);
+            System.out.println(inFile + " -> " + outFile + ", " + m.nonZeros() + " weights kept ("
+                    + String.format("%.1f", 100 * m.density()) + "%)");
+        }
+    }
+
+    // Prune the weights of a dense FullyConnected parameters file (MessagePack or binary), either to the given
+    // fraction of zeros (sparsity >= 0) or below the given magnitude, and write the sparse file.
+    public static SparseMatrix prune(String inFile, String outFile, float sparsity, float threshold) throws IOException
+    {
+        float[] weight;
+        float[] bias;
+        if (MappedParams.isMappedFile(inFile)) {
+            MappedParams p = MappedParams.open(inFile);
+            if (p == null)
+                throw new IOException("cannot read " + inFile);
+            weight = p.toArray(0);
+            bias = p.toArray(1);
+        }
+        else {
+            StreamingUnpacker unpacker = new StreamingUnpacker(inFile);
+            try {
+                Tensor w = unpacker.readTensor();
+                weight = w.data;
+                bias = unpacker.readTensor().data;
+            } finally {
+                unpacker.close();
+            }
+        }
+
+        if (sparsity >= 0)
+            threshold = magnitudeQuantile(weight, sparsity);
+        SparseMatrix m = SparseMatrix.fromDense(weight, bias.length, weight.length / bias.length, threshold);
+        write(outFile, m, bias);
+        return m;
+    }
+
+    public static void write(String file, SparseMatrix m, float[] bias) throws IOException
+    {
+        List<int[]> shapes = new ArrayList<>();
+        List<Object> arrays = new ArrayList<>();
+        shapes.add(new int[]{2});
+        arrays.add(new int[]{m.rows, m.cols});
+        shapes.add(new int[]{m.rows + 1});
+        arrays.add(m.rowPtr);
+        shapes.add(new int[]{m.nonZeros()});
+        arrays.add(m.colIndex);
+        shapes.add(new int[]{m.nonZeros()});
+        arrays.add(m.values);
+        shapes.add(new int[]{bias.length});
+        arrays.add(bias);
+        int i = MappedParams.DTYPE_INT32;
+        int f = MappedParams.DTYPE_FLOAT32;
+        ParamConverter.writeArrays(file, shapes, arrays, new int[]{i, i, i, f, f});
+    }
+
+    // Whether a mapped parameters file holds sparse weights.
+    public static boolean isSparse(MappedParams p)
+    {
+        return p.arrayCount() == 5 && p.dtype(0) == MappedParams.DTYPE_INT32;
+    }
+
+    // Sparse weights and bias of a sparse parameters file.
+    public static Object[] read(MappedParams p)
+    {
+        int[] shape = p.toIntArray(0);
+        SparseMatrix m = new SparseMatrix(shape[0], shape[1], p.toIntArray(1), p.toIntArray(2), p.toArray(3));
+        return new Object[]{m, p.toArray(4)};
+    }
+
+    // Magnitude below which the given fraction of the weights lies.
+    private static float magnitudeQuantile(float[] weight, float fraction)
+    {
+        int k = (int) (fraction * weight.length);
+        if (k <= 0)
+            return -1;
+        float[] magnitude = new float[weight.length];
+        for (int i = 0; i < weight.length; ++i)
+            magnitude[i] = Math.abs(weight[i]);
+        Arrays.sort(magnitude);
+        return magnitude[Math.min(k, weight.length) - 1];
+    }
+}
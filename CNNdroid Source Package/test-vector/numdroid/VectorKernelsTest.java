@@ -0,0 +1,123 @@
+package numdroid;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Vector kernels against the scalar ones, for runs shorter than one vector (the scalar path), exactly one or two
+// vectors, and vectors plus a tail, starting at an offset in arrays longer than the run. Only the values of the
+// run may change. Built and run like VectorKernels, with --add-modules jdk.incubator.vector.
+public class VectorKernelsTest
+{
+    private static final int L = VectorKernels.LANES;
+    private static final int[] LENGTHS = {0, 1, L - 1, L, L + 1, 2 * L - 1, 2 * L, 2 * L + 1, 5 * L + 3};
+    private static final int[] OFFSETS = {0, 1, 3, L + 2};
+
+    private final Kernels scalar = new Kernels();
+    private final VectorKernels vector = new VectorKernels();
+
+    @Test
+    public void chosenWhenUsable()
+    {
+        assertTrue(VectorKernels.usable());
+        assertTrue(Kernels.get() instanceof VectorKernels);
+    }
+
+    // The vector sum adds in a different order, the result may differ in the last bits.
+    @Test
+    public void dot()
+    {
+        for (int n : LENGTHS)
+            for (int aOff : OFFSETS) {
+                int bOff = OFFSETS[(aOff + 1) % OFFSETS.length];
+                Random random = new Random(n * 31 + aOff);
+                float[] a = random(random, aOff + n + 5);
+                float[] b = random(random, bOff + n + 5);
+                float expected = scalar.dot(a, aOff, b, bOff, n);
+                float bound = 0;
+                for (int i = 0; i < n; ++i)
+                    bound += Math.abs(a[aOff + i] * b[bOff + i]);
+                assertEquals(n + " at " + aOff + ", " + bOff, expected, vector.dot(a, aOff, b, bOff, n),
+                        1e-6f * bound);
+            }
+    }
+
+    @Test
+    public void axpy()
+    {
+        for (int n : LENGTHS)
+            for (int xOff : OFFSETS) {
+                int yOff = OFFSETS[(xOff + 2) % OFFSETS.length];
+                Random random = new Random(n * 37 + xOff);
+                float[] x = random(random, xOff + n + 5);
+                float[] y = random(random, yOff + n + 5);
+                float[] expected = y.clone();
+                scalar.axpy(-0.75f, x, xOff, expected, yOff, n);
+                vector.axpy(-0.75f, x, xOff, y, yOff, n);
+                assertArrayEquals(n + " at " + xOff + ", " + yOff, bits(expected), bits(y));
+            }
+    }
+
+    // The largest value anywhere in the run, or init when it is larger than all of them.
+    @Test
+    public void max()
+    {
+        for (int n : LENGTHS)
+            for (int off : OFFSETS)
+                for (int at = 0; at < n; at += Math.max(1, n / 4)) {
+                    Random random = new Random(n * 41 + off);
+                    float[] a = random(random, off + n + 5);
+                    a[off + at] = 2;
+                    a[off + n] = 3;
+                    String name = n + " at " + off + ", largest " + at;
+                    assertEquals(name, scalar.max(a, off, n, -1), vector.max(a, off, n, -1), 0);
+                    assertEquals(name, 2, vector.max(a, off, n, -1), 0);
+                    assertEquals(name + ", init", 2.5f, vector.max(a, off, n, 2.5f), 0);
+                }
+    }
+
+    @Test
+    public void relu()
+    {
+        for (int n : LENGTHS)
+            for (int xOff : OFFSETS) {
+                int yOff = OFFSETS[(xOff + 3) % OFFSETS.length];
+                Random random = new Random(n * 43 + xOff);
+                float[] x = random(random, xOff + n + 5);
+                float[] y = random(random, yOff + n + 5);
+                float[] expected = y.clone();
+                scalar.relu(x, xOff, expected, yOff, n);
+                vector.relu(x, xOff, y, yOff, n);
+                String name = n + " at " + xOff + ", " + yOff;
+                assertArrayEquals(name, bits(expected), bits(y));
+
+                float[] inPlace = x.clone();
+                scalar.relu(x, xOff, x, xOff, n);
+                vector.relu(inPlace, xOff, inPlace, xOff, n);
+                assertArrayEquals(name + " in place", bits(x), bits(inPlace));
+            }
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // values in [-1, 1), with negative zeros that ReLU must keep as they are
+    private static float[] random(Random random, int n)
+    {
+        float[] a = new float[n];
+        for (int i = 0; i < n; ++i)
+            a[i] = i % 7 == 3 ? -0f : random.nextFloat() * 2 - 1;
+        return a;
+    }
+
+    // exact comparison, which tells -0 from 0
+    private static int[] bits(float[] a)
+    {
+        int[] bits = new int[a.length];
+        for (int i = 0; i < a.length; ++i)
+            bits[i] = Float.floatToRawIntBits(a[i]);
+        return bits;
+    }
+}
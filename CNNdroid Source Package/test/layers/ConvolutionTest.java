@@ -0,0 +1,101 @@
+package layers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import numdroid.Tensor;
+import params.ParamConverter;
+
+import static org.junit.Assert.assertArrayEquals;
+
+// A layer given the last images of a batch, as the network passes a slice of a larger blob without copying it,
+// must compute what it computes for a copy of them, and write only its own part of a larger output blob.
+public class ConvolutionTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void gemmReadsViews() throws IOException
+    {
+        Convolution conv = layer(new int[]{1, 1}, new int[]{1, 1}, 1, 6, 3, 3, 3);
+        conv.setWinogradTile(0);
+        conv.setFftMode(Convolution.FftMode.Off);
+        checkViews(conv, 3, 8, 8);
+    }
+
+    @Test
+    public void winogradReadsViews() throws IOException
+    {
+        Convolution conv = layer(new int[]{1, 1}, new int[]{1, 1}, 1, 6, 3, 3, 3);
+        conv.setWinogradTile(4);
+        checkViews(conv, 3, 10, 9);
+    }
+
+    @Test
+    public void fftReadsViews() throws IOException
+    {
+        Convolution conv = layer(new int[]{1, 1}, new int[]{2, 2}, 1, 4, 3, 5, 5);
+        conv.setFftMode(Convolution.FftMode.On);
+        checkViews(conv, 3, 13, 11);
+    }
+
+    @Test
+    public void depthwiseReadsViews() throws IOException
+    {
+        Convolution conv = layer(new int[]{2, 2}, new int[]{1, 1}, 4, 8, 1, 3, 3);
+        checkViews(conv, 4, 9, 9);
+    }
+
+    @Test
+    public void quantizedReadsViews() throws IOException
+    {
+        Convolution conv = layer(new int[]{1, 2}, new int[]{1, 0}, 1, 5, 3, 3, 3);
+        conv.setQuantization(-1, 1);
+        checkViews(conv, 3, 8, 11);
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Sequential layer with random weights of shape (n_k, c_k, h_k, w_k), loaded at start.
+    private Convolution layer(int[] stride, int[] pad, int group, int... shape) throws IOException
+    {
+        Random random = new Random(Arrays.hashCode(shape));
+        File params = folder.newFile("conv.bin");
+        ParamConverter.write(params.getPath(), Arrays.asList(shape, new int[]{shape[0]}),
+                Arrays.asList(random(random, Tensor.count(shape)), random(random, shape[0])));
+        Convolution conv = new Convolution(stride, pad, group, params.getPath(), false, true, false, null, "conv",
+                folder.getRoot().getPath());
+        return conv;
+    }
+
+    // Images 1 and 2 of a batch of 3 through the layer, into images 1 and 2 of a batch of 3 outputs.
+    private static void checkViews(Convolution conv, int c_i, int h_i, int w_i)
+    {
+        conv.loadParams();
+        Tensor batch = Tensor.wrap(random(new Random(c_i * h_i * w_i), 3 * c_i * h_i * w_i), 3, c_i, h_i, w_i);
+        Tensor input = batch.slice(0, 1, 3);
+        int[] o = conv.inferOutputShape(input.shape);
+        Tensor outputs = new Tensor(3, o[1], o[2], o[3]);
+        Tensor output = outputs.slice(0, 1, 3);
+        conv.compute(input, output);
+
+        Tensor expected = new Tensor(o);
+        conv.compute(input.copy(), expected);
+        assertArrayEquals(new float[outputs.sampleSize()], Arrays.copyOfRange(outputs.data, 0, outputs.sampleSize()), 0);
+        assertArrayEquals(expected.data, Arrays.copyOfRange(outputs.data, output.offset, outputs.data.length), 0);
+    }
+
+    private static float[] random(Random random, int n)
+    {
+        float[] a = new float[n];
+        for (int i = 0; i < n; ++i)
+            a[i] = random.nextFloat() * 2 - 1;
+        return a;
+    }
+}
@@ -0,0 +1,94 @@
+package layers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import numdroid.Tensor;
+import params.ParamConverter;
+
+import static org.junit.Assert.assertArrayEquals;
+
+// Every sequential weight format of the layer reading the last images of a batch of feature maps, as a slice that
+// starts inside a larger blob, and writing them into rows of a larger output blob. The result must be that of a
+// copy of the images, and the first row of the output must be left alone.
+public class FullyConnectedTest
+{
+    private static final int C_O = 13;      // outputs, not a multiple of the GEMM panels
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void floatReadsViews() throws IOException
+    {
+        checkViews(layer(4 * 5 * 3), 4, 5, 3);
+    }
+
+    @Test
+    public void halfReadsViews() throws IOException
+    {
+        FullyConnected fc = layer(6 * 2 * 2);
+        fc.setHalfPrecision(true);
+        checkViews(fc, 6, 2, 2);
+    }
+
+    @Test
+    public void sparseReadsViews() throws IOException
+    {
+        FullyConnected fc = layer(3 * 4 * 4);
+        fc.setSparse(true);
+        checkViews(fc, 3, 4, 4);
+    }
+
+    @Test
+    public void quantizedReadsViews() throws IOException
+    {
+        FullyConnected fc = layer(2 * 7 * 3);
+        fc.setQuantization(-1, 1);
+        checkViews(fc, 2, 7, 3);
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // Sequential layer of C_O outputs with random weights, about a third of them zero, loaded at start.
+    private FullyConnected layer(int c_i) throws IOException
+    {
+        Random random = new Random(c_i);
+        float[] weight = random(random, C_O * c_i);
+        for (int i = 0; i < weight.length; i += 3)
+            weight[i] = 0;
+        File params = folder.newFile("fc.bin");
+        ParamConverter.write(params.getPath(), Arrays.asList(new int[]{C_O, c_i}, new int[]{C_O}),
+                Arrays.asList(weight, random(random, C_O)));
+        return new FullyConnected(params.getPath(), false, true, false, null, "fc", folder.getRoot().getPath());
+    }
+
+    // Images 2 and 3 of a batch of 4 through the layer, into rows 1 and 2 of 3 output rows.
+    private static void checkViews(FullyConnected fc, int c, int h, int w)
+    {
+        fc.loadParams();
+        Tensor batch = Tensor.wrap(random(new Random(c * h * w), 4 * c * h * w), 4, c, h, w);
+        Tensor input = batch.slice(0, 2, 4);
+        Tensor outputs = new Tensor(3, C_O);
+        Tensor output = outputs.slice(0, 1, 3);
+        fc.compute(input, output);
+
+        Tensor expected = new Tensor(fc.inferOutputShape(input.shape));
+        fc.compute(input.copy(), expected);
+        assertArrayEquals(new float[C_O], Arrays.copyOfRange(outputs.data, 0, C_O), 0);
+        assertArrayEquals(expected.data, Arrays.copyOfRange(outputs.data, output.offset, outputs.data.length), 0);
+    }
+
+    private static float[] random(Random random, int n)
+    {
+        float[] a = new float[n];
+        for (int i = 0; i < n; ++i)
+            a[i] = random.nextFloat() * 2 - 1;
+        return a;
+    }
+}
@@ -0,0 +1,40 @@
+package layers;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import numdroid.Tensor;
+
+import static org.junit.Assert.assertArrayEquals;
+
+// Multithread LRN across channels, with the channels of every image split in blocks on the CPU workers, against
+// the sequential layer. The input is a view of the last images of a larger batch.
+public class LocalResponseNormalizationTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blocksMatchSequential()
+    {
+        LocalResponseNormalization lrn = new LocalResponseNormalization(5, 1e-2, 0.75, "across_channels", false,
+                false, "norm", folder.getRoot().getPath());
+        Random random = new Random(231);
+        for (int c : new int[]{16, 7, 3}) {
+            float[] data = new float[4 * c * 6 * 5];
+            for (int i = 0; i < data.length; ++i)
+                data[i] = random.nextFloat() * 4 - 2;
+            Tensor input = Tensor.wrap(data, 4, c, 6, 5).slice(0, 2, 4);
+            Tensor expected = new Tensor(input.shape);
+            lrn.compute(input, expected);
+            for (int blocks : new int[]{4, 6, 8}) {
+                Tensor output = new Tensor(input.shape);
+                lrn.lrnLayerMultithread(input, output, 5, 1e-2, 0.75, "across_channels", blocks);
+                assertArrayEquals(c + " channels, " + blocks + " blocks", expected.data, output.data, 0);
+            }
+        }
+    }
+}
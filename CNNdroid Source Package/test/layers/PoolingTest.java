@@ -0,0 +1,61 @@
+package layers;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import numdroid.MyNum;
+import numdroid.Tensor;
+
+import static org.junit.Assert.assertArrayEquals;
+
+// The multithread pooling splits the channels of every image in blocks run on the CPU workers. For block counts
+// that do and do not divide the channels, and more blocks than channels, it must give the sequential result,
+// followed by the ReLU when one is appended to the layer.
+public class PoolingTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blocksMatchSequential()
+    {
+        Random random = new Random(230);
+        for (String type : new String[]{"max", "ave"})
+            for (int c : new int[]{12, 10, 5})
+                for (int blocks : new int[]{4, 6, 8}) {
+                    Tensor input = Tensor.wrap(random(random, 3 * c * 9 * 11), 3, c, 9, 11).slice(0, 1, 3);
+                    Pooling pool = layer(type);
+                    Tensor expected = new Tensor(pool.inferOutputShape(input.shape));
+                    pool.compute(input, expected);
+
+                    for (boolean relu : new boolean[]{false, true}) {
+                        Tensor output = new Tensor(expected.shape);
+                        pool.poolLayerMultithread(input, output, new int[]{3, 3}, type, new int[]{1, 1},
+                                new int[]{2, 2}, blocks, relu);
+                        float[] e = expected.data.clone();
+                        if (relu)
+                            new MyNum().relu(e, 0, e.length);
+                        assertArrayEquals(type + " " + c + " channels, " + blocks + " blocks, relu " + relu, e,
+                                output.data, 0);
+                    }
+                }
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private Pooling layer(String type)
+    {
+        return new Pooling(new int[]{3, 3}, type, new int[]{1, 1}, new int[]{2, 2}, false, false, "pool",
+                folder.getRoot().getPath());
+    }
+
+    private static float[] random(Random random, int n)
+    {
+        float[] a = new float[n];
+        for (int i = 0; i < n; ++i)
+            a[i] = random.nextFloat() * 2 - 1;
+        return a;
+    }
+}
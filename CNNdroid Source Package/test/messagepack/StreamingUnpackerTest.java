@@ -0,0 +1,150 @@
+package messagepack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+
+import numdroid.Tensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Values packed with msgpack 0.6.8, as by the parameter generation scripts, decoded back. Every value is read
+// both from a stream that fills the read buffer and from one that returns a few bytes per read, so that headers
+// and float32 runs are split at every position.
+public class StreamingUnpackerTest
+{
+    private static final int SHORT_READ = 7;    // bytes per read of the slow stream
+
+    @Test
+    public void decodesFloatArrays() throws IOException
+    {
+        Random random = new Random(7);
+        float[][][][] kernels = new float[5][3][4][2];
+        for (float[][][] k : kernels)
+            for (float[][] c : k)
+                for (float[] row : c)
+                    for (int i = 0; i < row.length; ++i)
+                        row[i] = random.nextFloat() * 2 - 1;
+        float[] bias = random(random, 5);
+        float[] array16 = random(random, 300);              // 16-bit array header
+        float[] array32 = random(random, 70000);            // 32-bit array header, larger than the read buffer
+        byte[] packed = pack(kernels, bias, array16, array32);
+
+        for (InputStream in : streams(packed)) {
+            StreamingUnpacker u = new StreamingUnpacker(in);
+            check(u.readTensor(), flatten(kernels), 5, 3, 4, 2);
+            check(u.readTensor(), bias, 5);
+            check(u.readTensor(), array16, 300);
+            check(u.readTensor(), array32, 70000);
+            assertFalse(u.hasNext());
+        }
+    }
+
+    @Test
+    public void decodesEveryNumberType() throws IOException
+    {
+        // fixints, uint8/16/32, int8/16/32, 64-bit integers and doubles, as msgpack packs them
+        long[] integers = {0, 1, 127, -1, -32, 128, 255, 256, 65535, 65536, -33, -128, -129, -32768, -32769,
+                1L << 31, -(1L << 31), 1L << 40, -(1L << 40)};
+        double[] doubles = {0.5, -1.25e-3, 3.0e5};
+        byte[] packed = pack(integers, doubles, 42, 0.75f);
+
+        float[] expected = new float[integers.length];
+        for (int i = 0; i < integers.length; ++i)
+            expected[i] = integers[i];
+        for (InputStream in : streams(packed)) {
+            StreamingUnpacker u = new StreamingUnpacker(in);
+            check(u.readTensor(), expected, integers.length);
+            check(u.readTensor(), new float[]{0.5f, -1.25e-3f, 3.0e5f}, 3);
+            check(u.readTensor(), new float[]{42}, 1);          // a scalar gives a tensor of shape (1)
+            check(u.readTensor(), new float[]{0.75f}, 1);
+            assertFalse(u.hasNext());
+        }
+    }
+
+    @Test
+    public void skipsValuesForTheirShape() throws IOException
+    {
+        Random random = new Random(70);
+        float[][] weights = new float[20][17];
+        for (float[] row : weights)
+            for (int i = 0; i < row.length; ++i)
+                row[i] = random.nextFloat();
+        int[][] mixed = {{1, -1, 200, -200}, {70000, -70000, 0, 5}};
+        float[] large = random(random, 70000);
+        float[] bias = random(random, 20);
+        byte[] packed = pack(weights, mixed, large, bias, new float[0]);
+
+        for (InputStream in : streams(packed)) {
+            StreamingUnpacker u = new StreamingUnpacker(in);
+            assertArrayEquals(new int[]{20, 17}, u.readShape());
+            assertArrayEquals(new int[]{2, 4}, u.readShape());
+            assertArrayEquals(new int[]{70000}, u.readShape());
+            check(u.readTensor(), bias, 20);                    // the values after the skipped ones are intact
+            assertArrayEquals(new int[]{0}, u.readShape());
+            assertFalse(u.hasNext());
+        }
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private static byte[] pack(Object... values) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Packer packer = new MessagePack().createPacker(out);
+        for (Object v : values)
+            packer.write(v);
+        packer.flush();
+        return out.toByteArray();
+    }
+
+    // The packed bytes read at once, and a few bytes at a time.
+    private static InputStream[] streams(byte[] packed)
+    {
+        InputStream slow = new FilterInputStream(new ByteArrayInputStream(packed)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                return super.read(b, off, Math.min(len, SHORT_READ));
+            }
+        };
+        return new InputStream[]{new ByteArrayInputStream(packed), slow};
+    }
+
+    private static void check(Tensor t, float[] expected, int... shape)
+    {
+        assertArrayEquals(shape, t.shape);
+        assertTrue(t.isContiguous());
+        float[] data = new float[t.size()];
+        System.arraycopy(t.data, t.offset, data, 0, data.length);
+        assertArrayEquals(expected, data, 0);
+    }
+
+    private static float[] flatten(float[][][][] a)
+    {
+        float[] flat = new float[a.length * a[0].length * a[0][0].length * a[0][0][0].length];
+        int i = 0;
+        for (float[][][] k : a)
+            for (float[][] c : k)
+                for (float[] row : c)
+                    for (float v : row)
+                        flat[i++] = v;
+        return flat;
+    }
+
+    private static float[] random(Random random, int n)
+    {
+        float[] a = new float[n];
+        for (int i = 0; i < n; ++i)
+            a[i] = random.nextFloat() * 2 - 1;
+        return a;
+    }
+}
@@ -0,0 +1,120 @@
+package network;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import numdroid.Tensor;
+import params.ParamConverter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// A small sequential network (convolutions through GEMM and Winograd, pooling, fully connected, softmax) given
+// views of a larger batch instead of a batch of its own. A slice of images is read in place and a slice of
+// channels is copied first; either way the result must be that of a copy of the same images.
+public class CNNdroidTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CNNdroid net;
+
+    @Before
+    public void network() throws Exception
+    {
+        Random random = new Random(1);
+        params("conv1.bin", random, 8, 3, 3, 3);
+        params("conv2.bin", random, 6, 4, 3, 3);
+        params("fc.bin", random, 5, 6 * 4 * 4);
+        File definition = folder.newFile("net.txt");
+        FileWriter w = new FileWriter(definition);
+        w.write("root_directory: \"" + folder.getRoot().getPath() + "/\"\n"
+                + "allocated_ram: 100\n"
+                + "execution_mode: \"sequential\"\n"
+                + "auto_tuning: \"off\"\n"
+                + "cpu_parallelism: 3\n"
+                + layer("Convolution", "conv1", "parameters_file: \"conv1.bin\"\n pad: 1\n stride: 1\n group: 1\n winograd: \"off\"")
+                + layer("ReLU", "relu1", null)
+                + layer("Pooling", "pool1", "pool: \"max\"\n kernel_size: 3\n pad: 0\n stride: 2")
+                + layer("Convolution", "conv2", "parameters_file: \"conv2.bin\"\n pad: 1\n stride: 1\n group: 2")
+                + layer("FullyConnected", "fc", "parameters_file: \"fc.bin\"")
+                + layer("Softmax", "prob", null));
+        w.close();
+        net = new CNNdroid(null, definition.getPath());
+    }
+
+    @Test
+    public void imagesOfALargerBatch()
+    {
+        Tensor batch = Tensor.wrap(random(new Random(2), 5 * 3 * 9 * 9), 5, 3, 9, 9);
+        Tensor images = batch.slice(0, 2, 4);
+        float[] expected = result(images.copy());
+        assertArrayEquals(expected, result(images), 0);
+        assertArrayEquals("second call on the same buffers", expected, result(images), 0);
+    }
+
+    @Test
+    public void channelsOfALargerBlob()
+    {
+        Tensor maps = Tensor.wrap(random(new Random(3), 2 * 7 * 9 * 9), 2, 7, 9, 9);
+        Tensor channels = maps.slice(1, 2, 5);
+        assertArrayEquals(result(channels.copy()), result(channels), 0);
+    }
+
+    @Test
+    public void singleImageOfRankThree()
+    {
+        Tensor batch = Tensor.wrap(random(new Random(4), 3 * 3 * 9 * 9), 3, 3, 9, 9);
+        Tensor image = batch.slice(0, 1, 2);
+        float[] expected = result(image.copy());
+        Tensor rank3 = Tensor.wrap(Arrays.copyOfRange(batch.data, image.offset, image.offset + image.size()), 3, 9, 9);
+        assertArrayEquals(expected, result(rank3), 0);
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // The output is backed by buffers of the network that the next call overwrites, so it is copied. The
+    // probabilities of every image must add up to 1.
+    private float[] result(Tensor input)
+    {
+        Tensor out = net.compute(input);
+        for (int n = 0; n < out.shape[0]; ++n) {
+            float sum = 0;
+            for (int c = 0; c < out.shape[1]; ++c)
+                sum += out.get(n, c);
+            assertEquals("image " + n, 1, sum, 1e-5f);
+        }
+        return Arrays.copyOfRange(out.data, out.offset, out.offset + out.size());
+    }
+
+    // Weights small enough for the scores to stay in the range of the softmax.
+    private void params(String file, Random random, int... shape) throws IOException
+    {
+        float[] weight = random(random, Tensor.count(shape));
+        for (int i = 0; i < weight.length; ++i)
+            weight[i] *= 0.2f;
+        ParamConverter.write(new File(folder.getRoot(), file).getPath(), Arrays.asList(shape, new int[]{shape[0]}),
+                Arrays.asList(weight, random(random, shape[0])));
+    }
+
+    private static String layer(String type, String name, String settings)
+    {
+        return "layer {\n type: \"" + type + "\"\n name: \"" + name + "\"\n" + (settings != null ? " " + settings + "\n" : "")
+                + "}\n";
+    }
+
+    private static float[] random(Random random, int n)
+    {
+        float[] a = new float[n];
+        for (int i = 0; i < n; ++i)
+            a[i] = random.nextFloat() * 2 - 1;
+        return a;
+    }
+}
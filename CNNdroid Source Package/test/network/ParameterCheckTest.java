@@ -0,0 +1,156 @@
+package network;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import numdroid.Tensor;
+import params.ParamConverter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// Layers whose parameters files do not fit their input or their settings, refused while the definition is parsed,
+// before any parameters are loaded. The shapes come from the file headers and from input_shape when it is given.
+public class ParameterCheckTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void matchingNetworkIsAccepted() throws Exception
+    {
+        params("conv.bin", 8, 3, 3, 3);
+        params("conv2.bin", 6, 4, 3, 3);
+        params("fc.bin", 5, 6 * 3 * 3);
+        CNNdroid net = new CNNdroid(null, definition("1 3 7 7",
+                layer("Convolution", "conv", "parameters_file: \"conv.bin\"\n pad: 0\n stride: 1\n group: 1")
+                + layer("Convolution", "conv2", "parameters_file: \"conv2.bin\"\n pad: 1\n stride: 2\n group: 2")
+                + layer("FullyConnected", "fc", "parameters_file: \"fc.bin\"")));
+        assertArrayEquals(new int[]{1, 5}, net.getOutputShape());
+    }
+
+    @Test
+    public void kernelsForOtherInputChannels() throws Exception
+    {
+        params("conv.bin", 8, 4, 3, 3);
+        refused("conv", definition("1 3 7 7",
+                layer("Convolution", "conv", "parameters_file: \"conv.bin\"\n pad: 0\n stride: 1\n group: 1")));
+    }
+
+    // The channels of the second layer come from the kernels of the first one, not from input_shape.
+    @Test
+    public void kernelsForOtherChannelsOfThePreviousLayer() throws Exception
+    {
+        params("conv.bin", 8, 3, 3, 3);
+        params("conv2.bin", 6, 3, 3, 3);
+        refused("conv2", definition(null,
+                layer("Convolution", "conv", "parameters_file: \"conv.bin\"\n pad: 0\n stride: 1\n group: 1")
+                + layer("ReLU", "relu", null)
+                + layer("Convolution", "conv2", "parameters_file: \"conv2.bin\"\n pad: 0\n stride: 1\n group: 2")));
+    }
+
+    @Test
+    public void kernelsNotSplitInGroups() throws Exception
+    {
+        params("conv.bin", 6, 1, 3, 3);
+        refused("conv", definition("1 4 7 7",
+                layer("Convolution", "conv", "parameters_file: \"conv.bin\"\n pad: 0\n stride: 1\n group: 4")));
+    }
+
+    // One bias per kernel is expected.
+    @Test
+    public void biasOfAnotherLayer() throws Exception
+    {
+        ParamConverter.write(path("conv.bin"), Arrays.asList(new int[]{8, 3, 3, 3}, new int[]{6}),
+                Arrays.asList(new float[8 * 27], new float[6]));
+        refused("conv", definition("1 3 7 7",
+                layer("Convolution", "conv", "parameters_file: \"conv.bin\"\n pad: 0\n stride: 1\n group: 1")));
+    }
+
+    @Test
+    public void weightsForAnotherInputSize() throws Exception
+    {
+        params("fc.bin", 5, 3 * 7 * 6);
+        refused("fc", definition("1 3 7 7", layer("FullyConnected", "fc", "parameters_file: \"fc.bin\"")));
+    }
+
+    // After a pooling layer only the channels are known: they must divide the inputs of the weights.
+    @Test
+    public void weightsForOtherChannels() throws Exception
+    {
+        params("conv.bin", 8, 3, 3, 3);
+        params("fc.bin", 5, 20);
+        refused("fc", definition(null,
+                layer("Convolution", "conv", "parameters_file: \"conv.bin\"\n pad: 0\n stride: 1\n group: 1")
+                + layer("Pooling", "pool", "pool: \"max\"\n kernel_size: 2\n pad: 0\n stride: 2")
+                + layer("FullyConnected", "fc", "parameters_file: \"fc.bin\"")));
+    }
+
+    @Test
+    public void weightsForOtherOutputsOfThePreviousLayer() throws Exception
+    {
+        params("fc1.bin", 10, 3 * 7 * 7);
+        params("fc2.bin", 4, 12);
+        refused("fc2", definition("1 3 7 7",
+                layer("FullyConnected", "fc1", "parameters_file: \"fc1.bin\"")
+                + layer("FullyConnected", "fc2", "parameters_file: \"fc2.bin\"")));
+    }
+
+    // The weights do not split into one row per bias.
+    @Test
+    public void weightsNotAMultipleOfTheOutputs() throws Exception
+    {
+        ParamConverter.write(path("fc.bin"), Arrays.asList(new int[]{7, 11}, new int[]{5}),
+                Arrays.asList(new float[77], new float[5]));
+        refused("fc", definition(null, layer("FullyConnected", "fc", "parameters_file: \"fc.bin\"")));
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private static void refused(String layer, String definition)
+    {
+        try {
+            new CNNdroid(null, definition);
+            fail("layer " + layer + " accepted");
+        } catch (Exception e) {
+            assertEquals("CNNdroid layer " + layer + " does not match its parameters file.", e.getMessage());
+        }
+    }
+
+    private String definition(String inputShape, String layers) throws IOException
+    {
+        File definition = folder.newFile("net.txt");
+        FileWriter w = new FileWriter(definition);
+        w.write("root_directory: \"" + folder.getRoot().getPath() + "/\"\n"
+                + "allocated_ram: 100\n"
+                + "execution_mode: \"sequential\"\n"
+                + "auto_tuning: \"off\"\n"
+                + (inputShape != null ? "input_shape: \"" + inputShape + "\"\n" : "")
+                + layers);
+        w.close();
+        return definition.getPath();
+    }
+
+    private void params(String file, int... shape) throws IOException
+    {
+        ParamConverter.write(path(file), Arrays.asList(shape, new int[]{shape[0]}),
+                Arrays.asList(new float[Tensor.count(shape)], new float[shape[0]]));
+    }
+
+    private String path(String file)
+    {
+        return new File(folder.getRoot(), file).getPath();
+    }
+
+    private static String layer(String type, String name, String settings)
+    {
+        return "layer {\n type: \"" + type + "\"\n name: \"" + name + "\"\n" + (settings != null ? " " + settings + "\n" : "")
+                + "}\n";
+    }
+}
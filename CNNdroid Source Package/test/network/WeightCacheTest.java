@@ -0,0 +1,288 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import layers.LayerInterface;
+import layers.MemoryInterface;
+import numdroid.Tensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// Eviction order of every policy and the statistics of the cache, then the cache behind the prefetcher: it must
+// not take the memory the reads ahead need. Entries are loaded as the prefetcher does, a miss followed by a put.
+public class WeightCacheTest
+{
+    @Test
+    public void lruEvictsTheLeastRecentlyUsed()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.LRU, 300);
+        load(cache, 1, 100, 5);
+        load(cache, 2, 100, 5);
+        load(cache, 3, 100, 5);
+        assertNotNull(cache.get(1));
+        load(cache, 4, 100, 5);
+        assertCached(cache, 1, 3, 4);
+        assertNotNull(cache.get(3));
+        load(cache, 5, 100, 5);
+        assertCached(cache, 3, 4, 5);
+    }
+
+    // The cheapest entry to reload per byte goes first. Inserting raises the priority of the new entries, so an
+    // expensive entry that is not used anymore is evicted after a few cheaper ones.
+    @Test
+    public void costEvictsTheCheapestAndAgesStaleEntries()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.COST, 200);
+        load(cache, 1, 100, 40);
+        load(cache, 2, 100, 10);
+        load(cache, 3, 100, 20);
+        assertCached(cache, 1, 3);
+        load(cache, 4, 100, 20);
+        assertCached(cache, 1, 4);
+        load(cache, 5, 100, 20);
+        assertCached(cache, 4, 5);
+    }
+
+    // Per byte, a small entry that is slow to read is worth more than a large one that takes longer.
+    @Test
+    public void costIsPerByte()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.COST, 300);
+        load(cache, 1, 200, 30);
+        load(cache, 2, 50, 10);
+        load(cache, 3, 100, 5);
+        assertCached(cache, 2, 3);
+        assertEquals(150, cache.usedBytes());
+    }
+
+    @Test
+    public void costHitRefreshesThePriority()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.COST, 200);
+        load(cache, 1, 100, 10);
+        load(cache, 2, 100, 20);
+        load(cache, 3, 100, 30);
+        load(cache, 4, 100, 15);
+        load(cache, 5, 100, 15);
+        assertCached(cache, 3, 5);
+        // the cheap entries have aged the cache past the priority 3 was given when it was loaded
+        assertNotNull(cache.get(3));
+        load(cache, 6, 100, 15);
+        assertCached(cache, 3, 6);
+    }
+
+    @Test
+    public void frequencyEvictsTheLeastUsed()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.FREQUENCY, 300);
+        load(cache, 1, 100, 5);
+        load(cache, 2, 100, 5);
+        load(cache, 3, 100, 5);
+        cache.get(1);
+        cache.get(1);
+        cache.get(3);
+        load(cache, 4, 100, 5);
+        assertCached(cache, 1, 3, 4);
+        load(cache, 5, 100, 5);
+        assertCached(cache, 1, 3, 5);
+        cache.get(5);
+        cache.get(5);
+        cache.get(5);
+        load(cache, 6, 100, 5);
+        assertCached(cache, 1, 5, 6);
+    }
+
+    @Test
+    public void frequencyBreaksTiesByRecency()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.FREQUENCY, 200);
+        load(cache, 1, 100, 5);
+        load(cache, 2, 100, 5);
+        load(cache, 3, 100, 5);
+        assertCached(cache, 2, 3);
+    }
+
+    @Test
+    public void statistics()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.LRU, 250);
+        load(cache, 1, 100, 7);
+        load(cache, 2, 100, 3);
+        cache.get(1);
+        cache.get(2);
+        cache.get(1);
+        load(cache, 3, 100, 11);
+        assertEquals(3, cache.hits());
+        assertEquals(3, cache.misses());
+        assertEquals(1, cache.evictions());
+        assertEquals(21, cache.reloadTime());
+        assertEquals(200, cache.usedBytes());
+
+        // reloading an evicted entry is a miss again, and its read time counts
+        load(cache, 2, 100, 4);
+        assertEquals(4, cache.misses());
+        assertEquals(2, cache.evictions());
+        assertEquals(25, cache.reloadTime());
+    }
+
+    // An entry larger than the cache is not kept and does not evict anything.
+    @Test
+    public void entryLargerThanTheCache()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.LRU, 150);
+        load(cache, 1, 100, 5);
+        load(cache, 2, 200, 5);
+        assertCached(cache, 1);
+        assertEquals(0, cache.evictions());
+        assertEquals(10, cache.reloadTime());
+    }
+
+    @Test
+    public void smallerCapacityEvictsAtTheNextInsertion()
+    {
+        WeightCache cache = new WeightCache(WeightCache.Policy.LRU, 300);
+        load(cache, 1, 100, 5);
+        load(cache, 2, 100, 5);
+        cache.setCapacity(150);
+        assertEquals(200, cache.usedBytes());
+        load(cache, 3, 100, 5);
+        assertCached(cache, 3);
+        assertEquals(100, cache.usedBytes());
+    }
+
+    // 6 layers of 100 bytes that are not resident and a 300 byte budget. A cache allowed the whole budget filled
+    // it and left no room to read ahead, so almost every layer read its parameters in beforeLayer.
+    @Test
+    public void cacheLeavesRoomToReadAhead()
+    {
+        List<LayerInterface> layers = new ArrayList<>();
+        for (int i = 0; i < 6; ++i)
+            layers.add(new FileLayer("layer" + i, 100));
+        WeightCache cache = new WeightCache(WeightCache.Policy.LRU, 300);
+        ParamPrefetcher prefetcher = new ParamPrefetcher(layers, 300, cache);
+        assertEquals(150, cache.capacity());
+        try {
+            for (int call = 0; call < 20; ++call)
+                for (int i = 0; i < layers.size(); ++i) {
+                    prefetcher.beforeLayer(i);
+                    FileLayer layer = (FileLayer) layers.get(i);
+                    assertNotNull(layer.name + ", call " + call, layer.prefetched);
+                    assertEquals(layer.name, layer.prefetched[0]);
+                    layer.prefetched = null;
+                }
+        } finally {
+            prefetcher.shutdown();
+        }
+        int inPlace = 0;
+        for (LayerInterface layer : layers)
+            inPlace += ((FileLayer) layer).readsInPlace;
+        assertEquals(0, inPlace);
+        assertEquals(120, cache.hits() + cache.misses());
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private static void load(WeightCache cache, int key, long bytes, long loadTime)
+    {
+        assertEquals(null, cache.get(key));
+        cache.put(key, new Object[]{key}, bytes, loadTime);
+    }
+
+    // exactly the given keys among 1 to 6
+    private static void assertCached(WeightCache cache, int... keys)
+    {
+        boolean[] expected = new boolean[7];
+        for (int key : keys)
+            expected[key] = true;
+        for (int key = 1; key < expected.length; ++key)
+            if (expected[key])
+                assertTrue(key + " cached", cache.contains(key));
+            else
+                assertFalse(key + " evicted", cache.contains(key));
+    }
+
+    // A layer whose parameters are read from a file at every call, counting the reads not made by the prefetcher.
+    private static class FileLayer implements MemoryInterface
+    {
+        final String name;
+        final long bytes;
+        volatile int readsInPlace = 0;
+        Object[] prefetched;
+
+        FileLayer(String name, long bytes)
+        {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public Object[] readParams()
+        {
+            if (!Thread.currentThread().getName().equals("CNNdroid prefetch"))
+                ++readsInPlace;
+            return new Object[]{name};
+        }
+
+        @Override
+        public void setPrefetchedParams(Object[] params)
+        {
+            prefetched = params;
+        }
+
+        @Override
+        public long weightBytes()
+        {
+            return bytes;
+        }
+
+        @Override
+        public long packedWeightBytes()
+        {
+            return 0;
+        }
+
+        @Override
+        public long scratchBytes(int[] inputShape)
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean paramsResident()
+        {
+            return false;
+        }
+
+        @Override
+        public void loadParams()
+        {
+        }
+
+        @Override
+        public void releaseParams()
+        {
+        }
+
+        @Override
+        public void compute(Tensor input, Tensor output)
+        {
+        }
+
+        @Override
+        public int[] inferOutputShape(int[] inputShape)
+        {
+            return inputShape;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package numdroid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// One convolution checked by the engine tests: the shape, set step by step, then random data for it (draw). The
+// input and the output sit at an offset in their arrays, as in the views of a larger blob, and the expected output
+// is the direct loop of Reference.
+class ConvolutionCase
+{
+    int n_i, c_i, h_i, w_i;             // input blob
+    int n_k = 1, h_k = 1, w_k = 1;      // kernels
+    int group = 1;
+    int[] pad = {0, 0};
+    int[] stride = {1, 1};
+
+    int c_k, h_o, w_o;
+    int inOffset, outOffset;
+    float[] in;                         // the input from in[inOffset]
+    float[] kernels, bias;
+    private float[] input;              // the input alone, for the direct loop
+
+    ConvolutionCase(int n_i, int c_i, int h_i, int w_i)
+    {
+        this.n_i = n_i;
+        this.c_i = c_i;
+        this.h_i = h_i;
+        this.w_i = w_i;
+    }
+
+    ConvolutionCase kernels(int n_k, int h_k, int w_k)
+    {
+        this.n_k = n_k;
+        this.h_k = h_k;
+        this.w_k = w_k;
+        return this;
+    }
+
+    ConvolutionCase group(int group)
+    {
+        this.group = group;
+        return this;
+    }
+
+    ConvolutionCase pad(int h, int w)
+    {
+        pad = new int[]{h, w};
+        return this;
+    }
+
+    ConvolutionCase stride(int h, int w)
+    {
+        stride = new int[]{h, w};
+        return this;
+    }
+
+    // Draws the data; the seed is the shape, so that every case has its own values and a failure is repeatable.
+    ConvolutionCase draw()
+    {
+        Random random = new Random(Arrays.hashCode(new int[]{n_i, c_i, h_i, w_i, n_k, h_k, w_k, group,
+                pad[0], pad[1], stride[0], stride[1]}));
+        c_k = c_i / group;
+        h_o = Reference.outputSize(h_i, h_k, pad[0], stride[0]);
+        w_o = Reference.outputSize(w_i, w_k, pad[1], stride[1]);
+        inOffset = 1 + random.nextInt(50);
+        outOffset = 1 + random.nextInt(50);
+        input = Reference.random(random, n_i * c_i * h_i * w_i);
+        in = Reference.shift(input, inOffset);
+        kernels = Reference.random(random, n_k * c_k * h_k * w_k);
+        bias = Reference.random(random, n_k);
+        return this;
+    }
+
+    // An output array of the size of the case plus its offset, zero-filled.
+    float[] output()
+    {
+        return new float[outOffset + n_i * n_k * h_o * w_o];
+    }
+
+    void assertOutput(String engine, float[] out, float tolerance)
+    {
+        Reference.assertCloseAt(engine + " " + this, Reference.convolve(input, n_i, c_i, h_i, w_i, kernels, bias,
+                n_k, h_k, w_k, group, pad, stride), out, outOffset, tolerance);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "(" + n_i + ", " + c_i + ", " + h_i + ", " + w_i + ") * (" + n_k + ", " + c_k + ", " + h_k + ", "
+                + w_k + "), group " + group + ", pad " + Arrays.toString(pad) + ", stride " + Arrays.toString(stride);
+    }
+}
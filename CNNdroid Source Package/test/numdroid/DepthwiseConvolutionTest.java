@@ -0,0 +1,65 @@
+package numdroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Depthwise convolution (one input channel per group) against the direct loop.
+public class DepthwiseConvolutionTest
+{
+    private static final float TOLERANCE = 1e-4f;
+
+    private final DepthwiseConvolution depthwise = new DepthwiseConvolution();
+
+    @Test
+    public void oneKernelPerChannel()
+    {
+        check(new ConvolutionCase(1, 8, 9, 9).kernels(8, 3, 3).group(8).pad(1, 1));
+    }
+
+    @Test
+    public void channelMultiplier()
+    {
+        check(new ConvolutionCase(2, 5, 7, 11).kernels(10, 3, 3).group(5).stride(2, 2));
+        check(new ConvolutionCase(3, 4, 10, 7).kernels(12, 5, 3).group(4).pad(2, 1).stride(1, 2));
+    }
+
+    // Padding wider than the kernel reaches gives border outputs that are the bias alone, and the stride leaves
+    // the last columns of the image unread.
+    @Test
+    public void wideBordersAndUnreadColumns()
+    {
+        check(new ConvolutionCase(1, 6, 13, 13).kernels(6, 3, 5).group(6).pad(3, 2).stride(3, 1));
+    }
+
+    @Test
+    public void imageSmallerThanTheKernel()
+    {
+        check(new ConvolutionCase(2, 3, 2, 3).kernels(3, 3, 3).group(3).pad(1, 1));
+    }
+
+    @Test
+    public void planesSplitOnTheWorkers()
+    {
+        check(new ConvolutionCase(2, 32, 33, 35).kernels(32, 3, 3).group(32).pad(1, 1));
+    }
+
+    @Test
+    public void onlyOneChannelPerGroup()
+    {
+        assertTrue(DepthwiseConvolution.applies(1, 32));
+        assertFalse(DepthwiseConvolution.applies(2, 16));
+        assertFalse(DepthwiseConvolution.applies(1, 1));
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private void check(ConvolutionCase c)
+    {
+        c.draw();
+        float[] out = c.output();
+        depthwise.convolve(c.in, c.inOffset, c.n_i, c.c_i, c.h_i, c.w_i, c.kernels, c.bias, c.n_k, c.h_k, c.w_k,
+                c.pad, c.stride, out, c.outOffset, c.h_o, c.w_o);
+        c.assertOutput("depthwise", out, TOLERANCE);
+    }
+}
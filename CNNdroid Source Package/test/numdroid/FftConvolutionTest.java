@@ -0,0 +1,59 @@
+package numdroid;
+
+import org.junit.Test;
+
+// Overlap-save FFT convolution against the direct loop, every case computed with each tile size larger than its
+// kernels. Images are rarely a multiple of the tile, so the last tiles overlap the border.
+public class FftConvolutionTest
+{
+    private static final float TOLERANCE = 1e-4f;
+
+    private final FftConvolution fft = new FftConvolution();
+
+    @Test
+    public void paddedSameSize()
+    {
+        check(new ConvolutionCase(1, 3, 13, 13).kernels(5, 5, 5).pad(2, 2));
+    }
+
+    // The kernels are transformed in pairs; with an odd number of kernels per group the last pair has one.
+    @Test
+    public void oddKernelsPerGroup()
+    {
+        check(new ConvolutionCase(2, 4, 20, 17).kernels(6, 7, 5).group(2).pad(3, 1));
+        check(new ConvolutionCase(3, 6, 11, 9).kernels(9, 5, 5).group(3).pad(1, 2).stride(1, 2));
+    }
+
+    @Test
+    public void stridesKeepEveryFewOutputs()
+    {
+        check(new ConvolutionCase(1, 2, 27, 31).kernels(3, 5, 7).stride(2, 3));
+    }
+
+    @Test
+    public void kernelAsLargeAsTheImage()
+    {
+        check(new ConvolutionCase(1, 1, 5, 5).kernels(1, 5, 5));
+    }
+
+    @Test
+    public void largeLayerOnTheWorkers()
+    {
+        check(new ConvolutionCase(2, 8, 40, 37).kernels(10, 7, 7).pad(3, 3));
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private void check(ConvolutionCase c)
+    {
+        c.draw();
+        for (int n = 8; n <= 32; n <<= 1) {
+            if (n <= c.h_k || n <= c.w_k)
+                continue;
+            float[] out = c.output();
+            fft.convolve(c.in, c.inOffset, c.n_i, c.c_i, c.h_i, c.w_i,
+                    FftConvolution.transformKernels(c.kernels, c.n_k, c.c_k, c.h_k, c.w_k, c.group, n), n, c.bias,
+                    c.n_k, c.h_k, c.w_k, c.group, c.pad, c.stride, out, c.outOffset, c.h_o, c.w_o);
+            c.assertOutput("tile " + n, out, TOLERANCE);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package numdroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// im2col + GEMM convolution against the direct loop. The kernels and output pixels are rarely multiples of
+// Gemm.MR and Gemm.NR, so most cases also leave the last panels partly filled.
+public class GemmConvolutionTest
+{
+    private static final float TOLERANCE = 1e-4f;
+
+    private final GemmConvolution gemm = new GemmConvolution();
+
+    @Test
+    public void paddedSameSize()
+    {
+        check(new ConvolutionCase(1, 3, 9, 9).kernels(8, 3, 3).pad(1, 1));
+    }
+
+    @Test
+    public void stridedWithoutPadding()
+    {
+        check(new ConvolutionCase(2, 5, 7, 11).kernels(6, 3, 3).stride(2, 2));
+    }
+
+    @Test
+    public void groupsReadTheirOwnChannels()
+    {
+        check(new ConvolutionCase(3, 4, 10, 7).kernels(6, 5, 3).group(2).pad(2, 1));
+        check(new ConvolutionCase(1, 6, 13, 13).kernels(9, 3, 3).group(3).pad(1, 1).stride(2, 2));
+    }
+
+    // The output size is rounded up, so the last window reaches past the padding and reads zeros there.
+    @Test
+    public void lastWindowPastThePadding()
+    {
+        check(new ConvolutionCase(2, 3, 12, 9).kernels(5, 4, 2).pad(1, 0).stride(3, 2));
+    }
+
+    @Test
+    public void kernelAsLargeAsTheImage()
+    {
+        check(new ConvolutionCase(1, 1, 4, 4).kernels(3, 4, 4));
+    }
+
+    // 1x1, stride 1, no padding: the input planes are read in place as the im2col matrix.
+    @Test
+    public void pointwiseReadsThePlanesInPlace()
+    {
+        assertTrue(GemmConvolution.pointwise(1, 1, new int[]{0, 0}, new int[]{1, 1}));
+        check(new ConvolutionCase(1, 3, 5, 5).kernels(7, 1, 1));
+        check(new ConvolutionCase(3, 6, 7, 9).kernels(10, 1, 1).group(2));
+        check(new ConvolutionCase(2, 13, 1, 1).kernels(5, 1, 1));
+    }
+
+    @Test
+    public void paddedPointwiseGoesThroughIm2col()
+    {
+        assertFalse(GemmConvolution.pointwise(1, 1, new int[]{1, 1}, new int[]{2, 2}));
+        check(new ConvolutionCase(1, 3, 15, 17).kernels(7, 1, 1).pad(1, 1).stride(2, 2));
+    }
+
+    // Large enough to be split in tiles and kernel blocks on the workers, then a small layer on the same engine,
+    // whose tasks and buffers are left from the larger call.
+    @Test
+    public void engineReusedAcrossLayerSizes()
+    {
+        check(new ConvolutionCase(2, 16, 33, 35).kernels(20, 3, 3).group(2).pad(1, 1));
+        check(new ConvolutionCase(2, 32, 29, 31).kernels(19, 1, 1));
+        check(new ConvolutionCase(1, 2, 6, 5).kernels(3, 3, 3).pad(1, 1));
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private void check(ConvolutionCase c)
+    {
+        c.draw();
+        float[] out = c.output();
+        gemm.convolve(c.in, c.inOffset, c.n_i, c.c_i, c.h_i, c.w_i,
+                GemmConvolution.packKernels(c.kernels, c.n_k, c.c_k, c.h_k, c.w_k, c.group), c.bias, c.n_k, c.h_k,
+                c.w_k, c.group, c.pad, c.stride, out, c.outOffset, c.h_o, c.w_o);
+        c.assertOutput("gemm", out, TOLERANCE);
+    }
+}
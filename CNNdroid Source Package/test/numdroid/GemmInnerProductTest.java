@@ -0,0 +1,74 @@
+package numdroid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static numdroid.Reference.assertClose;
+
+// Blocked inner product against the direct loop. The input and output rows start at an offset and may be further
+// apart than their length, as the rows of a fully connected layer that reads or writes a view of a larger blob.
+public class GemmInnerProductTest
+{
+    private static final float TOLERANCE = 1e-4f;
+
+    private final GemmInnerProduct gemm = new GemmInnerProduct();
+
+    // Below MIN_BATCH every image is a matrix-vector product.
+    @Test
+    public void smallBatchOneImageAtATime()
+    {
+        check(1, 37, 11, 0, 0);
+        check(3, 50, 9, 3, 1);
+    }
+
+    @Test
+    public void batchPacked()
+    {
+        check(GemmInnerProduct.MIN_BATCH, 64, 16, 0, 0);
+        check(7, 45, 13, 4, 2);
+    }
+
+    @Test
+    public void singleInput()
+    {
+        check(10, 1, 5, 0, 0);
+    }
+
+    // Both loops of one engine, with sizes that grow and shrink from call to call.
+    @Test
+    public void largeLayersOnTheWorkers()
+    {
+        check(17, 300, 130, 9, 3);
+        check(2, 1000, 257, 0, 0);
+        check(5, 20, 7, 1, 1);
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // n_i rows of c_i inputs to rows of c_o outputs; the rows are inGap and outGap values longer than that.
+    private void check(int n_i, int c_i, int c_o, int inGap, int outGap)
+    {
+        String name = "(" + n_i + ", " + c_i + ") -> " + c_o + ", gaps " + inGap + ", " + outGap;
+        Random random = new Random(name.hashCode());
+        int inOffset = random.nextInt(8), inStride = c_i + inGap;
+        int outOffset = random.nextInt(8), outStride = c_o + outGap;
+        float[] weight = Reference.random(random, c_o * c_i);
+        float[] bias = Reference.random(random, c_o);
+        float[] in = Reference.random(random, inOffset + n_i * inStride);
+        float[] rows = new float[n_i * c_i];
+        for (int n = 0; n < n_i; ++n)
+            System.arraycopy(in, inOffset + n * inStride, rows, n * c_i, c_i);
+
+        float[] out = new float[outOffset + n_i * outStride];
+        gemm.multiply(in, inOffset, inStride, n_i, c_i, GemmInnerProduct.packWeights(weight, c_o, c_i), bias,
+                c_o, out, outOffset, outStride);
+        float[] result = new float[n_i * c_o];
+        for (int n = 0; n < n_i; ++n) {
+            System.arraycopy(out, outOffset + n * outStride, result, n * c_o, c_o);
+            Arrays.fill(out, outOffset + n * outStride, outOffset + n * outStride + c_o, 0);
+        }
+        assertClose(name + " outside the rows", new float[out.length], out, 0);
+        assertClose(name, Reference.innerProduct(rows, n_i, c_i, weight, bias, c_o), result, TOLERANCE);
+    }
+}
@@ -0,0 +1,100 @@
+package numdroid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static numdroid.Reference.assertCloseAt;
+
+// int8 GEMM convolution against the direct loop over the kernel taps, for signed inputs and for unsigned ones
+// (stored as q - 128 and corrected by the kernel sums). The int32 sums are exact, so the results must be equal.
+// The frames are already padded, as the layer passes them: the case pads are 0.
+public class QuantizedConvolutionTest
+{
+    private static final float INPUT_SCALE = 0.01f;
+
+    private final QuantizedConvolution convolution = new QuantizedConvolution();
+
+    @Test
+    public void partialPanels()
+    {
+        check(new ConvolutionCase(1, 3, 11, 11).kernels(8, 3, 3));
+    }
+
+    @Test
+    public void stridesAndGroups()
+    {
+        check(new ConvolutionCase(2, 5, 9, 13).kernels(6, 3, 3).stride(2, 2));
+        check(new ConvolutionCase(3, 4, 14, 9).kernels(6, 5, 3).group(2).stride(1, 2));
+        check(new ConvolutionCase(1, 6, 15, 16).kernels(9, 3, 3).group(3).stride(2, 3));
+    }
+
+    @Test
+    public void pointwise()
+    {
+        check(new ConvolutionCase(2, 7, 5, 6).kernels(5, 1, 1));
+    }
+
+    @Test
+    public void kernelAsLargeAsTheFrame()
+    {
+        check(new ConvolutionCase(1, 1, 4, 4).kernels(3, 4, 4));
+    }
+
+    @Test
+    public void largeLayerOnTheWorkers()
+    {
+        check(new ConvolutionCase(2, 16, 35, 37).kernels(20, 3, 3).group(2));
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private void check(ConvolutionCase c)
+    {
+        c.draw();
+        Random random = new Random(c.toString().hashCode());
+        byte[] frames = new byte[c.n_i * c.c_i * c.h_i * c.w_i];
+        random.nextBytes(frames);
+        QuantizedTensor kernels = QuantizedTensor.quantize(c.kernels, new int[]{c.n_k, c.c_k, c.h_k, c.w_k});
+        // only the windows that fit in the frame
+        int h_o = (c.h_i - c.h_k) / c.stride[0] + 1;
+        int w_o = (c.w_i - c.w_k) / c.stride[1] + 1;
+
+        for (int inputOffset = 0; inputOffset <= 128; inputOffset += 128) {
+            float[] out = new float[c.outOffset + c.n_i * c.n_k * h_o * w_o];
+            convolution.convolve(frames, c.n_i, c.c_i, c.h_i, c.w_i, kernels, INPUT_SCALE, inputOffset, c.bias,
+                    c.group, c.stride, out, c.outOffset, h_o, w_o);
+            assertCloseAt(c + ", input offset " + inputOffset, convolve(frames, c, kernels, inputOffset, h_o, w_o),
+                    out, c.outOffset, 0);
+        }
+    }
+
+    // Sums of every output channel accumulated one kernel tap at a time, then scaled back to float.
+    private static float[] convolve(byte[] frames, ConvolutionCase c, QuantizedTensor kernels, int inputOffset,
+                                    int h_o, int w_o)
+    {
+        int h_q = c.h_i, w_q = c.w_i, c_k = c.c_k, h_k = c.h_k, w_k = c.w_k;
+        int m_k = c.n_k / c.group;
+        float[] out = new float[c.n_i * c.n_k * h_o * w_o];
+        int[] acc = new int[h_o * w_o];
+        for (int n = 0; n < c.n_i; ++n)
+            for (int k = 0; k < c.n_k; ++k) {
+                Arrays.fill(acc, 0);
+                for (int ch = 0; ch < c_k; ++ch) {
+                    int channel = (n * c.c_i + k / m_k * c_k + ch) * h_q * w_q;
+                    for (int y = 0; y < h_k; ++y)
+                        for (int x = 0; x < w_k; ++x) {
+                            int tap = kernels.data[((k * c_k + ch) * h_k + y) * w_k + x];
+                            for (int i = 0; i < h_o; ++i)
+                                for (int j = 0; j < w_o; ++j)
+                                    acc[i * w_o + j] += frames[channel + (i * c.stride[0] + y) * w_q + j * c.stride[1] + x] * tap;
+                        }
+                }
+                float scale = INPUT_SCALE * kernels.scales[k];
+                int correction = inputOffset * kernels.sums[k];
+                for (int p = 0; p < h_o * w_o; ++p)
+                    out[(n * c.n_k + k) * h_o * w_o + p] = (acc[p] + correction) * scale + c.bias[k];
+            }
+        return out;
+    }
+}
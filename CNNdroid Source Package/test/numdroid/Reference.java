@@ -0,0 +1,91 @@
+package numdroid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// The direct loops of MyNum that the CPU engines are checked against, random data for the tests, and the
+// number of CPU workers they run on.
+class Reference
+{
+    private static final MyNum myNum = new MyNum();
+
+    static
+    {
+        // Every engine test uses these helpers before its first call, so the tasks go through a pool of several
+        // threads, even on one core, whichever test runs first.
+        Workers.setParallelism(3);
+    }
+
+    // Output size of a convolution along one axis, as computed by layers.Convolution: the last window may reach
+    // past the padding.
+    static int outputSize(int in, int k, int pad, int stride)
+    {
+        return (int) (Math.ceil((in + 2 * pad - k) / ((float) stride)) + 1);
+    }
+
+    // out (n_i, n_k, h_o, w_o) = in (n_i, c_i, h_i, w_i) convolved with kernels (n_k, c_i / group, h_k, w_k),
+    // plus bias, one MyNum.sum_conv per output value.
+    static float[] convolve(float[] in, int n_i, int c_i, int h_i, int w_i, float[] kernels, float[] bias, int n_k,
+                            int h_k, int w_k, int group, int[] pad, int[] stride)
+    {
+        int c_k = c_i / group;
+        int m_k = n_k / group;
+        int h_o = outputSize(h_i, h_k, pad[0], stride[0]);
+        int w_o = outputSize(w_i, w_k, pad[1], stride[1]);
+        float[] out = new float[n_i * n_k * h_o * w_o];
+        for (int n = 0; n < n_i; ++n)
+            for (int k = 0; k < n_k; ++k) {
+                int frame = (n * c_i + k / m_k * c_k) * h_i * w_i;
+                for (int i = 0; i < h_o; ++i)
+                    for (int j = 0; j < w_o; ++j)
+                        out[((n * n_k + k) * h_o + i) * w_o + j] = myNum.sum_conv(in, frame, c_k, h_i, w_i, kernels,
+                                k * c_k * h_k * w_k, h_k, w_k, i * stride[0], j * stride[1], pad[0], pad[1]) + bias[k];
+            }
+        return out;
+    }
+
+    // out[n * c_o + c] = bias[c] + weight row c . input row n, one MyNum.sum_innerproduct per output value.
+    static float[] innerProduct(float[] in, int n_i, int c_i, float[] weight, float[] bias, int c_o)
+    {
+        float[] out = new float[n_i * c_o];
+        for (int n = 0; n < n_i; ++n)
+            for (int c = 0; c < c_o; ++c)
+                out[n * c_o + c] = myNum.sum_innerproduct(in, n * c_i, weight, c * c_i, c_i) + bias[c];
+        return out;
+    }
+
+    // n values uniform in [-1, 1).
+    static float[] random(Random random, int n)
+    {
+        float[] a = new float[n];
+        for (int i = 0; i < n; ++i)
+            a[i] = random.nextFloat() * 2 - 1;
+        return a;
+    }
+
+    // a copied to offset of a new array, as a blob viewed from a larger one.
+    static float[] shift(float[] a, int offset)
+    {
+        float[] b = new float[offset + a.length];
+        System.arraycopy(a, 0, b, offset, a.length);
+        return b;
+    }
+
+    // actual holds the expected values from offset on, and zeros before.
+    static void assertCloseAt(String message, float[] expected, float[] actual, int offset, float tolerance)
+    {
+        for (int i = 0; i < offset; ++i)
+            assertEquals(message + ": value " + i + " before the offset", 0, actual[i], 0);
+        assertClose(message, expected, Arrays.copyOfRange(actual, offset, actual.length), tolerance);
+    }
+
+    // Equal up to tolerance relative to the magnitude of the expected value (at least 1).
+    static void assertClose(String message, float[] expected, float[] actual, float tolerance)
+    {
+        assertEquals(message + ": length", expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i)
+            assertEquals(message + ": value " + i, expected[i], actual[i], tolerance * Math.max(1, Math.abs(expected[i])));
+    }
+}
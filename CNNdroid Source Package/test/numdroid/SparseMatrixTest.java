@@ -0,0 +1,84 @@
+package numdroid;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static numdroid.Reference.assertClose;
+import static org.junit.Assert.assertEquals;
+
+// CSR weights against the direct loop over the pruned dense weights, with rows that start at an offset and are
+// further apart than their length, as views of a larger blob.
+public class SparseMatrixTest
+{
+    private static final float TOLERANCE = 1e-4f;
+
+    @Test
+    public void keepsValuesAboveThreshold()
+    {
+        float[] dense = {0.5f, -0.1f, 0, 0.3f,
+                         0, 0, 0, 0,
+                         -0.7f, 0.2f, 0.25f, -0.05f};
+        SparseMatrix m = SparseMatrix.fromDense(dense, 3, 4, 0.2f);
+        assertEquals(4, m.nonZeros());
+        assertEquals(4 / 12f, m.density(), 0);
+        assertClose("dense", new float[]{0.5f, 0, 0, 0.3f, 0, 0, 0, 0, -0.7f, 0, 0.25f, 0}, m.toDense(), 0);
+    }
+
+    @Test
+    public void halfPruned()
+    {
+        check(1, 11, 37, 50, 0, 0);
+        check(2, 300, 400, 50, 0, 0);
+    }
+
+    // A few full rows hold most of the values, so the threads get uneven numbers of rows.
+    @Test
+    public void unevenRows()
+    {
+        check(3, 9, 50, 90, 3, 1);
+        check(5, 130, 301, 80, 9, 3);
+        check(2, 257, 1000, 95, 2, 4);
+    }
+
+    // Only the rows kept full are left.
+    @Test
+    public void allPruned()
+    {
+        check(4, 64, 100, 100, 0, 0);
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // n rows of cols inputs times weights with percent of zeros, the rows inGap and outGap values longer.
+    private static void check(int n, int rows, int cols, int percent, int inGap, int outGap)
+    {
+        String name = n + " x " + cols + " -> " + rows + ", " + percent + "% zeros";
+        Random random = new Random(name.hashCode());
+        int inOffset = random.nextInt(8), inStride = cols + inGap;
+        int outOffset = random.nextInt(8), outStride = rows + outGap;
+        float[] dense = Reference.random(random, rows * cols);
+        for (int i = 0; i < dense.length; ++i)
+            if (random.nextInt(100) < percent)
+                dense[i] = 0;
+        // every 7th row full, the second one empty
+        for (int r = 0; r < rows; r += 7)
+            for (int c = 0; c < cols; ++c)
+                dense[r * cols + c] = random.nextFloat() + 0.5f;
+        for (int c = 0; c < cols && rows > 1; ++c)
+            dense[cols + c] = 0;
+        float[] bias = Reference.random(random, rows);
+        float[] in = Reference.random(random, inOffset + n * inStride);
+        float[] inputRows = new float[n * cols];
+        for (int i = 0; i < n; ++i)
+            System.arraycopy(in, inOffset + i * inStride, inputRows, i * cols, cols);
+
+        SparseMatrix m = SparseMatrix.fromDense(dense, rows, cols, 0);
+        assertClose(name + " dense", dense, m.toDense(), 0);
+        float[] out = new float[outOffset + n * outStride];
+        m.multiply(in, inOffset, inStride, n, bias, out, outOffset, outStride);
+        float[] result = new float[n * rows];
+        for (int i = 0; i < n; ++i)
+            System.arraycopy(out, outOffset + i * outStride, result, i * rows, rows);
+        assertClose(name, Reference.innerProduct(inputRows, n, cols, dense, bias, rows), result, TOLERANCE);
+    }
+}
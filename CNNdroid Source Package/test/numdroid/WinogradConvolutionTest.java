@@ -0,0 +1,66 @@
+package numdroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+
+// Winograd F(2x2, 3x3) and F(4x4, 3x3) against the direct loop. Every case is computed with both tiles, and the
+// outputs are rarely a multiple of either, so the last tiles of a row or column are cut.
+public class WinogradConvolutionTest
+{
+    private static final float TOLERANCE = 1e-4f;
+
+    private final WinogradConvolution winograd = new WinogradConvolution();
+
+    @Test
+    public void paddedSameSize()
+    {
+        check(new ConvolutionCase(1, 3, 9, 9).kernels(8, 3, 3).pad(1, 1));
+    }
+
+    @Test
+    public void unpadded()
+    {
+        check(new ConvolutionCase(2, 5, 7, 11).kernels(6, 3, 3));
+    }
+
+    @Test
+    public void unevenPaddingAndGroups()
+    {
+        check(new ConvolutionCase(3, 4, 10, 7).kernels(6, 3, 3).group(2).pad(2, 1));
+        check(new ConvolutionCase(1, 6, 13, 13).kernels(9, 3, 3).group(3).pad(1, 0));
+    }
+
+    // One output pixel: a single tile, almost all of it cut.
+    @Test
+    public void singleOutput()
+    {
+        check(new ConvolutionCase(1, 1, 3, 3).kernels(3, 3, 3));
+    }
+
+    @Test
+    public void largeLayerOnTheWorkers()
+    {
+        check(new ConvolutionCase(2, 16, 31, 29).kernels(20, 3, 3).group(2).pad(1, 1));
+    }
+
+    @Test
+    public void onlyStrideOne3x3()
+    {
+        assertFalse(WinogradConvolution.applies(3, 3, new int[]{2, 2}));
+        assertFalse(WinogradConvolution.applies(5, 5, new int[]{1, 1}));
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private void check(ConvolutionCase c)
+    {
+        c.draw();
+        for (int m = 2; m <= 4; m += 2) {
+            float[] out = c.output();
+            winograd.convolve(c.in, c.inOffset, c.n_i, c.c_i, c.h_i, c.w_i,
+                    WinogradConvolution.transformKernels(c.kernels, c.n_k, c.c_k, c.group, m), m, c.bias, c.n_k,
+                    c.group, c.pad, out, c.outOffset, c.h_o, c.w_o);
+            c.assertOutput("F(" + m + "x" + m + ", 3x3)", out, TOLERANCE);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package params;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+
+import numdroid.Half;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// MessagePack parameters converted to the binary format and mapped back: shapes, data types and values, with the
+// data of every array at a multiple of ALIGNMENT even when the array before it is not. Files that are cut short or
+// are not in the format must be refused when they are opened, not when an array is read.
+public class MappedParamsTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void convertsMessagePack() throws IOException
+    {
+        Random random = new Random(6);
+        float[][][][] kernels = kernels(random, 5, 3, 3, 3);
+        float[] bias = random(random, 5);
+        File bin = convert("conv.msg", false, kernels, bias);
+
+        MappedParams p = MappedParams.open(bin.getPath());
+        assertNotNull(p);
+        assertTrue(MappedParams.isMappedFile(bin.getPath()));
+        assertEquals(2, p.arrayCount());
+        assertArrayEquals(new int[]{5, 3, 3, 3}, p.shape(0));
+        assertArrayEquals(new int[]{5}, p.shape(1));
+        assertEquals(MappedParams.DTYPE_FLOAT32, p.dtype(0));
+        assertEquals(MappedParams.DTYPE_FLOAT32, p.dtype(1));
+        assertArrayEquals(flatten(kernels), p.toArray(0), 0);
+        assertArrayEquals(bias, p.toArray(1), 0);
+        assertAligned(bin, 2);
+    }
+
+    // Only the weights are narrowed; the bias keeps its precision.
+    @Test
+    public void halfPrecisionWeights() throws IOException
+    {
+        Random random = new Random(16);
+        float[][][][] kernels = kernels(random, 7, 2, 3, 1);
+        float[] bias = random(random, 7);
+        File bin = convert("conv.msg", true, kernels, bias);
+
+        MappedParams p = MappedParams.open(bin.getPath());
+        assertEquals(MappedParams.DTYPE_FLOAT16, p.dtype(0));
+        assertEquals(MappedParams.DTYPE_FLOAT32, p.dtype(1));
+        assertArrayEquals(new int[]{7, 2, 3, 1}, p.shape(0));
+        float[] weights = flatten(kernels);
+        short[] halves = new short[weights.length];
+        for (int i = 0; i < weights.length; ++i)
+            halves[i] = Half.fromFloat(weights[i]);
+        assertArrayEquals(halves, p.toHalfArray(0));
+        assertArrayEquals(Half.toFloats(halves), p.toArray(0), 0);
+        assertArrayEquals(bias, p.toArray(1), 0);
+        // 42 halves end 20 bytes into a block, the bias starts at the next one
+        assertAligned(bin, 2);
+        try {
+            p.floats(0);
+            fail("half precision weights read as floats");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    // Any other number of arrays is kept in single precision, e.g. labels.
+    @Test
+    public void halfPrecisionOnlyForWeightsAndBias() throws IOException
+    {
+        float[] labels = {3, 1, 4, 1, 5};
+        MappedParams p = MappedParams.open(convert("labels.msg", true, (Object) labels).getPath());
+        assertEquals(1, p.arrayCount());
+        assertEquals(MappedParams.DTYPE_FLOAT32, p.dtype(0));
+        assertArrayEquals(labels, p.toArray(0), 0);
+    }
+
+    @Test
+    public void integerArrays() throws IOException
+    {
+        int[] columns = {0, 5, 2, 9, 1, 1, 7};
+        int[] rows = {0, 3, 3, 7};
+        float[] values = {0.5f, -1, 2, 0.25f, -0.75f, 3, 1.5f};
+        File bin = new File(folder.getRoot(), "sparse.bin");
+        ParamConverter.writeArrays(bin.getPath(),
+                Arrays.asList(new int[]{7}, new int[]{4}, new int[]{7}, new int[]{3, 3}),
+                Arrays.<Object>asList(values, rows, columns, new float[]{1, 2, 3, 4, 5, 6, 7, 8, 9}),
+                new int[]{MappedParams.DTYPE_FLOAT16, MappedParams.DTYPE_INT32, MappedParams.DTYPE_INT32,
+                        MappedParams.DTYPE_FLOAT32});
+
+        MappedParams p = MappedParams.open(bin.getPath());
+        assertEquals(4, p.arrayCount());
+        assertEquals(MappedParams.DTYPE_INT32, p.dtype(1));
+        assertEquals(MappedParams.DTYPE_INT32, p.dtype(2));
+        assertArrayEquals(rows, p.toIntArray(1));
+        assertArrayEquals(columns, p.toIntArray(2));
+        assertArrayEquals(values, p.toArray(0), 0);
+        assertArrayEquals(new int[]{3, 3}, p.shape(3));
+        assertArrayEquals(new float[]{1, 2, 3, 4, 5, 6, 7, 8, 9}, p.toArray(3), 0);
+        assertAligned(bin, 4);
+        try {
+            p.toIntArray(3);
+            fail("floats read as integers");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    // The header is intact, the data of the last array is not all there.
+    @Test
+    public void truncatedFileIsRefused() throws IOException
+    {
+        Random random = new Random(26);
+        File bin = convert("fc.msg", false, random(random, 100), random(random, 10));
+        long[] offsets = assertAligned(bin, 2);
+        RandomAccessFile f = new RandomAccessFile(bin, "rw");
+        f.setLength(offsets[1] + 4 * 10 - 1);
+        f.close();
+        assertTrue(MappedParams.isMappedFile(bin.getPath()));
+        assertNull(MappedParams.open(bin.getPath()));
+
+        // cut inside the header
+        f = new RandomAccessFile(bin, "rw");
+        f.setLength(12);
+        f.close();
+        assertFalse(MappedParams.isMappedFile(bin.getPath()));
+        assertNull(MappedParams.open(bin.getPath()));
+    }
+
+    @Test
+    public void badMagicIsRefused() throws IOException
+    {
+        Random random = new Random(36);
+        File bin = convert("fc.msg", false, random(random, 100), random(random, 10));
+        byte[] bytes = Files.readAllBytes(bin.toPath());
+        bytes[0] ^= 1;
+        Files.write(bin.toPath(), bytes);
+        assertFalse(MappedParams.isMappedFile(bin.getPath()));
+        assertNull(MappedParams.open(bin.getPath()));
+
+        // the MessagePack file itself
+        assertFalse(MappedParams.isMappedFile(new File(folder.getRoot(), "fc.msg").getPath()));
+        assertNull(MappedParams.open(new File(folder.getRoot(), "fc.msg").getPath()));
+    }
+
+    @Test
+    public void unknownVersionIsRefused() throws IOException
+    {
+        File bin = convert("fc.msg", false, random(new Random(46), 12));
+        byte[] bytes = Files.readAllBytes(bin.toPath());
+        bytes[4] = 2;
+        Files.write(bin.toPath(), bytes);
+        assertNull(MappedParams.open(bin.getPath()));
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    // The values packed with msgpack into folder/msgFile, converted next to it.
+    private File convert(String msgFile, boolean half, Object... values) throws IOException
+    {
+        File msg = new File(folder.getRoot(), msgFile);
+        FileOutputStream out = new FileOutputStream(msg);
+        Packer packer = new MessagePack().createPacker(out);
+        for (Object v : values)
+            packer.write(v);
+        packer.flush();
+        out.close();
+        File bin = new File(folder.getRoot(), msgFile.replace(".msg", ".bin"));
+        ParamConverter.convert(msg.getPath(), bin.getPath(), half);
+        return bin;
+    }
+
+    // Offsets of the data of the count arrays, read from the header, all aligned and inside the file.
+    private static long[] assertAligned(File bin, int count) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(bin.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(count, b.getInt(8));
+        long[] offsets = new long[count];
+        int pos = 16;
+        for (int i = 0; i < count; ++i) {
+            int rank = b.getInt(pos + 4);
+            pos += 8 + 4 * rank;
+            offsets[i] = b.getLong(pos);
+            pos += 8;
+            assertEquals("offset of array " + i, 0, offsets[i] % MappedParams.ALIGNMENT);
+            assertTrue("array " + i + " after the header", offsets[i] >= pos);
+            assertTrue("array " + i + " inside the file", offsets[i] < b.capacity());
+        }
+        assertEquals("length of the file", 0, b.capacity() % MappedParams.ALIGNMENT);
+        return offsets;
+    }
+
+    private static float[][][][] kernels(Random random, int n, int c, int h, int w)
+    {
+        float[][][][] k = new float[n][c][h][w];
+        for (float[][][] kernel : k)
+            for (float[][] channel : kernel)
+                for (float[] row : channel)
+                    for (int i = 0; i < row.length; ++i)
+                        row[i] = random.nextFloat() * 2 - 1;
+        return k;
+    }
+
+    private static float[] flatten(float[][][][] a)
+    {
+        float[] flat = new float[a.length * a[0].length * a[0][0].length * a[0][0][0].length];
+        int i = 0;
+        for (float[][][] kernel : a)
+            for (float[][] channel : kernel)
+                for (float[] row : channel)
+                    for (float v : row)
+                        flat[i++] = v;
+        return flat;
+    }
+
+    private static float[] random(Random random, int n)
+    {
+        float[] a = new float[n];
+        for (int i = 0; i < n; ++i)
+            a[i] = random.nextFloat() * 2 - 1;
+        return a;
+    }
+}
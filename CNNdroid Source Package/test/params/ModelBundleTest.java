@@ -0,0 +1,128 @@
+package params;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// A definition bundled with a MessagePack parameters file, converted on the way, and a binary one, copied as it
+// is, then read back through "<bundle>#<section>" paths. The bundle sits in a folder whose name holds the
+// separator, and so does the name of one of the sections.
+public class ModelBundleTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final float[][] WEIGHTS = {{0.5f, -1, 2}, {0.25f, 3, -0.75f}};
+    private static final float[] BIAS = {1, -2};
+    private static final float[] FC_WEIGHTS = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12};
+    private static final float[] FC_BIAS = {0.5f, 1.5f, 2.5f};
+
+    private File dir;
+    private String bundle;
+
+    @Before
+    public void bundle() throws IOException
+    {
+        dir = folder.newFolder("models#1");
+        File msg = new File(dir, "conv.msg");
+        FileOutputStream out = new FileOutputStream(msg);
+        Packer packer = new MessagePack().createPacker(out);
+        packer.write(WEIGHTS);
+        packer.write(BIAS);
+        packer.flush();
+        out.close();
+        ParamConverter.write(new File(dir, "fc#2.bin").getPath(), Arrays.asList(new int[]{3, 4}, new int[]{3}),
+                Arrays.asList(FC_WEIGHTS, FC_BIAS));
+
+        File definition = new File(dir, "net.txt");
+        FileWriter w = new FileWriter(definition);
+        w.write("root_directory: \"" + dir.getPath() + "/\"\n"
+                + "allocated_ram: 10\n"
+                + "layer {\n type: \"Convolution\"\n name: \"conv\"\n parameters_file: \"conv.msg\"\n}\n"
+                + "layer {\n type: \"FullyConnected\"\n name: \"fc\"\n parameters_file: \"fc#2.bin\"\n}\n"
+                + "layer {\n type: \"FullyConnected\"\n name: \"fc_shared\"\n parameters_file: \"fc#2.bin\"\n}\n");
+        w.close();
+        bundle = new File(dir, "model.cnnb").getPath();
+        ModelBundle.write(definition.getPath(), bundle);
+    }
+
+    @Test
+    public void definitionWithoutRootDirectory()
+    {
+        assertTrue(ModelBundle.isBundle(bundle));
+        ModelBundle b = ModelBundle.open(bundle);
+        assertNotNull(b);
+        String definition = b.definition();
+        assertFalse(definition.contains("root_directory"));
+        assertTrue(definition.startsWith("allocated_ram: 10\n"));
+        assertTrue(definition.contains("parameters_file: \"fc#2.bin\""));
+        assertEquals(bundle + "#fc#2.bin", b.pathOf("fc#2.bin"));
+    }
+
+    @Test
+    public void messagePackSectionIsConverted() throws IOException
+    {
+        String path = bundle + "#conv.msg";
+        assertTrue(MappedParams.isMappedFile(path));
+        MappedParams p = MappedParams.open(path);
+        assertNotNull(p);
+        assertEquals(2, p.arrayCount());
+        assertArrayEquals(new int[]{2, 3}, p.shape(0));
+        assertArrayEquals(new float[]{0.5f, -1, 2, 0.25f, 3, -0.75f}, p.toArray(0), 0);
+        assertArrayEquals(BIAS, p.toArray(1), 0);
+        assertArrayEquals(new int[]{2}, ParamHeader.read(path).shape(1));
+    }
+
+    // Referred to twice, bundled once, and found although its name holds the separator.
+    @Test
+    public void sectionNameWithSeparator() throws IOException
+    {
+        String path = bundle + "#fc#2.bin";
+        assertArrayEquals(new String[]{bundle, "fc#2.bin"}, ModelBundle.split(path));
+        MappedParams p = MappedParams.open(path);
+        assertNotNull(p);
+        assertArrayEquals(new int[]{3, 4}, p.shape(0));
+        assertArrayEquals(FC_WEIGHTS, p.toArray(0), 0);
+        assertArrayEquals(FC_BIAS, p.toArray(1), 0);
+        assertEquals(new File(dir, "fc#2.bin").length(), ModelBundle.open(bundle).sectionSize("fc#2.bin"));
+        assertEquals(new File(bundle), ModelBundle.containerOf(path));
+    }
+
+    @Test
+    public void missingSection()
+    {
+        String path = bundle + "#conv.bin";
+        ModelBundle b = ModelBundle.open(bundle);
+        assertEquals(-1, b.sectionSize("conv.bin"));
+        assertNull(b.section("conv.bin"));
+        assertFalse(MappedParams.isMappedFile(path));
+        assertNull(MappedParams.open(path));
+    }
+
+    // A file that is not a bundle is not split, whatever its name holds.
+    @Test
+    public void plainFilesAreNotSplit()
+    {
+        String path = new File(dir, "fc#2.bin").getPath();
+        assertNull(ModelBundle.split(path));
+        assertEquals(new File(path), ModelBundle.containerOf(path));
+        assertNotNull(MappedParams.open(path));
+        assertFalse(ModelBundle.isBundle(new File(dir, "conv.msg").getPath()));
+    }
+}
@@ -0,0 +1,115 @@
+package params;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+
+import numdroid.SparseMatrix;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Shapes read from the headers of MessagePack files, as written by the parameter generation scripts, and of the
+// same files converted to the binary format, with the memory they take once loaded at every weight size.
+public class ParamHeaderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // conv1 of LeNet: 20 kernels of 1 x 5 x 5
+    @Test
+    public void convolution() throws IOException
+    {
+        File msg = pack("conv1.msg", new float[20][1][5][5], new float[20]);
+        for (String path : new String[]{msg.getPath(), convert(msg, false), convert(msg, true)}) {
+            ParamHeader h = ParamHeader.read(path);
+            assertEquals(path, 2, h.arrayCount());
+            assertArrayEquals(path, new int[]{20, 1, 5, 5}, h.shape(0));
+            assertArrayEquals(path, new int[]{20}, h.shape(1));
+            assertEquals(path, 500, h.count(0));
+            assertFalse(path, h.isSparse());
+            assertEquals(path, 4 * 500 + 4 * 20, h.loadedBytes(4));
+            assertEquals(path, 2 * 500 + 4 * 20, h.loadedBytes(2));
+            // int8 weights with a scale and a sum per kernel
+            assertEquals(path, 500 + 4 * 20 + 8 * 20, h.loadedBytes(1));
+        }
+        assertEquals(MappedParams.DTYPE_FLOAT32, ParamHeader.read(msg.getPath()).dtype(0));
+        assertEquals(MappedParams.DTYPE_FLOAT16, ParamHeader.read(convert(msg, true)).dtype(0));
+        assertEquals(MappedParams.DTYPE_FLOAT32, ParamHeader.read(convert(msg, true)).dtype(1));
+    }
+
+    // ip1 of LeNet: 500 outputs of 800 inputs, past the 16-bit array headers of MessagePack
+    @Test
+    public void fullyConnected() throws IOException
+    {
+        File msg = pack("ip1.msg", new float[500][800], new float[500]);
+        for (String path : new String[]{msg.getPath(), convert(msg, false), convert(msg, true)}) {
+            ParamHeader h = ParamHeader.read(path);
+            assertArrayEquals(path, new int[]{500, 800}, h.shape(0));
+            assertArrayEquals(path, new int[]{500}, h.shape(1));
+            assertEquals(path, 4L * 400000 + 4 * 500, h.loadedBytes(4));
+            assertEquals(path, 2L * 400000 + 4 * 500, h.loadedBytes(2));
+            assertEquals(path, 400000L + 12 * 500, h.loadedBytes(1));
+        }
+    }
+
+    // Files that do not hold weights and bias are loaded in 32-bit values whatever the weight size.
+    @Test
+    public void labelsAndMeans() throws IOException
+    {
+        File msg = pack("mean.msg", new float[3][4][4], new float[10], new float[7]);
+        for (String path : new String[]{msg.getPath(), convert(msg, true)}) {
+            ParamHeader h = ParamHeader.read(path);
+            assertEquals(path, 3, h.arrayCount());
+            assertArrayEquals(path, new int[]{3, 4, 4}, h.shape(0));
+            for (int size = 1; size <= 4; size <<= 1)
+                assertEquals(path, 4 * (48 + 10 + 7), h.loadedBytes(size));
+        }
+    }
+
+    // The dense shape of CSR weights is not kept, only the row pointers, columns, values and bias.
+    @Test
+    public void sparseWeights() throws IOException
+    {
+        float[] dense = new float[6 * 10];
+        for (int i = 0; i < dense.length; i += 3)
+            dense[i] = 1;
+        File bin = new File(folder.getRoot(), "ip2.bin");
+        Pruner.write(bin.getPath(), SparseMatrix.fromDense(dense, 6, 10, 0), new float[6]);
+
+        ParamHeader h = ParamHeader.read(bin.getPath());
+        assertTrue(h.isSparse());
+        assertEquals(MappedParams.DTYPE_INT32, h.dtype(0));
+        assertEquals(20, h.count(2));
+        assertEquals(4 * (7 + 20 + 20 + 6), h.loadedBytes(4));
+        assertEquals(h.loadedBytes(4), h.loadedBytes(1));
+    }
+
+    ////////////////////////////////////////Local Functions/////////////////////////////////////////
+    private File pack(String name, Object... values) throws IOException
+    {
+        File msg = new File(folder.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(msg);
+        Packer packer = new MessagePack().createPacker(out);
+        for (Object v : values)
+            packer.write(v);
+        packer.flush();
+        out.close();
+        return msg;
+    }
+
+    private String convert(File msg, boolean half) throws IOException
+    {
+        String bin = msg.getPath().replace(".msg", half ? ".fp16.bin" : ".bin");
+        ParamConverter.convert(msg.getPath(), bin, half);
+        return bin;
+    }
+}